@@ -5,11 +5,19 @@ import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanResult;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Environment;
 import android.os.Handler;
 import android.os.IBinder;
 import android.util.Log;
 
-import java.util.LinkedList;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import de.fau.lme.plotview.Plot;
 import de.fau.lme.sensorlib.DsSensorManager;
@@ -21,13 +29,24 @@ import de.fau.lme.sensorlib.dataframe.SimbleeMedhackEcgDataFrame;
 import de.fau.lme.sensorlib.dataframe.SimbleeMedhackGalvDataFrame;
 import de.fau.lme.sensorlib.dataframe.SimbleeMedhackGyroDataFrame;
 import de.fau.lme.sensorlib.sensors.DsSensor;
+import de.fau.lme.sensorlib.sensors.SessionReplaySensor;
 import de.fau.lme.sensorlib.sensors.SimbleeEcgSensor;
 import de.fau.lme.sensorlib.sensors.SimbleeMedhackSensor;
+import de.medsenshack.data.AccelFeatureExtractor;
+import de.medsenshack.data.ActivityClass;
+import de.medsenshack.data.ActivityClassifier;
+import de.medsenshack.data.BeatEvent;
+import de.medsenshack.data.BeatLatency;
+import de.medsenshack.data.EdrExtractor;
+import de.medsenshack.data.FrequencyHrv;
 import de.medsenshack.data.PanTompkins;
-import de.medsenshack.data.storage.AccDataWriter;
-import de.medsenshack.data.storage.EcgDataWriter;
-import de.medsenshack.data.storage.GalvDataWriter;
-import de.medsenshack.data.storage.GyroDataWriter;
+import de.medsenshack.data.SignalQuality;
+import de.medsenshack.data.StepDetector;
+import de.medsenshack.data.TrendStore;
+import de.medsenshack.data.storage.BinaryRecorder;
+import de.medsenshack.data.storage.EdfExporter;
+import de.medsenshack.data.storage.EdfWriter;
+import de.medsenshack.data.storage.RecordingIndex;
 
 
 /**
@@ -48,22 +67,52 @@ import de.medsenshack.data.storage.GyroDataWriter;
 public class BleService extends Service implements SignalNotifier {
 
     private static final String TAG = BleService.class.getSimpleName();
+    /**
+     * segments of the binary recording, about 13 s of all channels, and the longest time of data
+     * that is lost if the app is killed
+     */
+    private static final int RECORDING_SEGMENT_SIZE = 64 * 1024;
+    private static final long RECORDING_SYNC_INTERVAL = 5000;
+    /**
+     * EDF+ labels of the recorded channels, the 3 axis channels get the axis appended
+     */
+    private static final String[] EDF_LABELS = {"ECG", "Acc", "GSR", "Gyro"};
     /**
      * Static member variable containing all algorithms for the ECG processing according to
      * the algorithm provided by Pan and Tompkins.
      */
     public static PanTompkins mPants;
+    /**
+     * Breathing rate derived from the beats of mPants.
+     */
+    public static EdrExtractor mEdr;
+    /**
+     * Activity from the accelerometer features, null if no trained model is on the device.
+     */
+    public static ActivityClassifier mActivity;
     /**
      * Static member variable for the QRS detection validation.
      */
     private IBinder mBinder = new BleServiceBinder();
-    private DailyHeartHandler mDailyHeartHandler;
+    private volatile DailyHeartHandler mDailyHeartHandler;
     private double mSamplingRate;
     private long mStartTime;
-    private AccDataWriter accWriter;
-    private EcgDataWriter ecgWriter;
-    private GalvDataWriter galvWriter;
-    private GyroDataWriter gyroWriter;
+    /**
+     * all channels in one binary file, written off the sensor thread; CSV files are derived from it
+     * offline by {@link de.medsenshack.data.storage.CsvExporter}
+     */
+    private BinaryRecorder mRecorder;
+    private int mEcgChannel, mAccChannel, mGalvChannel, mGyroChannel;
+    private File mRecordingFile;
+    /**
+     * beats and activities of the session, written into the EDF+ file that is converted from the
+     * binary recording when the session ends
+     */
+    private volatile EdfExporter.Annotations mBeatAnnotations, mActivityAnnotations;
+    /**
+     * converts the recordings off the main thread
+     */
+    private final ExecutorService mStorageExecutor = Executors.newSingleThreadExecutor();
 
     //////////// NEW ECG LIB FEATURES ////////
     //public DailyHeartDataProcessor mProcessor;
@@ -104,7 +153,7 @@ public class BleService extends Service implements SignalNotifier {
         public void onDisconnected(DsSensor sensor) {
             Log.d(TAG, "onDisconnected");
             mDailyHeartHandler.onSensorDisconnected();
-            if (((SimbleeMedhackSensor) mSimbleeSensor).connectionLost) {
+            if (mSimbleeSensor instanceof SimbleeMedhackSensor && ((SimbleeMedhackSensor) mSimbleeSensor).connectionLost) {
                 mDailyHeartHandler.onSensorConnectionLost();
             }
             mSimbleeSensor = null;
@@ -115,16 +164,29 @@ public class BleService extends Service implements SignalNotifier {
             Log.d(TAG, "onStartStreaming");
             // initialize Pants with sampling rate
             mPants = new PanTompkins(SimbleeMedhackSensor.ECG_SAMPLING_RATE);
+            mPants.addBeatListener(mBeatListener, 64);
+            // LF/HF over the last 5 minutes, updated every 30 beats
+            mPants.frequencyHrv = new FrequencyHrv(5 * 60 * 1000, 30);
+            // keep beats in motion artifacts out of the heart rate and HRV
+            mPants.quality = new SignalQuality(SimbleeMedhackSensor.ECG_SAMPLING_RATE);
+            mPants.latency = new BeatLatency();
+            // breathing rate from the beats, computed on the sensor thread once per beat
+            mEdr = new EdrExtractor(SimbleeMedhackSensor.ECG_SAMPLING_RATE);
+            mPants.addBeatListener(mEdr);
+            // classify every window of the accelerometer features
+            mActivity = loadActivityModel();
+            mAccFeatures.listener = mActivity;
+            // steps are counted per session
+            mSteps = new StepDetector(SimbleeMedhackSensor.ACC_SAMPLING_RATE, AccelFeatureExtractor.GRAVITY);
+            mMaxCadence = 0;
+            mSteps.listener = mStepListener;
             // Set start time
             mStartTime = System.currentTimeMillis();
-            accWriter = new AccDataWriter("acc");
-            ecgWriter = new EcgDataWriter("ecg");
-            galvWriter = new GalvDataWriter("galv");
-            gyroWriter = new GyroDataWriter("gyro");
-            accWriter.prepareWriter(10);
-            ecgWriter.prepareWriter(250);
-            galvWriter.prepareWriter(10);
-            gyroWriter.prepareWriter(10);
+            timeStamp = 0;
+            mRecorder = createRecorder();
+            recoverRecordings(mRecordingFile);
+            mBeatAnnotations = new EdfExporter.Annotations(128);
+            mActivityAnnotations = new EdfExporter.Annotations(32);
             mDailyHeartHandler.onStartStreaming();
         }
 
@@ -132,10 +194,19 @@ public class BleService extends Service implements SignalNotifier {
         public void onStopStreaming(DsSensor sensor) {
             Log.d(TAG, "onStopStreaming");
             sensor.disconnect();
-            accWriter.completeWriter();
-            ecgWriter.completeWriter();
-            galvWriter.completeWriter();
-            gyroWriter.completeWriter();
+            if (mPants != null) {
+                mPants.removeBeatListener(mBeatListener);
+                mPants.removeBeatListener(mEdr);
+                Log.d(TAG, "beat latency\n" + mPants.latency);
+                if (mPants.frequencyHrv != null) {
+                    mPants.frequencyHrv.shutdown();
+                }
+            }
+            closeRecorder();
+            exportEdf();
+            String summary = sessionSummary();
+            Log.i(TAG, summary);
+            mDailyHeartHandler.onMessageReceived(summary);
             mDailyHeartHandler.onStopStreaming();
         }
 
@@ -188,6 +259,17 @@ public class BleService extends Service implements SignalNotifier {
         }, 5000);
     }
 
+    /**
+     * Replays a recorded session instead of streaming from the sensor, through the same processing
+     * and recording as a live session.
+     *
+     * @param session a <code>session_&lt;start&gt;.bin</code> recording
+     * @param speed   1 for real time, N for N times faster or {@link SessionReplaySensor#MAX_SPEED}
+     */
+    public void startReplay(File session, double speed) {
+        mSimbleeSensor = new SessionReplaySensor(Constants.SIMBLEE, mSensorDataProcessor, session.getPath(), speed);
+    }
+
     public void stopBle() {
         if (mSimbleeSensor == null) {
             return;
@@ -225,74 +307,296 @@ public class BleService extends Service implements SignalNotifier {
     public void onDestroy() {
         super.onDestroy();
         Log.d(TAG, "onDestroy");
+        mStorageExecutor.shutdown();
     }
 
 
-    private LinkedList<SimbleeMedhackAccDataFrame> mAccLinkedList = new LinkedList<>();
-    public static LinkedList<Double> mEnergyLinkedList = new LinkedList<>();
+    /**
+     * Accelerometer features over 10 s windows, keeps 24 h of energies.
+     */
+    public static AccelFeatureExtractor mAccFeatures = new AccelFeatureExtractor(
+            SimbleeMedhackSensor.ACC_SAMPLING_RATE, 10 * 1000, 10 * 1000, 8640);
+    /**
+     * Steps and cadence from the accelerometer, restarted with every session.
+     */
+    public static StepDetector mSteps = new StepDetector(
+            SimbleeMedhackSensor.ACC_SAMPLING_RATE, AccelFeatureExtractor.GRAVITY);
+    /**
+     * Trends of the heart rate and the activity energy at 1 s / 1 min / 15 min resolution, of
+     * constant size however long the service runs.
+     */
+    public static final TrendStore mHeartRateTrend = new TrendStore();
+    public static final TrendStore mEnergyTrend = new TrendStore();
 
+    /**
+     * index of the next ECG sample of the session, the timestamp of mPants
+     */
     private long timeStamp = 0L;
+    /**
+     * frame timestamps of the last ECG samples by sample index, long enough for the delay of the
+     * beats, so beats get the wall clock time of their R sample even if packets were lost
+     */
+    private static final int ECG_TIME_HISTORY = 4096;
+    private final AtomicLongArray mEcgTimes = new AtomicLongArray(ECG_TIME_HISTORY);
+    /**
+     * highest cadence of the session in steps per minute
+     */
+    private double mMaxCadence;
+    private final StepDetector.Listener mStepListener = new StepDetector.Listener() {
+        @Override
+        public void onStep(StepDetector detector, long timestamp, double cadence) {
+            mMaxCadence = Math.max(mMaxCadence, cadence);
+        }
+    };
+
+    /**
+     * Loads the model trained by ActivityTrainer from the data directory, smoothed over 3 windows.
+     *
+     * @return the classifier, or null if there is no valid model
+     */
+    private ActivityClassifier loadActivityModel() {
+        File file = new File(Environment.getExternalStorageDirectory(), "MedHackathonData/activity.model");
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                ActivityClassifier classifier = ActivityClassifier.read(in, 3);
+                if (classifier.numFeatures != AccelFeatureExtractor.NUM_FEATURES) {
+                    Log.e(TAG, "Activity model expects " + classifier.numFeatures + " features");
+                    return null;
+                }
+                if (classifier.window != mAccFeatures.window) {
+                    Log.w(TAG, "Activity model was trained on " + classifier.window + " ms windows");
+                }
+                classifier.listener = new ActivityClassifier.Listener() {
+                    @Override
+                    public void onActivityChanged(ActivityClassifier classifier, long timestamp, ActivityClass previous, ActivityClass current) {
+                        Log.d(TAG, "activity changed to " + current.name());
+                        EdfExporter.Annotations annotations = mActivityAnnotations;
+                        if (annotations != null) {
+                            annotations.add(timestamp, current.name());
+                        }
+                    }
+                };
+                return classifier;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Activity model could not be loaded!", e);
+            return null;
+        }
+    }
+
+    /**
+     * buckets of the trends a session summary is computed from
+     */
+    private static final int SUMMARY_POINTS = 96;
+
+    /**
+     * @return a short summary of the session for the log and the user
+     */
+    private String sessionSummary() {
+        long now = System.currentTimeMillis();
+        TrendStore.Series heartRate = new TrendStore.Series(SUMMARY_POINTS);
+        TrendStore.Series energy = new TrendStore.Series(SUMMARY_POINTS);
+        mHeartRateTrend.query(mStartTime, now, heartRate);
+        mEnergyTrend.query(mStartTime, now, energy);
+        StringBuilder summary = new StringBuilder("Session: ");
+        summary.append(String.format(Locale.US, "%d steps, up to %.0f steps/min", mSteps.steps, mMaxCadence));
+        summary.append(mean(", heart rate %.0f bpm (%.0f-%.0f)", heartRate));
+        summary.append(mean(", activity energy %.2f (%.2f-%.2f)", energy));
+        return summary.toString();
+    }
 
-    private long mOldTimestamp;
+    /**
+     * @return the count weighted mean, min and max of a series, formatted
+     */
+    private static String mean(String format, TrendStore.Series series) {
+        double sum = 0, min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+        long count = 0;
+        for (int i = 0; i < series.num; i++) {
+            sum += series.mean[i] * series.count[i];
+            count += series.count[i];
+            min = Math.min(min, series.min[i]);
+            max = Math.max(max, series.max[i]);
+        }
+        return count == 0 ? "" : String.format(Locale.US, format, sum / count, min, max);
+    }
+
+    /**
+     * Finishes the binary recordings of sessions that were interrupted by the app being killed, on
+     * the storage thread. Only the length and the last footer of each file are checked, the index
+     * is read for the few files that need recovering.
+     *
+     * @param current recording of the running session, skipped
+     */
+    private void recoverRecordings(final File current) {
+        mStorageExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                File[] files = new File(Environment.getExternalStorageDirectory(), "MedHackathonData").listFiles();
+                if (files == null) {
+                    return;
+                }
+                for (File file : files) {
+                    String name = file.getName();
+                    if (!name.startsWith("session_") || !name.endsWith(".bin") || file.equals(current)) {
+                        continue;
+                    }
+                    try {
+                        if (!RecordingIndex.isSealed(file)) {
+                            RecordingIndex index = RecordingIndex.recover(file);
+                            Log.i(TAG, "Recovered " + name + ": " + index.numRecords() + " records, "
+                                    + index.recoveredRecords + " in the last segment");
+                        }
+                    } catch (IOException e) {
+                        Log.w(TAG, "Recording " + name + " could not be recovered: " + e.getMessage());
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Creates the segmented binary recording of the session in the data directory.
+     *
+     * @return the started recorder, or null if the file could not be created
+     */
+    private BinaryRecorder createRecorder() {
+        File file = new File(Environment.getExternalStorageDirectory(), "MedHackathonData/session_" + mStartTime + ".bin");
+        mRecordingFile = file;
+        try {
+            BinaryRecorder recorder = new BinaryRecorder(file, RECORDING_SEGMENT_SIZE, RECORDING_SYNC_INTERVAL);
+            mEcgChannel = recorder.addChannel("ecg", SimbleeMedhackSensor.ECG_SAMPLING_RATE, 1);
+            mAccChannel = recorder.addChannel("acc", SimbleeMedhackSensor.ACC_SAMPLING_RATE, 3);
+            mGalvChannel = recorder.addChannel("galv", 10, 1);
+            mGyroChannel = recorder.addChannel("gyro", 10, 3);
+            recorder.start(mStartTime);
+            return recorder;
+        } catch (IOException e) {
+            Log.e(TAG, "Binary recording could not be created!", e);
+            return null;
+        }
+    }
+
+    private void closeRecorder() {
+        BinaryRecorder recorder = mRecorder;
+        if (recorder == null) {
+            return;
+        }
+        mRecorder = null;
+        try {
+            recorder.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Binary recording failed!", e);
+        }
+        Log.d(TAG, "binary recording: " + recorder.records + " records, " + recorder.bytesWritten + " bytes, "
+                + recorder.droppedRecords + " dropped, " + recorder.stalls + " stalls ("
+                + recorder.stallNanos / 1000 + " us), " + recorder.segments + " segments\nblock writes\n"
+                + recorder.flushLatency + "\nsyncs\n" + recorder.syncLatency);
+    }
+
+    /**
+     * Converts the binary recording of the session with its annotations into an EDF+ file next to
+     * it, on the storage thread.
+     */
+    private void exportEdf() {
+        final File recording = mRecordingFile;
+        final EdfExporter.Annotations beats = mBeatAnnotations, activities = mActivityAnnotations;
+        if (recording == null) {
+            return;
+        }
+        mRecordingFile = null;
+        mStorageExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                String name = recording.getName();
+                File edf = new File(recording.getParentFile(), name.substring(0, name.length() - 4) + ".edf");
+                try {
+                    EdfWriter writer = EdfExporter.export(recording, edf, 1, EDF_LABELS, 0, 65535, beats, activities);
+                    Log.d(TAG, "EDF: " + writer.records + " records");
+                } catch (IOException e) {
+                    Log.e(TAG, "EDF file could not be written!", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Receives the beats of mPants on its own thread, decoupled from the sensor thread.
+     */
+    private final PanTompkins.BeatListener mBeatListener = new PanTompkins.BeatListener() {
+        @Override
+        public void onBeat(BeatEvent beat) {
+            DailyHeartHandler handler = mDailyHeartHandler;
+            if (handler != null) {
+                handler.onSegmentationFinished(beat);
+            }
+            PanTompkins pants = mPants;
+            if (pants != null && pants.latency != null) {
+                pants.latency.record(beat);
+            }
+            EdfExporter.Annotations annotations = mBeatAnnotations;
+            if (annotations != null && !beat.isPreliminary()) {
+                annotations.add(beatTime(beat), String.valueOf(beat.getClassification()));
+            }
+            if (!beat.isPreliminary() && !beat.isNoisy() && !beat.isLearning() && beat.getRr() > 0) {
+                mHeartRateTrend.add(beatTime(beat), 60000.0 / beat.getRr());
+            }
+        }
+    };
+
+    /**
+     * @return the frame timestamp of the R sample of a beat in ms
+     */
+    private long beatTime(BeatEvent beat) {
+        return mEcgTimes.get((int) (Math.max(beat.getRSample(), 0) & (ECG_TIME_HISTORY - 1)));
+    }
 
     private void onSimbleeEvent(SimbleeMedhackDataFrame data) {
         if (data instanceof SimbleeMedhackAccDataFrame) {
             //Log.e(TAG, "ACC");
-            mAccLinkedList.add((SimbleeMedhackAccDataFrame) data);
-            long currTimestamp = System.currentTimeMillis();
-            if (mOldTimestamp == 0) {
-                mOldTimestamp = currTimestamp;
+            SimbleeMedhackAccDataFrame acc = (SimbleeMedhackAccDataFrame) data;
+            if (mPants != null && mPants.quality != null) {
+                mPants.quality.nextAccel(acc.accX, acc.accY, acc.accZ);
             }
-
-            if ((currTimestamp - mOldTimestamp) >= 10 * 1000) {
-                Log.e(TAG, "new ENERGY");
-                mOldTimestamp = currTimestamp;
-                mEnergyLinkedList.add(calculateEnergy(mAccLinkedList));
-                mAccLinkedList.clear();
+            if (mAccFeatures.add(acc.timeStamp, acc.accX, acc.accY, acc.accZ)) {
+                mEnergyTrend.add(acc.timeStamp, mAccFeatures.features[AccelFeatureExtractor.ENERGY]);
+            }
+            mSteps.next(acc, acc.timeStamp);
+            if (mRecorder != null) {
+                mRecorder.record(mAccChannel, acc.timeStamp, (long) acc.getSensorPacketTimestamp(), acc.accX, acc.accY, acc.accZ);
             }
-            accWriter.writeData(data);
         } else if (data instanceof SimbleeMedhackEcgDataFrame) {
             //Log.e(TAG, "ECG");
-            ecgWriter.writeData(data);
+            SimbleeMedhackEcgDataFrame ecg = (SimbleeMedhackEcgDataFrame) data;
+            if (mRecorder != null) {
+                mRecorder.record(mEcgChannel, ecg.timeStamp, (long) ecg.getSensorPacketTimestamp(), ecg.ecgRaw);
+            }
             if (mPants != null) {
                 // next step of processing pipeline
                 //Log.e(TAG, "NEW pants: " + ((SimbleeMedhackEcgDataFrame) data).ecgRaw + ", " + ((SimbleeMedhackEcgDataFrame) data).timeStamp);
-                mPants.next(((SimbleeMedhackEcgDataFrame) data).ecgRaw, timeStamp++);
-                //Log.e(TAG, "heart rate: " + mPants.heartRateStats.formatValue());
-                //Log.e(TAG, "rr: " + mPants.rrStats.formatValue());
-                if (PanTompkins.QRS.qrsCurrent.segState == PanTompkins.QRS.SegmentationStatus.FINISHED) {
-                    mDailyHeartHandler.onSegmentationFinished();
-
-                    // inform Pants that the beat has been processed
-                    PanTompkins.QRS.qrsCurrent.segState = PanTompkins.QRS.SegmentationStatus.PROCESSED;
-
-                }
+                // finished beats are pushed to mBeatListener
+                mEcgTimes.set((int) (timeStamp & (ECG_TIME_HISTORY - 1)), ecg.timeStamp);
+                mPants.next(ecg.ecgRaw, timeStamp++);
             }
         } else if (data instanceof SimbleeMedhackGalvDataFrame) {
-            galvWriter.writeData(data);
+            SimbleeMedhackGalvDataFrame galv = (SimbleeMedhackGalvDataFrame) data;
+            if (mRecorder != null) {
+                mRecorder.record(mGalvChannel, galv.timeStamp, (long) galv.getSensorPacketTimestamp(), galv.galv);
+            }
         } else if (data instanceof SimbleeMedhackGyroDataFrame) {
-            gyroWriter.writeData(data);
+            SimbleeMedhackGyroDataFrame gyro = (SimbleeMedhackGyroDataFrame) data;
+            if (mRecorder != null) {
+                mRecorder.record(mGyroChannel, gyro.timeStamp, (long) gyro.getSensorPacketTimestamp(), gyro.gyroX, gyro.gyroY, gyro.gyroZ);
+            }
         }
         mDailyHeartHandler.onDataReceived(data);
     }
 
-    private static double calculateEnergy(LinkedList<SimbleeMedhackAccDataFrame> values) {
-        double meanSquareX = 0.0;
-        double meanSquareY = 0.0;
-        double meanSquareZ = 0.0;
-
-        for (int i = 0; i < values.size(); i++) {
-            meanSquareX += values.get(i).accX * values.get(i).accX;
-            meanSquareY += values.get(i).accY * values.get(i).accY;
-            meanSquareZ += values.get(i).accZ * values.get(i).accZ;
-        }
-        meanSquareX /= values.size();
-        meanSquareY /= values.size();
-        meanSquareZ /= values.size();
-
-        return Math.abs((Math.sqrt((meanSquareX + meanSquareY + meanSquareZ) / 3) - 488.0));
-    }
-
     public void setDailyHeartHandler(DailyHeartHandler handler) {
         mDailyHeartHandler = handler;
     }
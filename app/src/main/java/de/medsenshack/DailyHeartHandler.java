@@ -3,6 +3,7 @@ package de.medsenshack;
 import de.fau.lme.sensorlib.dataframe.SimbleeMedhackDataFrame;
 import de.fau.lme.sensorlib.sensors.BleEcgSensor;
 import de.fau.lme.plotview.Plot;
+import de.medsenshack.data.BeatEvent;
 
 /**
  * Original version by Robert Richer, Digital Sports Group, Pattern Recognition Lab, Department of Computer Science.
@@ -37,9 +38,12 @@ public interface DailyHeartHandler {
 
     /**
      * Is called when the {@link BleService} sends a message that a QRS
-     * complex has been segmented.
+     * complex has been segmented. Is called on the beat listener thread of the
+     * {@link BleService}, the event is recycled after returning.
+     *
+     * @param beat the finished beat
      */
-    void onSegmentationFinished();
+    void onSegmentationFinished(BeatEvent beat);
 
     /**
      * Handles the new incoming ECG data. Is called when the {@link BleService} sends a message with new
@@ -35,7 +35,7 @@ import de.medsenshack.BleService;
 import de.medsenshack.R;
 import de.medsenshack.StreamingActivity;
 import de.medsenshack.data.ActivityClass;
-import de.medsenshack.data.PanTompkins;
+import de.medsenshack.data.BeatEvent;
 import de.medsenshack.data.storage.AnnotationWriter;
 
 
@@ -280,12 +280,18 @@ public class SimbleeActivity extends StreamingActivity implements ActionBar.TabL
     }
 
     @Override
-    public void onSegmentationFinished() {
-        if (BleService.mPants != null) {
-            // only set values if Pants is done with learning
-            if (!PanTompkins.learning) {
-                mGeneralFragment.update();
-            }
+    public void onSegmentationFinished(BeatEvent beat) {
+        // only set values if Pants is done with learning
+        if (!beat.isLearning()) {
+            final double heartRate = beat.getHeartRate();
+            mRunnableHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mGeneralFragment != null) {
+                        mGeneralFragment.update(heartRate);
+                    }
+                }
+            });
         }
     }
 
@@ -486,12 +492,12 @@ public class SimbleeActivity extends StreamingActivity implements ActionBar.TabL
         /**
          * Updates all Views of this {@link android.app.Fragment}.
          */
-        public void update() {
+        public void update(double heartRate) {
             // set min and max heart rate
-            if (!PanTompkins.learning) {
-                mHeartRateTextView.setText(BleService.mPants.heartRateStats.formatValue());
-                if (!BleService.mEnergyLinkedList.isEmpty()) {
-                    mActivityTextView.setText(new DecimalFormat("#00.00").format(BleService.mEnergyLinkedList.getLast()));
+            if (BleService.mPants != null) {
+                mHeartRateTextView.setText(String.format("%.0f", heartRate));
+                if (BleService.mAccFeatures.energy.num > 0) {
+                    mActivityTextView.setText(new DecimalFormat("#00.00").format(BleService.mAccFeatures.energy.getHeadValue()));
                 }
             }
         }
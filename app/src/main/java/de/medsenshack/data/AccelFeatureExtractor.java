@@ -0,0 +1,292 @@
+package de.medsenshack.data;
+
+import java.security.InvalidParameterException;
+
+import de.fau.lme.plotview.FloatValueList;
+import de.fau.lme.plotview.LongValueList;
+
+/**
+ * Sliding-window features of a 3-axis accelerometer, keyed on the event time of the samples.
+ * <p/>
+ * The samples of the window are kept in primitive ring buffers together with running sums of the
+ * values, squares, absolute values and zero crossings per axis, so adding a sample is O(1). Every
+ * <code>step</code> ms (windows overlap by <code>window - step</code>) the feature vector
+ * {@link #features} is filled in place and the listener is notified; only the dominant frequency
+ * needs a pass over the window (Goertzel, one per frequency bin). Nothing is allocated after
+ * construction.
+ */
+public class AccelFeatureExtractor {
+
+    /**
+     * magnitude at rest in raw units, 1 g
+     */
+    public static final double GRAVITY = 488.0;
+    /**
+     * highest dominant frequency searched in Hz, body movements are slower
+     */
+    public static final double MAX_FREQUENCY = 5.0;
+
+    /**
+     * indices into {@link #features}
+     */
+    public static final int ENERGY = 0;
+    public static final int MEAN_X = 1;
+    public static final int MEAN_Y = 2;
+    public static final int MEAN_Z = 3;
+    public static final int VAR_X = 4;
+    public static final int VAR_Y = 5;
+    public static final int VAR_Z = 6;
+    public static final int SMA = 7;
+    public static final int ZERO_CROSSINGS_X = 8;
+    public static final int ZERO_CROSSINGS_Y = 9;
+    public static final int ZERO_CROSSINGS_Z = 10;
+    public static final int MAGNITUDE_MEAN = 11;
+    public static final int MAGNITUDE_VAR = 12;
+    public static final int DOMINANT_FREQUENCY = 13;
+    public static final int NUM_FEATURES = 14;
+
+    /**
+     * Notified on the thread that adds the samples, the feature vector is reused afterwards.
+     */
+    public interface Listener {
+        void onFeatures(AccelFeatureExtractor extractor, long timestamp, float[] features);
+    }
+
+    public final int samplingRate;
+    public final long window, step;
+
+    /**
+     * ring buffer of the samples in the window, the zero crossing flags are bit masks per axis
+     */
+    private final long[] times;
+    private final float[] xs, ys, zs, magnitudes;
+    private final byte[] crossings;
+    private int head = -1, tail = 0, num = 0;
+
+    /**
+     * running sums over the window
+     */
+    private final double[] sum = new double[3], sum2 = new double[3];
+    private final int[] numCrossings = new int[3];
+    private double sumAbs, sumMag, sumMag2;
+    private final boolean[] above = new boolean[3];
+
+    private long nextUpdate = -1;
+
+    /**
+     * feature vector of the last window
+     */
+    public final float[] features = new float[NUM_FEATURES];
+    /**
+     * energies of all windows, oldest values are overwritten
+     */
+    public final LongValueList timestamps;
+    public final FloatValueList energy;
+    public int updates = 0;
+
+    public Listener listener = null;
+
+    /**
+     * @param samplingRate nominal sampling rate in Hz
+     * @param window       window length in ms
+     * @param step         interval between two feature vectors in ms
+     * @param historySize  number of energies to keep
+     */
+    public AccelFeatureExtractor(int samplingRate, long window, long step, int historySize) {
+        if (samplingRate <= 0 || window <= 0 || step <= 0 || historySize <= 0)
+            throw new InvalidParameterException("sampling rate, window, step and history size must be positive");
+
+        this.samplingRate = samplingRate;
+        this.window = window;
+        this.step = step;
+
+        // twice the nominal samples for jitter of the event times
+        int capacity = (int) (2 * window * samplingRate / 1000) + 2;
+        times = new long[capacity];
+        xs = new float[capacity];
+        ys = new float[capacity];
+        zs = new float[capacity];
+        magnitudes = new float[capacity];
+        crossings = new byte[capacity];
+
+        timestamps = new LongValueList(historySize, false);
+        energy = new FloatValueList(historySize, false, false);
+    }
+
+    /**
+     * Adds a sample.
+     *
+     * @param timestamp event time of the sample in ms
+     * @return true if a feature vector was computed
+     */
+    public boolean add(long timestamp, double x, double y, double z) {
+        if (nextUpdate == -1)
+            nextUpdate = timestamp + window;
+
+        if (num == times.length)
+            removeOldest();
+
+        if (++head == times.length)
+            head = 0;
+        // the sums use the stored values, so removing a sample subtracts exactly what was added
+        times[head] = timestamp;
+        x = xs[head] = (float) x;
+        y = ys[head] = (float) y;
+        z = zs[head] = (float) z;
+        double m = magnitudes[head] = (float) Math.sqrt(x * x + y * y + z * z);
+
+        // zero crossings around the current window mean of each axis
+        byte flags = 0;
+        flags |= cross(0, x, 1);
+        flags |= cross(1, y, 2);
+        flags |= cross(2, z, 4);
+        crossings[head] = flags;
+
+        sum[0] += x;
+        sum[1] += y;
+        sum[2] += z;
+        sum2[0] += x * x;
+        sum2[1] += y * y;
+        sum2[2] += z * z;
+        sumAbs += Math.abs(x) + Math.abs(y) + Math.abs(z);
+        sumMag += m;
+        sumMag2 += m * m;
+        num++;
+
+        while (num > 0 && times[tail] <= timestamp - window) {
+            removeOldest();
+        }
+
+        if (timestamp >= nextUpdate) {
+            update(timestamp);
+            while (nextUpdate <= timestamp)
+                nextUpdate += step;
+            return true;
+        }
+        return false;
+    }
+
+    public void reset() {
+        head = -1;
+        tail = num = 0;
+        for (int a = 0; a < 3; a++) {
+            sum[a] = sum2[a] = 0;
+            numCrossings[a] = 0;
+        }
+        sumAbs = sumMag = sumMag2 = 0;
+        nextUpdate = -1;
+        updates = 0;
+    }
+
+    public int size() {
+        return num;
+    }
+
+    /**
+     * @return bit if the value is on the other side of the window mean than the previous one
+     */
+    private byte cross(int axis, double v, int bit) {
+        if (num == 0) {
+            numCrossings[axis] = 0;
+            return 0;
+        }
+        boolean a = v > sum[axis] / num;
+        boolean crossed = num > 1 && a != above[axis];
+        above[axis] = a;
+        if (crossed) {
+            numCrossings[axis]++;
+            return (byte) bit;
+        }
+        return 0;
+    }
+
+    private void removeOldest() {
+        double x = xs[tail], y = ys[tail], z = zs[tail], m = magnitudes[tail];
+        sum[0] -= x;
+        sum[1] -= y;
+        sum[2] -= z;
+        sum2[0] -= x * x;
+        sum2[1] -= y * y;
+        sum2[2] -= z * z;
+        sumAbs -= Math.abs(x) + Math.abs(y) + Math.abs(z);
+        sumMag -= m;
+        sumMag2 -= m * m;
+
+        byte flags = crossings[tail];
+        if ((flags & 1) != 0)
+            numCrossings[0]--;
+        if ((flags & 2) != 0)
+            numCrossings[1]--;
+        if ((flags & 4) != 0)
+            numCrossings[2]--;
+
+        if (++tail == times.length)
+            tail = 0;
+        num--;
+    }
+
+    private void update(long timestamp) {
+        float[] f = features;
+        if (num == 0) {
+            for (int i = 0; i < NUM_FEATURES; i++) {
+                f[i] = 0;
+            }
+        } else {
+            double mx = sum[0] / num, my = sum[1] / num, mz = sum[2] / num;
+            f[ENERGY] = (float) Math.abs(Math.sqrt((sum2[0] + sum2[1] + sum2[2]) / (3.0 * num)) - GRAVITY);
+            f[MEAN_X] = (float) mx;
+            f[MEAN_Y] = (float) my;
+            f[MEAN_Z] = (float) mz;
+            f[VAR_X] = (float) Math.max(0, sum2[0] / num - mx * mx);
+            f[VAR_Y] = (float) Math.max(0, sum2[1] / num - my * my);
+            f[VAR_Z] = (float) Math.max(0, sum2[2] / num - mz * mz);
+            f[SMA] = (float) (sumAbs / num);
+            f[ZERO_CROSSINGS_X] = numCrossings[0];
+            f[ZERO_CROSSINGS_Y] = numCrossings[1];
+            f[ZERO_CROSSINGS_Z] = numCrossings[2];
+            double mm = sumMag / num;
+            f[MAGNITUDE_MEAN] = (float) mm;
+            f[MAGNITUDE_VAR] = (float) Math.max(0, sumMag2 / num - mm * mm);
+            f[DOMINANT_FREQUENCY] = (float) dominantFrequency(mm);
+        }
+
+        timestamps.add(timestamp);
+        energy.add(f[ENERGY]);
+        updates++;
+
+        if (listener != null)
+            listener.onFeatures(this, timestamp, f);
+    }
+
+    /**
+     * @return frequency in Hz of the largest non-DC bin up to {@link #MAX_FREQUENCY} of the
+     * mean-free magnitude, 0 if there are too few samples
+     */
+    private double dominantFrequency(double mean) {
+        int n = num;
+        if (n < 4)
+            return 0;
+
+        int best = 0;
+        double bestPower = 0;
+        int kMax = Math.min(n / 2, (int) (MAX_FREQUENCY * n / samplingRate));
+        for (int k = 1; k <= kMax; k++) {
+            double coeff = 2 * Math.cos(2 * Math.PI * k / n);
+            double s1 = 0, s2 = 0, s;
+            int idx = tail;
+            for (int i = 0; i < n; i++) {
+                s = magnitudes[idx] - mean + coeff * s1 - s2;
+                s2 = s1;
+                s1 = s;
+                if (++idx == times.length)
+                    idx = 0;
+            }
+            double power = s1 * s1 + s2 * s2 - coeff * s1 * s2;
+            if (power > bestPower) {
+                bestPower = power;
+                best = k;
+            }
+        }
+        return (double) best * samplingRate / n;
+    }
+}
@@ -0,0 +1,263 @@
+package de.medsenshack.data;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.InvalidParameterException;
+
+/**
+ * Real-time activity classification from windowed accelerometer features, e.g. as listener of an
+ * {@link AccelFeatureExtractor}.
+ * <p/>
+ * The model is a random forest (a single decision tree is a forest of one) compiled to flat arrays:
+ * every node has a feature index, a threshold and two children, leaves have the feature index -1
+ * and store their {@link ActivityClass} ordinal as left child. Children always have a higher index
+ * than their parent, so a prediction is a handful of array lookups per tree and always terminates.
+ * The trees vote, and the winner of every window is smoothed by a majority over the last
+ * <code>smoothing</code> windows before {@link #activity} changes and the listener is notified.
+ * Nothing is allocated after construction, the classifier is not thread-safe.
+ * <p/>
+ * Models are trained offline by {@link de.medsenshack.data.analysis.ActivityTrainer} from the
+ * labeled recordings of the app and exchanged with {@link #write(OutputStream)} and
+ * {@link #read(InputStream, int)}.
+ */
+public class ActivityClassifier implements AccelFeatureExtractor.Listener {
+
+    private static final int MAGIC = 0x41435446;
+    private static final int VERSION = 1;
+
+    /**
+     * Notified on the thread that classifies.
+     */
+    public interface Listener {
+        void onActivityChanged(ActivityClassifier classifier, long timestamp, ActivityClass previous, ActivityClass current);
+    }
+
+    private static final ActivityClass[] CLASSES = ActivityClass.values();
+
+    /**
+     * length of the feature vectors the model was trained on
+     */
+    public final int numFeatures;
+    /**
+     * feature window of the training data in ms, the extractor should use the same
+     */
+    public final long window;
+
+    private final int[] roots;
+    private final int[] feature;
+    private final float[] threshold;
+    private final int[] left, right;
+
+    /**
+     * scratch votes per class and ring buffer of the last predictions with their counts
+     */
+    private final int[] votes = new int[CLASSES.length];
+    private final byte[] history;
+    private final int[] counts = new int[CLASSES.length];
+    private int head = -1, num = 0;
+
+    /**
+     * smoothed activity, null until a class has the majority of the history
+     */
+    public ActivityClass activity = null;
+    /**
+     * unsmoothed class of the last window
+     */
+    public ActivityClass lastPrediction = null;
+    public long predictions = 0;
+    public int transitions = 0;
+
+    public Listener listener = null;
+
+    /**
+     * @param numFeatures length of the feature vectors
+     * @param window      feature window of the training data in ms
+     * @param roots       root node of each tree
+     * @param feature     feature index of each node, -1 for leaves
+     * @param threshold   split threshold of each node, values <= threshold go left
+     * @param left        left child of each node, the class ordinal for leaves
+     * @param right       right child of each node
+     * @param smoothing   number of windows of the majority vote, 1 disables smoothing
+     */
+    public ActivityClassifier(int numFeatures, long window, int[] roots, int[] feature, float[] threshold,
+                              int[] left, int[] right, int smoothing) {
+        int n = feature.length;
+        if (numFeatures <= 0 || smoothing <= 0 || smoothing > Byte.MAX_VALUE || roots.length == 0)
+            throw new InvalidParameterException("features, smoothing and trees must be positive");
+        if (threshold.length != n || left.length != n || right.length != n)
+            throw new InvalidParameterException("node arrays differ in length");
+        for (int root : roots) {
+            if (root < 0 || root >= n)
+                throw new InvalidParameterException("invalid root " + root);
+        }
+        for (int i = 0; i < n; i++) {
+            if (feature[i] < 0) {
+                if (left[i] < 0 || left[i] >= CLASSES.length)
+                    throw new InvalidParameterException("invalid class in leaf " + i);
+            } else if (feature[i] >= numFeatures || left[i] <= i || left[i] >= n || right[i] <= i || right[i] >= n) {
+                throw new InvalidParameterException("invalid split in node " + i);
+            }
+        }
+
+        this.numFeatures = numFeatures;
+        this.window = window;
+        this.roots = roots;
+        this.feature = feature;
+        this.threshold = threshold;
+        this.left = left;
+        this.right = right;
+        history = new byte[smoothing];
+    }
+
+    public int numTrees() {
+        return roots.length;
+    }
+
+    public int numNodes() {
+        return feature.length;
+    }
+
+    public int smoothing() {
+        return history.length;
+    }
+
+    @Override
+    public void onFeatures(AccelFeatureExtractor extractor, long timestamp, float[] features) {
+        next(timestamp, features);
+    }
+
+    /**
+     * Classifies a window without touching the smoothing.
+     *
+     * @param features feature vector of the window
+     * @return ordinal of the {@link ActivityClass} with the most votes, the lowest on ties
+     */
+    public int predict(float[] features) {
+        int[] v = votes;
+        for (int c = 0; c < v.length; c++) {
+            v[c] = 0;
+        }
+        for (int t = 0; t < roots.length; t++) {
+            int node = roots[t];
+            int f;
+            while ((f = feature[node]) >= 0) {
+                node = features[f] <= threshold[node] ? left[node] : right[node];
+            }
+            v[left[node]]++;
+        }
+        int best = 0;
+        for (int c = 1; c < v.length; c++) {
+            if (v[c] > v[best])
+                best = c;
+        }
+        return best;
+    }
+
+    /**
+     * Classifies a window and updates the smoothed activity.
+     *
+     * @param timestamp end of the window in ms
+     * @param features  feature vector of the window
+     * @return the smoothed activity, null while there is no majority yet
+     */
+    public ActivityClass next(long timestamp, float[] features) {
+        int c = predict(features);
+        lastPrediction = CLASSES[c];
+        predictions++;
+
+        if (++head == history.length)
+            head = 0;
+        if (num == history.length)
+            counts[history[head]]--;
+        else
+            num++;
+        history[head] = (byte) c;
+        counts[c]++;
+
+        // a class needs the strict majority of a full history to take over
+        if (num == history.length && 2 * counts[c] > num && CLASSES[c] != activity) {
+            ActivityClass previous = activity;
+            activity = CLASSES[c];
+            transitions++;
+            if (listener != null)
+                listener.onActivityChanged(this, timestamp, previous, activity);
+        }
+        return activity;
+    }
+
+    public void reset() {
+        head = -1;
+        num = 0;
+        for (int c = 0; c < counts.length; c++) {
+            counts[c] = 0;
+        }
+        activity = lastPrediction = null;
+        predictions = 0;
+        transitions = 0;
+    }
+
+    /**
+     * Writes the model, the smoothing is not part of it.
+     */
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(numFeatures);
+        data.writeLong(window);
+        data.writeInt(roots.length);
+        for (int root : roots) {
+            data.writeInt(root);
+        }
+        data.writeInt(feature.length);
+        for (int i = 0; i < feature.length; i++) {
+            data.writeInt(feature[i]);
+            data.writeFloat(threshold[i]);
+            data.writeInt(left[i]);
+            data.writeInt(right[i]);
+        }
+        data.flush();
+    }
+
+    /**
+     * Reads a model written by {@link #write(OutputStream)}.
+     *
+     * @param smoothing number of windows of the majority vote
+     * @throws IOException if the stream can't be read or holds no valid model
+     */
+    public static ActivityClassifier read(InputStream in, int smoothing) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != MAGIC || data.readInt() != VERSION)
+            throw new IOException("Not an activity model");
+        int numFeatures = data.readInt();
+        long window = data.readLong();
+        int numTrees = data.readInt();
+        if (numTrees <= 0 || numTrees > 1 << 16)
+            throw new IOException("Invalid number of trees " + numTrees);
+        int[] roots = new int[numTrees];
+        for (int t = 0; t < numTrees; t++) {
+            roots[t] = data.readInt();
+        }
+        int n = data.readInt();
+        if (n <= 0 || n > 1 << 24)
+            throw new IOException("Invalid number of nodes " + n);
+        int[] feature = new int[n];
+        float[] threshold = new float[n];
+        int[] left = new int[n];
+        int[] right = new int[n];
+        for (int i = 0; i < n; i++) {
+            feature[i] = data.readInt();
+            threshold[i] = data.readFloat();
+            left[i] = data.readInt();
+            right[i] = data.readInt();
+        }
+        try {
+            return new ActivityClassifier(numFeatures, window, roots, feature, threshold, left, right, smoothing);
+        } catch (InvalidParameterException e) {
+            throw new IOException("Invalid activity model: " + e.getMessage());
+        }
+    }
+}
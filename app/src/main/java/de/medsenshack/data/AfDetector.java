@@ -0,0 +1,289 @@
+package de.medsenshack.data;
+
+import java.security.InvalidParameterException;
+
+/**
+ * Streaming detector of atrial fibrillation episodes from RR intervals.
+ * <p/>
+ * Over a sliding window of the last beats three measures of RR irregularity are computed:
+ * <ul>
+ * <li>COSEn, the sample entropy (m = 1, r = {@link #TOLERANCE} ms) corrected for the mean RR
+ * (Lake and Moorman 2011),</li>
+ * <li>the turning point ratio, close to 2/3 for random sequences,</li>
+ * <li>the RMSSD normalized to the mean RR.</li>
+ * </ul>
+ * A window is AF-like if at least two of them exceed their threshold. An episode starts after
+ * {@link #ONSET_BEATS} consecutive AF-like windows and ends after {@link #OFFSET_BEATS} consecutive
+ * regular ones.
+ * <p/>
+ * All sums and the entropy match counts are updated incrementally when a beat enters or leaves the
+ * window: the sums in O(1), the match counts in O(window) instead of O(window^2). The memory is
+ * fixed by the window length.
+ */
+public class AfDetector {
+
+    /**
+     * tolerance of the sample entropy in ms
+     */
+    public static final int TOLERANCE = 30;
+    /**
+     * thresholds for an AF-like window
+     */
+    public static final double COSEN_THRESHOLD = -1.4;
+    public static final double TPR_LOW = 0.54;
+    public static final double TPR_HIGH = 0.77;
+    public static final double NRMSSD_THRESHOLD = 0.1;
+    /**
+     * hysteresis in beats
+     */
+    public static final int ONSET_BEATS = 16;
+    public static final int OFFSET_BEATS = 32;
+
+    /**
+     * Notified on the thread that adds the beats.
+     */
+    public interface Listener {
+        void onAfOnset(AfDetector detector, long timestamp);
+
+        void onAfOffset(AfDetector detector, long onset, long offset);
+    }
+
+    public final int windowBeats;
+
+    /**
+     * ring buffer of the RR intervals in the window, every value is stored twice so the window is
+     * contiguous from tail on, and the turning point flags
+     */
+    private final int[] rrs;
+    private final boolean[] turning;
+    private int head = -1, tail = 0, num = 0;
+
+    /**
+     * running sums and counts over the window
+     */
+    private long sumRr, sumDiff2;
+    private int numTurning;
+    private long matches1, matches2;
+
+    private int afRun = 0, regularRun = 0;
+    private long runStart = -1;
+
+    /**
+     * measures of the current window, NaN until the window is full
+     */
+    public double cosen = Double.NaN, tpr = Double.NaN, nrmssd = Double.NaN;
+    public boolean afLike = false;
+
+    /**
+     * episode state
+     */
+    public boolean inAf = false;
+    public long onset = -1;
+    public int episodes = 0;
+    /**
+     * total duration of all finished episodes in ms
+     */
+    public long afDuration = 0;
+
+    /**
+     * processing time and covered RR time, for profiling
+     */
+    public long nanos = 0;
+    public long dataDuration = 0;
+
+    public Listener listener = null;
+
+    /**
+     * @param windowBeats number of beats in the sliding window
+     */
+    public AfDetector(int windowBeats) {
+        if (windowBeats < 8)
+            throw new InvalidParameterException("window must contain at least 8 beats");
+
+        this.windowBeats = windowBeats;
+        rrs = new int[2 * windowBeats];
+        turning = new boolean[windowBeats];
+    }
+
+    public AfDetector() {
+        this(64);
+    }
+
+    /**
+     * Adds a beat.
+     *
+     * @param timestamp time of the beat in ms
+     * @param rr        RR interval in ms
+     * @return true if the episode state changed
+     */
+    public boolean add(long timestamp, int rr) {
+        long start = System.nanoTime();
+
+        if (num == windowBeats) {
+            removeOldest();
+        }
+        append(rr);
+        dataDuration += rr;
+
+        boolean changed = false;
+        if (num == windowBeats) {
+            evaluate();
+            changed = update(timestamp);
+        }
+
+        nanos += System.nanoTime() - start;
+        return changed;
+    }
+
+    /**
+     * Marks a gap in the RR sequence, the window is started anew. An ongoing episode is kept.
+     */
+    public void gap() {
+        head = -1;
+        tail = num = 0;
+        sumRr = sumDiff2 = 0;
+        numTurning = 0;
+        matches1 = matches2 = 0;
+        cosen = tpr = nrmssd = Double.NaN;
+        afLike = false;
+    }
+
+    public void reset() {
+        gap();
+        afRun = regularRun = 0;
+        runStart = onset = -1;
+        inAf = false;
+        episodes = 0;
+        afDuration = nanos = dataDuration = 0;
+    }
+
+    /**
+     * @return the processing time in ns per hour of RR data so far
+     */
+    public double nanosPerHour() {
+        return dataDuration > 0 ? nanos * (3600.0 * 1000 / dataDuration) : 0;
+    }
+
+    private int idx(int k) {
+        k += tail;
+        return k < windowBeats ? k : k - windowBeats;
+    }
+
+    /**
+     * @return 1 if |d| <= TOLERANCE, else 0, without a branch that the random RR would mispredict
+     */
+    private static int within(int d) {
+        int u = d + TOLERANCE;
+        return ((u | (2 * TOLERANCE - u)) >>> 31) ^ 1;
+    }
+
+    private void append(int rr) {
+        int n = num;
+        if (n > 0) {
+            int last = rrs[tail + n - 1];
+            int d = rr - last;
+            sumDiff2 += d * d;
+
+            // the former last beat now has a successor and starts a template
+            int m1 = 0, m2 = 0, in;
+            for (int k = tail, end = tail + n - 1; k < end; k++) {
+                in = within(last - rrs[k]);
+                m1 += in;
+                m2 += in & within(rr - rrs[k + 1]);
+            }
+            matches1 += m1;
+            matches2 += m2;
+
+            // the former last beat now is an inner point
+            if (n > 1) {
+                int prev = rrs[tail + n - 2];
+                boolean t = (last > prev && last > rr) || (last < prev && last < rr);
+                turning[idx(n - 1)] = t;
+                if (t)
+                    numTurning++;
+            }
+        }
+
+        if (++head == windowBeats)
+            head = 0;
+        rrs[head] = rrs[head + windowBeats] = rr;
+        turning[head] = false;
+        sumRr += rr;
+        num++;
+    }
+
+    private void removeOldest() {
+        int first = rrs[tail];
+        int second = rrs[tail + 1];
+        int d = second - first;
+        sumDiff2 -= d * d;
+
+        int m1 = 0, m2 = 0, in;
+        for (int k = tail + 1, end = tail + num - 1; k < end; k++) {
+            in = within(first - rrs[k]);
+            m1 += in;
+            m2 += in & within(second - rrs[k + 1]);
+        }
+        matches1 -= m1;
+        matches2 -= m2;
+
+        // the second beat becomes the first one and is no inner point anymore
+        int s = idx(1);
+        if (turning[s]) {
+            turning[s] = false;
+            numTurning--;
+        }
+
+        sumRr -= first;
+        if (++tail == windowBeats)
+            tail = 0;
+        num--;
+    }
+
+    private void evaluate() {
+        double mean = (double) sumRr / num;
+
+        // sample entropy, with at least one match to keep it finite
+        double sampEn = Math.log((double) Math.max(matches1, 1) / Math.max(matches2, 1));
+        cosen = sampEn + Math.log(2 * TOLERANCE / 1000.0) - Math.log(mean / 1000.0);
+        tpr = (double) numTurning / (num - 2);
+        nrmssd = Math.sqrt((double) sumDiff2 / (num - 1)) / mean;
+
+        int votes = 0;
+        if (cosen > COSEN_THRESHOLD)
+            votes++;
+        if (tpr >= TPR_LOW && tpr <= TPR_HIGH)
+            votes++;
+        if (nrmssd > NRMSSD_THRESHOLD)
+            votes++;
+        afLike = votes >= 2;
+    }
+
+    private boolean update(long timestamp) {
+        if (afLike) {
+            regularRun = 0;
+            if (afRun++ == 0)
+                runStart = timestamp;
+            if (!inAf && afRun >= ONSET_BEATS) {
+                inAf = true;
+                onset = runStart;
+                episodes++;
+                if (listener != null)
+                    listener.onAfOnset(this, onset);
+                return true;
+            }
+        } else {
+            afRun = 0;
+            if (regularRun++ == 0)
+                runStart = timestamp;
+            if (inAf && regularRun >= OFFSET_BEATS) {
+                inAf = false;
+                afDuration += runStart - onset;
+                if (listener != null)
+                    listener.onAfOffset(this, onset, runStart);
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,247 @@
+package de.medsenshack.data;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.medsenshack.data.PanTompkins.QRS.QrsArrhythmia;
+import de.medsenshack.data.PanTompkins.QRS.QrsClass;
+
+/**
+ * Snapshot of a finished beat that is published by {@link PanTompkins} exactly once per beat.
+ * <p/>
+ * Events are pooled and can only be filled by the detector before publishing, listeners just read
+ * them. An event stays valid until every subscriber has returned from its callback, afterwards it
+ * is recycled. Listeners that need the data later have to copy it.
+ */
+public class BeatEvent {
+
+    private long index;
+    private long rTimestamp;
+    private long rSample;
+    private long timestamp;
+    private long rr;
+    private QrsClass classification;
+    private QrsArrhythmia arrhythmia;
+    private int cluster;
+    private boolean noisy;
+    private double rAmplitude, sAmplitude;
+    private long width;
+    private double qrsta, qra, rsa;
+    private double cct1, cct2;
+    private double heartRate;
+    private boolean learning;
+    private boolean preliminary, update;
+    private long arrivalNanos;
+
+    private final Pool pool;
+    private final AtomicInteger references = new AtomicInteger();
+
+    BeatEvent(Pool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Fills the event before it is published.
+     *
+     * @param rr           R-R interval in ms, differs from the one of qrs for preliminary events
+     * @param rSample      index of the raw sample of the R-deflection
+     * @param arrivalNanos arrival of that sample, 0 if unknown
+     */
+    void set(long index, PanTompkins.QRS qrs, long timestamp, boolean learning, double heartRate,
+             boolean preliminary, boolean update, long rr, long rSample, long arrivalNanos) {
+        this.index = index;
+        this.rTimestamp = qrs.rTimestamp;
+        this.rSample = rSample;
+        this.timestamp = timestamp;
+        this.rr = rr;
+        this.classification = qrs.classification;
+        this.arrhythmia = qrs.arrhythmia;
+        this.cluster = qrs.cluster;
+        this.noisy = qrs.noisy;
+        this.rAmplitude = qrs.rAmplitude;
+        this.sAmplitude = qrs.sAmplitude;
+        this.width = qrs.feat_width;
+        this.qrsta = qrs.feat_qrsta;
+        this.qra = qrs.feat_qra;
+        this.rsa = qrs.feat_rsa;
+        this.cct1 = qrs.feat_cct1;
+        this.cct2 = qrs.feat_cct2;
+        this.learning = learning;
+        this.heartRate = heartRate;
+        this.preliminary = preliminary;
+        this.update = update;
+        this.arrivalNanos = arrivalNanos;
+    }
+
+    /**
+     * @return running number of the beat since the detector was created
+     */
+    public long getIndex() {
+        return index;
+    }
+
+    /**
+     * @return timestamp of the R-deflection, in the unit of the detector timestamps
+     */
+    public long getRTimestamp() {
+        return rTimestamp;
+    }
+
+    /**
+     * @return index of the raw sample of the R-deflection, counted from the first sample of the
+     * detector
+     */
+    public long getRSample() {
+        return rSample;
+    }
+
+    /**
+     * @return timestamp of the sample that completed the beat, i.e. when the event was published
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return R-R interval to the previous beat in ms
+     */
+    public long getRr() {
+        return rr;
+    }
+
+    public QrsClass getClassification() {
+        return classification;
+    }
+
+    public QrsArrhythmia getArrhythmia() {
+        return arrhythmia;
+    }
+
+    /**
+     * @return id of the morphology cluster, see {@link MorphologyClusterer}
+     */
+    public int getCluster() {
+        return cluster;
+    }
+
+    /**
+     * @return true if the beat lies in a window of poor signal quality, see {@link SignalQuality}
+     */
+    public boolean isNoisy() {
+        return noisy;
+    }
+
+    public double getRAmplitude() {
+        return rAmplitude;
+    }
+
+    public double getSAmplitude() {
+        return sAmplitude;
+    }
+
+    /**
+     * features, see {@link PanTompkins.QRS}
+     */
+    public long getWidth() {
+        return width;
+    }
+
+    public double getQrsta() {
+        return qrsta;
+    }
+
+    public double getQra() {
+        return qra;
+    }
+
+    public double getRsa() {
+        return rsa;
+    }
+
+    public double getCct1() {
+        return cct1;
+    }
+
+    public double getCct2() {
+        return cct2;
+    }
+
+    /**
+     * @return current heart rate of the detector in bpm
+     */
+    public double getHeartRate() {
+        return heartRate;
+    }
+
+    /**
+     * @return true while the detector is still learning its templates
+     */
+    public boolean isLearning() {
+        return learning;
+    }
+
+    /**
+     * @return true for the low latency event published as soon as the R peak is confirmed, which
+     * carries no morphology (classification INVALID, no width and areas)
+     */
+    public boolean isPreliminary() {
+        return preliminary;
+    }
+
+    /**
+     * @return true for the complete event that follows a preliminary one of the same index
+     */
+    public boolean isUpdate() {
+        return update;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} when the raw sample of the R peak reached the detector, 0
+     * unless the detector measures latencies
+     */
+    public long getArrivalNanos() {
+        return arrivalNanos;
+    }
+
+    void retain(int count) {
+        references.set(count);
+    }
+
+    /**
+     * Called by the dispatching code once a subscriber is done with this event.
+     */
+    void release() {
+        if (references.decrementAndGet() == 0) {
+            pool.recycle(this);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return (preliminary ? "R " : "") + rTimestamp + " " + classification + " " + arrhythmia + " " + rr + " " + width + " "
+                + cct1 + " " + cct2;
+    }
+
+    /**
+     * Bounded pool of events, events beyond its capacity are left to the garbage collector.
+     */
+    static class Pool {
+        private final ArrayBlockingQueue<BeatEvent> free;
+
+        Pool(int capacity) {
+            free = new ArrayBlockingQueue<>(capacity);
+            for (int i = 0; i < capacity; i++) {
+                free.offer(new BeatEvent(this));
+            }
+        }
+
+        BeatEvent obtain() {
+            BeatEvent event = free.poll();
+            return event != null ? event : new BeatEvent(this);
+        }
+
+        void recycle(BeatEvent event) {
+            free.offer(event);
+        }
+    }
+}
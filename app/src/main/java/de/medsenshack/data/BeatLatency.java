@@ -0,0 +1,134 @@
+package de.medsenshack.data;
+
+import java.util.Locale;
+
+/**
+ * End-to-end latency statistics of beat events, from the arrival of the sample containing the R peak
+ * at the detector to the publishing of the event and to its handling by a consumer.
+ * <p/>
+ * Set it as {@link PanTompkins#latency} to make the detector remember the arrival time of its
+ * recent samples. The detector records the latency of every published event in {@link #confirmed}
+ * (preliminary events of the low latency mode) or {@link #finished}, consumers call
+ * {@link #record(BeatEvent)} wherever the beat is finally used, e.g. after a thread hop.
+ */
+public class BeatLatency {
+
+    /**
+     * Histogram of latencies with logarithmic buckets of at most 1/32 relative width, so the memory
+     * is fixed and recording is O(1).
+     */
+    public static class Histogram {
+        private static final int SUB_BITS = 5;
+        private static final int SUB = 1 << SUB_BITS;
+        private static final int LINEAR = 2 * SUB;
+        private final long[] counts = new long[LINEAR + (64 - SUB_BITS - 1) * SUB];
+        private long count = 0;
+        private long max = 0;
+
+        /**
+         * @param micros latency in µs
+         */
+        public synchronized void record(long micros) {
+            if (micros < 0)
+                micros = 0;
+            counts[index(micros)]++;
+            count++;
+            if (micros > max)
+                max = micros;
+        }
+
+        public synchronized long count() {
+            return count;
+        }
+
+        /**
+         * @param p percentile in [0, 100]
+         * @return the nearest-rank percentile in ms, with the lower bound of its bucket, NaN if empty
+         */
+        public synchronized double percentile(double p) {
+            if (count == 0)
+                return Double.NaN;
+            if (p >= 100)
+                return max / 1000.0;
+
+            long rank = Math.max(1, (long) Math.ceil(p / 100.0 * count));
+            long sum = 0;
+            for (int i = 0; i < counts.length; i++) {
+                sum += counts[i];
+                if (sum >= rank)
+                    return value(i) / 1000.0;
+            }
+            return max / 1000.0;
+        }
+
+        public synchronized void reset() {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = 0;
+            }
+            count = max = 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "n %d  p50 %.1f / p90 %.1f / p99 %.1f / max %.1f ms",
+                    count(), percentile(50), percentile(90), percentile(99), percentile(100));
+        }
+
+        private static int index(long v) {
+            if (v < LINEAR)
+                return (int) v;
+            int e = 63 - Long.numberOfLeadingZeros(v);
+            return LINEAR + (e - SUB_BITS - 1) * SUB + (int) ((v >>> (e - SUB_BITS)) & (SUB - 1));
+        }
+
+        private static long value(int idx) {
+            if (idx < LINEAR)
+                return idx;
+            int e = (idx - LINEAR) / SUB + SUB_BITS + 1;
+            long sub = (idx - LINEAR) % SUB;
+            return (SUB + sub) << (e - SUB_BITS);
+        }
+    }
+
+    /**
+     * R peak arrival to publishing of the preliminary event (low latency mode only)
+     */
+    public final Histogram confirmed = new Histogram();
+    /**
+     * R peak arrival to publishing of the complete event
+     */
+    public final Histogram finished = new Histogram();
+    /**
+     * R peak arrival to handling by the consumer
+     */
+    public final Histogram delivered = new Histogram();
+
+    /**
+     * Records the delivery latency of an event at the time of the call.
+     */
+    public void record(BeatEvent beat) {
+        if (beat.getArrivalNanos() != 0)
+            delivered.record((System.nanoTime() - beat.getArrivalNanos()) / 1000);
+    }
+
+    void published(BeatEvent beat) {
+        if (beat.getArrivalNanos() == 0)
+            return;
+        long micros = (System.nanoTime() - beat.getArrivalNanos()) / 1000;
+        if (beat.isPreliminary())
+            confirmed.record(micros);
+        else
+            finished.record(micros);
+    }
+
+    public void reset() {
+        confirmed.reset();
+        finished.reset();
+        delivered.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "confirmed: " + confirmed + "\nfinished: " + finished + "\ndelivered: " + delivered;
+    }
+}
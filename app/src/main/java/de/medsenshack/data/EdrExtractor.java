@@ -0,0 +1,268 @@
+package de.medsenshack.data;
+
+import java.security.InvalidParameterException;
+
+import de.fau.lme.plotview.FloatValueList;
+import de.fau.lme.plotview.LongValueList;
+import de.medsenshack.data.PanTompkins.QRS.QrsClass;
+
+/**
+ * ECG-derived respiration (EDR) from the beats of a detector.
+ * <p/>
+ * Breathing modulates the QRS amplitude (R to S, through the changing electrical axis) and the RR
+ * interval (respiratory sinus arrhythmia). Both beat-synchronous series are linearly interpolated
+ * onto a uniform grid of {@link #GRID_RATE} Hz as the beats arrive. Every <code>step</code> the
+ * spectra of the last <code>window</code> of both series are computed in the breathing band, each
+ * normalized to unit power and summed, and the peak gives the breathing rate.
+ * <p/>
+ * Registered as a synchronous {@link PanTompkins.BeatListener} it only costs a few operations per
+ * beat plus one spectrum per step, all buffers are allocated up front. Only normal beats in good
+ * signal quality are used, a gap of more than {@link #MAX_GAP} ms starts the window anew.
+ */
+public class EdrExtractor implements PanTompkins.BeatListener {
+
+    /**
+     * rate of the uniform grid in Hz
+     */
+    public static final int GRID_RATE = 4;
+    /**
+     * breathing band in Hz, 6 to 42 breaths per minute
+     */
+    public static final double BAND_LOW = 0.1;
+    public static final double BAND_HIGH = 0.7;
+    /**
+     * longest tolerated interval between two usable beats in ms
+     */
+    public static final int MAX_GAP = 3000;
+
+    public final int samplingRate;
+    public final long window, step;
+
+    /**
+     * ring buffers of the resampled series
+     */
+    private final float[] amplitudes, rrs;
+    private int head = -1, num = 0;
+    private int sinceUpdate = 0;
+    private final int stepSamples;
+
+    private long lastTime = -1;
+    private double lastAmplitude, lastRr;
+    private long nextGrid;
+
+    /**
+     * scratch buffers and tables of the spectrum, zero padded to twice the window
+     */
+    private final double[] hann, cos, sin;
+    private final double[] x, ampSpectrum, rrSpectrum;
+    private final int kLow, kHigh;
+
+    /**
+     * breathing rates in breaths per minute of the last update, from the amplitude, from the RR
+     * intervals and from both
+     */
+    public double amplitudeRate, rrRate, rate;
+    /**
+     * share of the combined band power in the peak bin and its neighbours, 0..1
+     */
+    public double peakiness;
+    /**
+     * results of all updates, oldest values are overwritten
+     */
+    public final LongValueList timestamps;
+    public final FloatValueList rates;
+    public int updates = 0;
+
+    /**
+     * @param samplingRate sampling rate of the detector, to convert beat timestamps
+     * @param window       window length in ms
+     * @param step         update interval in ms
+     * @param historySize  number of updates to keep
+     */
+    public EdrExtractor(int samplingRate, long window, long step, int historySize) {
+        int n = (int) (window * GRID_RATE / 1000);
+        stepSamples = (int) (step * GRID_RATE / 1000);
+        if (n < 16 || stepSamples < 1 || historySize <= 0)
+            throw new InvalidParameterException("window must cover 16 grid samples, step and history must be positive");
+
+        this.samplingRate = samplingRate;
+        this.window = window;
+        this.step = step;
+
+        amplitudes = new float[n];
+        rrs = new float[n];
+
+        int len = 2 * n;
+        hann = new double[n];
+        for (int i = 0; i < n; i++) {
+            hann[i] = 0.5 - 0.5 * Math.cos(2 * Math.PI * i / (n - 1));
+        }
+        cos = new double[len];
+        sin = new double[len];
+        for (int i = 0; i < len; i++) {
+            cos[i] = Math.cos(2 * Math.PI * i / len);
+            sin[i] = Math.sin(2 * Math.PI * i / len);
+        }
+        kLow = (int) Math.floor(BAND_LOW * len / GRID_RATE);
+        kHigh = (int) Math.ceil(BAND_HIGH * len / GRID_RATE);
+        x = new double[n];
+        ampSpectrum = new double[kHigh + 1];
+        rrSpectrum = new double[kHigh + 1];
+
+        timestamps = new LongValueList(historySize, false);
+        rates = new FloatValueList(historySize, false, false);
+    }
+
+    /**
+     * 32 s windows, updated every 8 s, 24 h of results.
+     */
+    public EdrExtractor(int samplingRate) {
+        this(samplingRate, 32 * 1000, 8 * 1000, 10800);
+    }
+
+    @Override
+    public void onBeat(BeatEvent beat) {
+        if (beat.isPreliminary() || beat.isNoisy() || beat.getClassification() != QrsClass.NORMAL)
+            return;
+        add(beat.getRTimestamp() * 1000 / samplingRate, beat.getRAmplitude() - beat.getSAmplitude(), beat.getRr());
+    }
+
+    /**
+     * Adds a beat.
+     *
+     * @param timestamp time of the R peak in ms
+     * @param amplitude QRS amplitude
+     * @param rr        RR interval in ms
+     * @return true if the breathing rate was updated
+     */
+    public boolean add(long timestamp, double amplitude, double rr) {
+        if (lastTime == -1 || timestamp <= lastTime || timestamp - lastTime > MAX_GAP) {
+            num = 0;
+            sinceUpdate = 0;
+            lastTime = timestamp;
+            lastAmplitude = amplitude;
+            lastRr = rr;
+            nextGrid = timestamp;
+        }
+
+        boolean updated = false;
+        long dt = timestamp - lastTime;
+        while (nextGrid <= timestamp) {
+            double f = dt > 0 ? (double) (nextGrid - lastTime) / dt : 1;
+            if (++head == amplitudes.length)
+                head = 0;
+            amplitudes[head] = (float) (lastAmplitude + f * (amplitude - lastAmplitude));
+            rrs[head] = (float) (lastRr + f * (rr - lastRr));
+            if (num < amplitudes.length)
+                num++;
+            nextGrid += 1000 / GRID_RATE;
+
+            if (++sinceUpdate >= stepSamples && num == amplitudes.length) {
+                sinceUpdate = 0;
+                update(nextGrid);
+                updated = true;
+            }
+        }
+
+        lastTime = timestamp;
+        lastAmplitude = amplitude;
+        lastRr = rr;
+        return updated;
+    }
+
+    public void reset() {
+        num = 0;
+        sinceUpdate = 0;
+        lastTime = -1;
+        updates = 0;
+        rate = amplitudeRate = rrRate = peakiness = 0;
+    }
+
+    private void update(long timestamp) {
+        spectrum(amplitudes, ampSpectrum);
+        spectrum(rrs, rrSpectrum);
+
+        amplitudeRate = peakRate(ampSpectrum);
+        rrRate = peakRate(rrSpectrum);
+
+        // combine both spectra with equal weight
+        double total = 0;
+        for (int k = kLow; k <= kHigh; k++) {
+            ampSpectrum[k] += rrSpectrum[k];
+            total += ampSpectrum[k];
+        }
+        rate = peakRate(ampSpectrum);
+        int p = peakBin(ampSpectrum);
+        double peak = ampSpectrum[p] + (p > kLow ? ampSpectrum[p - 1] : 0) + (p < kHigh ? ampSpectrum[p + 1] : 0);
+        peakiness = total > 0 ? peak / total : 0;
+
+        timestamps.add(timestamp);
+        rates.add((float) rate);
+        updates++;
+    }
+
+    /**
+     * Hann windowed power spectrum of the mean-free series in the breathing band, normalized to a
+     * band power of 1.
+     */
+    private void spectrum(float[] ring, double[] power) {
+        int n = x.length;
+        int idx = head + 1;
+        double mean = 0;
+        for (int i = 0; i < n; i++, idx++) {
+            if (idx == n)
+                idx = 0;
+            x[i] = ring[idx];
+            mean += x[i];
+        }
+        mean /= n;
+        for (int i = 0; i < n; i++) {
+            x[i] = (x[i] - mean) * hann[i];
+        }
+
+        int len = cos.length;
+        double total = 0;
+        for (int k = kLow; k <= kHigh; k++) {
+            double re = 0, im = 0;
+            int j = 0;
+            for (int i = 0; i < n; i++) {
+                re += x[i] * cos[j];
+                im += x[i] * sin[j];
+                j += k;
+                if (j >= len)
+                    j -= len;
+            }
+            power[k] = re * re + im * im;
+            total += power[k];
+        }
+        if (total > 0) {
+            for (int k = kLow; k <= kHigh; k++) {
+                power[k] /= total;
+            }
+        }
+    }
+
+    private int peakBin(double[] power) {
+        int p = kLow;
+        for (int k = kLow + 1; k <= kHigh; k++) {
+            if (power[k] > power[p])
+                p = k;
+        }
+        return p;
+    }
+
+    /**
+     * @return the frequency of the spectral peak in breaths per minute, refined by a parabola
+     */
+    private double peakRate(double[] power) {
+        int p = peakBin(power);
+        double offset = 0;
+        if (p > kLow && p < kHigh) {
+            double a = power[p - 1], b = power[p], c = power[p + 1];
+            double d = a - 2 * b + c;
+            if (d < 0)
+                offset = 0.5 * (a - c) / d;
+        }
+        return (p + offset) * GRID_RATE / (double) cos.length * 60;
+    }
+}
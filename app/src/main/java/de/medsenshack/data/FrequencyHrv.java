@@ -0,0 +1,197 @@
+package de.medsenshack.data;
+
+import java.security.InvalidParameterException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Frequency-domain HRV (VLF, LF, HF power and LF/HF ratio) of the RR tachogram over a sliding time
+ * window, using the {@link LombScargle} periodogram so that no resampling of the unevenly sampled
+ * RR series is needed.
+ * <p/>
+ * {@link #add(long, int)} is called from the detection thread and only stores the beat in a
+ * primitive ring buffer. Every <code>updateBeats</code> beats the window is copied to a snapshot
+ * and the periodogram is computed on a single background worker. If the worker is still busy the
+ * update is skipped. All buffers are reused across updates.
+ */
+public class FrequencyHrv {
+
+    /**
+     * frequency bands in Hz
+     */
+    public static final double VLF_LOW = 0.0033;
+    public static final double LF_LOW = 0.04;
+    public static final double HF_LOW = 0.15;
+    public static final double HF_HIGH = 0.4;
+
+    /**
+     * Notified on the worker thread after every update.
+     */
+    public interface Listener {
+        void onFrequencyHrv(FrequencyHrv hrv);
+    }
+
+    /**
+     * window length in ms and update interval in beats
+     */
+    public final long window;
+    public final int updateBeats;
+
+    /**
+     * ring buffer of the beats in the window, written by the detection thread only
+     */
+    private final long[] times;
+    private final int[] rrs;
+    private int head = -1, tail = 0, num = 0;
+    private int beatsSinceUpdate = 0;
+
+    /**
+     * snapshot handed to the worker, times in s and RR in ms
+     */
+    private final double[] snapTimes, snapRrs;
+    private int snapNum;
+
+    private final LombScargle lomb;
+    private final ExecutorService worker;
+    private final AtomicBoolean busy = new AtomicBoolean(false);
+    private final Runnable task = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                update();
+            } finally {
+                busy.set(false);
+            }
+        }
+    };
+
+    /**
+     * band powers in ms^2 of the last update
+     */
+    public volatile double vlf, lf, hf, totalPower;
+    public volatile double lfHf;
+    /**
+     * timestamp (ms) of the last beat in the last evaluated window
+     */
+    public volatile long timestamp = -1;
+    /**
+     * number of finished updates and of updates skipped because the worker was busy
+     */
+    public volatile int updates = 0;
+    public volatile int skipped = 0;
+
+    public Listener listener = null;
+
+    /**
+     * @param window      window length in ms, e.g. 5 minutes
+     * @param updateBeats number of beats between two updates
+     * @param ofac        oversampling factor of the periodogram
+     */
+    public FrequencyHrv(long window, int updateBeats, double ofac) {
+        if (window <= 0 || updateBeats <= 0 || ofac < 1)
+            throw new InvalidParameterException("window and update interval must be positive, ofac >= 1");
+
+        this.window = window;
+        this.updateBeats = updateBeats;
+
+        int capacity = (int) (window / HrvEngine.MIN_RR) + 2;
+        times = new long[capacity];
+        rrs = new int[capacity];
+        snapTimes = new double[capacity];
+        snapRrs = new double[capacity];
+
+        lomb = new LombScargle(ofac);
+        worker = Executors.newSingleThreadExecutor();
+    }
+
+    public FrequencyHrv(long window, int updateBeats) {
+        this(window, updateBeats, 4);
+    }
+
+    /**
+     * Adds a beat, called from the detection thread.
+     *
+     * @param timestamp time of the beat in ms
+     * @param rr        RR interval in ms
+     */
+    public void add(long timestamp, int rr) {
+        if (num == times.length) {
+            removeOldest();
+        }
+        if (++head == times.length)
+            head = 0;
+        times[head] = timestamp;
+        rrs[head] = rr;
+        num++;
+
+        while (num > 0 && times[tail] <= timestamp - window) {
+            removeOldest();
+        }
+
+        if (++beatsSinceUpdate >= updateBeats) {
+            beatsSinceUpdate = 0;
+            if (busy.compareAndSet(false, true)) {
+                snapshot();
+                worker.execute(task);
+            } else {
+                skipped++;
+            }
+        }
+    }
+
+    /**
+     * Computes the spectrum of the current window on the calling thread.
+     */
+    public void updateNow() {
+        while (!busy.compareAndSet(false, true)) {
+            Thread.yield();
+        }
+        try {
+            snapshot();
+            update();
+        } finally {
+            busy.set(false);
+        }
+    }
+
+    public void shutdown() {
+        worker.shutdown();
+    }
+
+    private void snapshot() {
+        int idx = tail;
+        for (int i = 0; i < num; i++) {
+            snapTimes[i] = times[idx] / 1000.0;
+            snapRrs[i] = rrs[idx];
+            if (++idx == times.length)
+                idx = 0;
+        }
+        snapNum = num;
+    }
+
+    private void update() {
+        if (lomb.compute(snapTimes, snapRrs, 0, snapNum, HF_HIGH) == 0)
+            return;
+
+        // scale the normalized periodogram so that the total power equals the RR variance
+        double total = lomb.bandPower(0, HF_HIGH);
+        double scale = total > 0 ? lomb.variance / total : 0;
+        vlf = lomb.bandPower(VLF_LOW, LF_LOW) * scale;
+        lf = lomb.bandPower(LF_LOW, HF_LOW) * scale;
+        hf = lomb.bandPower(HF_LOW, HF_HIGH) * scale;
+        totalPower = lomb.variance;
+        lfHf = hf > 0 ? lf / hf : 0;
+        timestamp = (long) (snapTimes[snapNum - 1] * 1000);
+        updates++;
+
+        if (listener != null)
+            listener.onFrequencyHrv(this);
+    }
+
+    private void removeOldest() {
+        if (++tail == times.length)
+            tail = 0;
+        num--;
+    }
+}
@@ -0,0 +1,247 @@
+package de.medsenshack.data;
+
+import java.security.InvalidParameterException;
+
+import de.fau.lme.plotview.FloatValueList;
+import de.fau.lme.plotview.LongValueList;
+
+/**
+ * Streaming time-domain HRV over a sliding time window of RR intervals.
+ * <p/>
+ * RR intervals and successive differences are kept in primitive ring buffers together with integer
+ * running sums, so adding a beat and evaluating SDNN, RMSSD, SDSD, pNN50 and pNN20 are O(1)
+ * (amortized, including the eviction of beats that left the window) and the sums never drift.
+ * Every <code>step</code> milliseconds the current window is evaluated and appended to the bounded
+ * result histories.
+ */
+public class HrvEngine {
+
+    /**
+     * shortest RR interval accepted by the detector in ms, bounds the ring buffer size
+     */
+    public static final int MIN_RR = 180;
+
+    /**
+     * window length and step in ms
+     */
+    public final long window, step;
+
+    /**
+     * ring buffer of beats in the window
+     */
+    private final long[] times;
+    private final int[] rrs;
+    /**
+     * signed successive difference of each beat to its predecessor, valid if hasDiff is set
+     */
+    private final int[] diffs;
+    private final boolean[] hasDiff;
+    private int head = -1, tail = 0, num = 0;
+
+    /**
+     * running sums over the window
+     */
+    private long sumRr, sumRr2, sumDiff, sumDiff2;
+    private int numDiff, numNN50, numNN20;
+
+    private int lastRr = -1;
+    private long nextUpdate = -1;
+
+    /**
+     * results of the evaluated windows, oldest values are overwritten
+     */
+    public final LongValueList timestamps;
+    public final FloatValueList meanRr, sdnn, rmssd, sdsd, pnn50, pnn20;
+    /**
+     * number of evaluated windows since the last reset
+     */
+    public int updates = 0;
+
+    /**
+     * @param window      window length in ms
+     * @param step        evaluation interval in ms
+     * @param historySize number of evaluated windows to keep
+     */
+    public HrvEngine(long window, long step, int historySize) {
+        if (window <= 0 || step <= 0 || historySize <= 0)
+            throw new InvalidParameterException("window, step and history size must be positive");
+
+        this.window = window;
+        this.step = step;
+
+        int capacity = (int) (window / MIN_RR) + 2;
+        times = new long[capacity];
+        rrs = new int[capacity];
+        diffs = new int[capacity];
+        hasDiff = new boolean[capacity];
+
+        timestamps = new LongValueList(historySize, false);
+        meanRr = new FloatValueList(historySize, false, false);
+        sdnn = new FloatValueList(historySize, false, false);
+        rmssd = new FloatValueList(historySize, false, false);
+        sdsd = new FloatValueList(historySize, false, false);
+        pnn50 = new FloatValueList(historySize, false, false);
+        pnn20 = new FloatValueList(historySize, false, false);
+    }
+
+    /**
+     * Adds a beat.
+     *
+     * @param timestamp time of the beat in ms
+     * @param rr        RR interval to the previous beat in ms
+     * @return true if a window was evaluated with this beat
+     */
+    public boolean add(long timestamp, int rr) {
+        boolean updated = false;
+        if (nextUpdate == -1) {
+            nextUpdate = timestamp + step;
+        } else if (timestamp >= nextUpdate) {
+            // evaluate the window up to the previous beat
+            evict(timestamp - window);
+            update(timestamp);
+            updated = true;
+            while (nextUpdate <= timestamp)
+                nextUpdate += step;
+        }
+
+        if (num == times.length)
+            removeOldest();
+
+        if (++head == times.length)
+            head = 0;
+        times[head] = timestamp;
+        rrs[head] = rr;
+        hasDiff[head] = lastRr != -1;
+        sumRr += rr;
+        sumRr2 += (long) rr * rr;
+        if (hasDiff[head]) {
+            int d = rr - lastRr;
+            diffs[head] = d;
+            sumDiff += d;
+            sumDiff2 += (long) d * d;
+            numDiff++;
+            if (Math.abs(d) >= 50)
+                numNN50++;
+            if (Math.abs(d) >= 20)
+                numNN20++;
+        }
+        num++;
+        lastRr = rr;
+
+        evict(timestamp - window);
+        return updated;
+    }
+
+    /**
+     * Marks a gap in the RR sequence, e.g. after a rejected beat, so no successive difference is
+     * computed across it.
+     */
+    public void gap() {
+        lastRr = -1;
+    }
+
+    public void reset() {
+        head = -1;
+        tail = num = 0;
+        sumRr = sumRr2 = sumDiff = sumDiff2 = 0;
+        numDiff = numNN50 = numNN20 = 0;
+        lastRr = -1;
+        nextUpdate = -1;
+        updates = 0;
+        timestamps.clear();
+        meanRr.clear();
+        sdnn.clear();
+        rmssd.clear();
+        sdsd.clear();
+        pnn50.clear();
+        pnn20.clear();
+    }
+
+    /**
+     * @return number of beats currently in the window
+     */
+    public int size() {
+        return num;
+    }
+
+    public double meanRr() {
+        return num == 0 ? 0 : (double) sumRr / num;
+    }
+
+    /**
+     * @return standard deviation of the RR intervals in the window
+     */
+    public double sdnn() {
+        if (num < 2)
+            return 0;
+        double mean = (double) sumRr / num;
+        return Math.sqrt(Math.max(0, (double) sumRr2 / num - mean * mean));
+    }
+
+    /**
+     * @return root mean square of the successive differences in the window
+     */
+    public double rmssd() {
+        return numDiff == 0 ? 0 : Math.sqrt((double) sumDiff2 / numDiff);
+    }
+
+    /**
+     * @return standard deviation of the (signed) successive differences in the window
+     */
+    public double sdsd() {
+        if (numDiff < 2)
+            return 0;
+        double mean = (double) sumDiff / numDiff;
+        return Math.sqrt(Math.max(0, (double) sumDiff2 / numDiff - mean * mean));
+    }
+
+    /**
+     * @return fraction of successive differences >= 50 ms in the window
+     */
+    public double pnn50() {
+        return numDiff == 0 ? 0 : (double) numNN50 / numDiff;
+    }
+
+    /**
+     * @return fraction of successive differences >= 20 ms in the window
+     */
+    public double pnn20() {
+        return numDiff == 0 ? 0 : (double) numNN20 / numDiff;
+    }
+
+    private void update(long timestamp) {
+        timestamps.add(timestamp);
+        meanRr.add((float) meanRr());
+        sdnn.add((float) sdnn());
+        rmssd.add((float) rmssd());
+        sdsd.add((float) sdsd());
+        pnn50.add((float) pnn50());
+        pnn20.add((float) pnn20());
+        updates++;
+    }
+
+    private void evict(long before) {
+        while (num > 0 && times[tail] <= before) {
+            removeOldest();
+        }
+    }
+
+    private void removeOldest() {
+        int rr = rrs[tail];
+        sumRr -= rr;
+        sumRr2 -= (long) rr * rr;
+        if (hasDiff[tail]) {
+            int d = diffs[tail];
+            sumDiff -= d;
+            sumDiff2 -= (long) d * d;
+            numDiff--;
+            if (Math.abs(d) >= 50)
+                numNN50--;
+            if (Math.abs(d) >= 20)
+                numNN20--;
+        }
+        if (++tail == times.length)
+            tail = 0;
+        num--;
+    }
+}
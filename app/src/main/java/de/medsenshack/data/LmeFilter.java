@@ -20,6 +20,8 @@
 package de.medsenshack.data;
 
 import java.security.InvalidParameterException;
+import java.util.Arrays;
+import java.util.HashMap;
 
 import de.fau.lme.plotview.FloatValueList;
 
@@ -563,6 +565,263 @@ public class LmeFilter {
         }
     }
 
+    /**
+     * Implements a generalized <i>Savitzky-Golay</i> smoothing/differentiation
+     * filter for arbitrary (odd) window lengths and polynomial orders.
+     * <p/>
+     * The convolution kernel is computed once by least-squares polynomial
+     * fitting and shared between all filters using the same (window, order,
+     * derivative) triplet. Like {@link SavGolayFilter} the filter is causal,
+     * i.e. the output of next() refers to the central sample of the window and
+     * is delayed by (window - 1) / 2 samples.
+     * <p/>
+     * y[n] = 1/T^d * sum( c[k] * x[n-k] )
+     *
+     * @author sistgrad
+     */
+    public static class GenSavGolayFilter extends LmeFilter {
+        /**
+         * kernel cache, key is (window, order, derivative)
+         */
+        private static final HashMap<Long, double[]> kernelCache = new HashMap<>();
+
+        public final int window;
+        public final int order;
+        public final int derivative;
+        /**
+         * group delay in samples
+         */
+        public final int delay;
+        /**
+         * ring buffer of the last window samples
+         */
+        protected double[] ring;
+        protected int ringIdx = 0;
+        /**
+         * work buffer for block processing, holds history + block
+         */
+        protected transient double[] work = null;
+
+        /**
+         * Creates a smoothing filter.
+         *
+         * @param window window length, must be odd and larger than order
+         * @param order  polynomial order
+         */
+        public GenSavGolayFilter(int window, int order) {
+            this(window, order, 0, 1d);
+        }
+
+        /**
+         * @param window     window length, must be odd and larger than order
+         * @param order      polynomial order
+         * @param derivative derivative to estimate, 0 = smoothing, must be <= order
+         * @param T          sampling interval, only used to scale derivatives
+         */
+        public GenSavGolayFilter(int window, int order, int derivative, double T) {
+            if (window < 1 || (window & 1) == 0 || order < 0 || order >= window
+                    || derivative < 0 || derivative > order || T <= 0) {
+                throw new InvalidParameterException();
+            }
+
+            this.window = window;
+            this.order = order;
+            this.derivative = derivative;
+            this.delay = window >> 1;
+
+            a = new double[1];
+            a[0] = Math.pow(T, -derivative);
+
+            // kernel in x-order, b[0] is applied to the newest sample
+            double[] c = kernel(window, order, derivative);
+            b = new double[window];
+            for (int i = 0; i < window; i++) {
+                b[i] = c[window - 1 - i] * a[0];
+            }
+
+            // create x & y arrays
+            y = new double[1];
+            x = new double[window];
+            ring = new double[window];
+        }
+
+        /**
+         * Returns the (unscaled) Savitzky-Golay kernel for the given parameters.
+         * c[0] is applied to the oldest sample in the window, c[window-1] to the
+         * newest. Kernels are computed only once and then served from a cache,
+         * the returned array must therefore not be modified.
+         *
+         * @param window     window length, must be odd and larger than order
+         * @param order      polynomial order
+         * @param derivative derivative to estimate, must be <= order
+         * @return the convolution kernel
+         */
+        public static double[] kernel(int window, int order, int derivative) {
+            Long key = ((long) window << 32) | ((long) order << 16) | derivative;
+            synchronized (kernelCache) {
+                double[] c = kernelCache.get(key);
+                if (c == null) {
+                    c = computeKernel(window, order, derivative);
+                    kernelCache.put(key, c);
+                }
+                return c;
+            }
+        }
+
+        /**
+         * Least-squares fit of a polynomial of the given order to the window
+         * positions -m...m. The coefficients for the derivative d are
+         * c[k] = d! * sum_j( inv(A'A)[d][j] * k^j ).
+         */
+        private static double[] computeKernel(int window, int order, int derivative) {
+            int m = window >> 1;
+            int n = order + 1;
+
+            // normal matrix A'A, entries are power sums over the window positions
+            double[] powerSums = new double[(n << 1) - 1];
+            for (int k = -m; k <= m; k++) {
+                double p = 1d;
+                for (int j = 0; j < powerSums.length; j++) {
+                    powerSums[j] += p;
+                    p *= k;
+                }
+            }
+
+            // augmented matrix [A'A | e_d], solved by Gauss-Jordan elimination
+            // yields row d of inv(A'A) since A'A is symmetric
+            double[][] g = new double[n][n + 1];
+            for (int r = 0; r < n; r++) {
+                for (int s = 0; s < n; s++) {
+                    g[r][s] = powerSums[r + s];
+                }
+            }
+            g[derivative][n] = 1d;
+
+            for (int col = 0; col < n; col++) {
+                // partial pivoting
+                int pivot = col;
+                for (int r = col + 1; r < n; r++) {
+                    if (Math.abs(g[r][col]) > Math.abs(g[pivot][col]))
+                        pivot = r;
+                }
+                double[] tmp = g[col];
+                g[col] = g[pivot];
+                g[pivot] = tmp;
+
+                double div = g[col][col];
+                for (int s = col; s <= n; s++) {
+                    g[col][s] /= div;
+                }
+                for (int r = 0; r < n; r++) {
+                    if (r == col || g[r][col] == 0d)
+                        continue;
+                    double f = g[r][col];
+                    for (int s = col; s <= n; s++) {
+                        g[r][s] -= f * g[col][s];
+                    }
+                }
+            }
+
+            double fac = 1d;
+            for (int i = 2; i <= derivative; i++) {
+                fac *= i;
+            }
+
+            double[] c = new double[window];
+            for (int k = -m; k <= m; k++) {
+                double sum = 0d;
+                double p = 1d;
+                for (int j = 0; j < n; j++) {
+                    sum += g[j][n] * p;
+                    p *= k;
+                }
+                c[k + m] = fac * sum;
+            }
+            return c;
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see de.lme.plotview.LmeFilter#next(double)
+         */
+        @Override
+        public double next(double xnow) {
+            // ring buffer instead of shifting the entire window
+            if (--ringIdx < 0)
+                ringIdx = window - 1;
+            ring[ringIdx] = xnow;
+
+            double sum = 0d;
+            int i, k = 0;
+            for (i = ringIdx; i < window; i++) {
+                sum += b[k++] * ring[i];
+            }
+            for (i = 0; i < ringIdx; i++) {
+                sum += b[k++] * ring[i];
+            }
+
+            y[0] = sum;
+            return y[0];
+        }
+
+        /**
+         * Filters an entire block of samples. The filter state is carried over
+         * between calls, so consecutive blocks yield exactly the same result as
+         * calling next() for every single sample.
+         *
+         * @param in     input samples
+         * @param inOff  offset of the first input sample
+         * @param len    number of samples to process
+         * @param out    receives the filtered samples, may be the same array as in
+         * @param outOff offset of the first output sample
+         */
+        public void process(double[] in, int inOff, int len, double[] out, int outOff) {
+            if (len <= 0)
+                return;
+
+            int hist = window - 1;
+            if (work == null || work.length < hist + len) {
+                work = new double[hist + len];
+            }
+
+            // oldest history sample first
+            int i, k = 0;
+            for (i = ringIdx + hist - 1; i >= ringIdx; i--) {
+                work[k++] = ring[i % window];
+            }
+            System.arraycopy(in, inOff, work, hist, len);
+
+            // straight convolution over contiguous memory
+            double sum;
+            int j;
+            for (i = 0; i < len; i++) {
+                sum = 0d;
+                for (j = 0; j < window; j++) {
+                    sum += b[j] * work[i + hist - j];
+                }
+                out[outOff + i] = sum;
+            }
+
+            // store the newest window samples in the ring
+            ringIdx = 0;
+            for (i = 0; i < window; i++) {
+                ring[i] = work[hist + len - 1 - i];
+            }
+
+            y[0] = out[outOff + len - 1];
+        }
+
+        /**
+         * Clears the filter history.
+         */
+        public void reset() {
+            Arrays.fill(ring, 0d);
+            ringIdx = 0;
+            y[0] = 0d;
+        }
+    }
+
     /**
      * Implements a <i>moving window integrator</i> filter.
      * <p/>
@@ -0,0 +1,235 @@
+package de.medsenshack.data;
+
+/**
+ * Fast Lomb-Scargle periodogram of unevenly sampled data after Press and Rybicki (1989).
+ * <p/>
+ * The data and the doubled phases are extirpolated onto a regular grid so that all trigonometric
+ * sums are obtained with a single FFT. Grid, FFT and output buffers are kept and only grow, so
+ * repeated evaluations of similarly sized series do not allocate.
+ */
+public class LombScargle {
+
+    /**
+     * number of grid points each value is extirpolated to
+     */
+    public static final int MACC = 4;
+    private static final int[] NFAC = {1, 1, 2, 6, 24, 120, 720, 5040, 40320, 362880};
+
+    /**
+     * oversampling factor of the frequency grid
+     */
+    public final double ofac;
+
+    /**
+     * frequencies and normalized powers of the last evaluation, valid up to num
+     */
+    public double[] freq = new double[0];
+    public double[] power = new double[0];
+    public int num = 0;
+    /**
+     * variance of the last evaluated series
+     */
+    public double variance;
+
+    private int size = 0;
+    private double[] re, im;
+    private double[] cos, sin;
+
+    public LombScargle(double ofac) {
+        this.ofac = ofac;
+    }
+
+    /**
+     * Evaluates the periodogram for all frequencies up to fmax. The powers are normalized by twice
+     * the variance, as in the classic Lomb normalized periodogram.
+     *
+     * @param x    sample times, ascending
+     * @param y    sample values
+     * @param off  first sample to use
+     * @param n    number of samples
+     * @param fmax highest frequency in units of 1 / x
+     * @return number of frequencies in freq and power
+     */
+    public int compute(double[] x, double[] y, int off, int n, double fmax) {
+        num = 0;
+        if (n < 3)
+            return 0;
+
+        double xmin = x[off];
+        double xdif = x[off + n - 1] - xmin;
+        if (xdif <= 0)
+            return 0;
+
+        int i;
+        double ave = 0, d;
+        for (i = off; i < off + n; i++) {
+            ave += y[i];
+        }
+        ave /= n;
+        variance = 0;
+        for (i = off; i < off + n; i++) {
+            d = y[i] - ave;
+            variance += d * d;
+        }
+        variance /= n - 1;
+        if (variance == 0)
+            return 0;
+
+        int nout = (int) Math.ceil(fmax * xdif * ofac);
+        int nfreq = 64;
+        while (nfreq < 2 * nout * MACC)
+            nfreq <<= 1;
+        int ndim = nfreq << 1;
+        prepare(ndim, nout);
+
+        // the data and the doubled phases are extirpolated into the real and the imaginary part
+        for (i = 0; i < ndim; i++) {
+            re[i] = im[i] = 0;
+        }
+        double fac = ndim / (xdif * ofac);
+        double ck, ckk;
+        for (i = off; i < off + n; i++) {
+            ck = ((x[i] - xmin) * fac) % ndim;
+            ckk = (2.0 * ck) % ndim;
+            spread(y[i] - ave, re, ndim, ck);
+            spread(1.0, im, ndim, ckk);
+        }
+
+        fft(ndim);
+
+        double df = 1.0 / (xdif * ofac);
+        double r1, i1, r2, i2, hypo, hc2wt, hs2wt, cwt, swt, den, cterm, sterm;
+        int k, mk;
+        for (k = 1; k <= nout; k++) {
+            mk = ndim - k;
+            // untangle the two real transforms, the sine sums are the negated imaginary parts
+            r1 = 0.5 * (re[k] + re[mk]);
+            i1 = -0.5 * (im[k] - im[mk]);
+            r2 = 0.5 * (im[k] + im[mk]);
+            i2 = 0.5 * (re[k] - re[mk]);
+
+            hypo = Math.sqrt(r2 * r2 + i2 * i2);
+            if (hypo == 0) {
+                hc2wt = 0.5;
+                hs2wt = 0;
+            } else {
+                hc2wt = 0.5 * r2 / hypo;
+                hs2wt = 0.5 * i2 / hypo;
+            }
+            cwt = Math.sqrt(0.5 + hc2wt);
+            swt = Math.copySign(Math.sqrt(Math.max(0, 0.5 - hc2wt)), hs2wt);
+            den = 0.5 * n + hc2wt * r2 + hs2wt * i2;
+            cterm = cwt * r1 + swt * i1;
+            sterm = cwt * i1 - swt * r1;
+            cterm = den > 0 ? cterm * cterm / den : 0;
+            sterm = n - den > 0 ? sterm * sterm / (n - den) : 0;
+
+            freq[k - 1] = k * df;
+            power[k - 1] = (cterm + sterm) / (2 * variance);
+        }
+        num = nout;
+        return nout;
+    }
+
+    /**
+     * Sums the power of all frequencies in [low, high[, weighted with the frequency resolution.
+     *
+     * @return band power in units of the normalized periodogram times frequency
+     */
+    public double bandPower(double low, double high) {
+        if (num == 0)
+            return 0;
+        double df = freq[0];
+        double sum = 0;
+        for (int k = 0; k < num; k++) {
+            if (freq[k] >= low && freq[k] < high)
+                sum += power[k];
+        }
+        return sum * df;
+    }
+
+    /**
+     * Extirpolates y into the grid yy around the (fractional) position x using MACC Lagrange
+     * weights.
+     */
+    private static void spread(double y, double[] yy, int n, double x) {
+        int ix = (int) x;
+        if (x == ix) {
+            yy[ix] += y;
+            return;
+        }
+        int ilo = Math.min(Math.max((int) (x - 0.5 * MACC + 1.0), 0), n - MACC);
+        int ihi = ilo + MACC - 1;
+        int nden = NFAC[MACC - 1];
+        double fac = x - ilo;
+        for (int j = ilo + 1; j <= ihi; j++) {
+            fac *= x - j;
+        }
+        yy[ihi] += y * fac / (nden * (x - ihi));
+        for (int j = ihi - 1; j >= ilo; j--) {
+            nden = (nden / (j + 1 - ilo)) * (j - ihi);
+            yy[j] += y * fac / (nden * (x - j));
+        }
+    }
+
+    private void prepare(int ndim, int nout) {
+        if (freq.length < nout) {
+            freq = new double[nout];
+            power = new double[nout];
+        }
+        if (ndim == size)
+            return;
+        if (ndim > size) {
+            re = new double[ndim];
+            im = new double[ndim];
+        }
+        size = ndim;
+        cos = new double[ndim >> 1];
+        sin = new double[ndim >> 1];
+        for (int i = 0; i < ndim >> 1; i++) {
+            cos[i] = Math.cos(2 * Math.PI * i / ndim);
+            sin[i] = Math.sin(2 * Math.PI * i / ndim);
+        }
+    }
+
+    /**
+     * In-place forward radix-2 FFT of re + i * im with size m.
+     */
+    private void fft(int m) {
+        int i, j, k, len, half, step, bit;
+        double tr, ti, wr, wi;
+
+        for (i = 1, j = 0; i < m; i++) {
+            bit = m >> 1;
+            for (; (j & bit) != 0; bit >>= 1) {
+                j ^= bit;
+            }
+            j ^= bit;
+            if (i < j) {
+                tr = re[i];
+                re[i] = re[j];
+                re[j] = tr;
+                ti = im[i];
+                im[i] = im[j];
+                im[j] = ti;
+            }
+        }
+
+        for (len = 2; len <= m; len <<= 1) {
+            half = len >> 1;
+            step = m / len;
+            for (i = 0; i < m; i += len) {
+                for (k = 0; k < half; k++) {
+                    wr = cos[k * step];
+                    wi = -sin[k * step];
+                    tr = wr * re[i + k + half] - wi * im[i + k + half];
+                    ti = wr * im[i + k + half] + wi * re[i + k + half];
+                    re[i + k + half] = re[i + k] - tr;
+                    im[i + k + half] = im[i + k] - ti;
+                    re[i + k] += tr;
+                    im[i + k] += ti;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package de.medsenshack.data;
+
+import java.security.InvalidParameterException;
+
+import de.medsenshack.data.PanTompkins.QRS.QrsClass;
+
+/**
+ * Online clustering of beat morphologies into a bounded library.
+ * <p/>
+ * Every cluster keeps a centroid of the QRS values that is updated incrementally with each assigned
+ * beat, together with the mean width and area. A new beat is first compared by these cheap
+ * features, only the {@link #MAX_CANDIDATES} closest clusters are correlated with the
+ * {@link TemplateCorrelator}. If none of them correlates well enough a new cluster is created,
+ * replacing the least populated cluster once the library is full. The cost per beat is therefore
+ * bounded by the library size for the feature check and by MAX_CANDIDATES for the correlation.
+ */
+public class MorphologyClusterer {
+
+    /**
+     * number of clusters that are correlated with a beat at most
+     */
+    public static final int MAX_CANDIDATES = 3;
+    /**
+     * minimal correlation to join a cluster
+     */
+    public static final double MIN_CORRELATION = 0.9;
+    /**
+     * maximal relative deviation of width and area to be considered a candidate
+     */
+    public static final double MAX_FEATURE_DEVIATION = 0.5;
+    /**
+     * after this many beats the centroid turns into an exponential average, so it can follow slow
+     * changes of the morphology
+     */
+    public static final int MAX_WEIGHT = 64;
+
+    /**
+     * A morphology cluster.
+     */
+    public static class Cluster {
+        /**
+         * unique id within the session, never reused
+         */
+        public int id;
+        /**
+         * number of beats assigned to this cluster
+         */
+        public int count;
+        /**
+         * number of assigned beats per {@link QrsClass}
+         */
+        public final int[] classCount = new int[QrsClass.values().length];
+        public double width, area;
+        public long lastBeat;
+
+        final float[] centroid;
+        int num;
+        double mean;
+        final TemplateCorrelator.Template template;
+
+        Cluster(int size) {
+            centroid = new float[size];
+            template = new TemplateCorrelator.Template(size);
+        }
+
+        /**
+         * @return the class most beats of this cluster were assigned to
+         */
+        public QrsClass dominantClass() {
+            int best = 0;
+            for (int i = 1; i < classCount.length; i++) {
+                if (classCount[i] > classCount[best])
+                    best = i;
+            }
+            return QrsClass.values()[best];
+        }
+    }
+
+    public final Cluster[] clusters;
+    public int numClusters = 0;
+    /**
+     * number of clustered beats and of beats whose cluster has been evicted since
+     */
+    public long beats = 0;
+    public long evictedBeats = 0;
+    /**
+     * number of correlations computed, for profiling the pre-filter
+     */
+    public long correlations = 0;
+
+    private final TemplateCorrelator correlator;
+    private final int qrsSize;
+    private int nextId = 0;
+    private final int[] candidates = new int[MAX_CANDIDATES];
+    private final double[] distances = new double[MAX_CANDIDATES];
+
+    /**
+     * @param capacity   maximal number of clusters
+     * @param qrsSize    maximal number of values of a QRS
+     * @param correlator correlation engine to use
+     */
+    public MorphologyClusterer(int capacity, int qrsSize, TemplateCorrelator correlator) {
+        if (capacity < 1)
+            throw new InvalidParameterException("capacity must be positive");
+
+        this.qrsSize = qrsSize;
+        this.correlator = correlator;
+        clusters = new Cluster[capacity];
+        for (int i = 0; i < capacity; i++) {
+            clusters[i] = new Cluster(qrsSize);
+        }
+    }
+
+    /**
+     * Assigns a classified beat to a cluster. The beat has to be normalized already, which
+     * {@link PanTompkins.QRS#classify()} does.
+     *
+     * @param qrs the beat
+     * @return the id of the cluster
+     */
+    public int assign(PanTompkins.QRS qrs) {
+        beats++;
+        double width = qrs.feat_width;
+        double area = qrs.feat_qrsta;
+
+        // pre-filter by width and area, keep the closest candidates sorted by distance
+        int numCandidates = 0;
+        int i, k;
+        double d;
+        for (i = 0; i < numClusters; i++) {
+            Cluster c = clusters[i];
+            d = deviation(width, c.width);
+            if (d > MAX_FEATURE_DEVIATION)
+                continue;
+            d += deviation(area, c.area);
+            if (d > 2 * MAX_FEATURE_DEVIATION)
+                continue;
+
+            if (numCandidates == MAX_CANDIDATES && d >= distances[numCandidates - 1])
+                continue;
+            k = numCandidates < MAX_CANDIDATES ? numCandidates++ : numCandidates - 1;
+            while (k > 0 && distances[k - 1] > d) {
+                distances[k] = distances[k - 1];
+                candidates[k] = candidates[k - 1];
+                k--;
+            }
+            distances[k] = d;
+            candidates[k] = i;
+        }
+
+        // full correlation only for the candidates
+        int best = -1;
+        double bestCorr = MIN_CORRELATION, cc;
+        for (k = 0; k < numCandidates; k++) {
+            correlations++;
+            cc = correlator.maxCorr(qrs.normalized, clusters[candidates[k]].template);
+            if (cc >= bestCorr) {
+                bestCorr = cc;
+                best = candidates[k];
+            }
+        }
+
+        Cluster c;
+        if (best == -1) {
+            c = create(qrs);
+        } else {
+            c = clusters[best];
+            update(c, qrs);
+        }
+        c.lastBeat = beats;
+        c.classCount[qrs.classification.ordinal()]++;
+        return c.id;
+    }
+
+    /**
+     * @return the cluster with the given id or null if it does not exist (anymore)
+     */
+    public Cluster find(int id) {
+        for (int i = 0; i < numClusters; i++) {
+            if (clusters[i].id == id)
+                return clusters[i];
+        }
+        return null;
+    }
+
+    public void reset() {
+        numClusters = 0;
+        beats = evictedBeats = correlations = 0;
+        nextId = 0;
+    }
+
+    private static double deviation(double value, double reference) {
+        return reference != 0 ? Math.abs(value - reference) / Math.abs(reference) : (value != 0 ? 1 : 0);
+    }
+
+    private Cluster create(PanTompkins.QRS qrs) {
+        Cluster c;
+        if (numClusters < clusters.length) {
+            c = clusters[numClusters++];
+        } else {
+            // evict the smallest cluster, the oldest one among equals
+            c = clusters[0];
+            for (int i = 1; i < numClusters; i++) {
+                Cluster o = clusters[i];
+                if (o.count < c.count || (o.count == c.count && o.lastBeat < c.lastBeat))
+                    c = o;
+            }
+            evictedBeats += c.count;
+        }
+
+        c.id = nextId++;
+        c.count = 1;
+        for (int i = 0; i < c.classCount.length; i++) {
+            c.classCount[i] = 0;
+        }
+        c.width = qrs.feat_width;
+        c.area = qrs.feat_qrsta;
+        c.num = Math.min(qrs.values.num, qrsSize);
+        System.arraycopy(qrs.values.values, 0, c.centroid, 0, c.num);
+        c.mean = qrs.mean;
+        c.template.set(c.centroid, c.num, c.mean);
+        return c;
+    }
+
+    private void update(Cluster c, PanTompkins.QRS qrs) {
+        c.count++;
+        double w = 1.0 / Math.min(c.count, MAX_WEIGHT);
+
+        int n = Math.min(c.num, qrs.values.num);
+        float[] v = qrs.values.values;
+        for (int i = 0; i < n; i++) {
+            c.centroid[i] += (float) (w * (v[i] - c.centroid[i]));
+        }
+        c.mean += w * (qrs.mean - c.mean);
+        c.width += w * (qrs.feat_width - c.width);
+        c.area += w * (qrs.feat_qrsta - c.area);
+        c.template.set(c.centroid, c.num, c.mean);
+    }
+}
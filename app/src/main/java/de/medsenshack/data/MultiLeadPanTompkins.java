@@ -0,0 +1,239 @@
+package de.medsenshack.data;
+
+import java.security.InvalidParameterException;
+
+/**
+ * Pan-Tompkins QRS detection on several ECG leads at once, e.g. the two channels of
+ * {@link de.fau.lme.sensorlib.dataframe.EcgDataFrame}.
+ * <p/>
+ * The band pass, differentiator, squaring and window integration are computed for all leads in a
+ * single pass over flat per-lead state arrays. The integrated energies of all active leads are
+ * normalized to the level of the reference lead (the first active one) and averaged before the
+ * usual thresholding and segmentation, which work on the band pass output of the reference lead.
+ * <p/>
+ * A lead drops out when its samples are missing (NaN) or flat for {@link #FLAT_MS}. It is held at
+ * its last value meanwhile and contributes again once its filters have settled. With a single
+ * lead the results are identical to {@link PanTompkins}.
+ */
+public class MultiLeadPanTompkins extends PanTompkins {
+
+    /**
+     * a lead whose raw value does not change for this time is considered disconnected
+     */
+    public static final int FLAT_MS = 500;
+    /**
+     * time constant of the energy level of every lead
+     */
+    public static final int LEVEL_MS = 2000;
+
+    private static final int LP_TAPS = 13;
+    private static final int HP_TAPS = 33;
+    private static final int DIFF_TAPS = 5;
+
+    public final int numLeads;
+
+    /**
+     * filter histories, tap-major so every stage loops over contiguous lead values
+     */
+    private final double[] lpX, lpY1, lpY2;
+    private final double[] hpX, hpY1;
+    private final double[] diffX;
+    private final float[] intValues;
+    private final double[] intSum;
+    private int lpPos = 0, hpPos = 0, diffPos = 0, intPos = 0, intNum = 0;
+
+    /**
+     * per-lead outputs of the current sample
+     */
+    public final double[] band, energy;
+
+    /**
+     * per-lead dropout state
+     */
+    public final boolean[] leadActive;
+    private final double[] lastValue, level;
+    private final int[] flatCount, settleCount;
+    private final int flatSamples, settleSamples;
+    private final double levelAlpha;
+
+    /**
+     * number of active leads and index of the reference lead, -1 if no lead is active
+     */
+    public int activeLeads = 0;
+    public int referenceLead = -1;
+
+    private final double[] single = new double[1];
+
+    public MultiLeadPanTompkins(int samplingRate, int numLeads) {
+        super(samplingRate);
+        if (numLeads < 1)
+            throw new InvalidParameterException("at least one lead is required");
+
+        this.numLeads = numLeads;
+        lpX = new double[LP_TAPS * numLeads];
+        lpY1 = new double[numLeads];
+        lpY2 = new double[numLeads];
+        hpX = new double[HP_TAPS * numLeads];
+        hpY1 = new double[numLeads];
+        diffX = new double[DIFF_TAPS * numLeads];
+        intValues = new float[wndLength * numLeads];
+        intSum = new double[numLeads];
+
+        band = new double[numLeads];
+        energy = new double[numLeads];
+
+        leadActive = new boolean[numLeads];
+        lastValue = new double[numLeads];
+        level = new double[numLeads];
+        flatCount = new int[numLeads];
+        settleCount = new int[numLeads];
+        flatSamples = FLAT_MS * samplingRate / 1000;
+        settleSamples = TOTAL_DELAY + wndLength;
+        levelAlpha = 1000.0 / (LEVEL_MS * samplingRate);
+        // the initial transient is covered by startProcessing
+        for (int l = 0; l < numLeads; l++) {
+            lastValue[l] = Double.NaN;
+        }
+    }
+
+    /**
+     * Only valid for a single lead.
+     *
+     * @see #next(double[], long)
+     */
+    @Override
+    public double next(double xnow, long timestamp) {
+        if (numLeads != 1)
+            throw new InvalidParameterException("use next(double[], long) for " + numLeads + " leads");
+        single[0] = xnow;
+        return next(single, timestamp);
+    }
+
+    /**
+     * Processes the next sample of all leads.
+     *
+     * @param leads     one sample per lead, NaN if the sample of a lead is missing
+     * @param timestamp timestamp of the samples
+     * @return the fused integrated energy
+     */
+    public double next(double[] leads, long timestamp) {
+        int l;
+        double v;
+
+        // lead state, missing samples are held at the last value
+        for (l = 0; l < numLeads; l++) {
+            v = leads[l];
+            if (Double.isNaN(v)) {
+                v = Double.isNaN(lastValue[l]) ? 0 : lastValue[l];
+                flatCount[l] = flatSamples;
+            } else if (v == lastValue[l]) {
+                if (flatCount[l] < flatSamples)
+                    flatCount[l]++;
+            } else {
+                flatCount[l] = 0;
+            }
+            if (flatCount[l] >= flatSamples) {
+                settleCount[l] = settleSamples;
+            } else if (settleCount[l] > 0) {
+                settleCount[l]--;
+            }
+            lastValue[l] = v;
+            band[l] = v;
+        }
+
+        // LOW PASS: y = (x[n] - 2 x[n-6] + x[n-12]) / 32 + 2 y[n-1] - y[n-2]
+        if (++lpPos == LP_TAPS)
+            lpPos = 0;
+        int x0 = lpPos * numLeads;
+        int x6 = ((lpPos + LP_TAPS - 6) % LP_TAPS) * numLeads;
+        int x12 = ((lpPos + 1) % LP_TAPS) * numLeads;
+        for (l = 0; l < numLeads; l++) {
+            lpX[x0 + l] = band[l];
+            v = 0.03125 * band[l];
+            v += -0.0625 * lpX[x6 + l];
+            v += 0.03125 * lpX[x12 + l];
+            v += 2.0 * lpY1[l];
+            v += -1.0 * lpY2[l];
+            lpY2[l] = lpY1[l];
+            lpY1[l] = v;
+        }
+
+        // HIGH PASS: y = -x[n] / 32 + x[n-16] - x[n-17] + x[n-32] / 32 + y[n-1]
+        if (++hpPos == HP_TAPS)
+            hpPos = 0;
+        x0 = hpPos * numLeads;
+        int x16 = ((hpPos + HP_TAPS - 16) % HP_TAPS) * numLeads;
+        int x17 = ((hpPos + HP_TAPS - 17) % HP_TAPS) * numLeads;
+        int x32 = ((hpPos + 1) % HP_TAPS) * numLeads;
+        for (l = 0; l < numLeads; l++) {
+            hpX[x0 + l] = lpY1[l];
+            v = -0.03125 * lpY1[l];
+            v += hpX[x16 + l];
+            v += -1.0 * hpX[x17 + l];
+            v += 0.03125 * hpX[x32 + l];
+            v += hpY1[l];
+            hpY1[l] = v;
+            band[l] = v;
+        }
+
+        // DIFFERENTIATOR: y = (2 x[n] + x[n-1] - x[n-3] - 2 x[n-4]) / 8, SQUARING, WND INTEGRATOR
+        if (++diffPos == DIFF_TAPS)
+            diffPos = 0;
+        x0 = diffPos * numLeads;
+        int x1 = ((diffPos + DIFF_TAPS - 1) % DIFF_TAPS) * numLeads;
+        int x3 = ((diffPos + DIFF_TAPS - 3) % DIFF_TAPS) * numLeads;
+        int x4 = ((diffPos + 1) % DIFF_TAPS) * numLeads;
+        if (++intPos == wndLength)
+            intPos = 0;
+        if (intNum < wndLength)
+            intNum++;
+        int w = intPos * numLeads;
+        float sq;
+        for (l = 0; l < numLeads; l++) {
+            diffX[x0 + l] = band[l];
+            v = 2.0 * band[l];
+            v += diffX[x1 + l];
+            v += -1.0 * diffX[x3 + l];
+            v += -2.0 * diffX[x4 + l];
+            v /= 8.0;
+
+            sq = (float) (v * v);
+            intSum[l] = intSum[l] - intValues[w + l] + sq;
+            intValues[w + l] = sq;
+            energy[l] = (float) (intSum[l] / intNum);
+        }
+
+        // fuse the energies of all active leads at the level of the reference lead
+        activeLeads = 0;
+        referenceLead = -1;
+        double fused = 0;
+        for (l = 0; l < numLeads; l++) {
+            leadActive[l] = settleCount[l] == 0 && flatCount[l] < flatSamples;
+            if (!leadActive[l])
+                continue;
+            level[l] += levelAlpha * (energy[l] - level[l]);
+            if (referenceLead == -1)
+                referenceLead = l;
+            activeLeads++;
+        }
+        if (referenceLead == -1) {
+            y[3] = 0;
+            y[6] = 0;
+        } else {
+            for (l = referenceLead; l < numLeads; l++) {
+                if (!leadActive[l])
+                    continue;
+                if (l == referenceLead || level[l] <= 0)
+                    fused += energy[l];
+                else
+                    fused += energy[l] * (level[referenceLead] / level[l]);
+            }
+            y[3] = band[referenceLead];
+            y[6] = fused / activeLeads;
+        }
+        if (quality != null)
+            quality.next(lastValue[referenceLead == -1 ? 0 : referenceLead], y[3]);
+
+        return detect(timestamp);
+    }
+}
@@ -3,7 +3,7 @@ package de.medsenshack.data;
 import android.util.Log;
 
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
 
 import de.fau.lme.plotview.FloatValueList;
 import de.fau.lme.plotview.ObjectValueList;
@@ -23,6 +23,11 @@ public class PanTompkins extends LmeFilter {
      * total group delay of the entire filter pipeline
      */
     public static final int TOTAL_DELAY = 24;
+    /**
+     * group delay of the low pass (5 samples) and high pass (16 samples), the R peak in the band
+     * pass output lags the raw R peak by this amount
+     */
+    public static final int BANDPASS_DELAY = 21;
     /**
      * LOW-PASS filter
      */
@@ -39,12 +44,37 @@ public class PanTompkins extends LmeFilter {
      */
     public static final double[] diff_a = {8.0};
     public static final double[] diff_b = {2.0, 1.0, 0.0, -1.0, -2.0};
-    public static int samplingRate = 250;
+    public int samplingRate = 250;
     /**
      * sampling time in ms
      */
-    public static float samplingTime = 1000 / samplingRate;
-    public static boolean learning = true;
+    public float samplingTime = 1000.0f / samplingRate;
+    /**
+     * true until the two initial templates have been chosen
+     */
+    public boolean learning = true;
+    /**
+     * Reference to the template slot 1
+     */
+    public QRS template1 = null;
+    /**
+     * Reference to the template slot 2
+     */
+    public QRS template2 = null;
+    /**
+     * Reference to the current QRS
+     */
+    public QRS qrsCurrent = null;
+    /**
+     * Reference to the previous QRS
+     */
+    public QRS qrsPrevious = null;
+    /**
+     * Correlation engine used to score beats against the templates
+     */
+    public final TemplateCorrelator correlator = new TemplateCorrelator();
+    private final TemplateCorrelator.Template[] templateCache = new TemplateCorrelator.Template[2];
+    private final double[] templateScores = new double[2];
     public LmeFilter lowpass = new LmeFilter(lp_b, lp_a);
     public LmeFilter highpass = new LmeFilter(hp_b, hp_a);
     public LmeFilter diff = new LmeFilter(diff_b, diff_a);
@@ -86,12 +116,28 @@ public class PanTompkins extends LmeFilter {
     public MeanFilter rrMeanLong = new MeanFilter(16);
     public StatFilter rrStats = new StatFilter(8);
     public StdFilter stdStats = new StdFilter(16);
-    public LinkedList<Double> rrIntervals = new LinkedList<>();
+    /**
+     * HRV over 10 s windows, keeps 24 h of results
+     */
+    public HrvEngine hrv = new HrvEngine(10 * 1000, 10 * 1000, 8640);
     public boolean hrvDataReady;
-    public LinkedList<Double> standardDeviationRR = new LinkedList<>();
-    public LinkedList<Double> successiveDifferences = new LinkedList<>();
-    public LinkedList<Double> successiveDifferencesRms = new LinkedList<>();
-    public LinkedList<Double> successiveDifferencesStd = new LinkedList<>();
+    /**
+     * optional frequency-domain HRV, fed with all plausible beats if set
+     */
+    public FrequencyHrv frequencyHrv = null;
+    /**
+     * atrial fibrillation episodes, fed with all plausible beats
+     */
+    public AfDetector af = new AfDetector();
+    /**
+     * optional signal quality index, beats in poor quality windows are flagged and not used for
+     * the statistics if set
+     */
+    public SignalQuality quality = null;
+    /**
+     * morphology clusters of all classified beats of the session
+     */
+    public MorphologyClusterer clusterer;
     public int numTotalBeats = 0;
     public int numRr50 = 0;
     public int numRr20 = 0;
@@ -107,11 +153,30 @@ public class PanTompkins extends LmeFilter {
     public int beatCounter;
     public int timeLastBeat;
     public double wndIntCompensation = 0.85;
-    private long mOldTimestamp = 0;
+    /**
+     * beat listeners, replaced as a whole on (un)subscription
+     */
+    private volatile BeatSubscription[] subscriptions = new BeatSubscription[0];
+    private final BeatEvent.Pool beatPool = new BeatEvent.Pool(32);
+    private long beatIndex = 0;
+    /**
+     * if set, every beat is published twice: a preliminary event as soon as the R peak is
+     * confirmed, and the complete event with the morphology once the QRS is segmented and classified
+     */
+    public boolean lowLatency = false;
+    /**
+     * optional latency statistics, the arrival times of the recent samples are kept if set
+     */
+    public BeatLatency latency = null;
+    private long sampleIndex = -1;
+    private long[] arrivals;
+    private int arrivalMask;
 
     public PanTompkins(int samplingRate) {
-        PanTompkins.samplingRate = samplingRate;
+        this.samplingRate = samplingRate;
         samplingTime = 1000.0f / samplingRate;
+        arrivals = new long[Integer.highestOneBit(4 * samplingRate)];
+        arrivalMask = arrivals.length - 1;
 
         wndLength = (int) (150.0 * samplingRate / 1000.0);
 
@@ -140,16 +205,19 @@ public class PanTompkins extends LmeFilter {
 
         // init QRS history
         for (int i = 0; i < qrsHistory.sizeMax; i++) {
-            qrsHistory.values[i] = new QRS(maxQrsSize);
+            qrsHistory.values[i] = new QRS(this, maxQrsSize);
         }
 
-        QRS.template1 = new QRS(maxQrsSize);
-        QRS.template2 = new QRS(maxQrsSize);
+        template1 = new QRS(this, maxQrsSize);
+        template2 = new QRS(this, maxQrsSize);
+        templateCache[0] = template1.normalized;
+        templateCache[1] = template2.normalized;
+        clusterer = new MorphologyClusterer(16, maxQrsSize, correlator);
 
-        QRS.qrsCurrent = (QRS) qrsHistory.next();
-        QRS.qrsCurrent.reset();
+        qrsCurrent = (QRS) qrsHistory.next();
+        qrsCurrent.reset();
 
-        QRS.qrsPrevious = null;
+        qrsPrevious = null;
 
         // start processing after 2 seconds
         startProcessing = samplingRate << 1;
@@ -159,38 +227,15 @@ public class PanTompkins extends LmeFilter {
         learning = true;
     }
 
-    private static double calculateStd(LinkedList<? extends Number> values) {
-        double mean = 0.0;
-        double meanSquare = 0.0;
-        for (int i = 0; i < values.size(); i++) {
-            mean += (Double) values.get(i);
-            meanSquare += ((Double) values.get(i) * (Double) values.get(i));
-        }
-        mean /= (double) values.size();
-        meanSquare /= (double) values.size();
-
-        return Math.sqrt(meanSquare - mean * mean);
-    }
-
-    private static double calculateRMS(LinkedList<? extends Number> values) {
-        double meanSquare = 0.0;
-
-        for (int i = 0; i < values.size(); i++) {
-            meanSquare += (Double) values.get(i) * (Double) values.get(i);
-        }
-        meanSquare /= values.size();
-
-        return Math.sqrt(meanSquare);
-    }
-
     /**
+     * Processes the next sample. If it completes a beat, the beat is published to all
+     * {@link BeatListener}s before this method returns.
+     *
      * @param xnow
      * @param timestamp
      * @return
      */
-
     public double next(double xnow, long timestamp) {
-
         y[1] = xnow;
 
         // LOW PASS (5 samples delay)
@@ -199,9 +244,6 @@ public class PanTompkins extends LmeFilter {
         // HIGH PASS (16 samples delay
         y[3] = highpass.next(y[2]);
 
-        // save original ECG after bandpass filtering
-        bandOut.add(y[3]);
-
         // DIFFERENTIATOR (2 samples delay)
         y[4] = diff.next(y[3]);
 
@@ -211,6 +253,128 @@ public class PanTompkins extends LmeFilter {
         // WND INTEGRATOR
         y[6] = wndInt.next(y[5]);
 
+        if (quality != null)
+            quality.next(xnow, y[3]);
+
+        return detect(timestamp);
+    }
+
+    /**
+     * Runs the QRS segmentation and classification on the band pass output in y[3] and the
+     * integrated energy in y[6], and publishes a finished beat.
+     *
+     * @param timestamp timestamp of the current sample
+     * @return the integrated energy
+     */
+    protected double detect(long timestamp) {
+        sampleIndex++;
+        if (latency != null)
+            arrivals[(int) sampleIndex & arrivalMask] = System.nanoTime();
+
+        double out = segment(timestamp);
+
+        if (lowLatency && qrsCurrent.segState == SegmentationStatus.R_FOUND && qrsCurrent.eventIndex == -1) {
+            // publish the confirmed R peak right away, the rest follows as an update
+            qrsCurrent.eventIndex = ++beatIndex;
+            publish(qrsCurrent.eventIndex, true, timestamp);
+        } else if (qrsCurrent.segState == SegmentationStatus.FINISHED) {
+            publish(qrsCurrent.eventIndex != -1 ? qrsCurrent.eventIndex : ++beatIndex, false, timestamp);
+
+            // the beat has been processed
+            qrsCurrent.segState = SegmentationStatus.PROCESSED;
+        }
+        return out;
+    }
+
+    /**
+     * Receives every beat exactly once.
+     */
+    public interface BeatListener {
+        void onBeat(BeatEvent beat);
+    }
+
+    /**
+     * Subscribes a listener that is called synchronously on the detection thread.
+     */
+    public void addBeatListener(BeatListener listener) {
+        subscribe(new BeatSubscription(listener, 0));
+    }
+
+    /**
+     * Subscribes a listener that is called on its own thread. Events are queued without blocking the
+     * detection thread, if the queue is full the beat is dropped for this listener.
+     *
+     * @param listener  the listener
+     * @param queueSize maximal number of pending beats
+     */
+    public void addBeatListener(BeatListener listener, int queueSize) {
+        subscribe(new BeatSubscription(listener, Math.max(1, queueSize)));
+    }
+
+    public synchronized void removeBeatListener(BeatListener listener) {
+        BeatSubscription[] old = subscriptions;
+        for (int i = 0; i < old.length; i++) {
+            if (old[i].listener == listener) {
+                BeatSubscription[] subs = new BeatSubscription[old.length - 1];
+                System.arraycopy(old, 0, subs, 0, i);
+                System.arraycopy(old, i + 1, subs, i, old.length - i - 1);
+                subscriptions = subs;
+                old[i].stop();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return number of beats that were dropped for the given asynchronous listener
+     */
+    public int droppedBeats(BeatListener listener) {
+        for (BeatSubscription sub : subscriptions) {
+            if (sub.listener == listener)
+                return sub.dropped;
+        }
+        return 0;
+    }
+
+    private synchronized void subscribe(BeatSubscription subscription) {
+        BeatSubscription[] old = subscriptions;
+        BeatSubscription[] subs = new BeatSubscription[old.length + 1];
+        System.arraycopy(old, 0, subs, 0, old.length);
+        subs[old.length] = subscription;
+        subscriptions = subs;
+        subscription.start();
+    }
+
+    private void publish(long index, boolean preliminary, long timestamp) {
+        BeatSubscription[] subs = subscriptions;
+        if (subs.length == 0)
+            return;
+
+        long rr = qrsCurrent.feat_rr;
+        if (preliminary) {
+            QRS previous = (QRS) qrsHistory.getPastValue(1);
+            rr = previous.rTimestamp >= 0 ?
+                    (long) ((qrsCurrent.rTimestamp - previous.rTimestamp) * samplingTime) : 0;
+        }
+        long r = (qrsCurrent.rSample >= 0 ? qrsCurrent.rSample : sampleIndex) - BANDPASS_DELAY;
+        boolean measured = latency != null && r >= 0 && sampleIndex - r <= arrivalMask;
+
+        BeatEvent event = beatPool.obtain();
+        event.set(index, qrsCurrent, timestamp, learning, heartRateStats.value, preliminary,
+                !preliminary && qrsCurrent.eventIndex != -1, rr, r, measured ? arrivals[(int) r & arrivalMask] : 0);
+        if (measured)
+            latency.published(event);
+        event.retain(subs.length);
+        for (BeatSubscription sub : subs) {
+            sub.deliver(event);
+        }
+    }
+
+    private double segment(long timestamp) {
+
+        // save original ECG after bandpass filtering
+        bandOut.add(y[3]);
+
         // save value in history
         intOut.add(y[6]);
 
@@ -223,13 +387,13 @@ public class PanTompkins extends LmeFilter {
         if (startProcessing <= 0) {
             // check for potential cardiac arrest
             if (timeLastBeat > 3500) {
-                QRS.qrsCurrent.rIdx = 0;
-                QRS.qrsCurrent.rTimestamp = timestamp;
-                QRS.qrsCurrent.rAmplitude = y[3];
-                QRS.qrsCurrent.classification = QrsClass.VIRTUAL;
-                QRS.qrsCurrent.arrhythmia = QrsArrhythmia.CARDIAC_ARREST;
-                QRS.qrsCurrent.feat_width = timeLastBeat;
-                QRS.qrsCurrent.segState = QRS.SegmentationStatus.FINISHED;
+                qrsCurrent.rIdx = 0;
+                qrsCurrent.rTimestamp = timestamp;
+                qrsCurrent.rAmplitude = y[3];
+                qrsCurrent.classification = QrsClass.VIRTUAL;
+                qrsCurrent.arrhythmia = QrsArrhythmia.CARDIAC_ARREST;
+                qrsCurrent.feat_width = timeLastBeat;
+                qrsCurrent.segState = QRS.SegmentationStatus.FINISHED;
                 return y[6];
             }
 
@@ -237,11 +401,11 @@ public class PanTompkins extends LmeFilter {
 
             // is intOut or bandOut above threshold?
             if (y[3] > qrsThreshold || y[6] > qrsThreshold ||
-                    QRS.qrsCurrent.segState == SegmentationStatus.R_FOUND) {
+                    qrsCurrent.segState == SegmentationStatus.R_FOUND) {
 
                 lastCrossing++;
 
-                if (QRS.qrsCurrent.segState == SegmentationStatus.INVALID) {
+                if (qrsCurrent.segState == SegmentationStatus.INVALID) {
 
                     // initialize R peak detector
                     rPeak.reset();
@@ -250,24 +414,24 @@ public class PanTompkins extends LmeFilter {
                     rPeak.next(y[3]);
 
                     lastCrossing = 0;
-                    QRS.qrsCurrent.segState = SegmentationStatus.THRESHOLD_CROSSED;
+                    qrsCurrent.segState = SegmentationStatus.THRESHOLD_CROSSED;
                 }
 
-                if (QRS.qrsCurrent.segState == SegmentationStatus.THRESHOLD_CROSSED) {
+                if (qrsCurrent.segState == SegmentationStatus.THRESHOLD_CROSSED) {
                     if (lastCrossing > preSegment &&
-                            QRS.template2.classification == QrsClass.NORMAL) {
+                            template2.classification == QrsClass.NORMAL) {
 
                         // if lastCrossing is larger than preSegment samples but
                         // no R peak was found it was an aberrant beat.
                         // It is only considered if we already have two template beats
                         Log.d("lme.pants", "abb beat " + lastCrossing);
-                        QRS.qrsCurrent.rIdx = 0;
-                        QRS.qrsCurrent.rTimestamp = timestamp;
-                        QRS.qrsCurrent.rAmplitude = y[3];
-                        QRS.qrsCurrent.classification = QrsClass.ABERRANT;
-                        QRS.qrsCurrent.arrhythmia = QrsArrhythmia.ARTIFACT;
-                        QRS.qrsCurrent.feat_width = lastCrossing;
-                        QRS.qrsCurrent.segState = SegmentationStatus.FINISHED;
+                        qrsCurrent.rIdx = 0;
+                        qrsCurrent.rTimestamp = timestamp;
+                        qrsCurrent.rAmplitude = y[3];
+                        qrsCurrent.classification = QrsClass.ABERRANT;
+                        qrsCurrent.arrhythmia = QrsArrhythmia.ARTIFACT;
+                        qrsCurrent.feat_width = lastCrossing;
+                        qrsCurrent.segState = SegmentationStatus.FINISHED;
 
                     }
                 }
@@ -278,15 +442,15 @@ public class PanTompkins extends LmeFilter {
                     lastCrossing--;
                 }
 
-                if (QRS.qrsCurrent.segState == SegmentationStatus.PROCESSED) {
+                if (qrsCurrent.segState == SegmentationStatus.PROCESSED) {
                     // QRS was processed, reset
-                    QRS.qrsCurrent = (QRS) qrsHistory.next();
-                    QRS.qrsCurrent.reset();
+                    qrsCurrent = (QRS) qrsHistory.next();
+                    qrsCurrent.reset();
                 }
             }
 
             // check for mean crossing
-            if (QRS.qrsCurrent.segState == SegmentationStatus.THRESHOLD_CROSSED) {
+            if (qrsCurrent.segState == SegmentationStatus.THRESHOLD_CROSSED) {
 
                 // R peak detector
                 rPeak.next(y[3]);
@@ -304,7 +468,7 @@ public class PanTompkins extends LmeFilter {
                     if (y[6] < qrsThreshold) {
                         if (lastCrossing > 0) {
                             rPeak.reset();
-                            QRS.qrsCurrent.segState = SegmentationStatus.THRESHOLD_CROSSED;
+                            qrsCurrent.segState = SegmentationStatus.THRESHOLD_CROSSED;
                             lastCrossing = (int) (-1000 * samplingTime);
                             return y[6];
                         }
@@ -318,45 +482,46 @@ public class PanTompkins extends LmeFilter {
                         y[8] = bandOut.history.getPastValue(preSegment - i);
 
                         // to current QRS object
-                        QRS.qrsCurrent.values.add((float) y[8]);
+                        qrsCurrent.values.add((float) y[8]);
 
                         // find Q only if it hasn't been found yet
-                        if (QRS.qrsCurrent.qIdx == -1) {
+                        if (qrsCurrent.qIdx == -1) {
 
                             // find q-min
                             qPeak.next(bandOut.history.getPastValue(i));
                             if (qPeak.peakIdx != -1) {
-                                QRS.qrsCurrent.qAmplitude = qPeak.peakValue;
-                                QRS.qrsCurrent.qIdx = preSegment - i;
+                                qrsCurrent.qAmplitude = qPeak.peakValue;
+                                qrsCurrent.qIdx = preSegment - i;
                             }
                         }
                     }
 
                     // if no Q has been found, we use the first sample
-                    if (QRS.qrsCurrent.qIdx == -1) {
-                        QRS.qrsCurrent.qAmplitude = QRS.qrsCurrent.values.values[0];
-                        QRS.qrsCurrent.qIdx = 0;
+                    if (qrsCurrent.qIdx == -1) {
+                        qrsCurrent.qAmplitude = qrsCurrent.values.values[0];
+                        qrsCurrent.qIdx = 0;
                     }
 
                     // R peak in filtered signal
-                    QRS.qrsCurrent.rIdx = QRS.qrsCurrent.values.head - rPeak.peakIdx;
-                    QRS.qrsCurrent.rAmplitude = rPeak.peakValue;
-                    QRS.qrsCurrent.rTimestamp = (long) (timestamp - rPeak.peakIdx * samplingTime);
+                    qrsCurrent.rIdx = qrsCurrent.values.head - rPeak.peakIdx;
+                    qrsCurrent.rAmplitude = rPeak.peakValue;
+                    qrsCurrent.rTimestamp = (long) (timestamp - rPeak.peakIdx * samplingTime);
+                    qrsCurrent.rSample = sampleIndex - rPeak.peakIdx;
                     rPassNum = 1;
 
                     // check if the amplitudes are valid
-                    if (QRS.qrsCurrent.rAmplitude - QRS.qrsCurrent.qAmplitude <
+                    if (qrsCurrent.rAmplitude - qrsCurrent.qAmplitude <
                             bandOut.range * 0.1) {
 
                         Log.d("lme.pants", "Amplitude validation error: " +
-                                (QRS.qrsCurrent.rAmplitude - QRS.qrsCurrent.qAmplitude));
+                                (qrsCurrent.rAmplitude - qrsCurrent.qAmplitude));
                         // probably misdetected
-                        QRS.qrsCurrent.reset();
+                        qrsCurrent.reset();
 
                     } else {
                         // wait for S min
                         lastBandPeak = 0;
-                        QRS.qrsCurrent.segState = SegmentationStatus.R_FOUND;
+                        qrsCurrent.segState = SegmentationStatus.R_FOUND;
 
                         // pre-initialize sPeak detector
                         sPeak.next(y[3]);
@@ -367,10 +532,10 @@ public class PanTompkins extends LmeFilter {
             // ==============================================
             // == R peak found... looking for S min
             // ====>
-            else if (QRS.qrsCurrent.segState == SegmentationStatus.R_FOUND) {
+            else if (qrsCurrent.segState == SegmentationStatus.R_FOUND) {
 
                 // R has been found, we wait for S min
-                QRS.qrsCurrent.values.add((float) y[3]);
+                qrsCurrent.values.add((float) y[3]);
 
                 // continue looking for rising peak
                 if (rPassNum > 0) {
@@ -383,7 +548,7 @@ public class PanTompkins extends LmeFilter {
                         // rising peak of integration window found
                         // the length of the ridge equals the
                         // width of the QRS complex
-                        QRS.qrsCurrent.feat_width =
+                        qrsCurrent.feat_width =
                                 (long) (rPassNum * wndIntCompensation * samplingTime);
                         rPassNum = 0;
 
@@ -393,13 +558,13 @@ public class PanTompkins extends LmeFilter {
                 lastBandPeak++;
 
                 // find S
-                if (QRS.qrsCurrent.sIdx == -1) {
+                if (qrsCurrent.sIdx == -1) {
 
                     // find S as min
                     sPeak.next(y[3]);
                     if (sPeak.peakIdx != -1) {
-                        QRS.qrsCurrent.sAmplitude = sPeak.peakValue;
-                        QRS.qrsCurrent.sIdx = QRS.qrsCurrent.values.head
+                        qrsCurrent.sAmplitude = sPeak.peakValue;
+                        qrsCurrent.sIdx = qrsCurrent.values.head
                                 - sPeak.peakIdx;
                     }
                 }
@@ -410,34 +575,34 @@ public class PanTompkins extends LmeFilter {
                     // ==============================================
                     // == segmentation finished
                     // ====>
-                    QRS.qrsCurrent.segState = SegmentationStatus.FINISHED;
+                    qrsCurrent.segState = SegmentationStatus.FINISHED;
 
                     // is no S has been found, we use the last sample
-                    if (QRS.qrsCurrent.sIdx == -1) {
+                    if (qrsCurrent.sIdx == -1) {
 
-                        QRS.qrsCurrent.sAmplitude = y[3];
-                        QRS.qrsCurrent.sIdx = QRS.qrsCurrent.values.head;
+                        qrsCurrent.sAmplitude = y[3];
+                        qrsCurrent.sIdx = qrsCurrent.values.head;
 
                     }
 
-                    QRS.qrsPrevious = (QRS) qrsHistory.getPastValue(1);
+                    qrsPrevious = (QRS) qrsHistory.getPastValue(1);
 
                     // make sure that we have a width
-                    if (QRS.qrsCurrent.feat_width < 1) {
+                    if (qrsCurrent.feat_width < 1) {
 
                         // substitute width estimation
-                        QRS.qrsCurrent.feat_width = (long)
-                                ((QRS.qrsCurrent.sIdx - QRS.qrsCurrent.qIdx) *
+                        qrsCurrent.feat_width = (long)
+                                ((qrsCurrent.sIdx - qrsCurrent.qIdx) *
                                         wndIntCompensation * samplingTime);
                     }
 
                     // find a template
-                    if (QRS.template1.classification == QrsClass.INVALID ||
-                            QRS.template2.classification == QrsClass.INVALID) {
+                    if (template1.classification == QrsClass.INVALID ||
+                            template2.classification == QrsClass.INVALID) {
 
                         // no templates, wait for 6 beats
                         beatCounter++;
-                        if (QRS.qrsCurrent.classify() == QrsClass.INVALID) {
+                        if (qrsCurrent.classify() == QrsClass.INVALID) {
                             beatCounter--;
                         }
                         if (beatCounter == 6) {
@@ -487,21 +652,21 @@ public class PanTompkins extends LmeFilter {
                                 if (qrsRefTemp1.maxCorr(qrsRefTemp2) > 0.9) {
 
                                     // take those two as templates
-                                    QRS.template1.copy(qrsRefTemp1);
-                                    QRS.template2.copy(qrsRefTemp2);
-                                    QRS.template1.classification = QrsClass.NORMAL;
-                                    QRS.template2.classification = QrsClass.NORMAL;
+                                    template1.copy(qrsRefTemp1);
+                                    template2.copy(qrsRefTemp2);
+                                    template1.classification = QrsClass.NORMAL;
+                                    template2.classification = QrsClass.NORMAL;
                                 }
                             }
 
                             // see if we have two templates
-                            if (QRS.template2.classification != QrsClass.NORMAL) {
+                            if (template2.classification != QrsClass.NORMAL) {
 
                                 // no, only one template, so take the two smallest
-                                QRS.template1.copy((QRS) qrsHistory.getPastValue(sortList.get(0)));
-                                QRS.template2.copy((QRS) qrsHistory.getPastValue(sortList.get(1)));
-                                QRS.template1.classification = QrsClass.NORMAL;
-                                QRS.template2.classification = QrsClass.NORMAL;
+                                template1.copy((QRS) qrsHistory.getPastValue(sortList.get(0)));
+                                template2.copy((QRS) qrsHistory.getPastValue(sortList.get(1)));
+                                template1.classification = QrsClass.NORMAL;
+                                template2.classification = QrsClass.NORMAL;
                             }
 
                             // end learning time
@@ -510,86 +675,90 @@ public class PanTompkins extends LmeFilter {
                     } else {
 
                         // classify current QRS and only proceed if beat is not invalid
-                        if (QRS.qrsCurrent.classify() != QrsClass.INVALID) {
+                        if (qrsCurrent.classify() != QrsClass.INVALID) {
+
+                            // beats in poor signal quality are published, but flagged and left
+                            // out of templates, clusters and all statistics
+                            qrsCurrent.noisy = quality != null && !quality.good;
+                            boolean valid = !qrsCurrent.noisy && !qrsPrevious.noisy;
 
                             // missed beat?
-                            if (QRS.qrsCurrent.classification == QrsClass.ESCAPE) {
+                            if (qrsCurrent.classification == QrsClass.ESCAPE) {
 
                                 // insert copy of current beat between current and last beat
-                                QRS.qrsPrevious = QRS.qrsCurrent;
-                                QRS.qrsCurrent = (QRS) qrsHistory.next();
-                                QRS.qrsCurrent.copy(QRS.qrsPrevious);
+                                qrsPrevious = qrsCurrent;
+                                qrsCurrent = (QRS) qrsHistory.next();
+                                qrsCurrent.copy(qrsPrevious);
 
-                                QRS.qrsPrevious.classification = QrsClass.VIRTUAL;
+                                qrsPrevious.classification = QrsClass.VIRTUAL;
 
                                 // estimate the timestamps of the inserted (missed/virtual) beat
-                                QRS.qrsPrevious.estimateMissedTimestamps();
+                                qrsPrevious.estimateMissedTimestamps();
 
                                 // reclassify the beat
-                                QRS.qrsPrevious.classify();
+                                qrsPrevious.classify();
 
                                 // make sure it is not classified normal, since it certainly
                                 // is the escape beat
-                                if (QRS.qrsCurrent.classification == QrsClass.NORMAL) {
-                                    QRS.qrsCurrent.classification = QrsClass.ESCAPE;
+                                if (qrsCurrent.classification == QrsClass.NORMAL) {
+                                    qrsCurrent.classification = QrsClass.ESCAPE;
                                 }
-                            } else if (QRS.qrsCurrent.classification == QrsClass.NORMAL) {
+                            } else if (qrsCurrent.classification == QrsClass.NORMAL && !qrsCurrent.noisy) {
 
-                                if (QRS.qrsCurrent.feat_cct1 > QRS.qrsCurrent.feat_cct2) {
+                                if (qrsCurrent.feat_cct1 > qrsCurrent.feat_cct2) {
 
                                     // replace template 1
-                                    QRS.template1.copy(QRS.qrsCurrent);
+                                    template1.copy(qrsCurrent);
                                 } else {
                                     // replace template 2
-                                    QRS.template2.copy(QRS.qrsCurrent);
+                                    template2.copy(qrsCurrent);
                                 }
                             }
 
+                            if (!qrsCurrent.noisy) {
+                                qrsCurrent.cluster = clusterer.assign(qrsCurrent);
+                            }
+
                             // calculate averages
-                            rrMeanLong.next(QRS.qrsCurrent.feat_rr);
+                            if (valid) {
+                                rrMeanLong.next(qrsCurrent.feat_rr);
+                            }
 
-                            if (QRS.qrsCurrent.feat_rr > 180 &&
-                                    QRS.qrsCurrent.feat_rr < 4000) {
-                                if (!PanTompkins.learning) {
+                            if (valid && qrsCurrent.feat_rr > 180 &&
+                                    qrsCurrent.feat_rr < 4000) {
+                                if (!learning) {
                                     numTotalBeats++;
                                 }
 
-                                long currTimestamp = (long) (((double) QRS.qrsCurrent.rTimestamp / (double) samplingRate) * 1000);
-                                if (mOldTimestamp == 0) {
-                                    mOldTimestamp = currTimestamp;
-                                }
-
-                                if ((currTimestamp - mOldTimestamp) >= 10 * 1000) {
+                                long currTimestamp = (long) (((double) qrsCurrent.rTimestamp / (double) samplingRate) * 1000);
+                                if (hrv.add(currTimestamp, (int) qrsCurrent.feat_rr)) {
                                     hrvDataReady = true;
-                                    mOldTimestamp = currTimestamp;
-                                    standardDeviationRR.add(calculateStd(rrIntervals));
-                                    successiveDifferencesRms
-                                            .add(calculateRMS(successiveDifferences));
-                                    successiveDifferencesStd
-                                            .add(calculateStd(successiveDifferences));
-                                    successiveDifferences.clear();
-                                    rrIntervals.clear();
                                 }
+                                if (frequencyHrv != null) {
+                                    frequencyHrv.add(currTimestamp, (int) qrsCurrent.feat_rr);
+                                }
+                                af.add(currTimestamp, (int) qrsCurrent.feat_rr);
 
-                                rrIntervals.add((double) QRS.qrsCurrent.feat_rr);
-                                successiveDifferences.add((double) Math.abs(QRS.qrsCurrent.feat_rr
-                                        - QRS.qrsPrevious.feat_rr));
-                                //Log.e("PANTS", "successive difference: " + successiveDifferences.getLast());
-                                if (successiveDifferences.getLast() >= 50.0) {
+                                long successiveDifference = Math.abs(qrsCurrent.feat_rr - qrsPrevious.feat_rr);
+                                if (successiveDifference >= 50) {
                                     numRr50++;
                                     pRr50 = (double) numRr50 / (double) numTotalBeats;
                                 }
-                                if (successiveDifferences.getLast() >= 20.0) {
+                                if (successiveDifference >= 20) {
                                     numRr20++;
                                     pRr20 = (double) numRr20 / (double) numTotalBeats;
                                 }
 
-                                rrStats.next(QRS.qrsCurrent.feat_rr);
-                                stdStats.next(QRS.qrsCurrent.feat_rr);
+                                rrStats.next(qrsCurrent.feat_rr);
+                                stdStats.next(qrsCurrent.feat_rr);
 
                                 // calculate heart rate
                                 heartRateStats.next(60000 / rrStats.value);
-                                qrstaStats.next(QRS.qrsCurrent.feat_qrsta);
+                                qrstaStats.next(qrsCurrent.feat_qrsta);
+                            } else {
+                                // no successive difference across an implausible or noisy interval
+                                hrv.gap();
+                                af.gap();
                             }
                         }
                     }
@@ -607,26 +776,79 @@ public class PanTompkins extends LmeFilter {
         return y[6];
     }
 
+    /**
+     * A beat listener together with its queue and thread, if it is asynchronous.
+     */
+    private static class BeatSubscription implements Runnable {
+        final BeatListener listener;
+        final ArrayBlockingQueue<BeatEvent> queue;
+        Thread thread;
+        volatile boolean running = true;
+        volatile int dropped = 0;
+
+        BeatSubscription(BeatListener listener, int queueSize) {
+            this.listener = listener;
+            queue = queueSize > 0 ? new ArrayBlockingQueue<BeatEvent>(queueSize) : null;
+        }
+
+        void start() {
+            if (queue != null) {
+                thread = new Thread(this, "beat-listener");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        void stop() {
+            running = false;
+            if (thread != null)
+                thread.interrupt();
+        }
+
+        void deliver(BeatEvent event) {
+            if (queue == null) {
+                try {
+                    listener.onBeat(event);
+                } finally {
+                    event.release();
+                }
+            } else if (!queue.offer(event)) {
+                dropped++;
+                event.release();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                BeatEvent event;
+                try {
+                    event = queue.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                try {
+                    listener.onBeat(event);
+                } finally {
+                    event.release();
+                }
+            }
+            // release everything that will not be delivered anymore
+            BeatEvent event;
+            while ((event = queue.poll()) != null) {
+                event.release();
+            }
+        }
+    }
+
     /**
      * @author Falling
      */
     public static class QRS {
         /**
-         * Static reference to the template slot 1
-         */
-        public static QRS template1 = null;
-        /**
-         * Static reference to the template slot 2
-         */
-        public static QRS template2 = null;
-        /**
-         * Static reference to the current QRS
+         * The detector this QRS belongs to, provides templates and the previous QRS
          */
-        public static QRS qrsCurrent = null;
-        /**
-         * Static reference to the previous QRS
-         */
-        public static QRS qrsPrevious = null;
+        public final PanTompkins detector;
         /**
          * Segmentation state of this QRS
          */
@@ -671,17 +893,36 @@ public class PanTompkins extends LmeFilter {
         public double feat_arT1diff, feat_arT2diff;
         public QrsClass classification = QrsClass.INVALID;
         public QrsArrhythmia arrhythmia = QrsArrhythmia.NONE;
+        /**
+         * id of the morphology cluster, -1 if not clustered
+         */
+        public int cluster = -1;
+        /**
+         * true if the beat was detected in a window of poor signal quality
+         */
+        public boolean noisy = false;
+        /**
+         * index of the current sample of the detector at the R peak, -1 if unknown
+         */
+        public long rSample = -1;
+        /**
+         * index of the preliminary event published in low latency mode, -1 if none
+         */
+        public long eventIndex = -1;
         /**
          * QRS from filtered signal
          */
         public FloatValueList values = null;
+        /**
+         * values normalized for the correlation, refreshed by classify() and copy()
+         */
+        public final TemplateCorrelator.Template normalized;
         private transient int _i;
-        private transient double _x, _y, _sumx, _sumy;
-        private transient double _cc, _maxcc;
-        private transient int _n;
 
-        public QRS(int size) {
+        public QRS(PanTompkins detector, int size) {
+            this.detector = detector;
             values = new FloatValueList(size, true, true);
+            normalized = new TemplateCorrelator.Template(size);
         }
 
         public void copy(QRS source) {
@@ -703,7 +944,12 @@ public class PanTompkins extends LmeFilter {
             feat_rr = source.feat_rr;
             classification = source.classification;
             arrhythmia = source.arrhythmia;
+            cluster = source.cluster;
+            noisy = source.noisy;
+            rSample = source.rSample;
+            eventIndex = source.eventIndex;
             values.copy(source.values);
+            normalize();
         }
 
         public void reset() {
@@ -716,6 +962,9 @@ public class PanTompkins extends LmeFilter {
             segState = SegmentationStatus.INVALID;
             classification = QrsClass.INVALID;
             arrhythmia = QrsArrhythmia.NONE;
+            cluster = -1;
+            noisy = false;
+            rSample = eventIndex = -1;
         }
 
         /**
@@ -742,15 +991,14 @@ public class PanTompkins extends LmeFilter {
             } else {
 
                 // current rr-time
-                feat_rr = (long) ((rTimestamp - qrsPrevious.rTimestamp) * samplingTime);
+                feat_rr = (long) ((rTimestamp - detector.qrsPrevious.rTimestamp) * detector.samplingTime);
 
                 feat_qra = rAmplitude - qAmplitude;
                 feat_rsa = rAmplitude - sAmplitude;
 
                 mean = values.getMean();
 
-                // CC feature variables
-                feat_qrsta = _sumx = _sumy = 0;
+                feat_qrsta = 0;
 
                 // calculate qrsta
                 for (_i = 0; _i < values.num; _i++) {
@@ -761,8 +1009,8 @@ public class PanTompkins extends LmeFilter {
                 }
 
                 // check for templates
-                if (template1.classification == QrsClass.INVALID ||
-                        template2.classification == QrsClass.INVALID) {
+                if (detector.template1.classification == QrsClass.INVALID ||
+                        detector.template2.classification == QrsClass.INVALID) {
 
                     // no templates yet, unknown and return
                     classification = QrsClass.UNKNOWN;
@@ -770,12 +1018,14 @@ public class PanTompkins extends LmeFilter {
                     return classification;
                 }
 
-                // calculate correlation to templates
-                feat_cct1 = maxCorr(template1);
-                feat_cct2 = maxCorr(template2);
+                // calculate correlation to templates, these are normalized on copy
+                normalize();
+                detector.correlator.score(normalized, detector.templateCache, 2, detector.templateScores);
+                feat_cct1 = detector.templateScores[0];
+                feat_cct2 = detector.templateScores[1];
 
-                feat_arT1diff = arDiff(template1);
-                feat_arT2diff = arDiff(template2);
+                feat_arT1diff = arDiff(detector.template1);
+                feat_arT2diff = arDiff(detector.template2);
 
                 // normal QRS duration is 60-120 ms
                 if (feat_width > 130) {
@@ -830,7 +1080,7 @@ public class PanTompkins extends LmeFilter {
 
                 // RR tests
                 // -|----|-----------|--
-                if ((feat_rr >= qrsPrevious.feat_rr * 1.5 && feat_rr > 800) ||
+                if ((feat_rr >= detector.qrsPrevious.feat_rr * 1.5 && feat_rr > 800) ||
                         feat_rr > 1700) {
 
                     arrhythmia = QrsArrhythmia.AV_BLOCK;
@@ -844,7 +1094,7 @@ public class PanTompkins extends LmeFilter {
                 else if (feat_rr > 1 && feat_rr < 460) {
 
                     // premature and fusion types
-                    if (feat_rr > qrsPrevious.feat_rr * 0.92f) {
+                    if (feat_rr > detector.qrsPrevious.feat_rr * 0.92f) {
                         // could be "normal" heart rate change
                         if (classification == QrsClass.NORMAL &&
                                 (feat_cct1 < 0.96 || feat_cct2 < 0.96)) {
@@ -866,13 +1116,13 @@ public class PanTompkins extends LmeFilter {
                     }
                 }
                 // -|-------------|----|--
-                else if (qrsPrevious.feat_rr > 800 &&
-                        feat_rr < qrsPrevious.feat_rr * 0.6f) {
+                else if (detector.qrsPrevious.feat_rr > 800 &&
+                        feat_rr < detector.qrsPrevious.feat_rr * 0.6f) {
 
                     classification = QrsClass.ESCAPE;
 
                 } else if (classification == QrsClass.NORMAL && feat_width > 10 &&
-                        feat_width < qrsPrevious.feat_width * 0.6f &&
+                        feat_width < detector.qrsPrevious.feat_width * 0.6f &&
                         (feat_arT1diff > 0.1 || feat_arT2diff > 0.1)) {
 
                     classification = QrsClass.PREMATURE;
@@ -889,30 +1139,25 @@ public class PanTompkins extends LmeFilter {
             return classification;
         }
 
+        /**
+         * Maximal normalized cross-correlation to qrs over the lags [-8, 8[, where qrs is shifted
+         * circularly. Both QRS are normalized again, so this also works for beats that have not
+         * been classified.
+         *
+         * @param qrs the other QRS
+         * @return the maximal correlation coefficient, 0 if all are negative
+         */
         public double maxCorr(QRS qrs) {
-            _maxcc = 0.0;
-
-            for (_n = -8; _n < 8; _n++) {
-                _x = _y = _sumx = _sumy = _cc = 0.0;
-
-                for (_i = 0; _i < values.num; _i++) {
-                    _x = (values.values[_i] - mean);
-                    _y = (qrs.values.getIndirect(_n + _i) - qrs.mean);
-
-                    _cc += _x * _y;
-
-                    _sumx += _x * _x;
-                    _sumy += _y * _y;
-                }
-
-                if (_cc != 0) {
-                    _cc = _cc / Math.sqrt(_sumx * _sumy);
-                    if (_cc > _maxcc)
-                        _maxcc = _cc;
-                }
-            }
+            normalize();
+            qrs.normalize();
+            return detector.correlator.maxCorr(normalized, qrs.normalized);
+        }
 
-            return _maxcc;
+        /**
+         * Refreshes the normalized values from values and mean.
+         */
+        public void normalize() {
+            normalized.set(values.values, values.num, mean);
         }
 
         public double arDiff(QRS qrs) {
@@ -0,0 +1,108 @@
+package de.medsenshack.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs independent {@link PanTompkins} detectors over several ECG streams (leads, patients,
+ * recordings) in parallel on a fixed thread pool. Every stream gets its own detector instance, so
+ * the results are exactly the same as when processing the streams one after another.
+ */
+public class QrsDetectionExecutor {
+
+    /**
+     * Receives every QRS complex once its segmentation has finished.
+     */
+    public interface BeatCallback {
+        /**
+         * Is called on the thread that processes the stream. The event is pooled and will be
+         * reused, so it must be copied if it is needed later on.
+         *
+         * @param stream index of the stream the beat was detected in
+         * @param beat   the finished beat
+         */
+        void onBeat(int stream, BeatEvent beat);
+    }
+
+    private final ExecutorService executor;
+
+    /**
+     * @param numThreads number of worker threads, values < 1 use one thread per available processor
+     */
+    public QrsDetectionExecutor(int numThreads) {
+        if (numThreads < 1) {
+            numThreads = Runtime.getRuntime().availableProcessors();
+        }
+        executor = Executors.newFixedThreadPool(numThreads);
+    }
+
+    /**
+     * Runs a new detector over the given samples on the calling thread. The sample index is used as
+     * timestamp, like the live pipeline does.
+     *
+     * @param samples      the ECG samples
+     * @param samplingRate the sampling rate of the samples
+     * @param stream       index that is handed to the callback
+     * @param callback     receives all finished beats, can be null
+     * @return the detector in its final state
+     */
+    public static PanTompkins detect(double[] samples, int samplingRate, final int stream,
+                                     final BeatCallback callback) {
+        PanTompkins pants = new PanTompkins(samplingRate);
+        if (callback != null) {
+            pants.addBeatListener(new PanTompkins.BeatListener() {
+                @Override
+                public void onBeat(BeatEvent beat) {
+                    callback.onBeat(stream, beat);
+                }
+            });
+        }
+        for (int i = 0; i < samples.length; i++) {
+            pants.next(samples[i], i);
+        }
+        return pants;
+    }
+
+    /**
+     * Runs one detector per stream on the thread pool and blocks until all streams are processed.
+     *
+     * @param streams      the ECG samples of every stream
+     * @param samplingRate the sampling rate of all streams
+     * @param callback     receives all finished beats, is called concurrently from the worker
+     *                     threads and therefore has to be thread-safe. Can be null.
+     * @return the detectors in their final state, in the order of the streams
+     * @throws InterruptedException if the calling thread was interrupted while waiting
+     * @throws ExecutionException   if processing one of the streams failed
+     */
+    public PanTompkins[] detect(final double[][] streams, final int samplingRate,
+                                final BeatCallback callback) throws InterruptedException, ExecutionException {
+        List<Future<PanTompkins>> futures = new ArrayList<>(streams.length);
+        for (int i = 0; i < streams.length; i++) {
+            final int stream = i;
+            futures.add(executor.submit(new Callable<PanTompkins>() {
+                @Override
+                public PanTompkins call() throws Exception {
+                    return detect(streams[stream], samplingRate, stream, callback);
+                }
+            }));
+        }
+
+        PanTompkins[] detectors = new PanTompkins[streams.length];
+        for (int i = 0; i < detectors.length; i++) {
+            detectors[i] = futures.get(i).get();
+        }
+        return detectors;
+    }
+
+    /**
+     * Stops the worker threads. Streams that are currently processed will be finished.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,233 @@
+package de.medsenshack.data;
+
+import java.security.InvalidParameterException;
+import java.util.Arrays;
+
+/**
+ * Streaming ECG signal quality index over consecutive windows, computed from the raw samples and the
+ * band pass output the detector has already calculated, plus optional accelerometer samples.
+ * <p/>
+ * Per window only running sums are kept, so a sample costs a handful of additions and
+ * multiplications. At the end of every window these criteria are evaluated:
+ * <ul>
+ * <li>kurtosis of the band pass output, QRS complexes make clean ECG strongly peaked,</li>
+ * <li>ratio of the band pass (QRS band) power to the total power of the raw signal, which drops
+ * with baseline jumps from motion as well as with broadband muscle noise,</li>
+ * <li>flatline, i.e. a raw range below {@link #flatRange},</li>
+ * <li>saturation, i.e. too many samples at the ADC limits,</li>
+ * <li>motion, i.e. a standard deviation of the acceleration magnitude above
+ * {@link #motionThreshold}, only if accelerometer samples were added.</li>
+ * </ul>
+ * The kurtosis and the power ratio span the last windows of at least {@link #SPAN_MS}, so they
+ * cover a QRS complex even at bradycardia, when a single window may hold none or catch the raw
+ * QRS without its delayed band pass output.
+ * <p/>
+ * The signal is considered {@link #good} if neither of the last two windows failed a criterion, so
+ * a beat is never accepted right next to an artifact.
+ */
+public class SignalQuality {
+
+    /**
+     * flags of the failed criteria
+     */
+    public static final int LOW_KURTOSIS = 1;
+    public static final int LOW_BAND_POWER = 2;
+    public static final int FLATLINE = 4;
+    public static final int SATURATION = 8;
+    public static final int MOTION = 16;
+    /**
+     * shortest span of the kurtosis and power ratio in ms, longer than the R-R interval at 30 bpm
+     */
+    public static final int SPAN_MS = 2500;
+
+    public final int windowSamples;
+    public final double adcMin, adcMax;
+
+    /**
+     * thresholds
+     */
+    public double minKurtosis = 5;
+    public double minBandPowerRatio = 0.1;
+    public double flatRange = 2;
+    public double maxSaturation = 0.01;
+    public double motionThreshold = 60;
+
+    /**
+     * sums of the current window, the raw signal is shifted by the first value to keep the sums small
+     */
+    private int n = 0;
+    private double shift;
+    private double s1, s2, s3, s4;
+    private double r1, r2, rMin, rMax;
+    private int numSaturated;
+    private int accNum;
+    private double a1, a2;
+    /**
+     * sums n, s1..s4, r1 and r2 of the last windows, a ring
+     */
+    private final double[][] spanSums;
+    private int spanHead = 0;
+
+    /**
+     * results of the last window
+     */
+    public double kurtosis, bandPowerRatio, motion;
+    public int flags = 0;
+    public boolean good = false;
+    /**
+     * number of evaluated and of bad windows
+     */
+    public int windows = 0;
+    public int badWindows = 0;
+
+    private int lastFlags = 0;
+
+    /**
+     * @param samplingRate sampling rate of the ECG
+     * @param windowMs     window length in ms
+     * @param adcMin       lowest ADC value
+     * @param adcMax       highest ADC value
+     */
+    public SignalQuality(int samplingRate, int windowMs, double adcMin, double adcMax) {
+        windowSamples = windowMs * samplingRate / 1000;
+        if (windowSamples < 8)
+            throw new InvalidParameterException("window too short");
+
+        this.adcMin = adcMin;
+        this.adcMax = adcMax;
+        spanSums = new double[(SPAN_MS + windowMs - 1) / windowMs][7];
+        clear();
+    }
+
+    /**
+     * One second windows of a 12 bit ADC.
+     */
+    public SignalQuality(int samplingRate) {
+        this(samplingRate, 1000, 0, 4095);
+    }
+
+    /**
+     * Adds the next ECG sample.
+     *
+     * @param raw  raw sample
+     * @param band band pass output of the detector for this sample
+     * @return true if a window was finished
+     */
+    public boolean next(double raw, double band) {
+        if (windows == 0 && n == 0)
+            shift = raw;
+
+        double b2 = band * band;
+        s1 += band;
+        s2 += b2;
+        s3 += b2 * band;
+        s4 += b2 * b2;
+
+        double r = raw - shift;
+        r1 += r;
+        r2 += r * r;
+        if (raw < rMin)
+            rMin = raw;
+        if (raw > rMax)
+            rMax = raw;
+        if (raw <= adcMin || raw >= adcMax)
+            numSaturated++;
+
+        if (++n < windowSamples)
+            return false;
+
+        evaluate();
+        clear();
+        return true;
+    }
+
+    /**
+     * Adds an accelerometer sample, these are counted for the current ECG window.
+     */
+    public void nextAccel(double x, double y, double z) {
+        double m = Math.sqrt(x * x + y * y + z * z);
+        a1 += m;
+        a2 += m * m;
+        accNum++;
+    }
+
+    public void reset() {
+        clear();
+        accNum = 0;
+        a1 = a2 = 0;
+        for (double[] sums : spanSums) {
+            Arrays.fill(sums, 0);
+        }
+        flags = lastFlags = 0;
+        good = false;
+        windows = badWindows = 0;
+    }
+
+    private void evaluate() {
+        double[] sums = spanSums[spanHead];
+        sums[0] = n;
+        sums[1] = s1;
+        sums[2] = s2;
+        sums[3] = s3;
+        sums[4] = s4;
+        sums[5] = r1;
+        sums[6] = r2;
+        spanHead = (spanHead + 1) % spanSums.length;
+        double sn = 0, t1 = 0, t2 = 0, t3 = 0, t4 = 0, u1 = 0, u2 = 0;
+        for (double[] w : spanSums) {
+            sn += w[0];
+            t1 += w[1];
+            t2 += w[2];
+            t3 += w[3];
+            t4 += w[4];
+            u1 += w[5];
+            u2 += w[6];
+        }
+        double mean = t1 / sn;
+        double m2 = t2 / sn - mean * mean;
+        double m4 = t4 / sn - 4 * mean * t3 / sn + 6 * mean * mean * t2 / sn - 3 * mean * mean * mean * mean;
+        kurtosis = m2 > 0 ? m4 / (m2 * m2) : 0;
+
+        double rawVar = u2 / sn - (u1 / sn) * (u1 / sn);
+        bandPowerRatio = rawVar > 0 ? m2 / rawVar : 0;
+
+        int f = 0;
+        if (rMax - rMin < flatRange) {
+            f |= FLATLINE;
+        } else {
+            if (kurtosis < minKurtosis)
+                f |= LOW_KURTOSIS;
+            if (bandPowerRatio < minBandPowerRatio)
+                f |= LOW_BAND_POWER;
+        }
+        if (numSaturated > maxSaturation * n)
+            f |= SATURATION;
+
+        if (accNum > 1) {
+            double am = a1 / accNum;
+            motion = Math.sqrt(Math.max(0, a2 / accNum - am * am));
+            if (motion > motionThreshold)
+                f |= MOTION;
+        } else {
+            motion = 0;
+        }
+        accNum = 0;
+        a1 = a2 = 0;
+
+        windows++;
+        if (f != 0)
+            badWindows++;
+        good = f == 0 && lastFlags == 0 && windows > 1;
+        lastFlags = f;
+        flags = f;
+    }
+
+    private void clear() {
+        n = 0;
+        s1 = s2 = s3 = s4 = 0;
+        r1 = r2 = 0;
+        rMin = Double.MAX_VALUE;
+        rMax = -Double.MAX_VALUE;
+        numSaturated = 0;
+    }
+}
@@ -0,0 +1,265 @@
+package de.medsenshack.data;
+
+import java.security.InvalidParameterException;
+import java.util.Arrays;
+
+import de.fau.lme.sensorlib.dataframe.AccelDataFrame;
+
+/**
+ * Streaming step detection and cadence from any 3-axis accelerometer, worn on the chest, hip or
+ * wrist.
+ * <p/>
+ * The orientation independent magnitude is band passed (2nd order Butterworth high pass at
+ * {@link #HIGHPASS} Hz and low pass at {@link #LOWPASS} Hz, bilinear transform for the given
+ * sampling rate) and its local maxima are found by a {@link LmeFilter.PeakDetectionFilter}. As in the
+ * QRS detection, a maximum is a step if it exceeds an adaptive threshold between the running signal
+ * and noise peak levels, the filtered signal went below zero since the last step and the step is
+ * not within {@link #MIN_INTERVAL} ms of the previous one. The step time is refined by a parabola
+ * through the maximum and its neighbours, which keeps the cadence accurate at 10 Hz input.
+ * <p/>
+ * Peaks of the sensor at rest would pass as single steps, so a walking bout starts only after
+ * {@link #BOUT_STEPS} regular steps, which are then reported together. Every further step is
+ * reported one sample after the maximum of the filtered signal, until no step follows within
+ * {@link #MAX_INTERVAL} ms. The cost per sample is a fixed number of operations and nothing is
+ * allocated after construction.
+ */
+public class StepDetector {
+
+    /**
+     * band of the step frequencies in Hz
+     */
+    public static final double HIGHPASS = 0.5;
+    public static final double LOWPASS = 3.0;
+    /**
+     * smallest step amplitude of the filtered magnitude in g
+     */
+    public static final double MIN_AMPLITUDE = 0.05;
+    /**
+     * shortest interval between two steps in ms, 240 steps per minute
+     */
+    public static final int MIN_INTERVAL = 250;
+    /**
+     * longest interval between two steps of a walking bout in ms
+     */
+    public static final int MAX_INTERVAL = 2000;
+    /**
+     * number of steps the cadence is averaged over
+     */
+    public static final int CADENCE_STEPS = 8;
+    /**
+     * number of regular steps that confirm a walking bout
+     */
+    public static final int BOUT_STEPS = 4;
+    /**
+     * largest relative change of the step interval while a bout is confirmed
+     */
+    public static final double REGULARITY = 0.3;
+
+    /**
+     * Notified on the thread that adds the samples.
+     */
+    public interface Listener {
+        /**
+         * @param timestamp time of the step in ms
+         * @param cadence   current cadence in steps per minute, 0 for the first step of a bout
+         */
+        void onStep(StepDetector detector, long timestamp, double cadence);
+    }
+
+    public final int samplingRate;
+    /**
+     * magnitude of 1 g in the units of the sensor
+     */
+    public final double gravity;
+
+    public final LmeFilter highpass, lowpass;
+    private final LmeFilter.PeakDetectionFilter peaks = new LmeFilter.PeakDetectionFilter(1, 0);
+
+    /**
+     * the last three timestamps and filtered values, the peak filter decides on the middle one
+     */
+    private long t0 = -1, t1 = -1, t2 = -1;
+    private double y0, y1, y2;
+
+    private double signalLevel = 0, noiseLevel = 0;
+    public double threshold = MIN_AMPLITUDE;
+    private boolean valley = true;
+
+    private final long[] stepTimes = new long[CADENCE_STEPS];
+    private int head = -1, num = 0;
+    private boolean confirmed = false;
+
+    /**
+     * steps since construction or the last reset
+     */
+    public int steps = 0;
+    /**
+     * steps per minute over the last steps of the bout, 0 if there is no bout
+     */
+    public double cadence = 0;
+    /**
+     * time of the last step in ms, -1 if there was none
+     */
+    public long lastStep = -1;
+    /**
+     * delay between the last step and its report in ms
+     */
+    public long latency = 0;
+
+    public Listener listener = null;
+
+    /**
+     * @param samplingRate nominal sampling rate in Hz, at least 8
+     * @param gravity      magnitude of 1 g in the units of the sensor, e.g. 488 for the Simblee or
+     *                     9.81 for m/s²
+     */
+    public StepDetector(int samplingRate, double gravity) {
+        if (samplingRate < 8 || gravity <= 0)
+            throw new InvalidParameterException("sampling rate must be at least 8 Hz and gravity positive");
+        this.samplingRate = samplingRate;
+        this.gravity = gravity;
+        highpass = butterworth(HIGHPASS, samplingRate, true);
+        lowpass = butterworth(Math.min(LOWPASS, 0.4 * samplingRate), samplingRate, false);
+    }
+
+    /**
+     * @return a 2nd order Butterworth filter, with the denominator signs of {@link LmeFilter}
+     */
+    private static LmeFilter butterworth(double cutoff, int samplingRate, boolean highpass) {
+        double k = Math.tan(Math.PI * cutoff / samplingRate);
+        double norm = 1 / (1 + Math.sqrt(2) * k + k * k);
+        double a1 = 2 * (k * k - 1) * norm;
+        double a2 = (1 - Math.sqrt(2) * k + k * k) * norm;
+        double b0 = highpass ? norm : k * k * norm;
+        double b1 = highpass ? -2 * b0 : 2 * b0;
+        return new LmeFilter(new double[]{b0, b1, b0}, new double[]{1, -a1, -a2});
+    }
+
+    public boolean next(AccelDataFrame frame, long timestamp) {
+        return next(timestamp, frame.getAccelX(), frame.getAccelY(), frame.getAccelZ());
+    }
+
+    /**
+     * Adds a sample.
+     *
+     * @param timestamp time of the sample in ms
+     * @return true if a step was detected
+     */
+    public boolean next(long timestamp, double x, double y, double z) {
+        double magnitude = Math.sqrt(x * x + y * y + z * z) / gravity;
+        // start the high pass in its steady state, gravity would otherwise ring like a step
+        if (t0 == -1)
+            Arrays.fill(highpass.x, magnitude);
+        double filtered = lowpass.next(highpass.next(magnitude));
+
+        t2 = t1;
+        t1 = t0;
+        t0 = timestamp;
+        y2 = y1;
+        y1 = y0;
+        y0 = filtered;
+
+        // end of the walking bout
+        if (num > 0 && timestamp - stepTimes[head] > MAX_INTERVAL) {
+            num = 0;
+            confirmed = false;
+            cadence = 0;
+            // the noise level is kept, it describes the sensor at rest
+            signalLevel = 0;
+            threshold = Math.max(MIN_AMPLITUDE, noiseLevel);
+        }
+
+        boolean step = false;
+        if (!Double.isNaN(peaks.next(filtered)) && t2 != -1) {
+            long time = interpolate();
+            if (y1 > threshold && valley && (num == 0 || time - stepTimes[head] >= MIN_INTERVAL)) {
+                step = step(time, timestamp);
+                signalLevel += 0.125 * (y1 - signalLevel);
+            } else if (y1 > 0) {
+                noiseLevel += 0.125 * (y1 - noiseLevel);
+            }
+            threshold = Math.max(MIN_AMPLITUDE, noiseLevel + 0.25 * (signalLevel - noiseLevel));
+        }
+        if (filtered < 0)
+            valley = true;
+        return step;
+    }
+
+    /**
+     * @return the time of the maximum of the parabola through the last three values
+     */
+    private long interpolate() {
+        double d = y2 - 2 * y1 + y0;
+        double offset = d < 0 ? 0.5 * (y2 - y0) / d : 0;
+        return t1 + Math.round(offset * (t0 - t2) / 2.0);
+    }
+
+    /**
+     * @return true if steps were reported
+     */
+    private boolean step(long time, long now) {
+        valley = false;
+        // a bout starts with regular steps, anything else starts the bout anew at the last step
+        if (!confirmed && num > 1) {
+            long last = stepTimes[head];
+            long before = last - stepTimes[(head + CADENCE_STEPS - 1) % CADENCE_STEPS];
+            if (Math.abs(time - last - before) > REGULARITY * before)
+                num = 1;
+        }
+
+        if (++head == CADENCE_STEPS)
+            head = 0;
+        stepTimes[head] = time;
+        if (num < CADENCE_STEPS)
+            num++;
+
+        if (confirmed) {
+            report(head, num, now);
+            return true;
+        }
+        if (num < BOUT_STEPS)
+            return false;
+
+        // report the steps of the new bout, oldest first
+        confirmed = true;
+        for (int k = num - 1; k >= 0; k--) {
+            report((head - k + CADENCE_STEPS) % CADENCE_STEPS, num - k, now);
+        }
+        return true;
+    }
+
+    /**
+     * @param idx   ring index of the step
+     * @param count number of steps of the bout up to this one in the ring
+     */
+    private void report(int idx, int count, long now) {
+        long time = stepTimes[idx];
+        long span = time - stepTimes[(idx - count + 1 + CADENCE_STEPS) % CADENCE_STEPS];
+        cadence = count > 1 && span > 0 ? 60000.0 * (count - 1) / span : 0;
+
+        steps++;
+        lastStep = time;
+        latency = now - time;
+        if (listener != null)
+            listener.onStep(this, time, cadence);
+    }
+
+    public void reset() {
+        Arrays.fill(highpass.x, 0);
+        Arrays.fill(highpass.y, 0);
+        Arrays.fill(lowpass.x, 0);
+        Arrays.fill(lowpass.y, 0);
+        peaks.reset();
+        t0 = t1 = t2 = -1;
+        num = 0;
+        head = -1;
+        confirmed = false;
+        signalLevel = noiseLevel = 0;
+        threshold = MIN_AMPLITUDE;
+        valley = true;
+        steps = 0;
+        cadence = 0;
+        lastStep = -1;
+        latency = 0;
+    }
+}
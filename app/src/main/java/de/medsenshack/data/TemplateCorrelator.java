@@ -0,0 +1,324 @@
+package de.medsenshack.data;
+
+/**
+ * Fast normalized cross-correlation of QRS complexes against beat templates.
+ * <p/>
+ * Templates are stored as contiguous, mean-free and energy-normalized <code>float[]</code> arrays,
+ * so scoring a beat against a template only requires one dot product per lag. The template energy
+ * inside the correlation window is kept as running (prefix) sums, which makes the result identical
+ * to {@link PanTompkins.QRS#maxCorr(PanTompkins.QRS)} even for beats and templates of different
+ * length. Large lag ranges are computed via FFT.
+ * <p/>
+ * Instances keep scratch buffers and are therefore not thread-safe, every detector uses its own.
+ */
+public class TemplateCorrelator {
+
+    /**
+     * default lag range [MIN_LAG, MAX_LAG[ in samples, as used by the QRS classification
+     */
+    public static final int MIN_LAG = -8;
+    public static final int MAX_LAG = 8;
+
+    /**
+     * A pre-normalized beat or template.
+     */
+    public static class Template {
+        /**
+         * (values - mean) / sqrt(energy)
+         */
+        public float[] values;
+        public int num;
+        /**
+         * sum of (values - mean)^2 before normalization
+         */
+        public double energy;
+        /**
+         * prefix sums of the squared normalized values over the doubled template, used to get the
+         * energy of any circular window in O(1)
+         */
+        protected double[] prefix;
+
+        public Template(int capacity) {
+            values = new float[capacity];
+            prefix = new double[(capacity << 1) + 1];
+        }
+
+        /**
+         * Normalizes the given raw values and stores them in this template.
+         *
+         * @param raw  the raw values
+         * @param num  number of valid values in raw
+         * @param mean the mean to remove
+         */
+        public void set(float[] raw, int num, double mean) {
+            if (values.length < num) {
+                values = new float[num];
+                prefix = new double[(num << 1) + 1];
+            }
+            this.num = num;
+
+            int i;
+            double d;
+            energy = 0;
+            for (i = 0; i < num; i++) {
+                d = raw[i] - mean;
+                energy += d * d;
+            }
+
+            double scale = energy > 0 ? 1 / Math.sqrt(energy) : 0;
+            for (i = 0; i < num; i++) {
+                values[i] = (float) ((raw[i] - mean) * scale);
+            }
+
+            // running energy over the doubled template
+            prefix[0] = 0;
+            for (i = 0; i < num << 1; i++) {
+                d = values[i < num ? i : i - num];
+                prefix[i + 1] = prefix[i] + d * d;
+            }
+        }
+
+        /**
+         * @param start first index of the window, 0 <= start < num
+         * @param len   length of the window, <= num
+         * @return the energy of the circular window
+         */
+        protected double windowEnergy(int start, int len) {
+            return prefix[start + len] - prefix[start];
+        }
+    }
+
+    /**
+     * FFT buffers, (re)allocated for the largest size used so far
+     */
+    private int fftSize = 0;
+    private double[] bRe, bIm, tRe, tIm;
+    private double[] cos, sin;
+
+    /**
+     * @see #maxCorr(Template, Template, int, int)
+     */
+    public double maxCorr(Template beat, Template template) {
+        return maxCorr(beat, template, MIN_LAG, MAX_LAG);
+    }
+
+    /**
+     * Computes the maximal normalized cross-correlation between beat and the circularly shifted
+     * template for all lags in [minLag, maxLag[.
+     *
+     * @param beat     the normalized beat
+     * @param template the normalized template
+     * @param minLag   first lag
+     * @param maxLag   last lag (exclusive)
+     * @return the maximal correlation coefficient, or 0 if it is negative for all lags
+     */
+    public double maxCorr(Template beat, Template template, int minLag, int maxLag) {
+        int nb = beat.num;
+        int nt = template.num;
+        if (nb == 0 || nt == 0 || beat.energy == 0 || template.energy == 0 || maxLag <= minLag) {
+            return 0;
+        }
+        if (nb > nt) {
+            // window wraps around the template more than once, only the direct path handles that
+            return maxCorrWrapped(beat, template, minLag, maxLag);
+        }
+
+        int lags = maxLag - minLag;
+        if (lags >= nt || (long) lags * nb > 8L * fftCost(nb + nt)) {
+            return maxCorrFft(beat, template, minLag, maxLag);
+        }
+
+        float[] b = beat.values;
+        float[] t = template.values;
+        double max = 0, dot, w;
+        int n, i, start, first;
+
+        for (n = minLag; n < maxLag; n++) {
+            start = n % nt;
+            if (start < 0)
+                start += nt;
+
+            // two contiguous segments instead of modulo indexing
+            first = Math.min(nb, nt - start);
+            dot = 0;
+            for (i = 0; i < first; i++) {
+                dot += b[i] * t[start + i];
+            }
+            for (; i < nb; i++) {
+                dot += b[i] * t[start + i - nt];
+            }
+
+            if (dot != 0) {
+                w = nb == nt ? 1 : template.windowEnergy(start, nb);
+                dot /= Math.sqrt(w);
+                if (dot > max)
+                    max = dot;
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Scores one beat against several templates at once.
+     *
+     * @param beat      the normalized beat
+     * @param templates the normalized templates
+     * @param num       number of templates to use
+     * @param scores    receives the maximal correlation to every template
+     * @return the index of the best matching template or -1 if num is 0
+     */
+    public int score(Template beat, Template[] templates, int num, double[] scores) {
+        int best = -1;
+        for (int k = 0; k < num; k++) {
+            scores[k] = maxCorr(beat, templates[k], MIN_LAG, MAX_LAG);
+            if (best == -1 || scores[k] > scores[best])
+                best = k;
+        }
+        return best;
+    }
+
+    /**
+     * Fallback for beats that are longer than the template.
+     */
+    private double maxCorrWrapped(Template beat, Template template, int minLag, int maxLag) {
+        int nb = beat.num;
+        int nt = template.num;
+        double max = 0, dot, w, y;
+        int n, i, k;
+
+        for (n = minLag; n < maxLag; n++) {
+            k = n % nt;
+            if (k < 0)
+                k += nt;
+            dot = w = 0;
+            for (i = 0; i < nb; i++) {
+                y = template.values[k];
+                dot += beat.values[i] * y;
+                w += y * y;
+                if (++k == nt)
+                    k = 0;
+            }
+            if (dot != 0) {
+                dot /= Math.sqrt(w);
+                if (dot > max)
+                    max = dot;
+            }
+        }
+        return max;
+    }
+
+    private static long fftCost(int len) {
+        int m = Integer.highestOneBit(Math.max(1, len - 1)) << 1;
+        return (long) m * Integer.numberOfTrailingZeros(m);
+    }
+
+    /**
+     * Computes all circular lags at once by correlating the beat with the (partially) doubled
+     * template in the frequency domain.
+     */
+    private double maxCorrFft(Template beat, Template template, int minLag, int maxLag) {
+        int nb = beat.num;
+        int nt = template.num;
+        prepareFft(nt + nb);
+        int m = fftSize;
+
+        int i;
+        for (i = 0; i < m; i++) {
+            bRe[i] = i < nb ? beat.values[i] : 0;
+            bIm[i] = 0;
+            tRe[i] = i < nt + nb - 1 ? template.values[i < nt ? i : i - nt] : 0;
+            tIm[i] = 0;
+        }
+
+        fft(bRe, bIm, false);
+        fft(tRe, tIm, false);
+
+        // conj(B) * T
+        double re, im;
+        for (i = 0; i < m; i++) {
+            re = bRe[i] * tRe[i] + bIm[i] * tIm[i];
+            im = bRe[i] * tIm[i] - bIm[i] * tRe[i];
+            tRe[i] = re;
+            tIm[i] = im;
+        }
+        fft(tRe, tIm, true);
+
+        double max = 0, dot, w;
+        int n, start;
+        int last = Math.min(maxLag, minLag + nt);
+        for (n = minLag; n < last; n++) {
+            start = n % nt;
+            if (start < 0)
+                start += nt;
+            dot = tRe[start] / m;
+            if (Math.abs(dot) > 1e-9) {
+                w = nb == nt ? 1 : template.windowEnergy(start, nb);
+                dot /= Math.sqrt(w);
+                if (dot > max)
+                    max = dot;
+            }
+        }
+        return max;
+    }
+
+    private void prepareFft(int len) {
+        int m = Integer.highestOneBit(Math.max(1, len - 1)) << 1;
+        if (m <= fftSize) {
+            return;
+        }
+        fftSize = m;
+        bRe = new double[m];
+        bIm = new double[m];
+        tRe = new double[m];
+        tIm = new double[m];
+        cos = new double[m >> 1];
+        sin = new double[m >> 1];
+        for (int i = 0; i < m >> 1; i++) {
+            cos[i] = Math.cos(2 * Math.PI * i / m);
+            sin[i] = Math.sin(2 * Math.PI * i / m);
+        }
+    }
+
+    /**
+     * In-place iterative radix-2 FFT of size fftSize. The inverse transform is not scaled.
+     */
+    private void fft(double[] re, double[] im, boolean inverse) {
+        int m = fftSize;
+        int i, j, k, len, half, step;
+        double tr, ti, wr, wi;
+
+        // bit reversal
+        for (i = 1, j = 0; i < m; i++) {
+            int bit = m >> 1;
+            for (; (j & bit) != 0; bit >>= 1) {
+                j ^= bit;
+            }
+            j ^= bit;
+            if (i < j) {
+                tr = re[i];
+                re[i] = re[j];
+                re[j] = tr;
+                ti = im[i];
+                im[i] = im[j];
+                im[j] = ti;
+            }
+        }
+
+        for (len = 2; len <= m; len <<= 1) {
+            half = len >> 1;
+            step = m / len;
+            for (i = 0; i < m; i += len) {
+                for (k = 0; k < half; k++) {
+                    wr = cos[k * step];
+                    wi = inverse ? sin[k * step] : -sin[k * step];
+                    tr = wr * re[i + k + half] - wi * im[i + k + half];
+                    ti = wr * im[i + k + half] + wi * re[i + k + half];
+                    re[i + k + half] = re[i + k] - tr;
+                    im[i + k + half] = im[i + k] - ti;
+                    re[i + k] += tr;
+                    im[i + k] += ti;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package de.medsenshack.data;
+
+import java.security.InvalidParameterException;
+
+/**
+ * Bounded multi-resolution store of a time series, e.g. the heart rate of a 24 h session.
+ * <p/>
+ * Each tier covers the time in buckets of a fixed resolution and keeps the last
+ * <code>capacity</code> buckets in round-robin primitive arrays, with min, max, sum and count of the
+ * values in each bucket. A value updates its bucket in every tier, so adding is O(tiers), and a
+ * bucket that is reused for a later time is cleared first. The memory is allocated in the
+ * constructor and stays constant. A query returns the buckets of a time span from the finest tier
+ * that still covers it within the requested number of points, in O(points returned).
+ * <p/>
+ * All methods are synchronized, values are added by the sensor thread while the UI queries.
+ */
+public class TrendStore {
+
+    /**
+     * Buckets returned by a query, reused by the caller. Only the first num entries are valid.
+     */
+    public static class Series {
+        /**
+         * start of each bucket in ms
+         */
+        public final long[] timestamps;
+        public final float[] min, max, mean;
+        public final int[] count;
+        public int num;
+        /**
+         * resolution of the tier the buckets came from in ms
+         */
+        public long resolution;
+
+        public Series(int capacity) {
+            timestamps = new long[capacity];
+            min = new float[capacity];
+            max = new float[capacity];
+            mean = new float[capacity];
+            count = new int[capacity];
+        }
+
+        public int capacity() {
+            return timestamps.length;
+        }
+    }
+
+    /**
+     * One resolution, bucket b lives in slot b % capacity.
+     */
+    private static class Tier {
+        final long resolution;
+        final int capacity;
+        final long[] buckets;
+        final float[] min, max;
+        final double[] sum;
+        final int[] count;
+        /**
+         * newest bucket that received a value, -1 if none
+         */
+        long head = -1;
+
+        Tier(long resolution, int capacity) {
+            this.resolution = resolution;
+            this.capacity = capacity;
+            buckets = new long[capacity];
+            min = new float[capacity];
+            max = new float[capacity];
+            sum = new double[capacity];
+            count = new int[capacity];
+            clear();
+        }
+
+        void clear() {
+            for (int i = 0; i < capacity; i++) {
+                buckets[i] = -1;
+                count[i] = 0;
+            }
+            head = -1;
+        }
+
+        void add(long timestamp, float value) {
+            long b = timestamp / resolution;
+            // too old for the ring
+            if (head != -1 && b <= head - capacity)
+                return;
+            int slot = (int) (b % capacity);
+            if (buckets[slot] != b) {
+                buckets[slot] = b;
+                min[slot] = max[slot] = value;
+                sum[slot] = value;
+                count[slot] = 1;
+            } else {
+                if (value < min[slot])
+                    min[slot] = value;
+                if (value > max[slot])
+                    max[slot] = value;
+                sum[slot] += value;
+                count[slot]++;
+            }
+            if (b > head)
+                head = b;
+        }
+
+        /**
+         * @return the number of buckets from..to (inclusive) that are still in the ring
+         */
+        long span(long from, long to) {
+            if (head == -1)
+                return 0;
+            from = Math.max(from / resolution, head - capacity + 1);
+            to = Math.min(to / resolution, head);
+            return Math.max(0, to - from + 1);
+        }
+    }
+
+    private final Tier[] tiers;
+
+    /**
+     * @param resolutions bucket length of each tier in ms, ascending
+     * @param capacities  number of buckets of each tier
+     */
+    public TrendStore(long[] resolutions, int[] capacities) {
+        if (resolutions.length == 0 || resolutions.length != capacities.length)
+            throw new InvalidParameterException("one capacity per resolution is required");
+        tiers = new Tier[resolutions.length];
+        for (int i = 0; i < tiers.length; i++) {
+            if (resolutions[i] <= 0 || capacities[i] <= 0 || (i > 0 && resolutions[i] <= resolutions[i - 1]))
+                throw new InvalidParameterException("resolutions must be positive and ascending, capacities positive");
+            tiers[i] = new Tier(resolutions[i], capacities[i]);
+        }
+    }
+
+    /**
+     * 1 s buckets for the last hour, 1 min buckets for the last day and 15 min buckets for the last
+     * 30 days, about 250 kB.
+     */
+    public TrendStore() {
+        this(new long[]{1000, 60 * 1000, 15 * 60 * 1000}, new int[]{3600, 24 * 60, 30 * 24 * 4});
+    }
+
+    public int numTiers() {
+        return tiers.length;
+    }
+
+    public long resolution(int tier) {
+        return tiers[tier].resolution;
+    }
+
+    /**
+     * @return time span of a tier in ms
+     */
+    public long duration(int tier) {
+        return tiers[tier].resolution * tiers[tier].capacity;
+    }
+
+    /**
+     * Adds a value to all tiers. Values older than the span of a tier are ignored by it.
+     *
+     * @param timestamp time of the value in ms, not negative
+     */
+    public synchronized void add(long timestamp, double value) {
+        if (timestamp < 0 || Double.isNaN(value))
+            return;
+        for (Tier tier : tiers) {
+            tier.add(timestamp, (float) value);
+        }
+    }
+
+    /**
+     * @return the start of the newest bucket with a value in ms, -1 if the store is empty
+     */
+    public synchronized long latest() {
+        Tier tier = tiers[0];
+        return tier.head == -1 ? -1 : tier.head * tier.resolution;
+    }
+
+    /**
+     * Returns the non-empty buckets of a time span from the finest tier that covers the span with at
+     * most <code>out.capacity()</code> buckets, or from the coarsest tier, clipped to its newest
+     * buckets.
+     *
+     * @param from start of the span in ms
+     * @param to   end of the span in ms, inclusive
+     * @param out  receives the buckets in ascending time
+     * @return the number of buckets
+     */
+    public synchronized int query(long from, long to, Series out) {
+        out.num = 0;
+        if (to < from || from < 0)
+            return 0;
+
+        Tier tier = tiers[tiers.length - 1];
+        for (Tier t : tiers) {
+            long oldest = t.head - t.capacity + 1;
+            // the tier has to reach back to the start of the span and fit into the result
+            if (t.head != -1 && from / t.resolution >= oldest && t.span(from, to) <= out.capacity()) {
+                tier = t;
+                break;
+            }
+        }
+        return query(tier, from, to, out);
+    }
+
+    /**
+     * Returns the non-empty buckets of a time span from a given tier, at most the newest
+     * <code>out.capacity()</code>.
+     */
+    public synchronized int query(int tier, long from, long to, Series out) {
+        out.num = 0;
+        if (to < from || from < 0)
+            return 0;
+        return query(tiers[tier], from, to, out);
+    }
+
+    private int query(Tier tier, long from, long to, Series out) {
+        out.num = 0;
+        out.resolution = tier.resolution;
+        if (tier.head == -1)
+            return 0;
+
+        long last = Math.min(to / tier.resolution, tier.head);
+        long first = Math.max(from / tier.resolution, tier.head - tier.capacity + 1);
+        first = Math.max(first, last - out.capacity() + 1);
+        for (long b = first; b <= last; b++) {
+            int slot = (int) (b % tier.capacity);
+            if (tier.buckets[slot] != b)
+                continue;
+            int n = out.num++;
+            out.timestamps[n] = b * tier.resolution;
+            out.min[n] = tier.min[slot];
+            out.max[n] = tier.max[slot];
+            out.mean[n] = (float) (tier.sum[slot] / tier.count[slot]);
+            out.count[n] = tier.count[slot];
+        }
+        return out.num;
+    }
+
+    public synchronized void clear() {
+        for (Tier tier : tiers) {
+            tier.clear();
+        }
+    }
+}
@@ -0,0 +1,487 @@
+package de.medsenshack.data.analysis;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import de.medsenshack.data.AccelFeatureExtractor;
+import de.medsenshack.data.ActivityClass;
+import de.medsenshack.data.ActivityClassifier;
+
+/**
+ * Offline training of an {@link ActivityClassifier} from the recordings of the app: the
+ * accelerometer files exported by {@link de.medsenshack.data.storage.CsvExporter} and the manual
+ * labels written by {@link de.medsenshack.data.storage.AnnotationWriter}. The samples are run
+ * through an {@link AccelFeatureExtractor}, exactly as on the device, and every window that lies
+ * entirely within one label becomes a training example. A random forest of CART trees (bootstrap
+ * samples, a random subset of sqrt(features) per split, Gini impurity) is grown and compiled to the
+ * flat arrays of the classifier; the out-of-bag predictions give an unbiased accuracy estimate.
+ * <p/>
+ * Usage: <code>ActivityTrainer &lt;recording dir&gt; &lt;model file&gt; [trees] [max depth] [window ms]</code>
+ */
+public class ActivityTrainer {
+
+    private static final String HEADER = "samplingrate";
+    private static final char DELIMITER = ',';
+    private static final int NUM_CLASSES = ActivityClass.values().length;
+
+    public static final int DEFAULT_TREES = 25;
+    public static final int DEFAULT_MAX_DEPTH = 10;
+    /**
+     * same window as the extractor of the app
+     */
+    public static final long DEFAULT_WINDOW = 10 * 1000;
+
+    /**
+     * Manual labels, each one is valid from its timestamp until the next one.
+     */
+    public static class Annotations {
+        private long[] times = new long[64];
+        private byte[] labels = new byte[64];
+        public int num;
+
+        /**
+         * Adds a label, out of order labels are sorted in.
+         */
+        public void add(long timestamp, ActivityClass activity) {
+            if (num == times.length) {
+                times = Arrays.copyOf(times, num << 1);
+                labels = Arrays.copyOf(labels, num << 1);
+            }
+            int i = num++;
+            while (i > 0 && times[i - 1] > timestamp) {
+                times[i] = times[i - 1];
+                labels[i] = labels[i - 1];
+                i--;
+            }
+            times[i] = timestamp;
+            labels[i] = (byte) activity.ordinal();
+        }
+
+        /**
+         * @return the class ordinal valid for the whole interval, -1 if there is none or it changes
+         */
+        public int label(long from, long to) {
+            int idx = Arrays.binarySearch(times, 0, num, from);
+            if (idx < 0)
+                idx = -idx - 2;
+            else
+                while (idx + 1 < num && times[idx + 1] == from)
+                    idx++;
+            if (idx < 0 || (idx + 1 < num && times[idx + 1] <= to))
+                return -1;
+            return labels[idx];
+        }
+
+        /**
+         * Loads a file of <code>timestamp,label</code> lines.
+         */
+        public void load(File file) throws IOException {
+            ActivityClass[] classes = ActivityClass.values();
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int sep = line.indexOf(DELIMITER);
+                    if (sep < 0)
+                        continue;
+                    try {
+                        int label = Integer.parseInt(line.substring(sep + 1).trim());
+                        if (label >= 0 && label < classes.length)
+                            add((long) Double.parseDouble(line.substring(0, sep)), classes[label]);
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    public final long window, step;
+    public int numTrees = DEFAULT_TREES;
+    public int maxDepth = DEFAULT_MAX_DEPTH;
+    public int minLeaf = 2;
+    public long seed = 1;
+
+    /**
+     * training examples, only the first num entries are valid
+     */
+    private float[][] examples = new float[1024][];
+    private byte[] classes = new byte[1024];
+    public int num;
+    public final int[] classCounts = new int[NUM_CLASSES];
+
+    /**
+     * out-of-bag results of the last training, rows are the labels and columns the predictions
+     */
+    public double oobAccuracy;
+    public final int[][] confusion = new int[NUM_CLASSES][NUM_CLASSES];
+
+    /**
+     * growing node arrays of the forest
+     */
+    private int[] feature, left, right;
+    private float[] threshold;
+    private int numNodes;
+
+    private Random rnd;
+    private int[] featureOrder;
+    private long[] keys = new long[0];
+
+    /**
+     * @param window feature window in ms
+     * @param step   interval between two training windows in ms, shorter than the window to get
+     *               more (overlapping) examples
+     */
+    public ActivityTrainer(long window, long step) {
+        this.window = window;
+        this.step = step;
+    }
+
+    /**
+     * Adds the windows of a recording that lie within one label.
+     *
+     * @param samplingRate nominal sampling rate in Hz
+     * @param timestamps   times of the samples in ms
+     * @return number of examples added
+     */
+    public int addRecording(final Annotations annotations, int samplingRate, long[] timestamps,
+                            double[] x, double[] y, double[] z, int numSamples) {
+        final int before = num;
+        AccelFeatureExtractor extractor = new AccelFeatureExtractor(samplingRate, window, step, 1);
+        extractor.listener = new AccelFeatureExtractor.Listener() {
+            @Override
+            public void onFeatures(AccelFeatureExtractor extractor, long timestamp, float[] features) {
+                int label = annotations.label(timestamp - window, timestamp);
+                if (label >= 0)
+                    addExample(features.clone(), label);
+            }
+        };
+        for (int i = 0; i < numSamples; i++) {
+            extractor.add(timestamps[i], x[i], y[i], z[i]);
+        }
+        return num - before;
+    }
+
+    /**
+     * Adds the windows of an accelerometer file.
+     *
+     * @return number of examples added
+     * @throws IOException if the file can't be read or has no valid header
+     */
+    public int addRecording(Annotations annotations, File accFile) throws IOException {
+        int n = 0;
+        long[] t = new long[4096];
+        double[] x = new double[4096], y = new double[4096], z = new double[4096];
+        int samplingRate;
+
+        BufferedReader reader = new BufferedReader(new FileReader(accFile), 1 << 16);
+        try {
+            String line = reader.readLine();
+            if (line == null || !line.startsWith(HEADER))
+                throw new IOException("Missing sampling rate header in " + accFile);
+            samplingRate = (int) Math.round(Double.parseDouble(line.substring(HEADER.length())));
+
+            while ((line = reader.readLine()) != null) {
+                // timestamp,packetTimestamp,x,y,z
+                String[] parts = line.split(String.valueOf(DELIMITER));
+                if (parts.length != 5) {
+                    // truncated line, e.g. if the app was killed while recording
+                    continue;
+                }
+                if (n == t.length) {
+                    t = Arrays.copyOf(t, n << 1);
+                    x = Arrays.copyOf(x, n << 1);
+                    y = Arrays.copyOf(y, n << 1);
+                    z = Arrays.copyOf(z, n << 1);
+                }
+                try {
+                    t[n] = (long) Double.parseDouble(parts[0]);
+                    x[n] = Double.parseDouble(parts[2]);
+                    y[n] = Double.parseDouble(parts[3]);
+                    z[n] = Double.parseDouble(parts[4]);
+                    n++;
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return addRecording(annotations, samplingRate, t, x, y, z, n);
+    }
+
+    private void addExample(float[] features, int label) {
+        if (num == examples.length) {
+            examples = Arrays.copyOf(examples, num << 1);
+            classes = Arrays.copyOf(classes, num << 1);
+        }
+        examples[num] = features;
+        classes[num] = (byte) label;
+        num++;
+        classCounts[label]++;
+    }
+
+    /**
+     * Grows the forest on all examples added so far.
+     *
+     * @param smoothing smoothing of the returned classifier
+     * @throws IllegalStateException if there are no examples
+     */
+    public ActivityClassifier train(int smoothing) {
+        if (num == 0)
+            throw new IllegalStateException("No labeled windows");
+        int numFeatures = examples[0].length;
+
+        rnd = new Random(seed);
+        featureOrder = new int[numFeatures];
+        for (int f = 0; f < numFeatures; f++) {
+            featureOrder[f] = f;
+        }
+        keys = new long[num];
+        feature = new int[256];
+        left = new int[256];
+        right = new int[256];
+        threshold = new float[256];
+        numNodes = 0;
+
+        int[] roots = new int[numTrees];
+        int[][] oobVotes = new int[num][NUM_CLASSES];
+        boolean[] inBag = new boolean[num];
+        int[] sample = new int[num];
+        for (int t = 0; t < numTrees; t++) {
+            Arrays.fill(inBag, false);
+            for (int i = 0; i < num; i++) {
+                sample[i] = rnd.nextInt(num);
+                inBag[sample[i]] = true;
+            }
+            roots[t] = grow(sample, 0, num, 0);
+            for (int i = 0; i < num; i++) {
+                if (!inBag[i])
+                    oobVotes[i][predict(roots[t], examples[i])]++;
+            }
+        }
+
+        int correct = 0, voted = 0;
+        for (int[] row : confusion) {
+            Arrays.fill(row, 0);
+        }
+        for (int i = 0; i < num; i++) {
+            int best = 0, total = 0;
+            for (int c = 0; c < NUM_CLASSES; c++) {
+                total += oobVotes[i][c];
+                if (oobVotes[i][c] > oobVotes[i][best])
+                    best = c;
+            }
+            if (total == 0)
+                continue;
+            voted++;
+            confusion[classes[i]][best]++;
+            if (best == classes[i])
+                correct++;
+        }
+        oobAccuracy = voted > 0 ? (double) correct / voted : Double.NaN;
+
+        return new ActivityClassifier(numFeatures, window, roots,
+                Arrays.copyOf(feature, numNodes), Arrays.copyOf(threshold, numNodes),
+                Arrays.copyOf(left, numNodes), Arrays.copyOf(right, numNodes), smoothing);
+    }
+
+    private int predict(int node, float[] features) {
+        while (feature[node] >= 0) {
+            node = features[feature[node]] <= threshold[node] ? left[node] : right[node];
+        }
+        return left[node];
+    }
+
+    private int newNode() {
+        if (numNodes == feature.length) {
+            int capacity = numNodes << 1;
+            feature = Arrays.copyOf(feature, capacity);
+            left = Arrays.copyOf(left, capacity);
+            right = Arrays.copyOf(right, capacity);
+            threshold = Arrays.copyOf(threshold, capacity);
+        }
+        return numNodes++;
+    }
+
+    /**
+     * Grows the subtree of the examples sample[from..to) in pre-order, so children get higher
+     * indices than their parent.
+     *
+     * @return the index of the subtree's root
+     */
+    private int grow(int[] sample, int from, int to, int depth) {
+        int node = newNode();
+        int n = to - from;
+
+        int[] counts = new int[NUM_CLASSES];
+        for (int i = from; i < to; i++) {
+            counts[classes[sample[i]]]++;
+        }
+        int majority = 0;
+        for (int c = 1; c < NUM_CLASSES; c++) {
+            if (counts[c] > counts[majority])
+                majority = c;
+        }
+
+        int bestFeature = -1;
+        float bestThreshold = 0;
+        if (depth < maxDepth && n >= 2 * minLeaf && counts[majority] < n) {
+            double bestImpurity = impurity(counts, n);
+            int[] leftCounts = new int[NUM_CLASSES];
+            int[] rightCounts = new int[NUM_CLASSES];
+
+            // random subset of the features, a partial shuffle
+            int numFeatures = featureOrder.length;
+            int tries = Math.max(1, (int) Math.round(Math.sqrt(numFeatures)));
+            for (int k = 0; k < tries; k++) {
+                int j = k + rnd.nextInt(numFeatures - k);
+                int f = featureOrder[j];
+                featureOrder[j] = featureOrder[k];
+                featureOrder[k] = f;
+
+                // sort the examples by the feature, the sign-corrected float bits order like the values
+                for (int i = from; i < to; i++) {
+                    int bits = Float.floatToIntBits(examples[sample[i]][f]);
+                    bits ^= (bits >> 31) & 0x7fffffff;
+                    keys[i - from] = ((long) bits << 32) | sample[i];
+                }
+                Arrays.sort(keys, 0, n);
+
+                Arrays.fill(leftCounts, 0);
+                System.arraycopy(counts, 0, rightCounts, 0, NUM_CLASSES);
+                for (int i = 0; i < n - 1; i++) {
+                    int e = (int) keys[i];
+                    leftCounts[classes[e]]++;
+                    rightCounts[classes[e]]--;
+                    int numLeft = i + 1;
+                    if (numLeft < minLeaf || n - numLeft < minLeaf)
+                        continue;
+                    float v = examples[e][f], next = examples[(int) keys[i + 1]][f];
+                    if (v == next)
+                        continue;
+                    double imp = impurity(leftCounts, numLeft) + impurity(rightCounts, n - numLeft);
+                    if (imp < bestImpurity - 1e-9) {
+                        bestImpurity = imp;
+                        bestFeature = f;
+                        float mid = v + (next - v) / 2;
+                        bestThreshold = mid < next ? mid : v;
+                    }
+                }
+            }
+        }
+
+        if (bestFeature < 0) {
+            feature[node] = -1;
+            left[node] = majority;
+            right[node] = -1;
+            return node;
+        }
+
+        // partition, values <= threshold go left
+        int mid = from;
+        for (int i = from; i < to; i++) {
+            if (examples[sample[i]][bestFeature] <= bestThreshold) {
+                int tmp = sample[mid];
+                sample[mid++] = sample[i];
+                sample[i] = tmp;
+            }
+        }
+        feature[node] = bestFeature;
+        threshold[node] = bestThreshold;
+        int l = grow(sample, from, mid, depth + 1);
+        int r = grow(sample, mid, to, depth + 1);
+        // the arrays may have been reallocated by the children
+        left[node] = l;
+        right[node] = r;
+        return node;
+    }
+
+    /**
+     * @return the Gini impurity weighted by the number of examples
+     */
+    private static double impurity(int[] counts, int n) {
+        if (n == 0)
+            return 0;
+        double sum = 0;
+        for (int c : counts) {
+            sum += (double) c * c;
+        }
+        return n - sum / n;
+    }
+
+    private static File[] listFiles(File dir, final String prefix) {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File d, String name) {
+                return name.startsWith(prefix) && name.endsWith(".csv");
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: ActivityTrainer <recording dir> <model file> [trees] [max depth] [window ms]");
+            System.exit(1);
+        }
+
+        File dir = new File(args[0]);
+        long window = args.length > 4 ? Long.parseLong(args[4]) : DEFAULT_WINDOW;
+        ActivityTrainer trainer = new ActivityTrainer(window, window / 4);
+        if (args.length > 2)
+            trainer.numTrees = Integer.parseInt(args[2]);
+        if (args.length > 3)
+            trainer.maxDepth = Integer.parseInt(args[3]);
+
+        Annotations annotations = new Annotations();
+        for (File file : listFiles(dir, "annotation_")) {
+            annotations.load(file);
+        }
+        for (File file : listFiles(dir, "acc_")) {
+            try {
+                int n = trainer.addRecording(annotations, file);
+                System.out.println(String.format(Locale.US, "%-40s %6d windows", file.getName(), n));
+            } catch (IOException e) {
+                System.err.println(file.getName() + ": " + e.getMessage());
+            }
+        }
+
+        ActivityClassifier classifier = trainer.train(1);
+        OutputStream out = new FileOutputStream(args[1]);
+        try {
+            classifier.write(out);
+        } finally {
+            out.close();
+        }
+
+        ActivityClass[] classes = ActivityClass.values();
+        StringBuilder header = new StringBuilder(String.format(Locale.US, "%-10s %6s", "", "n"));
+        for (ActivityClass c : classes) {
+            header.append(String.format(Locale.US, " %9s", c.name()));
+        }
+        System.out.println(header);
+        for (int c = 0; c < classes.length; c++) {
+            StringBuilder row = new StringBuilder(String.format(Locale.US, "%-10s %6d", classes[c].name(), trainer.classCounts[c]));
+            for (int p = 0; p < classes.length; p++) {
+                row.append(String.format(Locale.US, " %9d", trainer.confusion[c][p]));
+            }
+            System.out.println(row);
+        }
+        System.out.println(String.format(Locale.US,
+                "%d windows, %d trees, %d nodes, out-of-bag accuracy %.1f%%",
+                trainer.num, classifier.numTrees(), classifier.numNodes(), trainer.oobAccuracy * 100));
+    }
+}
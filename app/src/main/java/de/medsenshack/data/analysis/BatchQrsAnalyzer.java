@@ -0,0 +1,357 @@
+package de.medsenshack.data.analysis;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import de.medsenshack.data.BeatEvent;
+import de.medsenshack.data.PanTompkins;
+import de.medsenshack.data.QrsDetectionExecutor;
+
+/**
+ * Headless re-analysis of recorded ECG sessions. The recordings of a directory are split across a
+ * fork/join pool and run through the QRS detector at full speed. For every recording a beat
+ * annotation file (<code>&lt;name&gt;_beats.csv</code>) and a HR/HRV summary
+ * (<code>&lt;name&gt;_summary.csv</code>) are written to the output directory.
+ * <p/>
+ * Usage: <code>BatchQrsAnalyzer &lt;recording dir&gt; &lt;output dir&gt; [threads]</code>
+ */
+public class BatchQrsAnalyzer {
+
+    private static final char SEPARATOR = '\n';
+    private static final char DELIMITER = ',';
+    /**
+     * plausible RR range in ms, same as used by {@link PanTompkins}
+     */
+    private static final long MIN_RR = 180;
+    private static final long MAX_RR = 4000;
+
+    private final ForkJoinPool pool;
+    private final File outputDir;
+
+    /**
+     * Analysis result of a single recording.
+     */
+    public static class Result {
+        public String name;
+        public int numSamples;
+        public double samplingRate;
+        public int numBeats;
+        /**
+         * number of beats per {@link PanTompkins.QRS.QrsClass}
+         */
+        public int[] classCount = new int[PanTompkins.QRS.QrsClass.values().length];
+        public double meanHr;
+        public double meanRr;
+        public double sdnn;
+        public double rmssd;
+        public double pnn50;
+        public double pnn20;
+        /**
+         * time needed for loading, detection and writing in ns
+         */
+        public long duration;
+        /**
+         * set if the recording couldn't be analyzed
+         */
+        public IOException error;
+    }
+
+    /**
+     * Collects the beats of a recording into primitive arrays, the R peaks as indices of the
+     * recorded samples.
+     */
+    private static class BeatCollector implements QrsDetectionExecutor.BeatCallback {
+        int num;
+        long[] rIdx = new long[1024];
+        long[] rr = new long[1024];
+        long[] width = new long[1024];
+        byte[] classification = new byte[1024];
+        byte[] arrhythmia = new byte[1024];
+
+        @Override
+        public void onBeat(int stream, BeatEvent beat) {
+            if (num == rIdx.length) {
+                int capacity = num << 1;
+                rIdx = Arrays.copyOf(rIdx, capacity);
+                rr = Arrays.copyOf(rr, capacity);
+                width = Arrays.copyOf(width, capacity);
+                classification = Arrays.copyOf(classification, capacity);
+                arrhythmia = Arrays.copyOf(arrhythmia, capacity);
+            }
+            rIdx[num] = beat.getRSample();
+            rr[num] = beat.getRr();
+            width[num] = beat.getWidth();
+            classification[num] = (byte) beat.getClassification().ordinal();
+            arrhythmia[num] = (byte) beat.getArrhythmia().ordinal();
+            num++;
+        }
+    }
+
+    /**
+     * Splits a range of recordings until a single recording is left, which is then analyzed.
+     */
+    private static class AnalysisTask extends RecursiveTask<List<Result>> {
+        private static final long serialVersionUID = 1L;
+
+        private final transient BatchQrsAnalyzer analyzer;
+        private final File[] files;
+        private final int from;
+        private final int to;
+
+        AnalysisTask(BatchQrsAnalyzer analyzer, File[] files, int from, int to) {
+            this.analyzer = analyzer;
+            this.files = files;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<Result> compute() {
+            if (to - from <= 1) {
+                List<Result> results = new ArrayList<>(1);
+                if (to > from) {
+                    results.add(analyzer.analyze(files[from]));
+                }
+                return results;
+            }
+
+            int mid = (from + to) >>> 1;
+            AnalysisTask left = new AnalysisTask(analyzer, files, from, mid);
+            left.fork();
+            List<Result> results = new AnalysisTask(analyzer, files, mid, to).compute();
+            results.addAll(0, left.join());
+            return results;
+        }
+    }
+
+    /**
+     * @param outputDir   directory that receives the beat and summary files
+     * @param parallelism number of worker threads, values < 1 use one per available processor
+     */
+    public BatchQrsAnalyzer(File outputDir, int parallelism) {
+        if (parallelism < 1) {
+            parallelism = Runtime.getRuntime().availableProcessors();
+        }
+        this.pool = new ForkJoinPool(parallelism);
+        this.outputDir = outputDir;
+    }
+
+    /**
+     * @param dir directory to search
+     * @return all ECG recordings in the given directory, sorted by name
+     */
+    public static File[] findRecordings(File dir) {
+        File[] files = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                String name = file.getName();
+                return file.isFile() && name.startsWith("ecg_") && name.endsWith(".csv")
+                        && !name.endsWith("_beats.csv") && !name.endsWith("_summary.csv");
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * Analyzes all given recordings in parallel and blocks until all are done.
+     *
+     * @param files the recordings
+     * @return one result per recording, in the order of files
+     */
+    public List<Result> analyze(File[] files) {
+        return pool.invoke(new AnalysisTask(this, files, 0, files.length));
+    }
+
+    /**
+     * Analyzes a single recording on the calling thread.
+     *
+     * @param file the recording
+     * @return the analysis result
+     */
+    public Result analyze(File file) {
+        long start = System.nanoTime();
+        Result result = new Result();
+        result.name = file.getName();
+
+        try {
+            EcgRecording rec = EcgRecording.load(file);
+            result.name = rec.name;
+            result.numSamples = rec.num;
+            result.samplingRate = rec.samplingRate;
+
+            BeatCollector beats = new BeatCollector();
+            QrsDetectionExecutor.detect(rec.samples(), (int) Math.round(rec.samplingRate), 0, beats);
+
+            summarize(beats, result);
+            writeBeats(rec, beats);
+            writeSummary(result);
+        } catch (IOException e) {
+            result.error = e;
+        }
+
+        result.duration = System.nanoTime() - start;
+        return result;
+    }
+
+    /**
+     * Computes the HR/HRV summary from all beats with a plausible RR interval.
+     */
+    private static void summarize(BeatCollector beats, Result result) {
+        result.numBeats = beats.num;
+
+        int num = 0, numDiff = 0, nn50 = 0, nn20 = 0;
+        double sum = 0, sumSquares = 0, sumDiffSquares = 0;
+        long prevRr = -1;
+
+        for (int i = 0; i < beats.num; i++) {
+            result.classCount[beats.classification[i]]++;
+
+            long rr = beats.rr[i];
+            if (rr <= MIN_RR || rr >= MAX_RR) {
+                prevRr = -1;
+                continue;
+            }
+
+            num++;
+            sum += rr;
+            sumSquares += (double) rr * rr;
+
+            if (prevRr > 0) {
+                long diff = Math.abs(rr - prevRr);
+                numDiff++;
+                sumDiffSquares += (double) diff * diff;
+                if (diff >= 50) {
+                    nn50++;
+                }
+                if (diff >= 20) {
+                    nn20++;
+                }
+            }
+            prevRr = rr;
+        }
+
+        if (num > 0) {
+            result.meanRr = sum / num;
+            result.meanHr = 60000.0 / result.meanRr;
+            result.sdnn = Math.sqrt(Math.max(0, sumSquares / num - result.meanRr * result.meanRr));
+        }
+        if (numDiff > 0) {
+            result.rmssd = Math.sqrt(sumDiffSquares / numDiff);
+            result.pnn50 = (double) nn50 / numDiff;
+            result.pnn20 = (double) nn20 / numDiff;
+        }
+    }
+
+    private void writeBeats(EcgRecording rec, BeatCollector beats) throws IOException {
+        PanTompkins.QRS.QrsClass[] classes = PanTompkins.QRS.QrsClass.values();
+        PanTompkins.QRS.QrsArrhythmia[] arrhythmias = PanTompkins.QRS.QrsArrhythmia.values();
+
+        BufferedWriter writer = new BufferedWriter(new FileWriter(new File(outputDir, rec.name + "_beats.csv")), 1 << 16);
+        try {
+            writer.write("sample,timestamp,rr,width,class,arrhythmia");
+            writer.write(SEPARATOR);
+            for (int i = 0; i < beats.num; i++) {
+                int idx = (int) Math.max(0, Math.min(rec.num - 1, beats.rIdx[i]));
+                writer.write(Long.toString(beats.rIdx[i]));
+                writer.write(DELIMITER);
+                writer.write(Long.toString(rec.timestamps[idx]));
+                writer.write(DELIMITER);
+                writer.write(Long.toString(beats.rr[i]));
+                writer.write(DELIMITER);
+                writer.write(Long.toString(beats.width[i]));
+                writer.write(DELIMITER);
+                writer.write(classes[beats.classification[i]].name());
+                writer.write(DELIMITER);
+                writer.write(arrhythmias[beats.arrhythmia[i]].name());
+                writer.write(SEPARATOR);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private void writeSummary(Result result) throws IOException {
+        BufferedWriter writer = new BufferedWriter(new FileWriter(new File(outputDir, result.name + "_summary.csv")));
+        try {
+            writer.write("samples,samplingrate,beats,meanHr,meanRr,sdnn,rmssd,pnn50,pnn20");
+            for (PanTompkins.QRS.QrsClass c : PanTompkins.QRS.QrsClass.values()) {
+                writer.write(DELIMITER);
+                writer.write(c.name());
+            }
+            writer.write(SEPARATOR);
+            writer.write(String.format(Locale.US, "%d,%.1f,%d,%.2f,%.2f,%.2f,%.2f,%.4f,%.4f",
+                    result.numSamples, result.samplingRate, result.numBeats, result.meanHr,
+                    result.meanRr, result.sdnn, result.rmssd, result.pnn50, result.pnn20));
+            for (int count : result.classCount) {
+                writer.write(DELIMITER);
+                writer.write(Integer.toString(count));
+            }
+            writer.write(SEPARATOR);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Stops the worker threads.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: BatchQrsAnalyzer <recording dir> <output dir> [threads]");
+            System.exit(1);
+        }
+
+        File inputDir = new File(args[0]);
+        File outputDir = new File(args[1]);
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            System.err.println("Cannot create output directory " + outputDir);
+            System.exit(1);
+        }
+
+        File[] files = findRecordings(inputDir);
+        BatchQrsAnalyzer analyzer = new BatchQrsAnalyzer(outputDir, threads);
+
+        long start = System.nanoTime();
+        List<Result> results = analyzer.analyze(files);
+        long duration = System.nanoTime() - start;
+        analyzer.shutdown();
+
+        long totalSamples = 0;
+        double totalSeconds = 0;
+        for (Result r : results) {
+            if (r.error != null) {
+                System.err.println(r.name + ": " + r.error.getMessage());
+                continue;
+            }
+            totalSamples += r.numSamples;
+            totalSeconds += r.numSamples / r.samplingRate;
+            System.out.println(String.format(Locale.US,
+                    "%s: %d samples, %d beats, HR %.1f bpm, SDNN %.1f ms, RMSSD %.1f ms (%.0f ms)",
+                    r.name, r.numSamples, r.numBeats, r.meanHr, r.sdnn, r.rmssd, r.duration / 1e6));
+        }
+
+        System.out.println(String.format(Locale.US,
+                "%d recordings, %d samples in %.2f s: %.0f samples/s, %.0fx real time",
+                results.size(), totalSamples, duration / 1e9, totalSamples / (duration / 1e9),
+                totalSeconds / (duration / 1e9)));
+    }
+}
@@ -0,0 +1,145 @@
+package de.medsenshack.data.analysis;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+
+import de.medsenshack.data.storage.EcgCodec;
+
+/**
+ * Converts the CSV ECG recordings of a directory into the compressed format of {@link EcgCodec},
+ * verifies that decoding restores every sample and reports the compression ratio and the encode
+ * and decode throughput.
+ * <p/>
+ * Usage: <code>EcgCompressor &lt;recording dir&gt; &lt;output dir&gt; [samples per block]</code>
+ */
+public class EcgCompressor {
+
+    /**
+     * Result of a single recording.
+     */
+    public static class Result {
+        public String name;
+        public int numSamples;
+        public double samplingRate;
+        public long csvBytes;
+        public long encodedBytes;
+        /**
+         * time needed for encoding into the file and for decoding from the mapped file in ns
+         */
+        public long encodeNanos;
+        public long decodeNanos;
+
+        public double ratio() {
+            return (double) csvBytes / encodedBytes;
+        }
+
+        public double bytesPerSample() {
+            return (double) encodedBytes / numSamples;
+        }
+    }
+
+    /**
+     * Compresses a recording and decodes it again.
+     *
+     * @param file         the CSV recording
+     * @param outputDir    receives <code>&lt;name&gt;.ecgz</code>
+     * @param blockSamples samples per block
+     * @throws IOException if the recording can't be read, has non integer values or doesn't decode
+     *                     to the same samples
+     */
+    public static Result compress(File file, File outputDir, int blockSamples) throws IOException {
+        EcgRecording rec = EcgRecording.load(file);
+        int[] values = new int[rec.num];
+        for (int i = 0; i < rec.num; i++) {
+            values[i] = (int) rec.values[i];
+            if (values[i] != rec.values[i])
+                throw new IOException("sample " + i + " is not an integer: " + rec.values[i]);
+        }
+
+        Result result = new Result();
+        result.name = rec.name;
+        result.numSamples = rec.num;
+        result.samplingRate = rec.samplingRate;
+        result.csvBytes = file.length();
+
+        File out = new File(outputDir, rec.name + ".ecgz");
+        long start = System.nanoTime();
+        EcgCodec.Writer writer = new EcgCodec.Writer(new BufferedOutputStream(new FileOutputStream(out), 1 << 16),
+                rec.samplingRate, rec.num > 0 ? rec.timestamps[0] : 0, blockSamples);
+        for (int i = 0; i < rec.num; i++) {
+            writer.add(rec.timestamps[i], values[i]);
+        }
+        writer.close();
+        result.encodeNanos = System.nanoTime() - start;
+        result.encodedBytes = writer.bytes;
+
+        int[] decoded = new int[rec.num];
+        start = System.nanoTime();
+        EcgCodec.Reader reader = EcgCodec.Reader.open(out);
+        int n = reader.read(0, decoded, 0, decoded.length);
+        result.decodeNanos = System.nanoTime() - start;
+
+        if (n != rec.num)
+            throw new IOException("decoded " + n + " of " + rec.num + " samples");
+        for (int i = 0; i < n; i++) {
+            if (decoded[i] != values[i])
+                throw new IOException("sample " + i + " decoded as " + decoded[i] + " instead of " + values[i]);
+        }
+        return result;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: EcgCompressor <recording dir> <output dir> [samples per block]");
+            System.exit(1);
+        }
+
+        File inputDir = new File(args[0]);
+        File outputDir = new File(args[1]);
+        int blockSamples = args.length > 2 ? Integer.parseInt(args[2]) : EcgCodec.DEFAULT_BLOCK_SAMPLES;
+
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            System.err.println("Cannot create output directory " + outputDir);
+            System.exit(1);
+        }
+
+        Result total = new Result();
+        double totalSeconds = 0;
+        for (File file : BatchQrsAnalyzer.findRecordings(inputDir)) {
+            Result r;
+            try {
+                r = compress(file, outputDir, blockSamples);
+            } catch (IOException e) {
+                System.err.println(file.getName() + ": " + e.getMessage());
+                continue;
+            }
+            total.numSamples += r.numSamples;
+            total.csvBytes += r.csvBytes;
+            total.encodedBytes += r.encodedBytes;
+            total.encodeNanos += r.encodeNanos;
+            total.decodeNanos += r.decodeNanos;
+            totalSeconds += r.numSamples / r.samplingRate;
+            System.out.println(format(r));
+        }
+
+        if (total.numSamples == 0) {
+            System.err.println("No recordings in " + inputDir);
+            System.exit(1);
+        }
+        total.name = "total";
+        System.out.println(format(total));
+        System.out.println(String.format(Locale.US,
+                "%.1f h of ECG, decoded %.0fx faster than real time",
+                totalSeconds / 3600, totalSeconds / (total.decodeNanos / 1e9)));
+    }
+
+    private static String format(Result r) {
+        return String.format(Locale.US,
+                "%s: %d samples, %d -> %d bytes (%.1fx, %.2f bytes/sample), encode %.1f M samples/s, decode %.1f M samples/s",
+                r.name, r.numSamples, r.csvBytes, r.encodedBytes, r.ratio(), r.bytesPerSample(),
+                r.numSamples / (r.encodeNanos / 1e3), r.numSamples / (r.decodeNanos / 1e3));
+    }
+}
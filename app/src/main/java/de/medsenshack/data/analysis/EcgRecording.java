@@ -0,0 +1,109 @@
+package de.medsenshack.data.analysis;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * An ECG recording as exported by {@link de.medsenshack.data.storage.CsvExporter}: a header line
+ * <code>samplingrate&lt;rate&gt;</code> followed by one <code>timestamp,packetTimestamp,ecg</code>
+ * line per sample. All samples are kept in primitive arrays.
+ */
+public class EcgRecording {
+
+    private static final String HEADER = "samplingrate";
+    private static final char DELIMITER = ',';
+
+    /**
+     * file name without extension
+     */
+    public final String name;
+    public double samplingRate;
+    /**
+     * ECG samples, only the first num entries are valid
+     */
+    public double[] values;
+    /**
+     * timestamps of the samples in ms, only the first num entries are valid
+     */
+    public long[] timestamps;
+    public int num;
+
+    private EcgRecording(String name, int capacity) {
+        this.name = name;
+        values = new double[capacity];
+        timestamps = new long[capacity];
+    }
+
+    /**
+     * Loads an entire recording.
+     *
+     * @param file the CSV file
+     * @return the loaded recording
+     * @throws IOException if the file can't be read or has no valid header
+     */
+    public static EcgRecording load(File file) throws IOException {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            name = name.substring(0, dot);
+        }
+
+        // roughly 30 bytes per line
+        EcgRecording rec = new EcgRecording(name, (int) Math.max(1024, file.length() / 30));
+
+        BufferedReader reader = new BufferedReader(new FileReader(file), 1 << 16);
+        try {
+            String line = reader.readLine();
+            if (line == null || !line.startsWith(HEADER)) {
+                throw new IOException("Missing sampling rate header in " + file);
+            }
+            rec.samplingRate = Double.parseDouble(line.substring(HEADER.length()));
+
+            while ((line = reader.readLine()) != null) {
+                int first = line.indexOf(DELIMITER);
+                int last = line.lastIndexOf(DELIMITER);
+                if (first < 0 || last <= first) {
+                    // truncated line, e.g. if the app was killed while recording
+                    continue;
+                }
+                try {
+                    rec.add((long) Double.parseDouble(line.substring(0, first)),
+                            Double.parseDouble(line.substring(last + 1)));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return rec;
+    }
+
+    private void add(long timestamp, double value) {
+        if (num == values.length) {
+            int capacity = num << 1;
+            double[] v = new double[capacity];
+            long[] t = new long[capacity];
+            System.arraycopy(values, 0, v, 0, num);
+            System.arraycopy(timestamps, 0, t, 0, num);
+            values = v;
+            timestamps = t;
+        }
+        values[num] = value;
+        timestamps[num] = timestamp;
+        num++;
+    }
+
+    /**
+     * @return the samples trimmed to the valid length
+     */
+    public double[] samples() {
+        if (values.length == num) {
+            return values;
+        }
+        double[] v = new double[num];
+        System.arraycopy(values, 0, v, 0, num);
+        return v;
+    }
+}
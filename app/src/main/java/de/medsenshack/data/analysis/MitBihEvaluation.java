@@ -0,0 +1,328 @@
+package de.medsenshack.data.analysis;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import de.medsenshack.data.BeatEvent;
+import de.medsenshack.data.PanTompkins;
+
+/**
+ * Accuracy and throughput evaluation of the QRS detector on MIT-BIH records. All records of a
+ * directory are processed in parallel, the detected R peaks are matched against the reference beat
+ * annotations within a tolerance window, and sensitivity, positive predictivity, the detection
+ * latency distribution and the processing speed in multiples of real time are reported.
+ * <p/>
+ * Usage: <code>MitBihEvaluation &lt;record dir&gt; [tolerance ms] [threads] [lowlatency]</code>
+ */
+public class MitBihEvaluation {
+
+    /**
+     * default matching window, as recommended by ANSI/AAMI EC57
+     */
+    public static final int DEFAULT_TOLERANCE_MS = 150;
+    /**
+     * beats within the first seconds are not scored, the detector is still learning then
+     */
+    public static final int DEFAULT_SKIP_SECONDS = 5;
+
+    private final int toleranceMs;
+    private final int skipSeconds;
+    /**
+     * run the detector in low latency mode, beats are then timed by their preliminary events
+     */
+    public boolean lowLatency = false;
+
+    /**
+     * Evaluation result of a single record.
+     */
+    public static class Result {
+        public String name;
+        public int numSamples;
+        public double samplingRate;
+        public int truePositives;
+        public int falseNegatives;
+        public int falsePositives;
+        /**
+         * delay between each matched reference R peak and the emission of its beat, in ms
+         */
+        public double[] latencies = new double[0];
+        /**
+         * time needed for the detection only, in ns
+         */
+        public long duration;
+        public IOException error;
+
+        public double sensitivity() {
+            return ratio(truePositives, truePositives + falseNegatives);
+        }
+
+        public double positivePredictivity() {
+            return ratio(truePositives, truePositives + falsePositives);
+        }
+
+        public double realTimeFactor() {
+            return duration > 0 ? numSamples / samplingRate / (duration / 1e9) : 0;
+        }
+    }
+
+    /**
+     * Collects the raw R samples and the emission samples of all beats.
+     */
+    private static class BeatTimes implements PanTompkins.BeatListener {
+        int num;
+        int[] detected;
+        int[] emitted;
+
+        BeatTimes(int capacity) {
+            detected = new int[capacity];
+            emitted = new int[capacity];
+        }
+
+        @Override
+        public void onBeat(BeatEvent beat) {
+            // the beat has already been counted by its preliminary event
+            if (beat.isUpdate())
+                return;
+            if (num == detected.length) {
+                detected = Arrays.copyOf(detected, num << 1);
+                emitted = Arrays.copyOf(emitted, num << 1);
+            }
+            detected[num] = (int) beat.getRSample();
+            emitted[num] = (int) beat.getTimestamp();
+            num++;
+        }
+    }
+
+    /**
+     * @param toleranceMs maximal distance between detected and reference R peak for a match
+     * @param skipSeconds initial seconds of each record that are not scored
+     */
+    public MitBihEvaluation(int toleranceMs, int skipSeconds) {
+        this.toleranceMs = toleranceMs;
+        this.skipSeconds = skipSeconds;
+    }
+
+    private static double ratio(int a, int b) {
+        return b > 0 ? (double) a / b : 0;
+    }
+
+    /**
+     * @param dir directory to search
+     * @return all signal files of the directory that have a matching annotation file, sorted by name
+     */
+    public static File[] findRecords(File dir) {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File d, String name) {
+                return name.contains("sig") && MitBihRecord.annotationFile(new File(d, name)).isFile();
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * Evaluates a single record on the calling thread.
+     *
+     * @param signalFile the signal file of the record
+     * @return the evaluation result
+     */
+    public Result evaluate(File signalFile) {
+        Result result = new Result();
+        result.name = signalFile.getName();
+
+        MitBihRecord rec;
+        try {
+            rec = MitBihRecord.load(signalFile, 2);
+        } catch (IOException e) {
+            result.error = e;
+            return result;
+        }
+        result.name = rec.name;
+        result.numSamples = rec.num;
+        result.samplingRate = rec.samplingRate;
+
+        double[] samples = rec.samples();
+        BeatTimes beats = new BeatTimes(rec.numBeats + 1024);
+
+        long start = System.nanoTime();
+        PanTompkins pants = new PanTompkins((int) rec.samplingRate);
+        pants.lowLatency = lowLatency;
+        pants.addBeatListener(beats);
+        for (int i = 0; i < samples.length; i++) {
+            pants.next(samples[i], i);
+        }
+        result.duration = System.nanoTime() - start;
+
+        match(rec.beats, rec.numBeats, beats.detected, beats.emitted, beats.num, rec.samplingRate, result);
+        return result;
+    }
+
+    /**
+     * Matches reference and detected beats in a single pass over both (sorted) lists.
+     */
+    private void match(int[] reference, int numReference, int[] detected, int[] emitted, int numDetected,
+                       double samplingRate, Result result) {
+        int tolerance = (int) Math.round(toleranceMs * samplingRate / 1000.0);
+        int skip = (int) (skipSeconds * samplingRate);
+        double msPerSample = 1000.0 / samplingRate;
+        double[] latencies = new double[numReference];
+        int numLatencies = 0;
+
+        int i = 0, j = 0;
+        while (i < numReference && reference[i] < skip) {
+            i++;
+        }
+        while (j < numDetected && detected[j] < skip - tolerance) {
+            j++;
+        }
+
+        while (i < numReference || j < numDetected) {
+            if (j == numDetected) {
+                result.falseNegatives++;
+                i++;
+            } else if (i == numReference) {
+                result.falsePositives++;
+                j++;
+            } else if (Math.abs(detected[j] - reference[i]) <= tolerance) {
+                result.truePositives++;
+                latencies[numLatencies++] = (emitted[j] - reference[i]) * msPerSample;
+                i++;
+                j++;
+            } else if (detected[j] < reference[i]) {
+                result.falsePositives++;
+                j++;
+            } else {
+                result.falseNegatives++;
+                i++;
+            }
+        }
+
+        result.latencies = Arrays.copyOf(latencies, numLatencies);
+        Arrays.sort(result.latencies);
+    }
+
+    /**
+     * Evaluates all records in parallel and blocks until all are done.
+     *
+     * @param signalFiles the signal files of the records
+     * @param threads     number of worker threads, values < 1 use one per available processor
+     * @return one result per record, in the order of signalFiles
+     * @throws InterruptedException if the calling thread was interrupted while waiting
+     * @throws ExecutionException   if the evaluation of a record failed unexpectedly
+     */
+    public List<Result> evaluate(File[] signalFiles, int threads) throws InterruptedException, ExecutionException {
+        if (threads < 1) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Callable<Result>> tasks = new ArrayList<>(signalFiles.length);
+            for (final File file : signalFiles) {
+                tasks.add(new Callable<Result>() {
+                    @Override
+                    public Result call() throws Exception {
+                        return evaluate(file);
+                    }
+                });
+            }
+
+            List<Result> results = new ArrayList<>(signalFiles.length);
+            for (Future<Result> future : executor.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+            return results;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * @param sorted ascending values
+     * @param p      percentile in [0, 100]
+     * @return the nearest-rank percentile, or NaN if there are no values
+     */
+    public static double percentile(double[] sorted, double p) {
+        if (sorted.length == 0) {
+            return Double.NaN;
+        }
+        int idx = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, idx))];
+    }
+
+    private static String formatLatencies(double[] sorted) {
+        return String.format(Locale.US, "latency p50 %.0f / p90 %.0f / p99 %.0f / max %.0f ms",
+                percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99),
+                percentile(sorted, 100));
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: MitBihEvaluation <record dir> [tolerance ms] [threads] [lowlatency]");
+            System.exit(1);
+        }
+
+        File dir = new File(args[0]);
+        int tolerance = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_TOLERANCE_MS;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+
+        File[] files = findRecords(dir);
+        MitBihEvaluation evaluation = new MitBihEvaluation(tolerance, DEFAULT_SKIP_SECONDS);
+        evaluation.lowLatency = args.length > 3 && args[3].equals("lowlatency");
+
+        long start = System.nanoTime();
+        List<Result> results = evaluation.evaluate(files, threads);
+        long duration = System.nanoTime() - start;
+
+        Result total = new Result();
+        total.samplingRate = 1;
+        double totalSeconds = 0;
+        int numLatencies = 0;
+        for (Result r : results) {
+            numLatencies += r.latencies.length;
+        }
+        double[] latencies = new double[numLatencies];
+        numLatencies = 0;
+
+        for (Result r : results) {
+            if (r.error != null) {
+                System.err.println(r.name + ": " + r.error.getMessage());
+                continue;
+            }
+            total.truePositives += r.truePositives;
+            total.falseNegatives += r.falseNegatives;
+            total.falsePositives += r.falsePositives;
+            totalSeconds += r.numSamples / r.samplingRate;
+            System.arraycopy(r.latencies, 0, latencies, numLatencies, r.latencies.length);
+            numLatencies += r.latencies.length;
+
+            System.out.println(String.format(Locale.US,
+                    "%-12s TP %6d  FN %5d  FP %5d  Se %6.2f%%  +P %6.2f%%  %s  %.0fx real time",
+                    r.name, r.truePositives, r.falseNegatives, r.falsePositives,
+                    r.sensitivity() * 100, r.positivePredictivity() * 100,
+                    formatLatencies(r.latencies), r.realTimeFactor()));
+        }
+
+        Arrays.sort(latencies);
+        System.out.println(String.format(Locale.US,
+                "%-12s TP %6d  FN %5d  FP %5d  Se %6.2f%%  +P %6.2f%%  %s",
+                "gross", total.truePositives, total.falseNegatives, total.falsePositives,
+                total.sensitivity() * 100, total.positivePredictivity() * 100, formatLatencies(latencies)));
+        System.out.println(String.format(Locale.US,
+                "%d records, %.1f h of ECG in %.2f s wall time: %.0fx real time",
+                results.size(), totalSeconds / 3600, duration / 1e9, totalSeconds / (duration / 1e9)));
+    }
+}
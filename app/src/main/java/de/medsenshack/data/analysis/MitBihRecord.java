@@ -0,0 +1,164 @@
+package de.medsenshack.data.analysis;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A MIT-BIH record in the text format used by
+ * <code>BleEcgSimulatedSensor.WfDbEcgSignal</code>: a CSV signal file (two header lines, the second
+ * one carrying the sampling interval, then <code>sample,lead1,lead2</code>) and a space separated
+ * annotation file with the sample number in the 2nd and the annotation code in the 3rd column. The
+ * annotation file name is the signal file name with "sig" replaced by "ann".
+ */
+public class MitBihRecord {
+
+    /**
+     * annotation codes that label a beat, all other codes are rhythm changes, noise, comments etc.
+     */
+    public static final String BEAT_CODES = "NLRBAaJSVrFejnE/fQ?";
+    /**
+     * default sampling interval of the MIT-BIH Arrhythmia Database in seconds
+     */
+    private static final float DEFAULT_SAMPLE_INTERVAL = 0.00277778f;
+
+    public final String name;
+    public double samplingRate;
+    /**
+     * samples of the selected lead
+     */
+    public double[] values;
+    public int num;
+    /**
+     * sample numbers of all beat annotations, in ascending order
+     */
+    public int[] beats;
+    /**
+     * annotation codes of all beats
+     */
+    public char[] beatCodes;
+    public int numBeats;
+
+    private MitBihRecord(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @param signalFile the signal file, its name has to contain "sig"
+     * @return the matching annotation file
+     */
+    public static File annotationFile(File signalFile) {
+        return new File(signalFile.getParentFile(), signalFile.getName().replace("sig", "ann"));
+    }
+
+    /**
+     * Loads signal and beat annotations of a record.
+     *
+     * @param signalFile the CSV-converted signal file
+     * @param leadColumn the column (starting at 1) of the desired lead
+     * @return the loaded record
+     * @throws IOException if one of the files can't be read or parsed
+     */
+    public static MitBihRecord load(File signalFile, int leadColumn) throws IOException {
+        String name = signalFile.getName();
+        int dot = name.lastIndexOf('.');
+        MitBihRecord rec = new MitBihRecord(dot > 0 ? name.substring(0, dot) : name);
+        rec.loadSignal(signalFile, leadColumn);
+        rec.loadAnnotations(annotationFile(signalFile));
+        return rec;
+    }
+
+    private void loadSignal(File file, int leadColumn) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(file), 1 << 16);
+        try {
+            values = new double[(int) Math.max(1024, file.length() >> 3)];
+            float sampleInterval = -1;
+
+            // skip header line
+            reader.readLine();
+
+            // read sampling interval, e.g. '0.00277778 sec'
+            String line = reader.readLine();
+            if (line != null && line.startsWith("'")) {
+                int i = line.indexOf(' ');
+                if (i > 1) {
+                    try {
+                        sampleInterval = Float.parseFloat(line.substring(1, i));
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+            if (sampleInterval <= 0) {
+                sampleInterval = DEFAULT_SAMPLE_INTERVAL;
+            }
+            samplingRate = Math.round(1.0 / sampleInterval);
+
+            while ((line = reader.readLine()) != null) {
+                // find the lead column
+                int start = 0;
+                for (int col = 1; col < leadColumn && start >= 0; col++) {
+                    start = line.indexOf(',', start);
+                    if (start >= 0) {
+                        start++;
+                    }
+                }
+                if (start < 0) {
+                    continue;
+                }
+                int end = line.indexOf(',', start);
+                if (end < 0) {
+                    end = line.length();
+                }
+
+                if (num == values.length) {
+                    values = Arrays.copyOf(values, num << 1);
+                }
+                values[num++] = Double.parseDouble(line.substring(start, end));
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid sample in " + file, e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void loadAnnotations(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            beats = new int[4096];
+            beatCodes = new char[4096];
+
+            // skip header line
+            reader.readLine();
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] cols = line.trim().split("\\s+");
+                if (cols.length < 3 || cols[2].length() != 1 || BEAT_CODES.indexOf(cols[2].charAt(0)) < 0) {
+                    continue;
+                }
+
+                if (numBeats == beats.length) {
+                    beats = Arrays.copyOf(beats, numBeats << 1);
+                    beatCodes = Arrays.copyOf(beatCodes, numBeats << 1);
+                }
+                beats[numBeats] = Integer.parseInt(cols[1]);
+                beatCodes[numBeats] = cols[2].charAt(0);
+                numBeats++;
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid annotation in " + file, e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @return the samples trimmed to the valid length
+     */
+    public double[] samples() {
+        return values.length == num ? values : Arrays.copyOf(values, num);
+    }
+}
@@ -106,7 +106,7 @@ public class AnnotationWriter {
     }
 
     /**
-     * Prepares the {@link DataWriter}
+     * Prepares the {@link AnnotationWriter}
      */
     public void prepareWriter() {
         FileWriter fw;
@@ -0,0 +1,505 @@
+package de.medsenshack.data.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import de.medsenshack.data.BeatLatency;
+
+/**
+ * Binary recording of all sensor channels into one file, written by a background thread.
+ * <p/>
+ * The acquisition thread encodes every sample as a fixed size little endian record
+ * (<code>channel u8, timestamp i64 ms, packet timestamp i32, values f32[]</code>) into the active one
+ * of two equal blocks. A full block is handed to the writer thread, which writes it with a single
+ * channel write, while the other block is filled; records that don't fit are split across blocks,
+ * so without a sync interval all blocks but the last have exactly the block size. Only if the
+ * writer has not returned the other block yet, the acquisition thread has to wait, which is counted
+ * as a stall. Nothing is allocated per sample.
+ * <p/>
+ * The file starts with a header: magic <code>MSHR</code>, version, start time and the channel
+ * table (name, sampling rate, number of values). Channels are added before {@link #start(long)}.
+ * A recorder is fed by a single thread.
+ * <p/>
+ * With a segment size, the records after the header are grouped into segments of exactly that size
+ * (version {@link #INDEXED_VERSION}, the segment size follows the start time in the header). A
+ * record never crosses a segment; a full segment is padded with zeros and ends with the channel
+ * index and a footer of {@link #FOOTER_SIZE} bytes: {@link #FOOTER_MAGIC}, segment number, number
+ * of records, bytes used by the records and the smallest and largest timestamp. The channel index
+ * holds the u16 offsets of the records of each channel within the segment, channel by channel,
+ * followed by the u16 number of records of each channel, so a reader finds the records of one
+ * channel without touching the others. {@link RecordingIndex} finds the segments of a file from their
+ * footers alone and recovers a file that ends in an unfinished segment. Version
+ * {@link #SEGMENTED_VERSION} files have no channel index.
+ * <p/>
+ * With a sync interval, the active block is handed over as soon as the timestamps of the records
+ * have advanced by the interval, even if it isn't full, and the writer thread forces the written
+ * data to the storage device at most once per interval, after it has returned the block. A killed
+ * app loses only about the records of the last interval, and the acquisition thread never waits for
+ * the device.
+ */
+public class BinaryRecorder {
+
+    public static final int MAGIC = 0x5248534d;
+    public static final int VERSION = 1;
+    public static final int SEGMENTED_VERSION = 2;
+    public static final int INDEXED_VERSION = 3;
+    /**
+     * largest segment size, the offsets of the channel index are u16
+     */
+    public static final int MAX_SEGMENT_SIZE = 64 * 1024;
+    public static final int FOOTER_MAGIC = 0x4753534d;
+    public static final int FOOTER_SIZE = 4 + 4 + 4 + 4 + 8 + 8;
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+    /**
+     * size of a record without the values
+     */
+    public static final int RECORD_HEADER = 1 + 8 + 4;
+    public static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final ByteBuffer CLOSE = ByteBuffer.allocate(0);
+
+    /**
+     * A channel of the recording.
+     */
+    public static class Channel {
+        public final int id;
+        public final String name;
+        public final double samplingRate;
+        public final int numValues;
+
+        public Channel(int id, String name, double samplingRate, int numValues) {
+            this.id = id;
+            this.name = name;
+            this.samplingRate = samplingRate;
+            this.numValues = numValues;
+        }
+
+        public int recordSize() {
+            return RECORD_HEADER + 4 * numValues;
+        }
+    }
+
+    private final WritableByteChannel out;
+    private final List<Channel> channels = new ArrayList<>();
+    private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(2);
+    private final BlockingQueue<ByteBuffer> full = new ArrayBlockingQueue<>(3);
+    private final ByteBuffer scratch = ByteBuffer.allocate(256).order(ORDER);
+    private final ByteBuffer zeros = ByteBuffer.allocate(1024);
+    private ByteBuffer block;
+    private Thread writer;
+
+    private final int segmentSize;
+    private final long syncInterval;
+    /**
+     * the open segment, recordSize and recordChannel belong to the record being encoded
+     */
+    private int segmentUsed = 0, segmentRecords = 0, recordSize, recordChannel;
+    /**
+     * offsets of the records of each channel in the open segment
+     */
+    private short[][] segmentOffsets;
+    private int[] segmentCounts;
+    private long segmentMin, segmentMax;
+    private long lastHandOver;
+
+    /**
+     * records of the acquisition thread
+     */
+    public long records = 0;
+    /**
+     * records dropped after a write error
+     */
+    public long droppedRecords = 0;
+    /**
+     * times and total duration the acquisition thread waited for a free block
+     */
+    public long stalls = 0, stallNanos = 0;
+    /**
+     * written by the writer thread
+     */
+    public volatile long bytesWritten = 0;
+    public volatile long blocksWritten = 0;
+    /**
+     * duration of the block writes
+     */
+    public final BeatLatency.Histogram flushLatency = new BeatLatency.Histogram();
+    /**
+     * first write error, the recording stops afterwards
+     */
+    public volatile IOException error = null;
+    /**
+     * finished segments
+     */
+    public long segments = 0;
+    /**
+     * forced writes to the device by the writer thread and their duration
+     */
+    public volatile long syncs = 0;
+    public final BeatLatency.Histogram syncLatency = new BeatLatency.Histogram();
+
+    /**
+     * @param out       destination, closed by {@link #close()}
+     * @param blockSize size of the two blocks in bytes
+     */
+    public BinaryRecorder(WritableByteChannel out, int blockSize) {
+        this(out, blockSize, 0, 0);
+    }
+
+    /**
+     * @param out          destination, closed by {@link #close()}, synced only if it is a
+     *                     {@link FileChannel}
+     * @param blockSize    size of the two blocks in bytes
+     * @param segmentSize  size of the segments in bytes, at most {@link #MAX_SEGMENT_SIZE}, 0 for a
+     *                     recording without segments
+     * @param syncInterval longest time in ms of the records that is kept in memory, 0 to hand over
+     *                     full blocks only and never sync
+     */
+    public BinaryRecorder(WritableByteChannel out, int blockSize, int segmentSize, long syncInterval) {
+        if (blockSize < 256)
+            throw new InvalidParameterException("block size must be at least 256 bytes");
+        if (segmentSize != 0 && (segmentSize < 1024 || segmentSize > MAX_SEGMENT_SIZE))
+            throw new InvalidParameterException("segment size must be between 1024 and " + MAX_SEGMENT_SIZE + " bytes");
+        if (syncInterval < 0)
+            throw new InvalidParameterException("sync interval must not be negative");
+        this.out = out;
+        this.segmentSize = segmentSize;
+        this.syncInterval = syncInterval;
+        block = ByteBuffer.allocateDirect(blockSize).order(ORDER);
+        free.add(ByteBuffer.allocateDirect(blockSize).order(ORDER));
+    }
+
+    public BinaryRecorder(File file) throws IOException {
+        this(new FileOutputStream(file).getChannel(), DEFAULT_BLOCK_SIZE);
+    }
+
+    public BinaryRecorder(File file, int segmentSize, long syncInterval) throws IOException {
+        this(new FileOutputStream(file).getChannel(), DEFAULT_BLOCK_SIZE, segmentSize, syncInterval);
+    }
+
+    /**
+     * @param numValues values per sample, e.g. 3 for an accelerometer
+     * @return the id of the channel
+     */
+    public int addChannel(String name, double samplingRate, int numValues) {
+        if (writer != null)
+            throw new IllegalStateException("channels have to be added before start");
+        if (channels.size() == 255 || numValues < 1 || RECORD_HEADER + 4 * numValues > scratch.capacity())
+            throw new InvalidParameterException("too many channels or values");
+        Channel channel = new Channel(channels.size(), name, samplingRate, numValues);
+        channels.add(channel);
+        return channel.id;
+    }
+
+    public List<Channel> channels() {
+        return channels;
+    }
+
+    /**
+     * Writes the header and starts the writer thread.
+     *
+     * @param startTime wall clock time of the start in ms
+     */
+    public void start(long startTime) {
+        if (writer != null)
+            throw new IllegalStateException("already started");
+        scratch.clear();
+        scratch.putInt(MAGIC);
+        scratch.putShort((short) (segmentSize > 0 ? INDEXED_VERSION : VERSION));
+        scratch.putShort((short) channels.size());
+        scratch.putLong(startTime);
+        if (segmentSize > 0)
+            scratch.putInt(segmentSize);
+        scratch.flip();
+        put(scratch);
+        for (Channel channel : channels) {
+            byte[] name = channel.name.getBytes(UTF8);
+            scratch.clear();
+            scratch.put((byte) channel.numValues);
+            scratch.putDouble(channel.samplingRate);
+            scratch.put((byte) Math.min(255, name.length));
+            scratch.flip();
+            put(scratch);
+            put(ByteBuffer.wrap(name, 0, Math.min(255, name.length)));
+        }
+        lastHandOver = startTime;
+        if (segmentSize > 0) {
+            segmentOffsets = new short[channels.size()][];
+            segmentCounts = new int[channels.size()];
+            for (Channel channel : channels) {
+                segmentOffsets[channel.id] = new short[segmentSize / channel.recordSize()];
+            }
+        }
+
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "BinaryRecorder");
+        writer.start();
+    }
+
+    public void record(int channel, long timestamp, long packetTimestamp, double value) {
+        ByteBuffer b = begin(channel, 1);
+        b.putLong(timestamp);
+        b.putInt((int) packetTimestamp);
+        b.putFloat((float) value);
+        end(b, timestamp);
+    }
+
+    public void record(int channel, long timestamp, long packetTimestamp, double x, double y, double z) {
+        ByteBuffer b = begin(channel, 3);
+        b.putLong(timestamp);
+        b.putInt((int) packetTimestamp);
+        b.putFloat((float) x);
+        b.putFloat((float) y);
+        b.putFloat((float) z);
+        end(b, timestamp);
+    }
+
+    public void record(int channel, long timestamp, long packetTimestamp, double[] values) {
+        ByteBuffer b = begin(channel, values.length);
+        b.putLong(timestamp);
+        b.putInt((int) packetTimestamp);
+        for (double v : values) {
+            b.putFloat((float) v);
+        }
+        end(b, timestamp);
+    }
+
+    /**
+     * @return the buffer to encode the record into, the active block if it fits, else the scratch
+     */
+    private ByteBuffer begin(int channel, int numValues) {
+        if (channels.get(channel).numValues != numValues)
+            throw new InvalidParameterException("channel " + channel + " has " + channels.get(channel).numValues + " values");
+        recordSize = RECORD_HEADER + 4 * numValues;
+        recordChannel = channel;
+        if (segmentSize > 0 && segmentUsed + recordSize + indexSize(segmentRecords + 1) > segmentSize - FOOTER_SIZE)
+            seal();
+        ByteBuffer b = block;
+        if (error != null || b.remaining() < recordSize) {
+            b = scratch;
+            b.clear();
+        }
+        b.put((byte) channel);
+        return b;
+    }
+
+    private void end(ByteBuffer b, long timestamp) {
+        if (b == scratch) {
+            if (error != null) {
+                droppedRecords++;
+                return;
+            }
+            scratch.flip();
+            put(scratch);
+        } else if (!block.hasRemaining()) {
+            handOver();
+        }
+        records++;
+
+        if (segmentSize > 0) {
+            if (segmentRecords == 0 || timestamp < segmentMin)
+                segmentMin = timestamp;
+            if (segmentRecords == 0 || timestamp > segmentMax)
+                segmentMax = timestamp;
+            segmentOffsets[recordChannel][segmentCounts[recordChannel]++] = (short) segmentUsed;
+            segmentUsed += recordSize;
+            segmentRecords++;
+        }
+        if (syncInterval > 0 && timestamp - lastHandOver >= syncInterval) {
+            if (block.position() > 0)
+                handOver();
+            lastHandOver = timestamp;
+        }
+    }
+
+    /**
+     * @return the size of the channel index of a segment with the given number of records
+     */
+    private int indexSize(int numRecords) {
+        return 2 * (numRecords + channels.size());
+    }
+
+    /**
+     * Pads the open segment and appends its channel index and footer.
+     */
+    private void seal() {
+        int padding = segmentSize - FOOTER_SIZE - indexSize(segmentRecords) - segmentUsed;
+        while (padding > 0) {
+            zeros.clear();
+            zeros.limit(Math.min(padding, zeros.capacity()));
+            padding -= zeros.remaining();
+            put(zeros);
+        }
+        scratch.clear();
+        for (int c = 0; c < segmentOffsets.length; c++) {
+            for (int i = 0; i < segmentCounts[c]; i++) {
+                if (!scratch.hasRemaining())
+                    flushScratch();
+                scratch.putShort(segmentOffsets[c][i]);
+            }
+        }
+        for (int c = 0; c < segmentCounts.length; c++) {
+            if (!scratch.hasRemaining())
+                flushScratch();
+            scratch.putShort((short) segmentCounts[c]);
+            segmentCounts[c] = 0;
+        }
+        flushScratch();
+        scratch.putInt(FOOTER_MAGIC);
+        scratch.putInt((int) segments);
+        scratch.putInt(segmentRecords);
+        scratch.putInt(segmentUsed);
+        scratch.putLong(segmentMin);
+        scratch.putLong(segmentMax);
+        scratch.flip();
+        put(scratch);
+        segments++;
+        segmentUsed = 0;
+        segmentRecords = 0;
+    }
+
+    private void flushScratch() {
+        scratch.flip();
+        put(scratch);
+        scratch.clear();
+    }
+
+    /**
+     * Copies the remaining bytes of a buffer into the blocks, handing full blocks over.
+     */
+    private void put(ByteBuffer src) {
+        while (src.hasRemaining()) {
+            int n = Math.min(src.remaining(), block.remaining());
+            int limit = src.limit();
+            src.limit(src.position() + n);
+            block.put(src);
+            src.limit(limit);
+            if (!block.hasRemaining())
+                handOver();
+        }
+    }
+
+    private void handOver() {
+        full.add(block);
+        ByteBuffer next = free.poll();
+        if (next == null) {
+            stalls++;
+            long start = System.nanoTime();
+            boolean interrupted = false;
+            while (next == null) {
+                try {
+                    next = free.take();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            stallNanos += System.nanoTime() - start;
+        }
+        block = next;
+    }
+
+    private void write() {
+        long lastSync = System.nanoTime();
+        while (true) {
+            ByteBuffer b;
+            try {
+                b = full.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            if (b == CLOSE) {
+                if (syncInterval > 0)
+                    sync();
+                return;
+            }
+
+            b.flip();
+            int n = b.remaining();
+            long start = System.nanoTime();
+            try {
+                if (error == null) {
+                    while (b.hasRemaining()) {
+                        out.write(b);
+                    }
+                    bytesWritten += n;
+                    blocksWritten++;
+                    flushLatency.record((System.nanoTime() - start) / 1000);
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+            b.clear();
+            free.add(b);
+
+            // after the block is returned, the acquisition thread doesn't wait for the device
+            if (syncInterval > 0 && System.nanoTime() - lastSync >= syncInterval * 1000000) {
+                sync();
+                lastSync = System.nanoTime();
+            }
+        }
+    }
+
+    private void sync() {
+        if (error != null || !(out instanceof FileChannel))
+            return;
+        long start = System.nanoTime();
+        try {
+            ((FileChannel) out).force(false);
+            syncs++;
+            syncLatency.record((System.nanoTime() - start) / 1000);
+        } catch (IOException e) {
+            error = e;
+        }
+    }
+
+    /**
+     * Finishes the open segment, writes the partially filled block, stops the writer thread and
+     * closes the destination.
+     *
+     * @throws IOException the first write error, if any
+     */
+    public void close() throws IOException {
+        try {
+            if (writer != null) {
+                if (segmentRecords > 0)
+                    seal();
+                if (block.position() > 0) {
+                    full.add(block);
+                    block = null;
+                }
+                full.add(CLOSE);
+                boolean interrupted = false;
+                while (writer.isAlive()) {
+                    try {
+                        writer.join();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+            }
+        } finally {
+            out.close();
+        }
+        if (error != null)
+            throw error;
+    }
+}
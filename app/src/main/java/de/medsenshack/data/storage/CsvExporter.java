@@ -0,0 +1,114 @@
+package de.medsenshack.data.storage;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Converts a segmented recording of the {@link BinaryRecorder} into one CSV file per channel, as the
+ * app wrote them while streaming before the binary recording replaced them, so the offline tools in
+ * <code>de.medsenshack.data.analysis</code> keep working.
+ * <p/>
+ * Every file has a header line <code>samplingrate&lt;rate&gt;</code> followed by one
+ * <code>timestamp,packetTimestamp,values</code> line per sample and is named
+ * <code>&lt;channel&gt;_&lt;dd.MM.yy_HH.mm&gt;_.csv</code> after the start time of the recording.
+ */
+public class CsvExporter {
+
+    private static final String HEADER = "samplingrate";
+    private static final char SEPARATOR = '\n';
+    private static final char DELIMITER = ',';
+
+    /**
+     * @param recording the binary recording, finished or recovered
+     * @param dir       destination directory, existing files of the same name are overwritten
+     * @return the CSV file of each channel by id
+     */
+    public static File[] export(File recording, File dir) throws IOException {
+        RecordingReader reader = new RecordingReader(recording);
+        final Writer[] writers = new Writer[reader.index.channels.size()];
+        try {
+            String time = new SimpleDateFormat("dd.MM.yy_HH.mm_", Locale.getDefault())
+                    .format(new Date(reader.index.startTime));
+            File[] files = new File[writers.length];
+            for (BinaryRecorder.Channel c : reader.index.channels) {
+                files[c.id] = new File(dir, c.name + "_" + time + ".csv");
+                writers[c.id] = new BufferedWriter(new FileWriter(files[c.id]), 1 << 16);
+                writers[c.id].write(HEADER);
+                writers[c.id].write(String.valueOf(c.samplingRate));
+                writers[c.id].write(SEPARATOR);
+            }
+
+            reader.scan(new RecordingReader.Visitor() {
+                @Override
+                public void record(int channel, long timestamp, long packetTimestamp, float[] values) throws IOException {
+                    Writer w = writers[channel];
+                    w.write(String.valueOf(timestamp));
+                    w.write(DELIMITER);
+                    w.write(String.valueOf(packetTimestamp));
+                    for (float v : values) {
+                        w.write(DELIMITER);
+                        w.write(String.valueOf(v));
+                    }
+                    w.write(SEPARATOR);
+                }
+            });
+            return files;
+        } finally {
+            try {
+                for (Writer w : writers) {
+                    if (w != null)
+                        w.close();
+                }
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Converts all session recordings of a directory.
+     *
+     * @param args recording directory, output directory
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: CsvExporter <recording dir> <output dir>");
+            System.exit(1);
+        }
+
+        File inputDir = new File(args[0]);
+        File outputDir = new File(args[1]);
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            System.err.println("Cannot create output directory " + outputDir);
+            System.exit(1);
+        }
+
+        File[] recordings = inputDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith("session_") && name.endsWith(".bin");
+            }
+        });
+        if (recordings == null || recordings.length == 0) {
+            System.err.println("No recordings in " + inputDir);
+            System.exit(1);
+        }
+        for (File recording : recordings) {
+            try {
+                if (!RecordingIndex.isSealed(recording))
+                    RecordingIndex.recover(recording);
+                File[] files = export(recording, outputDir);
+                System.out.println(recording.getName() + ": " + files.length + " channels");
+            } catch (IOException e) {
+                System.err.println(recording.getName() + ": " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,402 @@
+package de.medsenshack.data.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.InvalidParameterException;
+
+/**
+ * Lossless streaming compression of an integer biosignal, e.g. the 16 bit ADC values of the ECG.
+ * <p/>
+ * The samples are stored in blocks. Each block starts with a fixed size header (index and
+ * timestamp of the first sample, payload length, number of samples, delta order and the first
+ * value), followed by the remaining samples as zigzag encoded varints of their first or second
+ * order differences. The order is chosen per block by the smaller encoded size: the second
+ * difference suits smooth, oversampled signals, the first one noisy signals. A noisy 250 Hz ECG
+ * takes between one and two bytes per sample.
+ * <p/>
+ * The file starts with a header: magic <code>MSHE</code>, version, samples per block, sampling rate
+ * and start time. Because the block headers hold the payload length, a {@link Reader} finds all
+ * blocks by skipping from header to header and decodes only the blocks that are read.
+ */
+public class EcgCodec {
+
+    public static final int MAGIC = 0x4548534d;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 4 + 2 + 2 + 8 + 8;
+    public static final int BLOCK_HEADER_SIZE = 8 + 8 + 4 + 2 + 1 + 4;
+    public static final int DEFAULT_BLOCK_SAMPLES = 1024;
+    public static final int MAX_BLOCK_SAMPLES = 16384;
+    public static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    /**
+     * longest varint of a 64 bit value
+     */
+    private static final int MAX_VARINT = 10;
+
+    /**
+     * Encodes the samples of a signal into an output stream, one block at a time. Nothing is
+     * allocated after construction.
+     */
+    public static class Writer {
+        private final OutputStream out;
+        private final int[] values;
+        private final byte[] buffer;
+        private final ByteBuffer header;
+        private int num = 0;
+        private long firstTimestamp;
+
+        /**
+         * samples added
+         */
+        public long samples = 0;
+        /**
+         * bytes written including the headers
+         */
+        public long bytes = 0;
+        public long blocks = 0;
+
+        /**
+         * Writes the file header.
+         *
+         * @param out          destination, closed by {@link #close()}
+         * @param samplingRate sampling rate in Hz
+         * @param startTime    wall clock time of the start in ms
+         * @param blockSamples samples per block
+         */
+        public Writer(OutputStream out, double samplingRate, long startTime, int blockSamples) throws IOException {
+            if (blockSamples < 2 || blockSamples > MAX_BLOCK_SAMPLES)
+                throw new InvalidParameterException("block size must be between 2 and " + MAX_BLOCK_SAMPLES + " samples");
+            this.out = out;
+            values = new int[blockSamples];
+            buffer = new byte[BLOCK_HEADER_SIZE + MAX_VARINT * blockSamples];
+            header = ByteBuffer.wrap(buffer).order(ORDER);
+
+            header.putInt(MAGIC);
+            header.putShort((short) VERSION);
+            header.putShort((short) blockSamples);
+            header.putDouble(samplingRate);
+            header.putLong(startTime);
+            out.write(buffer, 0, HEADER_SIZE);
+            bytes = HEADER_SIZE;
+        }
+
+        public Writer(File file, double samplingRate, long startTime) throws IOException {
+            this(new FileOutputStream(file), samplingRate, startTime, DEFAULT_BLOCK_SAMPLES);
+        }
+
+        /**
+         * Adds a sample, a full block is written to the output stream.
+         *
+         * @param timestamp time of the sample in ms
+         */
+        public void add(long timestamp, int value) throws IOException {
+            if (num == 0)
+                firstTimestamp = timestamp;
+            values[num++] = value;
+            if (num == values.length)
+                flush();
+        }
+
+        /**
+         * Writes the samples added so far as a block, even if it isn't full.
+         */
+        public void flush() throws IOException {
+            if (num == 0)
+                return;
+            int order = size(values, num, 2) < size(values, num, 1) ? 2 : 1;
+            int length = encode(values, num, order, buffer, BLOCK_HEADER_SIZE) - BLOCK_HEADER_SIZE;
+
+            header.clear();
+            header.putLong(samples);
+            header.putLong(firstTimestamp);
+            header.putInt(length);
+            header.putShort((short) num);
+            header.put((byte) order);
+            header.putInt(values[0]);
+            out.write(buffer, 0, BLOCK_HEADER_SIZE + length);
+
+            samples += num;
+            bytes += BLOCK_HEADER_SIZE + length;
+            blocks++;
+            num = 0;
+            out.flush();
+        }
+
+        /**
+         * Writes the last block and closes the output stream.
+         */
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Random access to an encoded signal in a buffer, e.g. a mapped file. The block positions are
+     * collected once by skipping over the payloads; a truncated last block, e.g. after the app was
+     * killed, is ignored.
+     */
+    public static class Reader {
+        private final ByteBuffer buffer;
+        public final double samplingRate;
+        public final long startTime;
+        public final int blockSamples;
+        /**
+         * samples in the complete blocks
+         */
+        public final long numSamples;
+        /**
+         * set if the buffer ends within a block
+         */
+        public final boolean truncated;
+
+        private int numBlocks = 0;
+        private long[] blockIndex = new long[64];
+        private long[] blockTimestamp = new long[64];
+        private int[] blockOffset = new int[64];
+
+        /**
+         * the last decoded block
+         */
+        private final int[] values;
+        private byte[] payload;
+        private int decoded = -1;
+
+        /**
+         * @param buffer encoded signal from position 0 to the limit, byte order is ignored
+         * @throws IOException if the header is invalid
+         */
+        public Reader(ByteBuffer buffer) throws IOException {
+            this.buffer = buffer.duplicate().order(ORDER);
+            ByteBuffer b = this.buffer;
+            if (b.limit() < HEADER_SIZE || b.getInt(0) != MAGIC)
+                throw new IOException("not an ECG codec stream");
+            if (b.getShort(4) != VERSION)
+                throw new IOException("unsupported version " + b.getShort(4));
+            blockSamples = b.getShort(6);
+            samplingRate = b.getDouble(8);
+            startTime = b.getLong(16);
+            if (blockSamples < 2 || blockSamples > MAX_BLOCK_SAMPLES)
+                throw new IOException("invalid block size " + blockSamples);
+            values = new int[blockSamples];
+            payload = new byte[MAX_VARINT * blockSamples];
+
+            int pos = HEADER_SIZE;
+            long samples = 0;
+            while (pos + BLOCK_HEADER_SIZE <= b.limit()) {
+                int length = b.getInt(pos + 16);
+                int count = b.getShort(pos + 20);
+                if (length < 0 || count < 1 || count > blockSamples || b.getLong(pos) != samples
+                        || (long) pos + BLOCK_HEADER_SIZE + length > b.limit())
+                    break;
+                if (numBlocks == blockOffset.length)
+                    grow();
+                blockIndex[numBlocks] = samples;
+                blockTimestamp[numBlocks] = b.getLong(pos + 8);
+                blockOffset[numBlocks] = pos;
+                numBlocks++;
+                samples += count;
+                pos += BLOCK_HEADER_SIZE + length;
+            }
+            numSamples = samples;
+            truncated = pos != b.limit();
+        }
+
+        /**
+         * Maps a file read only.
+         */
+        public static Reader open(File file) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                return new Reader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            } finally {
+                raf.close();
+            }
+        }
+
+        private void grow() {
+            int capacity = blockOffset.length << 1;
+            long[] index = new long[capacity];
+            long[] timestamp = new long[capacity];
+            int[] offset = new int[capacity];
+            System.arraycopy(blockIndex, 0, index, 0, numBlocks);
+            System.arraycopy(blockTimestamp, 0, timestamp, 0, numBlocks);
+            System.arraycopy(blockOffset, 0, offset, 0, numBlocks);
+            blockIndex = index;
+            blockTimestamp = timestamp;
+            blockOffset = offset;
+        }
+
+        public int numBlocks() {
+            return numBlocks;
+        }
+
+        /**
+         * @return the block containing a sample, -1 if it is out of range
+         */
+        public int block(long sample) {
+            if (sample < 0 || sample >= numSamples)
+                return -1;
+            int lo = 0, hi = numBlocks - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (blockIndex[mid] <= sample)
+                    lo = mid;
+                else
+                    hi = mid - 1;
+            }
+            return lo;
+        }
+
+        /**
+         * @return the time of a sample in ms, from the timestamp of its block and the sampling rate
+         */
+        public long timestamp(long sample) {
+            int block = block(sample);
+            if (block == -1)
+                throw new IndexOutOfBoundsException("sample " + sample + " of " + numSamples);
+            return blockTimestamp[block] + Math.round((sample - blockIndex[block]) * 1000 / samplingRate);
+        }
+
+        /**
+         * @return the first sample at or after a time in ms, numSamples if there is none
+         */
+        public long sampleAt(long timestamp) {
+            if (numBlocks == 0)
+                return 0;
+            int lo = 0, hi = numBlocks - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (blockTimestamp[mid] <= timestamp)
+                    lo = mid;
+                else
+                    hi = mid - 1;
+            }
+            if (timestamp <= blockTimestamp[lo])
+                return blockIndex[lo];
+            long end = lo + 1 < numBlocks ? blockIndex[lo + 1] : numSamples;
+            long sample = blockIndex[lo] + (long) Math.ceil((timestamp - blockTimestamp[lo]) * samplingRate / 1000);
+            return Math.min(sample, end);
+        }
+
+        /**
+         * Decodes consecutive samples.
+         *
+         * @param from first sample
+         * @param out  receives the samples
+         * @return the number of samples read, less than len at the end of the signal
+         */
+        public int read(long from, int[] out, int off, int len) {
+            int n = 0;
+            while (n < len) {
+                int block = block(from + n);
+                if (block == -1)
+                    break;
+                int count = decode(block);
+                int start = (int) (from + n - blockIndex[block]);
+                int k = Math.min(len - n, count - start);
+                System.arraycopy(values, start, out, off + n, k);
+                n += k;
+            }
+            return n;
+        }
+
+        /**
+         * @return the number of samples of the block, decoded into values
+         */
+        private int decode(int block) {
+            int pos = blockOffset[block];
+            int length = buffer.getInt(pos + 16);
+            int count = buffer.getShort(pos + 20);
+            if (decoded == block)
+                return count;
+            int order = buffer.get(pos + 22);
+            int first = buffer.getInt(pos + 23);
+            ByteBuffer b = buffer.duplicate();
+            b.position(pos + BLOCK_HEADER_SIZE);
+            b.get(payload, 0, length);
+            EcgCodec.decode(payload, 0, count, order, first, values, 0);
+            decoded = block;
+            return count;
+        }
+    }
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static int varintSize(long v) {
+        return v == 0 ? 1 : (63 - Long.numberOfLeadingZeros(v)) / 7 + 1;
+    }
+
+    /**
+     * @return the encoded size of the differences of the given order in bytes
+     */
+    static int size(int[] values, int n, int order) {
+        int size = 0;
+        long delta = 0;
+        for (int i = 1; i < n; i++) {
+            long d = (long) values[i] - values[i - 1];
+            size += varintSize(zigzag(order == 2 && i > 1 ? d - delta : d));
+            delta = d;
+        }
+        return size;
+    }
+
+    /**
+     * Encodes all values but the first as varints of their differences.
+     *
+     * @param order 1 or 2
+     * @param pos   position in out to start at
+     * @return the position after the last byte
+     */
+    static int encode(int[] values, int n, int order, byte[] out, int pos) {
+        long delta = 0;
+        for (int i = 1; i < n; i++) {
+            long d = (long) values[i] - values[i - 1];
+            long v = zigzag(order == 2 && i > 1 ? d - delta : d);
+            delta = d;
+            while ((v & ~0x7fL) != 0) {
+                out[pos++] = (byte) (v | 0x80);
+                v >>>= 7;
+            }
+            out[pos++] = (byte) v;
+        }
+        return pos;
+    }
+
+    /**
+     * Decodes n values encoded by {@link #encode(int[], int, int, byte[], int)}.
+     *
+     * @return the position after the last byte read
+     */
+    static int decode(byte[] in, int pos, int n, int order, int first, int[] out, int off) {
+        long value = first, delta = 0;
+        out[off] = first;
+        for (int i = 1; i < n; i++) {
+            long v = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = in[pos++];
+                v |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            long r = (v >>> 1) ^ -(v & 1);
+            delta = order == 2 && i > 1 ? delta + r : r;
+            value += delta;
+            out[off + i] = (int) value;
+        }
+        return pos;
+    }
+}
@@ -0,0 +1,129 @@
+package de.medsenshack.data.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Converts a segmented recording of the {@link BinaryRecorder} into an EDF+ file once the session
+ * is over, so the sensor thread never waits for the EDF file.
+ * <p/>
+ * Every value of every channel becomes a signal at the rate of the channel, a channel of several
+ * values gets the suffixes X, Y and Z. The records are read in the order they were written and
+ * the annotations collected during the session are interleaved with them by timestamp, so the
+ * annotation queues of the {@link EdfWriter} never overflow.
+ */
+public class EdfExporter {
+
+    private static final String[] AXES = {"X", "Y", "Z"};
+
+    /**
+     * Annotations of one EDF+ annotation signal, collected during a session. May be added to
+     * from any thread.
+     */
+    public static class Annotations {
+        /**
+         * space for annotations in each EDF record
+         */
+        public final int bytesPerRecord;
+        private long[] timestamps = new long[256];
+        private String[] texts = new String[256];
+        private int num = 0;
+
+        public Annotations(int bytesPerRecord) {
+            this.bytesPerRecord = bytesPerRecord;
+        }
+
+        /**
+         * @param timestamp wall clock time in ms
+         */
+        public synchronized void add(long timestamp, String text) {
+            if (num == timestamps.length) {
+                timestamps = Arrays.copyOf(timestamps, 2 * num);
+                texts = Arrays.copyOf(texts, 2 * num);
+            }
+            timestamps[num] = timestamp;
+            texts[num] = text;
+            num++;
+        }
+
+        public synchronized int size() {
+            return num;
+        }
+
+        synchronized long timestamp(int i) {
+            return timestamps[i];
+        }
+
+        synchronized String text(int i) {
+            return texts[i];
+        }
+    }
+
+    /**
+     * @param recording      the binary recording, finished or recovered
+     * @param edf            destination, overwritten
+     * @param recordDuration duration of an EDF record in s
+     * @param labels         label of each channel by id, null for the channel name
+     * @param physicalMin    physical value of the smallest digital value of all signals
+     * @param physicalMax    physical value of the largest digital value of all signals
+     * @param annotations    one annotation signal each
+     * @return the closed writer, for its statistics
+     */
+    public static EdfWriter export(File recording, File edf, int recordDuration, String[] labels,
+                                   double physicalMin, double physicalMax,
+                                   final Annotations... annotations) throws IOException {
+        RecordingReader reader = new RecordingReader(recording);
+        try {
+            final EdfWriter writer = new EdfWriter(edf, reader.index.startTime, recordDuration);
+            try {
+                final int[][] signals = new int[reader.index.channels.size()][];
+                for (BinaryRecorder.Channel c : reader.index.channels) {
+                    String label = labels != null && labels[c.id] != null ? labels[c.id] : c.name;
+                    signals[c.id] = new int[c.numValues];
+                    for (int v = 0; v < c.numValues; v++) {
+                        String suffix = c.numValues == 1 ? "" : v < AXES.length ? AXES[v] : String.valueOf(v);
+                        signals[c.id][v] = writer.addSignal(label + suffix, "", c.samplingRate, physicalMin, physicalMax);
+                    }
+                }
+                final int[] annotationSignals = new int[annotations.length];
+                for (int a = 0; a < annotations.length; a++) {
+                    annotationSignals[a] = writer.addAnnotations(annotations[a].bytesPerRecord);
+                }
+                writer.start();
+
+                final int[] next = new int[annotations.length];
+                reader.scan(new RecordingReader.Visitor() {
+                    @Override
+                    public void record(int channel, long timestamp, long packetTimestamp, float[] values) throws IOException {
+                        annotate(writer, annotationSignals, annotations, next, timestamp);
+                        for (int v = 0; v < values.length; v++) {
+                            writer.put(signals[channel][v], values[v]);
+                        }
+                    }
+                });
+                annotate(writer, annotationSignals, annotations, next, Long.MAX_VALUE);
+            } finally {
+                writer.close();
+            }
+            return writer;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Passes the annotations up to a timestamp to the writer.
+     *
+     * @param next index of the next annotation of each signal, advanced
+     */
+    private static void annotate(EdfWriter writer, int[] signals, Annotations[] annotations, int[] next, long timestamp) {
+        for (int a = 0; a < annotations.length; a++) {
+            Annotations list = annotations[a];
+            while (next[a] < list.size() && list.timestamp(next[a]) <= timestamp) {
+                writer.annotate(signals[a], list.timestamp(next[a]), list.text(next[a]));
+                next[a]++;
+            }
+        }
+    }
+}
@@ -0,0 +1,463 @@
+package de.medsenshack.data.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.InvalidParameterException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Streaming EDF+ (European Data Format) writer for biosignals of different sampling rates.
+ * <p/>
+ * Every signal keeps its native rate: a data record of {@link #recordDuration} seconds holds
+ * <code>rate * duration</code> 16 bit samples of each signal, scaled linearly from the physical
+ * range of the signal to the full digital range. The samples of each signal are collected in a
+ * ring of short values by count, so a signal is placed in time by its number of samples. A record
+ * is written with a single channel write as soon as all signals have delivered their samples for
+ * it. If a signal lags more than {@link #MAX_PENDING_RECORDS} records behind the others, e.g. a
+ * sensor that doesn't send a channel at all, its missing samples are filled with its last value and
+ * counted.
+ * <p/>
+ * Annotations are written as EDF+ time-stamped annotation lists into "EDF Annotations" signals
+ * with a fixed number of bytes per record. The first annotation signal also holds the start time
+ * of every record. Annotations that don't fit into a record move to the next one.
+ * <p/>
+ * The header is written with an unknown number of records, which is patched on {@link #close()}.
+ * All methods are synchronized, samples and annotations may come from different threads.
+ */
+public class EdfWriter {
+
+    public static final int HEADER_SIZE = 256;
+    public static final int SIGNAL_HEADER_SIZE = 256;
+    public static final int DIGITAL_MIN = -32768;
+    public static final int DIGITAL_MAX = 32767;
+    public static final String ANNOTATIONS_LABEL = "EDF Annotations";
+    /**
+     * records a signal may be ahead of the slowest signal
+     */
+    public static final int MAX_PENDING_RECORDS = 8;
+    /**
+     * position of the number of records in the header
+     */
+    private static final int NUM_RECORDS_OFFSET = 236;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * A signal of the file, either samples or annotations.
+     */
+    public static class Signal {
+        public final int id;
+        public final String label;
+        public final String dimension;
+        public final double physicalMin, physicalMax;
+        public final int samplesPerRecord;
+        public final boolean annotations;
+
+        /**
+         * ring of the pending digital samples, or the queued annotation lists
+         */
+        final short[] samples;
+        final byte[] queue;
+        int head = 0, num = 0;
+        short last = DIGITAL_MIN;
+        final double gain;
+
+        /**
+         * samples filled in because the signal lagged behind
+         */
+        public long filledSamples = 0;
+        /**
+         * annotations dropped because the queue was full
+         */
+        public long droppedAnnotations = 0;
+
+        Signal(int id, String label, String dimension, double physicalMin, double physicalMax,
+               int samplesPerRecord, boolean annotations) {
+            this.id = id;
+            this.label = label;
+            this.dimension = dimension;
+            this.physicalMin = physicalMin;
+            this.physicalMax = physicalMax;
+            this.samplesPerRecord = samplesPerRecord;
+            this.annotations = annotations;
+            gain = (DIGITAL_MAX - DIGITAL_MIN) / (physicalMax - physicalMin);
+            samples = annotations ? null : new short[samplesPerRecord * MAX_PENDING_RECORDS];
+            queue = annotations ? new byte[2 * samplesPerRecord * MAX_PENDING_RECORDS] : null;
+        }
+
+        short digital(double value) {
+            long d = Math.round((value - physicalMin) * gain + DIGITAL_MIN);
+            return (short) Math.max(DIGITAL_MIN, Math.min(DIGITAL_MAX, d));
+        }
+    }
+
+    private final FileChannel out;
+    public final long startTime;
+    /**
+     * duration of a data record in s
+     */
+    public final int recordDuration;
+    private final List<Signal> signals = new ArrayList<>();
+    private ByteBuffer record;
+    private boolean started = false;
+
+    /**
+     * data records written
+     */
+    public long records = 0;
+
+    /**
+     * @param out            destination, closed by {@link #close()}
+     * @param startTime      wall clock time of the first sample in ms
+     * @param recordDuration duration of a data record in s
+     */
+    public EdfWriter(FileChannel out, long startTime, int recordDuration) {
+        if (recordDuration < 1)
+            throw new InvalidParameterException("record duration must be at least 1 s");
+        this.out = out;
+        this.startTime = startTime;
+        this.recordDuration = recordDuration;
+    }
+
+    public EdfWriter(File file, long startTime, int recordDuration) throws IOException {
+        this(new RandomAccessFile(file, "rw").getChannel(), startTime, recordDuration);
+    }
+
+    /**
+     * @param samplingRate native rate in Hz, rate times record duration has to be an integer
+     * @param physicalMin  physical value of the smallest digital value
+     * @param physicalMax  physical value of the largest digital value
+     * @return the id of the signal
+     */
+    public synchronized int addSignal(String label, String dimension, double samplingRate,
+                                      double physicalMin, double physicalMax) {
+        double n = samplingRate * recordDuration;
+        if (started)
+            throw new IllegalStateException("signals have to be added before start");
+        if (n < 1 || n != Math.rint(n) || n > 32768 || physicalMax <= physicalMin)
+            throw new InvalidParameterException("rate times record duration must be an integer, the physical range positive");
+        Signal signal = new Signal(signals.size(), label, dimension, physicalMin, physicalMax, (int) n, false);
+        signals.add(signal);
+        return signal.id;
+    }
+
+    /**
+     * @param bytesPerRecord space for annotations in each record, even
+     * @return the id of the annotation signal
+     */
+    public synchronized int addAnnotations(int bytesPerRecord) {
+        if (started)
+            throw new IllegalStateException("signals have to be added before start");
+        if (bytesPerRecord < 16 || bytesPerRecord % 2 != 0)
+            throw new InvalidParameterException("annotation signals need an even number of at least 16 bytes");
+        Signal signal = new Signal(signals.size(), ANNOTATIONS_LABEL, "", -1, 1, bytesPerRecord / 2, true);
+        signals.add(signal);
+        return signal.id;
+    }
+
+    public List<Signal> signals() {
+        return signals;
+    }
+
+    /**
+     * @return the size of a data record in bytes
+     */
+    public int recordSize() {
+        int size = 0;
+        for (Signal signal : signals) {
+            size += 2 * signal.samplesPerRecord;
+        }
+        return size;
+    }
+
+    /**
+     * Writes the header.
+     */
+    public synchronized void start() throws IOException {
+        if (started)
+            throw new IllegalStateException("already started");
+        boolean annotations = false;
+        for (Signal signal : signals) {
+            annotations |= signal.annotations;
+        }
+        // the record start times need an annotation signal
+        if (!annotations)
+            addAnnotations(32);
+        started = true;
+        record = ByteBuffer.allocate(recordSize()).order(ByteOrder.LITTLE_ENDIAN);
+
+        Date start = new Date(startTime);
+        int ns = signals.size();
+        StringBuilder h = new StringBuilder(HEADER_SIZE + ns * SIGNAL_HEADER_SIZE);
+        field(h, "0", 8);
+        field(h, "X X X X", 80);
+        field(h, "Startdate " + new SimpleDateFormat("dd-MMM-yyyy", Locale.US).format(start).toUpperCase(Locale.US) + " X X X", 80);
+        field(h, new SimpleDateFormat("dd.MM.yy", Locale.US).format(start), 8);
+        field(h, new SimpleDateFormat("HH.mm.ss", Locale.US).format(start), 8);
+        field(h, String.valueOf(HEADER_SIZE + ns * SIGNAL_HEADER_SIZE), 8);
+        field(h, "EDF+C", 44);
+        field(h, "-1", 8);
+        field(h, String.valueOf(recordDuration), 8);
+        field(h, String.valueOf(ns), 4);
+        for (Signal s : signals) {
+            field(h, s.label, 16);
+        }
+        for (Signal s : signals) {
+            field(h, "", 80);
+        }
+        for (Signal s : signals) {
+            field(h, s.dimension, 8);
+        }
+        for (Signal s : signals) {
+            field(h, number(s.physicalMin), 8);
+        }
+        for (Signal s : signals) {
+            field(h, number(s.physicalMax), 8);
+        }
+        for (Signal s : signals) {
+            field(h, String.valueOf(DIGITAL_MIN), 8);
+        }
+        for (Signal s : signals) {
+            field(h, String.valueOf(DIGITAL_MAX), 8);
+        }
+        for (Signal s : signals) {
+            field(h, "", 80);
+        }
+        for (Signal s : signals) {
+            field(h, String.valueOf(s.samplesPerRecord), 8);
+        }
+        for (Signal s : signals) {
+            field(h, "", 32);
+        }
+        write(ByteBuffer.wrap(h.toString().getBytes(ASCII)), 0);
+    }
+
+    /**
+     * Appends a left aligned, space padded ASCII field.
+     */
+    private static void field(StringBuilder h, String value, int length) {
+        int n = Math.min(value.length(), length);
+        for (int i = 0; i < n; i++) {
+            char c = value.charAt(i);
+            h.append(c >= 32 && c < 127 ? c : '_');
+        }
+        for (int i = n; i < length; i++) {
+            h.append(' ');
+        }
+    }
+
+    /**
+     * @return a number of at most 8 characters
+     */
+    static String number(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e7)
+            return Long.toString((long) value);
+        String s = String.format(Locale.US, "%.6f", value);
+        if (s.length() > 8)
+            s = s.substring(0, 8);
+        if (s.indexOf('.') >= 0) {
+            int end = s.length();
+            while (s.charAt(end - 1) == '0')
+                end--;
+            if (s.charAt(end - 1) == '.')
+                end--;
+            s = s.substring(0, end);
+        }
+        return s;
+    }
+
+    public synchronized void put(int signal, double value) throws IOException {
+        Signal s = signals.get(signal);
+        if (s.annotations)
+            throw new InvalidParameterException("signal " + signal + " holds annotations");
+        if (s.num == s.samples.length)
+            writeRecord(true);
+        int i = s.head + s.num;
+        if (i >= s.samples.length)
+            i -= s.samples.length;
+        s.samples[i] = s.digital(value);
+        s.num++;
+        // only the slowest signal reaching a record boundary completes records
+        if (s.num % s.samplesPerRecord == 0) {
+            while (ready()) {
+                writeRecord(false);
+            }
+        }
+    }
+
+    public synchronized void put(int signal, double[] values, int off, int len) throws IOException {
+        for (int i = 0; i < len; i++) {
+            put(signal, values[off + i]);
+        }
+    }
+
+    /**
+     * Adds an annotation without duration.
+     *
+     * @param timestamp wall clock time in ms
+     */
+    public synchronized void annotate(int signal, long timestamp, String text) {
+        annotate(signal, timestamp, 0, text);
+    }
+
+    /**
+     * @param timestamp wall clock time in ms
+     * @param duration  duration in ms, 0 for none
+     */
+    public synchronized void annotate(int signal, long timestamp, long duration, String text) {
+        Signal s = signals.get(signal);
+        if (!s.annotations)
+            throw new InvalidParameterException("signal " + signal + " holds no annotations");
+        StringBuilder tal = new StringBuilder(32);
+        onset(tal, timestamp - startTime);
+        if (duration > 0) {
+            tal.append('\u0015');
+            tal.append(seconds(duration));
+        }
+        tal.append('\u0014').append(text.replace('\u0000', ' ').replace('\u0014', ' ')).append('\u0014');
+        byte[] bytes = tal.toString().getBytes(UTF8);
+        // the list of the record start time comes first in the first annotation signal
+        int reserved = firstAnnotations() == s ? 24 : 0;
+        if (bytes.length + 1 > 2 * s.samplesPerRecord - reserved || s.num + bytes.length + 1 > s.queue.length) {
+            s.droppedAnnotations++;
+            return;
+        }
+        System.arraycopy(bytes, 0, s.queue, s.num, bytes.length);
+        s.num += bytes.length;
+        s.queue[s.num++] = 0;
+    }
+
+    private static void onset(StringBuilder b, long ms) {
+        b.append(ms < 0 ? '-' : '+').append(seconds(Math.abs(ms)));
+    }
+
+    private static String seconds(long ms) {
+        if (ms % 1000 == 0)
+            return Long.toString(ms / 1000);
+        String fraction = Long.toString(1000 + ms % 1000).substring(1);
+        while (fraction.endsWith("0"))
+            fraction = fraction.substring(0, fraction.length() - 1);
+        return ms / 1000 + "." + fraction;
+    }
+
+    private Signal firstAnnotations() {
+        for (Signal s : signals) {
+            if (s.annotations)
+                return s;
+        }
+        return null;
+    }
+
+    /**
+     * @return true if every signal has the samples of the next record
+     */
+    private boolean ready() {
+        for (Signal s : signals) {
+            if (!s.annotations && s.num < s.samplesPerRecord)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Writes the next record.
+     *
+     * @param fill fill the missing samples of lagging signals with their last value
+     */
+    private void writeRecord(boolean fill) throws IOException {
+        record.clear();
+        Signal first = firstAnnotations();
+        for (Signal s : signals) {
+            if (s.annotations) {
+                int start = record.position();
+                int end = start + 2 * s.samplesPerRecord;
+                if (s == first) {
+                    StringBuilder tal = new StringBuilder(24);
+                    onset(tal, records * recordDuration * 1000);
+                    tal.append("\u0014\u0014");
+                    record.put(tal.toString().getBytes(ASCII));
+                    record.put((byte) 0);
+                }
+                // as many complete annotation lists as fit
+                int n = 0;
+                for (int i = 0; i < s.num; i++) {
+                    if (s.queue[i] == 0) {
+                        if (record.position() + i + 1 > end)
+                            break;
+                        n = i + 1;
+                    }
+                }
+                record.put(s.queue, 0, n);
+                System.arraycopy(s.queue, n, s.queue, 0, s.num - n);
+                s.num -= n;
+                while (record.position() < end) {
+                    record.put((byte) 0);
+                }
+            } else {
+                int n = Math.min(s.num, s.samplesPerRecord);
+                for (int i = 0; i < n; i++) {
+                    s.last = s.samples[s.head];
+                    record.putShort(s.last);
+                    if (++s.head == s.samples.length)
+                        s.head = 0;
+                }
+                s.num -= n;
+                if (n < s.samplesPerRecord) {
+                    if (!fill)
+                        throw new IllegalStateException("signal " + s.id + " is not ready");
+                    for (int i = n; i < s.samplesPerRecord; i++) {
+                        record.putShort(s.last);
+                    }
+                    s.filledSamples += s.samplesPerRecord - n;
+                }
+            }
+        }
+        record.flip();
+        write(record, HEADER_SIZE + signals.size() * SIGNAL_HEADER_SIZE + records * record.capacity());
+        records++;
+    }
+
+    private void write(ByteBuffer b, long pos) throws IOException {
+        while (b.hasRemaining()) {
+            pos += out.write(b, pos);
+        }
+    }
+
+    /**
+     * Writes the pending samples as a last record, filled up where needed, patches the number of
+     * records in the header and closes the file.
+     */
+    public synchronized void close() throws IOException {
+        try {
+            if (started) {
+                boolean pending = false;
+                for (Signal s : signals) {
+                    pending |= !s.annotations && s.num > 0;
+                }
+                while (pending) {
+                    writeRecord(true);
+                    pending = false;
+                    for (Signal s : signals) {
+                        pending |= !s.annotations && s.num > 0;
+                    }
+                }
+                StringBuilder n = new StringBuilder(8);
+                field(n, String.valueOf(records), 8);
+                write(ByteBuffer.wrap(n.toString().getBytes(ASCII)), NUM_RECORDS_OFFSET);
+                out.force(false);
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
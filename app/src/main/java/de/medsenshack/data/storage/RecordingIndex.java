@@ -0,0 +1,341 @@
+package de.medsenshack.data.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Index of a segmented recording of the {@link BinaryRecorder}, built from the segment footers.
+ * <p/>
+ * Only the footer of each segment is read, so even a day long recording is indexed in a few
+ * milliseconds. If the app was killed, the file ends within a segment without a footer; its records
+ * are found by scanning that one segment up to the first incomplete record, the first record of an
+ * unknown channel or the first record with a zero timestamp, which is where the written data ends.
+ * {@link #recover(File)} then truncates the file there and appends the missing channel index and
+ * footer, so the recording is complete again. {@link #isSealed(File)} tells whether that is needed from the file
+ * length and the last footer alone.
+ */
+public class RecordingIndex {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public final List<BinaryRecorder.Channel> channels = new ArrayList<>();
+    /**
+     * wall clock time of the start in ms
+     */
+    public long startTime;
+    public int segmentSize;
+    /**
+     * true if the segments end with a channel index, see {@link BinaryRecorder}
+     */
+    public boolean channelIndex;
+    /**
+     * position of the first segment
+     */
+    public long dataOffset;
+
+    /**
+     * number of segments, including an unfinished last one
+     */
+    public int numSegments = 0;
+    /**
+     * per segment: smallest and largest timestamp, number of records and bytes used by the records
+     */
+    public long[] minTimestamp = new long[64];
+    public long[] maxTimestamp = new long[64];
+    public int[] records = new int[64];
+    public int[] used = new int[64];
+    /**
+     * false if the last segment has no footer
+     */
+    public boolean complete = true;
+    /**
+     * records of the unfinished last segment
+     */
+    public int recoveredRecords = 0;
+
+    private RecordingIndex() {
+    }
+
+    /**
+     * Reads the index of a recording.
+     *
+     * @throws IOException if the file can't be read or has no valid header
+     */
+    public static RecordingIndex read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return read(raf.getChannel());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads the index of a recording and finishes its last segment if the recording was
+     * interrupted.
+     *
+     * @return the index, complete
+     * @throws IOException if the file can't be read or written or has no valid header
+     */
+    public static RecordingIndex recover(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            RecordingIndex index = read(channel);
+            if (!index.complete) {
+                int last = index.numSegments - 1;
+                long start = index.segmentStart(last);
+                channel.truncate(start + index.used[last]);
+                if (index.records[last] == 0) {
+                    // nothing of the last segment was written
+                    index.numSegments--;
+                    channel.force(true);
+                    index.complete = true;
+                    return index;
+                }
+
+                if (index.channelIndex)
+                    write(channel, index.buildChannelIndex(channel, last), start + index.channelIndexStart(last));
+                ByteBuffer footer = ByteBuffer.allocate(BinaryRecorder.FOOTER_SIZE).order(BinaryRecorder.ORDER);
+                footer.putInt(BinaryRecorder.FOOTER_MAGIC);
+                footer.putInt(last);
+                footer.putInt(index.records[last]);
+                footer.putInt(index.used[last]);
+                footer.putLong(index.minTimestamp[last]);
+                footer.putLong(index.maxTimestamp[last]);
+                footer.flip();
+                write(channel, footer, start + index.segmentSize - BinaryRecorder.FOOTER_SIZE);
+                channel.force(true);
+                index.complete = true;
+            }
+            return index;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Checks whether a recording ends with a finished segment, reading only its header and the
+     * footer of the last segment. A recording that isn't sealed needs {@link #recover(File)}.
+     *
+     * @throws IOException if the file can't be read or has no valid header
+     */
+    public static boolean isSealed(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            RecordingIndex index = readHeader(channel);
+            long length = channel.size() - index.dataOffset;
+            if (length % index.segmentSize != 0)
+                return false;
+            long segments = length / index.segmentSize;
+            if (segments == 0)
+                return true;
+            ByteBuffer footer = ByteBuffer.allocate(BinaryRecorder.FOOTER_SIZE).order(BinaryRecorder.ORDER);
+            return read(channel, footer, channel.size() - BinaryRecorder.FOOTER_SIZE) == BinaryRecorder.FOOTER_SIZE
+                    && footer.getInt(0) == BinaryRecorder.FOOTER_MAGIC && footer.getInt(4) == segments - 1;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static RecordingIndex read(FileChannel channel) throws IOException {
+        RecordingIndex index = readHeader(channel);
+        long size = channel.size();
+
+        ByteBuffer footer = ByteBuffer.allocate(BinaryRecorder.FOOTER_SIZE).order(BinaryRecorder.ORDER);
+        for (int s = 0; index.segmentStart(s) < size; s++) {
+            long end = index.segmentStart(s) + index.segmentSize;
+            footer.clear();
+            if (end <= size && read(channel, footer, end - BinaryRecorder.FOOTER_SIZE) == BinaryRecorder.FOOTER_SIZE
+                    && footer.getInt(0) == BinaryRecorder.FOOTER_MAGIC && footer.getInt(4) == s) {
+                index.add(footer.getLong(16), footer.getLong(24), footer.getInt(8), footer.getInt(12));
+            } else {
+                index.scan(channel, s, size);
+                break;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Reads the header and the channel table.
+     */
+    private static RecordingIndex readHeader(FileChannel channel) throws IOException {
+        RecordingIndex index = new RecordingIndex();
+        ByteBuffer header = ByteBuffer.allocate(20).order(BinaryRecorder.ORDER);
+        if (read(channel, header, 0) < 20 || header.getInt(0) != BinaryRecorder.MAGIC)
+            throw new IOException("not a recording");
+        int version = header.getShort(4);
+        if (version != BinaryRecorder.SEGMENTED_VERSION && version != BinaryRecorder.INDEXED_VERSION)
+            throw new IOException("not a segmented recording");
+        index.channelIndex = version == BinaryRecorder.INDEXED_VERSION;
+        int numChannels = header.getShort(6);
+        index.startTime = header.getLong(8);
+        index.segmentSize = header.getInt(16);
+        if (index.segmentSize < 1024 || (index.channelIndex && index.segmentSize > BinaryRecorder.MAX_SEGMENT_SIZE))
+            throw new IOException("invalid segment size " + index.segmentSize);
+
+        long pos = 20;
+        ByteBuffer entry = ByteBuffer.allocate(255).order(BinaryRecorder.ORDER);
+        for (int c = 0; c < numChannels; c++) {
+            entry.clear();
+            entry.limit(10);
+            if (read(channel, entry, pos) < 10)
+                throw new IOException("truncated channel table");
+            int numValues = entry.get(0) & 0xff;
+            double samplingRate = entry.getDouble(1);
+            int length = entry.get(9) & 0xff;
+            entry.clear();
+            entry.limit(length);
+            if (read(channel, entry, pos + 10) < length)
+                throw new IOException("truncated channel table");
+            index.channels.add(new BinaryRecorder.Channel(c, new String(entry.array(), 0, length, UTF8),
+                    samplingRate, numValues));
+            pos += 10 + length;
+        }
+        index.dataOffset = pos;
+        return index;
+    }
+
+    /**
+     * Collects the records of an unfinished segment.
+     */
+    private void scan(FileChannel channel, int segment, long size) throws IOException {
+        long start = segmentStart(segment);
+        int length = (int) Math.min(size - start, segmentSize - BinaryRecorder.FOOTER_SIZE);
+        ByteBuffer b = ByteBuffer.allocate(length).order(BinaryRecorder.ORDER);
+        read(channel, b, start);
+
+        int pos = 0, n = 0;
+        long min = 0, max = 0;
+        while (pos < b.limit()) {
+            int c = b.get(pos) & 0xff;
+            if (c >= channels.size())
+                break;
+            int recordSize = channels.get(c).recordSize();
+            if (pos + recordSize > b.limit())
+                break;
+            long timestamp = b.getLong(pos + 1);
+            if (timestamp == 0)
+                break;
+            if (n == 0 || timestamp < min)
+                min = timestamp;
+            if (n == 0 || timestamp > max)
+                max = timestamp;
+            n++;
+            pos += recordSize;
+        }
+        add(min, max, n, pos);
+        complete = false;
+        recoveredRecords = n;
+    }
+
+    /**
+     * Collects the offsets of the records of a segment by channel, for a segment without a channel
+     * index.
+     */
+    private ByteBuffer buildChannelIndex(FileChannel channel, int segment) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(used[segment]).order(BinaryRecorder.ORDER);
+        read(channel, b, segmentStart(segment));
+        short[][] offsets = new short[channels.size()][records[segment]];
+        int[] counts = new int[channels.size()];
+        for (int pos = 0; pos < used[segment]; pos += channels.get(b.get(pos) & 0xff).recordSize()) {
+            int c = b.get(pos) & 0xff;
+            offsets[c][counts[c]++] = (short) pos;
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(2 * (records[segment] + channels.size())).order(BinaryRecorder.ORDER);
+        for (int c = 0; c < counts.length; c++) {
+            for (int i = 0; i < counts[c]; i++) {
+                out.putShort(offsets[c][i]);
+            }
+        }
+        for (int count : counts) {
+            out.putShort((short) count);
+        }
+        out.flip();
+        return out;
+    }
+
+    private void add(long min, long max, int numRecords, int usedBytes) {
+        if (numSegments == records.length) {
+            int capacity = numSegments << 1;
+            minTimestamp = grow(minTimestamp, capacity);
+            maxTimestamp = grow(maxTimestamp, capacity);
+            int[] r = new int[capacity];
+            int[] u = new int[capacity];
+            System.arraycopy(records, 0, r, 0, numSegments);
+            System.arraycopy(used, 0, u, 0, numSegments);
+            records = r;
+            used = u;
+        }
+        minTimestamp[numSegments] = min;
+        maxTimestamp[numSegments] = max;
+        records[numSegments] = numRecords;
+        used[numSegments] = usedBytes;
+        numSegments++;
+    }
+
+    private static long[] grow(long[] values, int capacity) {
+        long[] v = new long[capacity];
+        System.arraycopy(values, 0, v, 0, values.length);
+        return v;
+    }
+
+    /**
+     * @return the position of a segment in the file
+     */
+    public long segmentStart(int segment) {
+        return dataOffset + (long) segment * segmentSize;
+    }
+
+    /**
+     * @return the position of the channel index within a segment, only valid with
+     * {@link #channelIndex}; the counts of the channels are the last
+     * <code>2 * channels.size()</code> bytes of it
+     */
+    public int channelIndexStart(int segment) {
+        return segmentSize - BinaryRecorder.FOOTER_SIZE - 2 * (records[segment] + channels.size());
+    }
+
+    /**
+     * @return the records of all segments
+     */
+    public long numRecords() {
+        long n = 0;
+        for (int s = 0; s < numSegments; s++) {
+            n += records[s];
+        }
+        return n;
+    }
+
+    /**
+     * Reads until the buffer is full or the file ends.
+     *
+     * @return the number of bytes read
+     */
+    private static int read(FileChannel channel, ByteBuffer b, long pos) throws IOException {
+        int n = 0;
+        while (b.hasRemaining()) {
+            int r = channel.read(b, pos + n);
+            if (r < 0)
+                break;
+            n += r;
+        }
+        b.flip();
+        return n;
+    }
+
+    private static void write(FileChannel channel, ByteBuffer b, long pos) throws IOException {
+        while (b.hasRemaining()) {
+            pos += channel.write(b, pos);
+        }
+    }
+}
@@ -0,0 +1,528 @@
+package de.medsenshack.data.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import de.medsenshack.data.TrendStore;
+
+/**
+ * Random access to a segmented recording of the {@link BinaryRecorder} by time.
+ * <p/>
+ * The segment footers, read by {@link RecordingIndex}, are the sparse index: the running maximum
+ * and the minimum of the remaining segments of their timestamps are monotonic, so the segments
+ * of a time span are found by binary search. The file is memory mapped in chunks of whole segments
+ * when they are first read, and {@link #read(int, long, long, long[], float[], int)} decodes only the
+ * records of those segments into primitive arrays of the caller.
+ * <p/>
+ * Within a segment, the channel index written by the recorder lists the offsets of the records of
+ * each channel. A read binary searches the offsets of its channel for the start of the span and then
+ * decodes only the records it returns, so it costs O(s log r + k) for the s segments of the span,
+ * r records of the channel per segment and k samples, no matter how many records other channels
+ * have in between, e.g. a sparse channel next to 250 Hz ECG. Timestamps of a channel are expected
+ * not to decrease, as the sensors deliver them. Recordings without a channel index (version
+ * {@link BinaryRecorder#SEGMENTED_VERSION}) are read by walking all records of the segments.
+ * <p/>
+ * Overviews come from a summary file next to the recording (<code>&lt;recording&gt;.summary</code>),
+ * which holds the min, max, mean and count of every value of every channel in buckets of
+ * {@link #LEVELS} resolutions. It is built by a single pass over the recording the first time it is
+ * needed and rebuilt when the recording has changed since. A summary query reads only the buckets
+ * it returns, e.g. 2.3 kB for a 24 h overview of one value in 10 min buckets.
+ */
+public class RecordingReader {
+
+    public static final int SUMMARY_MAGIC = 0x5a48534d;
+    public static final int SUMMARY_VERSION = 1;
+    /**
+     * resolutions of the summary levels in ms
+     */
+    public static final long[] LEVELS = {1000, 10 * 1000, 60 * 1000, 10 * 60 * 1000, 60 * 60 * 1000};
+    /**
+     * bytes of a summary bucket: min, max, mean and count
+     */
+    public static final int BUCKET_SIZE = 16;
+    /**
+     * bytes of a summary table entry: position, first bucket and number of buckets
+     */
+    private static final int ENTRY_SIZE = 8 + 8 + 4;
+    private static final int SUMMARY_HEADER_SIZE = 4 + 2 + 2 + 8 + 8 + 8 * 5;
+    /**
+     * largest mapped chunk
+     */
+    private static final int CHUNK_SIZE = 64 * 1024 * 1024;
+
+    public final File file;
+    public final RecordingIndex index;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final long size;
+
+    /**
+     * running maximum of the largest timestamps and minimum of the smallest timestamps from a
+     * segment to the end, empty segments don't count
+     */
+    private final long[] maxBefore, minAfter;
+    private final int segmentsPerChunk;
+    private final MappedByteBuffer[] chunks;
+    private final int[] recordSize;
+
+    private FileChannel summary;
+    private ByteBuffer summaryTable;
+    private ByteBuffer buckets;
+    /**
+     * position of the first value of each channel in the summary
+     */
+    private final int[] valueOffset;
+    private final int numValues;
+
+    /**
+     * records touched by read and bytes read from the summary file, for the statistics
+     */
+    public long recordsScanned = 0;
+    public long summaryBytesRead = 0;
+    /**
+     * true if the summary file was built by this reader
+     */
+    public boolean summaryBuilt = false;
+
+    public RecordingReader(File file) throws IOException {
+        this.file = file;
+        index = RecordingIndex.read(file);
+        raf = new RandomAccessFile(file, "r");
+        channel = raf.getChannel();
+        size = channel.size();
+
+        int n = index.numSegments;
+        maxBefore = new long[n];
+        minAfter = new long[n];
+        long max = Long.MIN_VALUE;
+        for (int s = 0; s < n; s++) {
+            if (index.records[s] > 0)
+                max = Math.max(max, index.maxTimestamp[s]);
+            maxBefore[s] = max;
+        }
+        long min = Long.MAX_VALUE;
+        for (int s = n - 1; s >= 0; s--) {
+            if (index.records[s] > 0)
+                min = Math.min(min, index.minTimestamp[s]);
+            minAfter[s] = min;
+        }
+        segmentsPerChunk = Math.max(1, CHUNK_SIZE / index.segmentSize);
+        chunks = new MappedByteBuffer[(n + segmentsPerChunk - 1) / segmentsPerChunk];
+
+        recordSize = new int[index.channels.size()];
+        valueOffset = new int[index.channels.size()];
+        int values = 0;
+        for (BinaryRecorder.Channel c : index.channels) {
+            recordSize[c.id] = c.recordSize();
+            valueOffset[c.id] = values;
+            values += c.numValues;
+        }
+        numValues = values;
+    }
+
+    /**
+     * @return the smallest timestamp of the recording, Long.MAX_VALUE if it is empty
+     */
+    public long firstTimestamp() {
+        return minAfter.length == 0 ? Long.MAX_VALUE : minAfter[0];
+    }
+
+    /**
+     * @return the largest timestamp of the recording, Long.MIN_VALUE if it is empty
+     */
+    public long lastTimestamp() {
+        return maxBefore.length == 0 ? Long.MIN_VALUE : maxBefore[maxBefore.length - 1];
+    }
+
+    /**
+     * @return the mapped chunk of a segment, positioned at nothing; the segment starts at
+     * {@link #offsetInChunk(int)}
+     */
+    private MappedByteBuffer chunk(int segment) throws IOException {
+        int c = segment / segmentsPerChunk;
+        if (chunks[c] == null) {
+            long start = index.segmentStart(c * segmentsPerChunk);
+            long length = Math.min((long) segmentsPerChunk * index.segmentSize, size - start);
+            chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+            chunks[c].order(BinaryRecorder.ORDER);
+        }
+        return chunks[c];
+    }
+
+    private int offsetInChunk(int segment) {
+        return (segment % segmentsPerChunk) * index.segmentSize;
+    }
+
+    /**
+     * @return the first segment that may hold a timestamp at or after from
+     */
+    private int firstSegment(long from) {
+        int lo = 0, hi = maxBefore.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (maxBefore[mid] < from)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Reads the samples of a channel within a time span, in the order they were recorded.
+     *
+     * @param channel    id of the channel
+     * @param from       start of the span in ms
+     * @param to         end of the span in ms, inclusive
+     * @param timestamps receives the timestamps
+     * @param values     receives numValues values per sample
+     * @param max        largest number of samples to read
+     * @return the number of samples read
+     */
+    public int read(int channel, long from, long to, long[] timestamps, float[] values, int max) throws IOException {
+        if (!index.channelIndex)
+            return readAll(channel, from, to, timestamps, values, max);
+        int numValues = index.channels.get(channel).numValues;
+        int n = 0;
+        for (int s = firstSegment(from); s < index.numSegments && minAfter[s] <= to && n < max; s++) {
+            if (index.records[s] == 0 || index.maxTimestamp[s] < from || index.minTimestamp[s] > to)
+                continue;
+            MappedByteBuffer b = chunk(s);
+            int segment = offsetInChunk(s);
+            int table = segment + index.channelIndexStart(s);
+            int counts = table + 2 * index.records[s];
+            int first = 0, count = 0;
+            for (int c = 0; c <= channel; c++) {
+                first += count;
+                count = b.getShort(counts + 2 * c) & 0xffff;
+            }
+            int offsets = table + 2 * first;
+
+            // first record of the channel at or after from
+            int lo = 0, hi = count;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                recordsScanned++;
+                if (b.getLong(segment + (b.getShort(offsets + 2 * mid) & 0xffff) + 1) < from)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            for (int i = lo; i < count && n < max; i++) {
+                int pos = segment + (b.getShort(offsets + 2 * i) & 0xffff);
+                long timestamp = b.getLong(pos + 1);
+                recordsScanned++;
+                if (timestamp > to)
+                    break;
+                timestamps[n] = timestamp;
+                for (int v = 0; v < numValues; v++) {
+                    values[n * numValues + v] = b.getFloat(pos + BinaryRecorder.RECORD_HEADER + 4 * v);
+                }
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * {@link #read(int, long, long, long[], float[], int)} for recordings without a channel index,
+     * walks all records of the segments of the span.
+     */
+    private int readAll(int channel, long from, long to, long[] timestamps, float[] values, int max) throws IOException {
+        int numValues = index.channels.get(channel).numValues;
+        int n = 0;
+        for (int s = firstSegment(from); s < index.numSegments && minAfter[s] <= to && n < max; s++) {
+            if (index.records[s] == 0 || index.maxTimestamp[s] < from || index.minTimestamp[s] > to)
+                continue;
+            MappedByteBuffer b = chunk(s);
+            int pos = offsetInChunk(s);
+            int end = pos + index.used[s];
+            while (pos < end && n < max) {
+                int c = b.get(pos) & 0xff;
+                if (c == channel) {
+                    long timestamp = b.getLong(pos + 1);
+                    if (timestamp >= from && timestamp <= to) {
+                        timestamps[n] = timestamp;
+                        for (int v = 0; v < numValues; v++) {
+                            values[n * numValues + v] = b.getFloat(pos + BinaryRecorder.RECORD_HEADER + 4 * v);
+                        }
+                        n++;
+                    }
+                }
+                pos += recordSize[c];
+                recordsScanned++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Receives the records of {@link #scan(Visitor)}.
+     */
+    public interface Visitor {
+        /**
+         * @param values the values of the record, only valid during the call
+         */
+        void record(int channel, long timestamp, long packetTimestamp, float[] values) throws IOException;
+    }
+
+    /**
+     * Passes all records to a visitor in the order they were written.
+     */
+    public void scan(Visitor visitor) throws IOException {
+        float[][] values = new float[index.channels.size()][];
+        for (BinaryRecorder.Channel c : index.channels) {
+            values[c.id] = new float[c.numValues];
+        }
+        for (int s = 0; s < index.numSegments; s++) {
+            if (index.records[s] == 0)
+                continue;
+            MappedByteBuffer b = chunk(s);
+            int pos = offsetInChunk(s);
+            int end = pos + index.used[s];
+            while (pos < end) {
+                int c = b.get(pos) & 0xff;
+                float[] v = values[c];
+                for (int i = 0; i < v.length; i++) {
+                    v[i] = b.getFloat(pos + BinaryRecorder.RECORD_HEADER + 4 * i);
+                }
+                visitor.record(c, b.getLong(pos + 1), b.getInt(pos + 9), v);
+                pos += recordSize[c];
+            }
+        }
+    }
+
+    /**
+     * Returns the summary buckets of one value of a channel from the finest level that covers the
+     * span with at most <code>out.capacity()</code> buckets, or from the coarsest level, clipped to
+     * its last buckets. Empty buckets are left out.
+     *
+     * @param value index of the value within a sample, e.g. 0..2 for an accelerometer
+     * @return the number of buckets
+     */
+    public int summary(int channel, int value, long from, long to, TrendStore.Series out) throws IOException {
+        out.num = 0;
+        if (to < from)
+            return 0;
+        openSummary();
+
+        int level = LEVELS.length - 1;
+        for (int l = 0; l < LEVELS.length; l++) {
+            if (to / LEVELS[l] - from / LEVELS[l] + 1 <= out.capacity()) {
+                level = l;
+                break;
+            }
+        }
+        int entry = ((valueOffset[channel] + value) * LEVELS.length + level) * ENTRY_SIZE;
+        long position = summaryTable.getLong(entry);
+        long firstBucket = summaryTable.getLong(entry + 8);
+        int numBuckets = summaryTable.getInt(entry + 16);
+        long resolution = LEVELS[level];
+        out.resolution = resolution;
+
+        long first = Math.max(from / resolution - firstBucket, 0);
+        long last = Math.min(to / resolution - firstBucket, numBuckets - 1);
+        first = Math.max(first, last - out.capacity() + 1);
+        if (last < first)
+            return 0;
+
+        int length = (int) (last - first + 1) * BUCKET_SIZE;
+        if (buckets == null || buckets.capacity() < length)
+            buckets = ByteBuffer.allocate(Math.max(length, 1024)).order(BinaryRecorder.ORDER);
+        buckets.clear();
+        buckets.limit(length);
+        long pos = position + first * BUCKET_SIZE;
+        while (buckets.hasRemaining()) {
+            if (summary.read(buckets, pos + buckets.position()) < 0)
+                throw new IOException("truncated summary");
+        }
+        summaryBytesRead += length;
+
+        for (int i = 0; i < length; i += BUCKET_SIZE) {
+            int count = buckets.getInt(i + 12);
+            if (count == 0)
+                continue;
+            int k = out.num++;
+            out.timestamps[k] = (firstBucket + first + i / BUCKET_SIZE) * resolution;
+            out.min[k] = buckets.getFloat(i);
+            out.max[k] = buckets.getFloat(i + 4);
+            out.mean[k] = buckets.getFloat(i + 8);
+            out.count[k] = count;
+        }
+        return out.num;
+    }
+
+    /**
+     * Opens the summary file, builds it if it is missing or belongs to another state of the
+     * recording.
+     */
+    private void openSummary() throws IOException {
+        if (summary != null)
+            return;
+        File file = summaryFile(this.file);
+        if (!isValid(file))
+            build(file);
+        summary = new RandomAccessFile(file, "r").getChannel();
+        int tableSize = numValues * LEVELS.length * ENTRY_SIZE;
+        summaryTable = ByteBuffer.allocate(tableSize).order(BinaryRecorder.ORDER);
+        while (summaryTable.hasRemaining()) {
+            if (summary.read(summaryTable, SUMMARY_HEADER_SIZE + summaryTable.position()) < 0)
+                throw new IOException("truncated summary");
+        }
+        summaryBytesRead += SUMMARY_HEADER_SIZE + tableSize;
+    }
+
+    public static File summaryFile(File recording) {
+        return new File(recording.getPath() + ".summary");
+    }
+
+    private boolean isValid(File file) throws IOException {
+        if (!file.isFile())
+            return false;
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            ByteBuffer header = ByteBuffer.allocate(SUMMARY_HEADER_SIZE).order(BinaryRecorder.ORDER);
+            FileChannel c = in.getChannel();
+            while (header.hasRemaining()) {
+                if (c.read(header, header.position()) < 0)
+                    return false;
+            }
+            if (header.getInt(0) != SUMMARY_MAGIC || header.getShort(4) != SUMMARY_VERSION
+                    || header.getShort(6) != LEVELS.length || header.getLong(8) != size
+                    || header.getLong(16) != index.numRecords())
+                return false;
+            for (int l = 0; l < LEVELS.length; l++) {
+                if (header.getLong(24 + 8 * l) != LEVELS[l])
+                    return false;
+            }
+            return true;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Collects the buckets of the finest level in one pass over all records, derives the coarser
+     * levels from them and writes the summary file.
+     */
+    private void build(File file) throws IOException {
+        long first = firstTimestamp() / LEVELS[0];
+        int n = index.numRecords() == 0 ? 0 : (int) (lastTimestamp() / LEVELS[0] - first + 1);
+        float[][] min = new float[numValues][n], max = new float[numValues][n];
+        double[][] sum = new double[numValues][n];
+        int[][] count = new int[numValues][n];
+
+        for (int s = 0; s < index.numSegments; s++) {
+            if (index.records[s] == 0)
+                continue;
+            MappedByteBuffer b = chunk(s);
+            int pos = offsetInChunk(s);
+            int end = pos + index.used[s];
+            while (pos < end) {
+                int c = b.get(pos) & 0xff;
+                int bucket = (int) (b.getLong(pos + 1) / LEVELS[0] - first);
+                for (int v = 0; v < index.channels.get(c).numValues; v++) {
+                    float value = b.getFloat(pos + BinaryRecorder.RECORD_HEADER + 4 * v);
+                    add(min, max, sum, count, valueOffset[c] + v, bucket, value, value, value, 1);
+                }
+                pos += recordSize[c];
+            }
+        }
+
+        FileChannel out = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            out.truncate(0);
+            ByteBuffer b = ByteBuffer.allocate(64 * 1024).order(BinaryRecorder.ORDER);
+            b.putInt(SUMMARY_MAGIC);
+            b.putShort((short) SUMMARY_VERSION);
+            b.putShort((short) LEVELS.length);
+            b.putLong(size);
+            b.putLong(index.numRecords());
+            for (long resolution : LEVELS) {
+                b.putLong(resolution);
+            }
+
+            long position = SUMMARY_HEADER_SIZE + (long) numValues * LEVELS.length * ENTRY_SIZE;
+            for (int v = 0; v < numValues; v++) {
+                for (long resolution : LEVELS) {
+                    long levelFirst = n == 0 ? 0 : first * LEVELS[0] / resolution;
+                    int levelNum = n == 0 ? 0 : (int) ((first + n - 1) * LEVELS[0] / resolution - levelFirst + 1);
+                    b.putLong(position);
+                    b.putLong(levelFirst);
+                    b.putInt(levelNum);
+                    position += (long) levelNum * BUCKET_SIZE;
+                    if (b.remaining() < ENTRY_SIZE)
+                        flush(out, b);
+                }
+            }
+
+            for (int v = 0; v < numValues; v++) {
+                for (long resolution : LEVELS) {
+                    float[][] lmin = min, lmax = max;
+                    double[][] lsum = sum;
+                    int[][] lcount = count;
+                    int levelNum = n;
+                    if (resolution != LEVELS[0] && n > 0) {
+                        long levelFirst = first * LEVELS[0] / resolution;
+                        levelNum = (int) ((first + n - 1) * LEVELS[0] / resolution - levelFirst + 1);
+                        lmin = new float[1][levelNum];
+                        lmax = new float[1][levelNum];
+                        lsum = new double[1][levelNum];
+                        lcount = new int[1][levelNum];
+                        for (int i = 0; i < n; i++) {
+                            if (count[v][i] > 0)
+                                add(lmin, lmax, lsum, lcount, 0, (int) ((first + i) * LEVELS[0] / resolution - levelFirst),
+                                        min[v][i], max[v][i], sum[v][i], count[v][i]);
+                        }
+                    }
+                    int k = lmin == min ? v : 0;
+                    for (int i = 0; i < levelNum; i++) {
+                        if (b.remaining() < BUCKET_SIZE)
+                            flush(out, b);
+                        int c = lcount[k][i];
+                        b.putFloat(lmin[k][i]);
+                        b.putFloat(lmax[k][i]);
+                        b.putFloat(c == 0 ? 0 : (float) (lsum[k][i] / c));
+                        b.putInt(c);
+                    }
+                }
+            }
+            flush(out, b);
+            out.force(false);
+        } finally {
+            out.close();
+        }
+        summaryBuilt = true;
+    }
+
+    private static void add(float[][] min, float[][] max, double[][] sum, int[][] count, int v, int bucket,
+                            float lo, float hi, double s, int c) {
+        if (count[v][bucket] == 0 || lo < min[v][bucket])
+            min[v][bucket] = lo;
+        if (count[v][bucket] == 0 || hi > max[v][bucket])
+            max[v][bucket] = hi;
+        sum[v][bucket] += s;
+        count[v][bucket] += c;
+    }
+
+    private static void flush(FileChannel out, ByteBuffer b) throws IOException {
+        b.flip();
+        while (b.hasRemaining()) {
+            out.write(b);
+        }
+        b.clear();
+    }
+
+    public void close() throws IOException {
+        try {
+            if (summary != null)
+                summary.close();
+        } finally {
+            raf.close();
+        }
+    }
+}
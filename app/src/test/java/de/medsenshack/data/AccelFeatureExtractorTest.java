@@ -0,0 +1,68 @@
+package de.medsenshack.data;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the sliding-window accelerometer features with a direct computation.
+ */
+public class AccelFeatureExtractorTest {
+
+    @Test
+    public void slidingWindowEqualsDirect() {
+        AccelFeatureExtractor acc = new AccelFeatureExtractor(10, 10 * 1000, 5 * 1000, 100);
+        Random rnd = new Random(4);
+        int n = 2000;
+        long[] t = new long[n];
+        double[][] v = new double[n][3];
+        long time = 1000;
+        int checked = 0;
+
+        for (int i = 0; i < n; i++) {
+            // 10 Hz with jitter, walking at 2 Hz on the z axis
+            time += 100 + rnd.nextInt(11) - 5;
+            t[i] = time;
+            v[i][0] = Math.round(20 * rnd.nextGaussian());
+            v[i][1] = Math.round(10 + 20 * rnd.nextGaussian());
+            v[i][2] = Math.round(488 + 150 * Math.sin(2 * Math.PI * 2 * time / 1000.0 + 0.3) + 10 * rnd.nextGaussian());
+
+            if (!acc.add(t[i], v[i][0], v[i][1], v[i][2]))
+                continue;
+            checked++;
+
+            int from = i;
+            while (from > 0 && t[from - 1] > time - acc.window)
+                from--;
+            int num = i - from + 1;
+            assertEquals(num, acc.size());
+
+            double[] sum = new double[3], sum2 = new double[3];
+            double sma = 0;
+            for (int j = from; j <= i; j++) {
+                for (int a = 0; a < 3; a++) {
+                    sum[a] += v[j][a];
+                    sum2[a] += v[j][a] * v[j][a];
+                    sma += Math.abs(v[j][a]);
+                }
+            }
+            // energy as formerly computed by BleService
+            double energy = Math.abs(Math.sqrt((sum2[0] / num + sum2[1] / num + sum2[2] / num) / 3) - 488.0);
+            float[] f = acc.features;
+            assertEquals(energy, f[AccelFeatureExtractor.ENERGY], 1e-3);
+            for (int a = 0; a < 3; a++) {
+                double mean = sum[a] / num;
+                assertEquals(mean, f[AccelFeatureExtractor.MEAN_X + a], 1e-3);
+                assertEquals(sum2[a] / num - mean * mean, f[AccelFeatureExtractor.VAR_X + a], 1e-1);
+            }
+            assertEquals(sma / num, f[AccelFeatureExtractor.SMA], 1e-3);
+            assertEquals(2, f[AccelFeatureExtractor.DOMINANT_FREQUENCY], 0.15);
+            // about two crossings per period on z
+            assertEquals(40, f[AccelFeatureExtractor.ZERO_CROSSINGS_Z], 3);
+        }
+        assertTrue(checked > 30);
+        assertEquals(checked, acc.energy.num);
+    }
+}
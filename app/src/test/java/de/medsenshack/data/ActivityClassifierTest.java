@@ -0,0 +1,151 @@
+package de.medsenshack.data;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import de.medsenshack.data.analysis.ActivityTrainer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Trains a forest on simulated labeled recordings and classifies an unseen recording with it.
+ */
+public class ActivityClassifierTest {
+
+    private static final int SAMPLING_RATE = 10;
+    private static final long SEGMENT = 2 * 60 * 1000;
+
+    private static final ActivityClass[] SEQUENCE = {
+            ActivityClass.SIT, ActivityClass.STAND, ActivityClass.WALK, ActivityClass.RUN,
+            ActivityClass.WALK, ActivityClass.STAIRS_UP, ActivityClass.STAND, ActivityClass.IDLE};
+
+    /**
+     * Simulates one accelerometer sample (1 g = 488) of an activity.
+     */
+    private static double[] simulate(ActivityClass activity, long t, Random rnd) {
+        double s = t / 1000.0;
+        double x, y, z;
+        switch (activity) {
+            case IDLE:
+                x = 0;
+                y = 0;
+                z = 488;
+                break;
+            case SIT:
+                x = 300;
+                y = 50;
+                z = 380;
+                break;
+            case WALK:
+                x = 20 + 60 * Math.sin(2 * Math.PI * 1.9 * s);
+                y = 480 + 120 * Math.sin(2 * Math.PI * 1.9 * s + 1);
+                z = 40;
+                break;
+            case STAIRS_UP:
+                x = 120 + 50 * Math.sin(2 * Math.PI * 1.4 * s);
+                y = 460 + 90 * Math.sin(2 * Math.PI * 1.4 * s + 1);
+                z = 40;
+                break;
+            case RUN:
+                x = 20 + 150 * Math.sin(2 * Math.PI * 2.8 * s);
+                y = 480 + 350 * Math.sin(2 * Math.PI * 2.8 * s + 1);
+                z = 40 + 80 * Math.sin(2 * Math.PI * 2.8 * s + 2);
+                break;
+            default:
+                x = 20;
+                y = 480;
+                z = 40;
+        }
+        return new double[]{
+                Math.round(x + 8 * rnd.nextGaussian()),
+                Math.round(y + 8 * rnd.nextGaussian()),
+                Math.round(z + 8 * rnd.nextGaussian())};
+    }
+
+    @Test
+    public void annotationsLabelWholeWindows() {
+        ActivityTrainer.Annotations annotations = new ActivityTrainer.Annotations();
+        annotations.add(2000, ActivityClass.WALK);
+        annotations.add(1000, ActivityClass.SIT);
+        assertEquals(-1, annotations.label(0, 900));
+        assertEquals(ActivityClass.SIT.ordinal(), annotations.label(1000, 1999));
+        assertEquals(-1, annotations.label(1500, 2000));
+        assertEquals(ActivityClass.WALK.ordinal(), annotations.label(2000, 9000));
+    }
+
+    @Test
+    public void classifiesUnseenRecording() throws Exception {
+        // training recording, each activity twice with other noise than the test recording
+        Random rnd = new Random(1);
+        int n = (int) (2 * SEQUENCE.length * SEGMENT * SAMPLING_RATE / 1000);
+        long[] t = new long[n];
+        double[] x = new double[n], y = new double[n], z = new double[n];
+        ActivityTrainer.Annotations annotations = new ActivityTrainer.Annotations();
+        for (int i = 0; i < n; i++) {
+            t[i] = 100000 + i * 1000L / SAMPLING_RATE;
+            int segment = (int) ((t[i] - t[0]) / SEGMENT);
+            ActivityClass activity = SEQUENCE[segment % SEQUENCE.length];
+            if ((t[i] - t[0]) % SEGMENT == 0)
+                annotations.add(t[i], activity);
+            double[] v = simulate(activity, t[i], rnd);
+            x[i] = v[0];
+            y[i] = v[1];
+            z[i] = v[2];
+        }
+
+        ActivityTrainer trainer = new ActivityTrainer(10 * 1000, 2500);
+        trainer.numTrees = 15;
+        int examples = trainer.addRecording(annotations, SAMPLING_RATE, t, x, y, z, n);
+        assertEquals(examples, trainer.num);
+        assertTrue(examples > 16 * 40);
+        ActivityClassifier classifier = trainer.train(3);
+        assertTrue(trainer.oobAccuracy > 0.95);
+        assertEquals(15, classifier.numTrees());
+
+        // the model survives a round trip
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        classifier.write(out);
+        ActivityClassifier loaded = ActivityClassifier.read(new ByteArrayInputStream(out.toByteArray()), 3);
+        assertEquals(classifier.numNodes(), loaded.numNodes());
+
+        // unseen recording, classified window by window like in the app
+        AccelFeatureExtractor extractor = new AccelFeatureExtractor(SAMPLING_RATE, 10 * 1000, 10 * 1000, 100);
+        extractor.listener = loaded;
+        final List<ActivityClass> changes = new ArrayList<>();
+        loaded.listener = new ActivityClassifier.Listener() {
+            @Override
+            public void onActivityChanged(ActivityClassifier classifier, long timestamp, ActivityClass previous, ActivityClass current) {
+                assertNotEquals(previous, current);
+                changes.add(current);
+            }
+        };
+        rnd = new Random(2);
+        long start = 5000000;
+        int correct = 0, total = 0;
+        for (long time = start; time < start + SEQUENCE.length * SEGMENT; time += 1000 / SAMPLING_RATE) {
+            ActivityClass activity = SEQUENCE[(int) ((time - start) / SEGMENT)];
+            double[] v = simulate(activity, time, rnd);
+            if (extractor.add(time, v[0], v[1], v[2])) {
+                assertEquals(classifier.predict(extractor.features), loaded.lastPrediction.ordinal());
+                // windows within one activity
+                if ((time - start) % SEGMENT >= extractor.window) {
+                    total++;
+                    if (loaded.lastPrediction == activity)
+                        correct++;
+                }
+            }
+        }
+
+        assertTrue(correct > 0.9 * total);
+        // every activity is recognized once, without flickering
+        assertEquals(SEQUENCE.length, changes.size());
+        for (int i = 0; i < SEQUENCE.length; i++) {
+            assertEquals(SEQUENCE[i], changes.get(i));
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package de.medsenshack.data;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the incremental AF measures with a direct computation and checks episode detection.
+ */
+public class AfDetectorTest {
+
+    private static final int WINDOW = 32;
+
+    @Test
+    public void slidingWindowEqualsDirect() {
+        AfDetector af = new AfDetector(WINDOW);
+        Random rnd = new Random(11);
+        int[] rr = new int[500];
+        for (int i = 0; i < rr.length; i++) {
+            // alternate between regular and irregular stretches
+            rr[i] = (i / 100) % 2 == 0 ? 800 + (int) (20 * rnd.nextGaussian()) : 400 + rnd.nextInt(800);
+        }
+
+        long t = 0;
+        for (int n = 0; n < rr.length; n++) {
+            t += rr[n];
+            af.add(t, rr[n]);
+            if (n < WINDOW - 1) {
+                assertTrue(Double.isNaN(af.cosen));
+                continue;
+            }
+
+            int from = n - WINDOW + 1;
+            double sum = 0, diff2 = 0;
+            int turning = 0;
+            long b = 0, a = 0;
+            for (int i = from; i <= n; i++) {
+                sum += rr[i];
+                if (i > from)
+                    diff2 += (rr[i] - rr[i - 1]) * (rr[i] - rr[i - 1]);
+                if (i > from && i < n && ((rr[i] > rr[i - 1] && rr[i] > rr[i + 1]) ||
+                        (rr[i] < rr[i - 1] && rr[i] < rr[i + 1])))
+                    turning++;
+                for (int j = i + 1; j < n; j++) {
+                    if (Math.abs(rr[i] - rr[j]) <= AfDetector.TOLERANCE) {
+                        b++;
+                        if (Math.abs(rr[i + 1] - rr[j + 1]) <= AfDetector.TOLERANCE)
+                            a++;
+                    }
+                }
+            }
+            double mean = sum / WINDOW;
+            double cosen = Math.log((double) Math.max(b, 1) / Math.max(a, 1))
+                    + Math.log(2 * AfDetector.TOLERANCE / 1000.0) - Math.log(mean / 1000.0);
+            assertEquals(cosen, af.cosen, 1e-9);
+            assertEquals((double) turning / (WINDOW - 2), af.tpr, 1e-9);
+            assertEquals(Math.sqrt(diff2 / (WINDOW - 1)) / mean, af.nrmssd, 1e-9);
+        }
+    }
+
+    @Test
+    public void detectsEpisode() {
+        AfDetector af = new AfDetector();
+        Random rnd = new Random(3);
+        long t = 0, onset = -1;
+        for (int i = 0; i < 1500; i++) {
+            int rr = i >= 500 && i < 1000 ? 350 + rnd.nextInt(700) : 900 + (int) (15 * rnd.nextGaussian());
+            t += rr;
+            if (i == 500)
+                onset = t;
+            af.add(t, rr);
+            if (i == 499)
+                assertFalse(af.inAf);
+            if (i == 900)
+                assertTrue(af.inAf);
+        }
+        assertFalse(af.inAf);
+        assertEquals(1, af.episodes);
+        assertTrue(Math.abs(af.onset - onset) < 60 * 1000);
+        assertTrue(af.afDuration > 5 * 60 * 1000);
+    }
+}
@@ -0,0 +1,145 @@
+package de.medsenshack.data;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that beats are pushed exactly once to synchronous and asynchronous listeners, and that
+ * the low latency mode completes every preliminary event.
+ */
+public class BeatEventTest {
+
+    private static final int SAMPLING_RATE = 250;
+
+    @Test
+    public void asyncListenerReceivesEveryBeat() throws Exception {
+        double[] ecg = new SyntheticEcg(SAMPLING_RATE, 60).values;
+        PanTompkins pants = new PanTompkins(SAMPLING_RATE);
+
+        final List<String> sync = new ArrayList<>();
+        final List<Long> indices = new ArrayList<>();
+        pants.addBeatListener(new PanTompkins.BeatListener() {
+            @Override
+            public void onBeat(BeatEvent beat) {
+                sync.add(beat.toString());
+            }
+        });
+
+        final List<String> async = new ArrayList<>();
+        final Thread detectionThread = Thread.currentThread();
+        final boolean[] otherThread = {true};
+        PanTompkins.BeatListener listener = new PanTompkins.BeatListener() {
+            @Override
+            public void onBeat(BeatEvent beat) {
+                synchronized (async) {
+                    async.add(beat.toString());
+                    indices.add(beat.getIndex());
+                    otherThread[0] &= Thread.currentThread() != detectionThread;
+                }
+            }
+        };
+        pants.addBeatListener(listener, 1024);
+
+        for (int i = 0; i < ecg.length; i++) {
+            pants.next(ecg[i], i);
+        }
+
+        // wait until the queue is drained
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            synchronized (async) {
+                if (async.size() == sync.size())
+                    break;
+            }
+            Thread.sleep(10);
+        }
+        pants.removeBeatListener(listener);
+
+        assertTrue(sync.size() > 50);
+        assertEquals(0, pants.droppedBeats(listener));
+        synchronized (async) {
+            assertEquals(sync, async);
+            assertTrue(otherThread[0]);
+            for (int i = 0; i < indices.size(); i++) {
+                assertEquals(i + 1, (long) indices.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void lowLatencyUpdatesPreliminaryEvents() {
+        double[] ecg = new SyntheticEcg(SAMPLING_RATE, 60).values;
+        PanTompkins normal = new PanTompkins(SAMPLING_RATE);
+        PanTompkins fast = new PanTompkins(SAMPLING_RATE);
+        fast.lowLatency = true;
+        fast.latency = new BeatLatency();
+
+        final List<String> expected = new ArrayList<>();
+        normal.addBeatListener(new PanTompkins.BeatListener() {
+            @Override
+            public void onBeat(BeatEvent beat) {
+                expected.add(beat.toString());
+            }
+        });
+        final List<String> updates = new ArrayList<>();
+        final List<long[]> preliminary = new ArrayList<>();
+        final List<long[]> complete = new ArrayList<>();
+        fast.addBeatListener(new PanTompkins.BeatListener() {
+            @Override
+            public void onBeat(BeatEvent beat) {
+                if (beat.isPreliminary()) {
+                    preliminary.add(new long[]{beat.getIndex(), beat.getRTimestamp(), beat.getTimestamp()});
+                } else {
+                    updates.add(beat.toString());
+                    if (beat.isUpdate())
+                        complete.add(new long[]{beat.getIndex(), beat.getRTimestamp(), beat.getTimestamp()});
+                }
+            }
+        });
+
+        for (int i = 0; i < ecg.length; i++) {
+            normal.next(ecg[i], i);
+            fast.next(ecg[i], i);
+        }
+
+        // the complete events equal those of the normal mode
+        assertEquals(expected, updates);
+        assertTrue(preliminary.size() > 50);
+        assertEquals(preliminary.size(), complete.size());
+        for (int i = 0; i < preliminary.size(); i++) {
+            long[] p = preliminary.get(i), c = complete.get(i);
+            assertEquals(p[0], c[0]);
+            assertEquals(p[1], c[1]);
+            assertTrue(c[2] - p[2] >= normal.postSegment);
+        }
+        assertEquals(preliminary.size(), fast.latency.confirmed.count());
+        assertTrue(fast.latency.confirmed.percentile(50) <= fast.latency.finished.percentile(50));
+    }
+
+    @Test
+    public void rSampleIsTheRawPeak() {
+        final double[] ecg = new SyntheticEcg(SAMPLING_RATE, 60).values;
+        PanTompkins pants = new PanTompkins(SAMPLING_RATE);
+        final int[] beats = new int[2];
+        pants.addBeatListener(new PanTompkins.BeatListener() {
+            @Override
+            public void onBeat(BeatEvent beat) {
+                if (beat.getClassification() == PanTompkins.QRS.QrsClass.VIRTUAL)
+                    return;
+                beats[0]++;
+                // the peaks are 1000 high and about 3 samples wide
+                if (ecg[(int) beat.getRSample()] > 2048 + 500)
+                    beats[1]++;
+            }
+        });
+        for (int i = 0; i < ecg.length; i++) {
+            pants.next(ecg[i], i);
+        }
+        assertTrue(beats[0] > 50);
+        assertEquals(beats[0], beats[1]);
+    }
+}
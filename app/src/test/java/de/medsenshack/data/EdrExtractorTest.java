@@ -0,0 +1,58 @@
+package de.medsenshack.data;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the breathing rate estimated from amplitude and RR modulated beats.
+ */
+public class EdrExtractorTest {
+
+    @Test
+    public void findsBreathingRate() {
+        EdrExtractor edr = new EdrExtractor(250);
+        Random rnd = new Random(2);
+        double breathing = 0.25;
+
+        long t = 0;
+        int updates = 0;
+        while (t < 5 * 60 * 1000) {
+            double phase = 2 * Math.PI * breathing * t / 1000.0;
+            double rr = 850 + 40 * Math.sin(phase) + 10 * rnd.nextGaussian();
+            double amplitude = 1200 * (1 + 0.08 * Math.sin(phase + 1)) + 20 * rnd.nextGaussian();
+            t += (long) rr;
+            if (edr.add(t, amplitude, rr)) {
+                updates++;
+                assertEquals(15, edr.rate, 1);
+                assertEquals(15, edr.amplitudeRate, 1.5);
+                assertEquals(15, edr.rrRate, 1.5);
+            }
+        }
+        assertTrue(updates > 30);
+        assertEquals(updates, edr.rates.num);
+        assertTrue(edr.peakiness > 0.5);
+    }
+
+    @Test
+    public void gapRestartsWindow() {
+        EdrExtractor edr = new EdrExtractor(250, 16 * 1000, 4 * 1000, 100);
+        long t = 0;
+        for (int i = 0; i < 100; i++) {
+            t += 800;
+            edr.add(t, 1000, 800);
+        }
+        int updates = edr.updates;
+        assertTrue(updates > 0);
+
+        // no update within the first window after a gap
+        t += EdrExtractor.MAX_GAP + 1;
+        for (int i = 0; i < 19; i++) {
+            t += 800;
+            edr.add(t, 1000, 800);
+        }
+        assertEquals(updates, edr.updates);
+    }
+}
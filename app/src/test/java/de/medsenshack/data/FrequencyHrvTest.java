@@ -0,0 +1,82 @@
+package de.medsenshack.data;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the band powers of a modulated tachogram and that a busy worker skips updates.
+ */
+public class FrequencyHrvTest {
+
+    /**
+     * Adds beats whose RR intervals are modulated with 0.1 Hz and 0.25 Hz by 50 and 30 ms.
+     *
+     * @param t time of the previous beat in s
+     * @return the time of the last beat in s
+     */
+    private static double addBeats(FrequencyHrv hrv, double t, int beats) {
+        for (int i = 0; i < beats; i++) {
+            double rr = 0.8 + 0.05 * Math.sin(2 * Math.PI * 0.1 * t) + 0.03 * Math.sin(2 * Math.PI * 0.25 * t);
+            t += rr;
+            hrv.add(Math.round(t * 1000), (int) Math.round(rr * 1000));
+        }
+        return t;
+    }
+
+    @Test
+    public void updateNowComputesTheBands() {
+        FrequencyHrv hrv = new FrequencyHrv(5 * 60 * 1000, 1000);
+        double last = addBeats(hrv, 0, 400);
+        assertEquals(0, hrv.updates);
+
+        hrv.updateNow();
+        assertEquals(1, hrv.updates);
+        assertEquals(Math.round(last * 1000), hrv.timestamp);
+        // about 5 min of beats, the variance of the two sinusoids is 50^2 / 2 + 30^2 / 2
+        assertEquals(1700, hrv.totalPower, 200);
+        assertEquals(hrv.totalPower, hrv.vlf + hrv.lf + hrv.hf, 0.05 * hrv.totalPower);
+        assertTrue(hrv.vlf < 0.05 * hrv.totalPower);
+        assertEquals(2500.0 / 900, hrv.lfHf, 0.5);
+        hrv.shutdown();
+    }
+
+    @Test
+    public void busyWorkerSkipsUpdates() throws Exception {
+        FrequencyHrv hrv = new FrequencyHrv(5 * 60 * 1000, 10);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        hrv.listener = new FrequencyHrv.Listener() {
+            @Override
+            public void onFrequencyHrv(FrequencyHrv hrv) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+
+        double t = addBeats(hrv, 0, 10);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        // the worker is blocked in the listener, the next three updates are dropped
+        addBeats(hrv, t, 30);
+        assertEquals(3, hrv.skipped);
+        release.countDown();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (hrv.updates < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(1, hrv.updates);
+        // once the worker is idle, updates run again
+        hrv.listener = null;
+        hrv.updateNow();
+        assertEquals(2, hrv.updates);
+        hrv.shutdown();
+    }
+}
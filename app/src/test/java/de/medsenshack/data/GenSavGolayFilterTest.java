@@ -0,0 +1,95 @@
+package de.medsenshack.data;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the generalized Savitzky-Golay filter against the tabulated 5-point kernels and block
+ * processing against sample-wise filtering.
+ */
+public class GenSavGolayFilterTest {
+
+    private static void assertKernel(double[] expected, double norm, double[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i] / norm, actual[i], 1e-12);
+        }
+    }
+
+    @Test
+    public void fivePointKernels() {
+        // quadratic fit, oldest sample first
+        assertKernel(new double[]{-3, 12, 17, 12, -3}, 35, LmeFilter.GenSavGolayFilter.kernel(5, 2, 0));
+        assertKernel(new double[]{-2, -1, 0, 1, 2}, 10, LmeFilter.GenSavGolayFilter.kernel(5, 2, 1));
+        assertKernel(new double[]{2, -1, -2, -1, 2}, 7, LmeFilter.GenSavGolayFilter.kernel(5, 2, 2));
+        // a cubic fit smoothes like the quadratic one
+        assertKernel(new double[]{-3, 12, 17, 12, -3}, 35, LmeFilter.GenSavGolayFilter.kernel(5, 3, 0));
+    }
+
+    @Test
+    public void derivativesOfAParabola() {
+        // x(t) = t^2 sampled every 0.5 s, the filter output refers to the central sample
+        double T = 0.5;
+        LmeFilter.GenSavGolayFilter smooth = new LmeFilter.GenSavGolayFilter(5, 2, 0, T);
+        LmeFilter.GenSavGolayFilter first = new LmeFilter.GenSavGolayFilter(5, 2, 1, T);
+        LmeFilter.GenSavGolayFilter second = new LmeFilter.GenSavGolayFilter(5, 2, 2, T);
+        assertEquals(2, first.delay);
+        for (int n = 0; n < 20; n++) {
+            double t = n * T;
+            double s = smooth.next(t * t);
+            double d1 = first.next(t * t);
+            double d2 = second.next(t * t);
+            if (n >= 4) {
+                double center = t - first.delay * T;
+                assertEquals(center * center, s, 1e-9);
+                assertEquals(2 * center, d1, 1e-9);
+                assertEquals(2, d2, 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void blocksEqualNext() {
+        Random rnd = new Random(3);
+        double[] x = new double[1000];
+        for (int i = 0; i < x.length; i++) {
+            x[i] = Math.sin(i * 0.05) + 0.1 * rnd.nextGaussian();
+        }
+        int[][] params = {{5, 2, 0}, {5, 2, 1}, {5, 2, 2}, {11, 4, 1}, {1, 0, 0}};
+        for (int[] p : params) {
+            LmeFilter.GenSavGolayFilter single = new LmeFilter.GenSavGolayFilter(p[0], p[1], p[2], 0.004);
+            LmeFilter.GenSavGolayFilter block = new LmeFilter.GenSavGolayFilter(p[0], p[1], p[2], 0.004);
+            double[] expected = new double[x.length];
+            for (int i = 0; i < x.length; i++) {
+                expected[i] = single.next(x[i]);
+            }
+
+            // blocks of varying length, shorter and longer than the window
+            double[] out = new double[x.length];
+            int pos = 0, len = 1;
+            while (pos < x.length) {
+                int n = Math.min(len, x.length - pos);
+                block.process(x, pos, n, out, pos);
+                assertEquals(out[pos + n - 1], block.y[0], 0);
+                pos += n;
+                len = len * 3 % 37 + 1;
+            }
+            for (int i = 0; i < x.length; i++) {
+                assertEquals(expected[i], out[i], 1e-9 * Math.max(1, Math.abs(expected[i])));
+            }
+
+            // in place, continuing after the blocks with next()
+            double[] copy = x.clone();
+            block.reset();
+            block.process(copy, 0, 100, copy, 0);
+            LmeFilter.GenSavGolayFilter fresh = new LmeFilter.GenSavGolayFilter(p[0], p[1], p[2], 0.004);
+            for (int i = 0; i < 100; i++) {
+                assertEquals(fresh.next(x[i]), copy[i], 1e-9 * Math.max(1, Math.abs(copy[i])));
+            }
+            assertEquals(fresh.next(x[100]), block.next(x[100]), 1e-9 * Math.max(1, Math.abs(x[100])));
+        }
+    }
+}
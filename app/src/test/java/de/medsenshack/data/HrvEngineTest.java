@@ -0,0 +1,77 @@
+package de.medsenshack.data;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the incremental HRV measures with a direct computation over the same window.
+ */
+public class HrvEngineTest {
+
+    private static final long WINDOW = 30000;
+
+    @Test
+    public void slidingWindowEqualsDirect() {
+        HrvEngine hrv = new HrvEngine(WINDOW, 5000, 16);
+        Random rnd = new Random(3);
+        int n = 2000;
+        long[] t = new long[n];
+        int[] rr = new int[n];
+        long time = 0;
+
+        for (int i = 0; i < n; i++) {
+            rr[i] = (int) (800 + 80 * rnd.nextGaussian());
+            time += rr[i];
+            t[i] = time;
+            hrv.add(t[i], rr[i]);
+
+            // direct computation over all beats within the window
+            int first = i;
+            while (first > 0 && t[first - 1] > t[i] - WINDOW)
+                first--;
+            double sum = 0, sum2 = 0, dsum = 0, dsum2 = 0;
+            int nn50 = 0, nd = 0;
+            for (int k = first; k <= i; k++) {
+                sum += rr[k];
+                sum2 += (double) rr[k] * rr[k];
+                if (k > 0) {
+                    int d = rr[k] - rr[k - 1];
+                    dsum += d;
+                    dsum2 += (double) d * d;
+                    nd++;
+                    if (Math.abs(d) >= 50)
+                        nn50++;
+                }
+            }
+            int num = i - first + 1;
+            assertEquals(num, hrv.size());
+            assertEquals(sum / num, hrv.meanRr(), 1e-9);
+            if (num > 1)
+                assertEquals(Math.sqrt(sum2 / num - (sum / num) * (sum / num)), hrv.sdnn(), 1e-6);
+            if (nd > 1) {
+                assertEquals(Math.sqrt(dsum2 / nd), hrv.rmssd(), 1e-6);
+                assertEquals(Math.sqrt(dsum2 / nd - (dsum / nd) * (dsum / nd)), hrv.sdsd(), 1e-6);
+                assertEquals((double) nn50 / nd, hrv.pnn50(), 1e-12);
+            }
+        }
+
+        // 2000 beats at ~800 ms with a 5 s step, history bounded to 16 results
+        assertTrue(hrv.updates > 300);
+        assertEquals(16, hrv.sdnn.num);
+    }
+
+    @Test
+    public void gapSkipsSuccessiveDifference() {
+        HrvEngine hrv = new HrvEngine(WINDOW, 5000, 16);
+        hrv.add(1000, 1000);
+        hrv.gap();
+        hrv.add(1400, 400);
+        hrv.add(2200, 800);
+        // only the difference 800 - 400 is used
+        assertEquals(400, hrv.rmssd(), 1e-9);
+        assertEquals(1.0, hrv.pnn50(), 1e-9);
+    }
+}
@@ -0,0 +1,115 @@
+package de.medsenshack.data;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the fast periodogram with the direct Lomb formula on an RR tachogram.
+ */
+public class LombScargleTest {
+
+    private static final int BEATS = 400;
+
+    /**
+     * RR intervals in ms with 0.1 Hz and 0.25 Hz modulation of 50 and 30 ms, x are the beat times in s
+     */
+    private static double[] tachogram(double[] x) {
+        Random rnd = new Random(5);
+        double[] y = new double[x.length];
+        double t = 0;
+        for (int i = 0; i < x.length; i++) {
+            double rr = 0.8 + 0.05 * Math.sin(2 * Math.PI * 0.1 * t) + 0.03 * Math.sin(2 * Math.PI * 0.25 * t)
+                    + 0.01 * rnd.nextGaussian();
+            t += rr;
+            x[i] = t;
+            y[i] = rr * 1000;
+        }
+        return y;
+    }
+
+    /**
+     * @return the normalized Lomb periodogram at frequency f, computed directly
+     */
+    private static double direct(double[] x, double[] y, double f) {
+        int n = x.length;
+        double mean = 0, variance = 0;
+        for (double v : y) {
+            mean += v;
+        }
+        mean /= n;
+        for (double v : y) {
+            variance += (v - mean) * (v - mean);
+        }
+        variance /= n - 1;
+
+        double w = 2 * Math.PI * f;
+        double s2 = 0, c2 = 0;
+        for (double xi : x) {
+            s2 += Math.sin(2 * w * xi);
+            c2 += Math.cos(2 * w * xi);
+        }
+        double tau = Math.atan2(s2, c2) / (2 * w);
+        double yc = 0, cc = 0, ys = 0, ss = 0;
+        for (int i = 0; i < n; i++) {
+            double c = Math.cos(w * (x[i] - tau));
+            double s = Math.sin(w * (x[i] - tau));
+            yc += (y[i] - mean) * c;
+            cc += c * c;
+            ys += (y[i] - mean) * s;
+            ss += s * s;
+        }
+        return (yc * yc / cc + ys * ys / ss) / (2 * variance);
+    }
+
+    @Test
+    public void fastEqualsDirect() {
+        double[] x = new double[BEATS];
+        double[] y = tachogram(x);
+        LombScargle lomb = new LombScargle(4);
+        int n = lomb.compute(x, y, 0, BEATS, 0.4);
+        assertEquals((int) Math.ceil(0.4 * (x[BEATS - 1] - x[0]) * 4), n);
+
+        double peak = 0, peakFreq = 0;
+        for (int k = 0; k < n; k++) {
+            assertEquals(0.4 * (k + 1) / n, lomb.freq[k], 0.4 / n);
+            double p = direct(x, y, lomb.freq[k]);
+            assertEquals(p, lomb.power[k], 0.01);
+            if (p > peak) {
+                peak = p;
+                peakFreq = lomb.freq[k];
+            }
+        }
+        assertTrue(peak > 100);
+        assertEquals(0.1, peakFreq, 0.002);
+    }
+
+    @Test
+    public void bandPowerSumsTheBand() {
+        double[] x = new double[BEATS];
+        double[] y = tachogram(x);
+        LombScargle lomb = new LombScargle(4);
+        int n = lomb.compute(x, y, 0, BEATS, 0.4);
+
+        double sum = 0;
+        for (int k = 0; k < n; k++) {
+            if (lomb.freq[k] >= 0.15 && lomb.freq[k] < 0.4)
+                sum += lomb.power[k];
+        }
+        assertEquals(sum * lomb.freq[0], lomb.bandPower(0.15, 0.4), 1e-9);
+
+        // the two modulations hold most of the power, in the ratio of their squared amplitudes
+        double total = lomb.bandPower(0, 0.4);
+        double lf = lomb.bandPower(0.04, 0.15);
+        double hf = lomb.bandPower(0.15, 0.4);
+        assertTrue((lf + hf) / total > 0.95);
+        assertEquals(2500.0 / 900, lf / hf, 0.5);
+        assertEquals(0, lomb.bandPower(0.5, 1), 0);
+
+        // too few samples
+        assertEquals(0, lomb.compute(x, y, 0, 2, 0.4));
+        assertEquals(0, lomb.bandPower(0, 0.4), 0);
+    }
+}
@@ -0,0 +1,66 @@
+package de.medsenshack.data;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks assignment, creation and eviction of morphology clusters.
+ */
+public class MorphologyClustererTest {
+
+    private static final int SIZE = 40;
+
+    private static PanTompkins.QRS createBeat(PanTompkins pants, Random rnd, double noise, long width) {
+        PanTompkins.QRS qrs = new PanTompkins.QRS(pants, SIZE);
+        for (int i = 0; i < SIZE; i++) {
+            double d = (i - SIZE / 2) / (width / 20.0);
+            qrs.values.add((float) (100 * Math.exp(-0.5 * d * d) + noise * rnd.nextGaussian()));
+        }
+        qrs.mean = qrs.values.getMean();
+        qrs.feat_width = width;
+        qrs.feat_qrsta = 10 * width;
+        qrs.classification = PanTompkins.QRS.QrsClass.NORMAL;
+        qrs.normalize();
+        return qrs;
+    }
+
+    @Test
+    public void similarBeatsShareCluster() {
+        PanTompkins pants = new PanTompkins(250);
+        MorphologyClusterer clusterer = new MorphologyClusterer(8, SIZE, pants.correlator);
+        Random rnd = new Random(5);
+
+        int normal = clusterer.assign(createBeat(pants, rnd, 1, 40));
+        int wide = clusterer.assign(createBeat(pants, rnd, 1, 160));
+        assertNotEquals(normal, wide);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(normal, clusterer.assign(createBeat(pants, rnd, 2, 40)));
+        }
+        assertEquals(2, clusterer.numClusters);
+        assertEquals(101, clusterer.find(normal).count);
+        assertEquals(PanTompkins.QRS.QrsClass.NORMAL, clusterer.find(normal).dominantClass());
+        assertEquals(102, clusterer.beats);
+    }
+
+    @Test
+    public void libraryIsBounded() {
+        PanTompkins pants = new PanTompkins(250);
+        MorphologyClusterer clusterer = new MorphologyClusterer(4, SIZE, pants.correlator);
+        Random rnd = new Random(7);
+
+        int normal = clusterer.assign(createBeat(pants, rnd, 1, 40));
+        clusterer.assign(createBeat(pants, rnd, 1, 40));
+        // pure noise beats, none of them correlates with another one
+        for (int i = 0; i < 50; i++) {
+            clusterer.assign(createBeat(pants, rnd, 1000, 40));
+        }
+        assertEquals(4, clusterer.numClusters);
+        assertTrue(clusterer.evictedBeats > 0);
+        assertTrue(clusterer.correlations <= 52 * MorphologyClusterer.MAX_CANDIDATES);
+        // the populated cluster survives
+        assertEquals(2, clusterer.find(normal).count);
+    }
+}
@@ -0,0 +1,77 @@
+package de.medsenshack.data;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the fused multi-lead detector with the single-lead detector and checks lead dropout.
+ */
+public class MultiLeadPanTompkinsTest {
+
+    private static final int SAMPLING_RATE = 250;
+
+    private static List<String> collect(PanTompkins pants) {
+        final List<String> beats = new ArrayList<>();
+        pants.addBeatListener(new PanTompkins.BeatListener() {
+            @Override
+            public void onBeat(BeatEvent beat) {
+                beats.add(beat.toString());
+            }
+        });
+        return beats;
+    }
+
+    @Test
+    public void singleLeadEqualsPanTompkins() {
+        double[] ecg = new SyntheticEcg(SAMPLING_RATE, 60, 0.8, 3).values;
+        PanTompkins pants = new PanTompkins(SAMPLING_RATE);
+        MultiLeadPanTompkins multi = new MultiLeadPanTompkins(SAMPLING_RATE, 1);
+        List<String> expected = collect(pants);
+        List<String> actual = collect(multi);
+
+        for (int i = 0; i < ecg.length; i++) {
+            assertEquals(pants.next(ecg[i], i), multi.next(ecg[i], i), 0);
+        }
+        assertTrue(expected.size() > 50);
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void leadDropout() {
+        double[] lead1 = new SyntheticEcg(SAMPLING_RATE, 60, 0.8, 3).values;
+        // the same beats at 40 % of the amplitude with noise of its own
+        double[] lead2 = new double[lead1.length];
+        Random rnd = new Random(4);
+        for (int i = 0; i < lead1.length; i++) {
+            lead2[i] = 2048 + 0.4 * (lead1[i] - 2048) + 5 * rnd.nextGaussian();
+        }
+        MultiLeadPanTompkins multi = new MultiLeadPanTompkins(SAMPLING_RATE, 2);
+        List<String> beats = collect(multi);
+
+        double[] leads = new double[2];
+        boolean bothActive = false, secondOnly = false;
+        for (int i = 0; i < lead1.length; i++) {
+            // lead 1 is disconnected between 20 and 30 s, and missing between 40 and 45 s
+            leads[0] = i >= 20 * SAMPLING_RATE && i < 30 * SAMPLING_RATE ? 0 : lead1[i];
+            if (i >= 40 * SAMPLING_RATE && i < 45 * SAMPLING_RATE)
+                leads[0] = Double.NaN;
+            leads[1] = lead2[i];
+            multi.next(leads, i);
+
+            if (i == 25 * SAMPLING_RATE)
+                secondOnly = multi.activeLeads == 1 && multi.referenceLead == 1;
+            if (i == 35 * SAMPLING_RATE)
+                bothActive = multi.activeLeads == 2 && multi.referenceLead == 0;
+        }
+
+        assertTrue(secondOnly);
+        assertTrue(bothActive);
+        // about 72 beats in 58 s, allow a few around the switches
+        assertTrue(beats.size() + " beats", Math.abs(beats.size() - 72) < 8);
+    }
+}
@@ -0,0 +1,108 @@
+package de.medsenshack.data;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that detectors are independent, i.e. that parallel or interleaved processing of several
+ * streams yields exactly the same beats as processing each stream on its own.
+ */
+public class QrsDetectionExecutorTest {
+
+    private static final int SAMPLING_RATE = 250;
+    private static final int NUM_STREAMS = 4;
+
+    private static String describe(BeatEvent beat) {
+        return beat.getRTimestamp() + " " + beat.getClassification() + " " + beat.getArrhythmia() + " "
+                + beat.getRr() + " " + beat.getWidth() + " " + beat.getCct1() + " " + beat.getCct2();
+    }
+
+    private static double[][] createStreams() {
+        double[][] streams = new double[NUM_STREAMS][];
+        for (int i = 0; i < NUM_STREAMS; i++) {
+            streams[i] = new SyntheticEcg(SAMPLING_RATE, 60, 0.6 + 0.15 * i, i).values;
+        }
+        return streams;
+    }
+
+    private static List<List<String>> createResultLists() {
+        List<List<String>> beats = new ArrayList<>(NUM_STREAMS);
+        for (int i = 0; i < NUM_STREAMS; i++) {
+            beats.add(new ArrayList<String>());
+        }
+        return beats;
+    }
+
+    private static List<List<String>> detectSerial(double[][] streams) {
+        final List<List<String>> beats = createResultLists();
+        for (int i = 0; i < streams.length; i++) {
+            QrsDetectionExecutor.detect(streams[i], SAMPLING_RATE, i, new QrsDetectionExecutor.BeatCallback() {
+                @Override
+                public void onBeat(int stream, BeatEvent beat) {
+                    beats.get(stream).add(describe(beat));
+                }
+            });
+        }
+        return beats;
+    }
+
+    @Test
+    public void parallelEqualsSerial() throws Exception {
+        double[][] streams = createStreams();
+        List<List<String>> serial = detectSerial(streams);
+
+        final List<List<String>> parallel = createResultLists();
+        QrsDetectionExecutor executor = new QrsDetectionExecutor(NUM_STREAMS);
+        try {
+            PanTompkins[] detectors = executor.detect(streams, SAMPLING_RATE, new QrsDetectionExecutor.BeatCallback() {
+                @Override
+                public void onBeat(int stream, BeatEvent beat) {
+                    // every list is only accessed by the thread processing its stream
+                    parallel.get(stream).add(describe(beat));
+                }
+            });
+
+            for (PanTompkins pants : detectors) {
+                assertFalse(pants.learning);
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        for (int i = 0; i < NUM_STREAMS; i++) {
+            assertTrue(serial.get(i).size() > 30);
+            assertEquals(serial.get(i), parallel.get(i));
+        }
+    }
+
+    @Test
+    public void interleavedEqualsSerial() {
+        double[][] streams = createStreams();
+        List<List<String>> serial = detectSerial(streams);
+
+        // feed all detectors sample by sample in turn on one thread
+        final List<List<String>> interleaved = createResultLists();
+        PanTompkins[] detectors = new PanTompkins[NUM_STREAMS];
+        for (int i = 0; i < NUM_STREAMS; i++) {
+            detectors[i] = new PanTompkins(SAMPLING_RATE);
+            final List<String> beats = interleaved.get(i);
+            detectors[i].addBeatListener(new PanTompkins.BeatListener() {
+                @Override
+                public void onBeat(BeatEvent beat) {
+                    beats.add(describe(beat));
+                }
+            });
+        }
+        for (int n = 0; n < streams[0].length; n++) {
+            for (int i = 0; i < NUM_STREAMS; i++) {
+                detectors[i].next(streams[i][n], n);
+            }
+        }
+
+        assertEquals(serial, interleaved);
+    }
+}
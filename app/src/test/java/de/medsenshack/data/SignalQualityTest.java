@@ -0,0 +1,91 @@
+package de.medsenshack.data;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that artifacts are recognized and that their beats are kept out of the statistics.
+ */
+public class SignalQualityTest {
+
+    private static final int SAMPLING_RATE = 250;
+
+    @Test
+    public void artifactsAreFlagged() {
+        double[] ecg = new SyntheticEcg(SAMPLING_RATE, 90, 0.8, 0, 9).values;
+        // motion artifact from 40 to 50 s, flatline from 60 to 65 s
+        for (int i = 40 * SAMPLING_RATE; i < 50 * SAMPLING_RATE; i++) {
+            ecg[i] += 800 * Math.sin(2 * Math.PI * 1.3 * i / SAMPLING_RATE) + ((i / 200) % 2) * 600;
+        }
+        for (int i = 60 * SAMPLING_RATE; i < 65 * SAMPLING_RATE; i++) {
+            ecg[i] = 2000;
+        }
+
+        PanTompkins pants = new PanTompkins(SAMPLING_RATE);
+        pants.quality = new SignalQuality(SAMPLING_RATE);
+        final List<Long> noisy = new ArrayList<>();
+        final int[] clean = new int[1];
+        pants.addBeatListener(new PanTompkins.BeatListener() {
+            @Override
+            public void onBeat(BeatEvent beat) {
+                if (beat.isNoisy())
+                    noisy.add(beat.getRTimestamp());
+                else if (!beat.isLearning())
+                    clean[0]++;
+            }
+        });
+
+        int flat = 0, artifact = 0;
+        for (int i = 0; i < ecg.length; i++) {
+            pants.next(ecg[i], i);
+            if (i % SAMPLING_RATE == SAMPLING_RATE - 1) {
+                int second = i / SAMPLING_RATE;
+                if (second >= 41 && second < 50 && pants.quality.flags != 0)
+                    artifact++;
+                if (second >= 61 && second < 65 && (pants.quality.flags & SignalQuality.FLATLINE) != 0)
+                    flat++;
+                if (second > 5 && second < 38)
+                    assertTrue(pants.quality.good);
+            }
+        }
+
+        assertTrue(artifact >= 8);
+        assertEquals(4, flat);
+        assertTrue(noisy.size() > 10);
+        for (long r : noisy) {
+            assertTrue(r > 39 * SAMPLING_RATE && r < 68 * SAMPLING_RATE);
+        }
+        // all beats outside the artifacts are used, the heart rate is not disturbed
+        assertTrue(clean[0] > 70);
+        assertEquals(75, pants.heartRateStats.value, 1);
+    }
+
+    @Test
+    public void bradycardiaIsClean() {
+        // 43 bpm, most one second windows hold no QRS complex
+        double[] ecg = new SyntheticEcg(SAMPLING_RATE, 120, 1.4, 0, 9).values;
+        PanTompkins pants = new PanTompkins(SAMPLING_RATE);
+        pants.quality = new SignalQuality(SAMPLING_RATE);
+        final int[] beats = new int[2];
+        pants.addBeatListener(new PanTompkins.BeatListener() {
+            @Override
+            public void onBeat(BeatEvent beat) {
+                if (beat.getRTimestamp() > 10 * SAMPLING_RATE) {
+                    beats[0]++;
+                    if (beat.isNoisy())
+                        beats[1]++;
+                }
+            }
+        });
+        for (int i = 0; i < ecg.length; i++) {
+            pants.next(ecg[i], i);
+        }
+        assertTrue(beats[0] > 70);
+        assertEquals(0, beats[1]);
+        assertEquals(0, pants.quality.badWindows);
+    }
+}
@@ -0,0 +1,104 @@
+package de.medsenshack.data;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import de.fau.lme.sensorlib.sensors.SimulatedSensor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Counts the steps of simulated walking, standing and running at the accelerometer rates of the
+ * supported sensors, fed as fast as the simulated sensor delivers them outside of live mode.
+ */
+public class StepDetectorTest {
+
+    /**
+     * Simulates 60 s walking at 1.8 steps/s, 20 s standing and 40 s running at 2.7 steps/s, with
+     * the gravity on a tilted axis and a second harmonic in the step acceleration.
+     */
+    private static SimulatedSensor.SimulatedDataFrame[] simulate(int samplingRate, double gravity, long seed) {
+        Random rnd = new Random(seed);
+        SimulatedSensor.SimulatedDataFrame[] frames = new SimulatedSensor.SimulatedDataFrame[120 * samplingRate];
+        double phase = 0;
+        for (int i = 0; i < frames.length; i++) {
+            double t = (double) i / samplingRate;
+            double f, a;
+            if (t < 60) {
+                f = 1.8;
+                a = 0.25;
+            } else if (t < 80) {
+                f = 0;
+                a = 0;
+            } else {
+                f = 2.7;
+                a = 0.7;
+            }
+            phase += 2 * Math.PI * f / samplingRate;
+            double step = a * (Math.sin(phase) + 0.3 * Math.sin(2 * phase + 0.5));
+            SimulatedSensor.SimulatedDataFrame frame = new SimulatedSensor.SimulatedDataFrame();
+            frame.accelX = gravity * (0.3 + 0.3 * step + 0.02 * rnd.nextGaussian());
+            frame.accelY = gravity * (0.95 + step + 0.02 * rnd.nextGaussian());
+            frame.accelZ = gravity * (0.1 * step + 0.02 * rnd.nextGaussian());
+            frames[i] = frame;
+        }
+        return frames;
+    }
+
+    private static void countSteps(int samplingRate, double gravity) {
+        SimulatedSensor.SimulatedDataFrame[] frames = simulate(samplingRate, gravity, samplingRate);
+        StepDetector detector = new StepDetector(samplingRate, gravity);
+        final int[] walk = new int[1], stand = new int[1], run = new int[1];
+        final double[] cadence = new double[2];
+        detector.listener = new StepDetector.Listener() {
+            @Override
+            public void onStep(StepDetector detector, long timestamp, double c) {
+                if (timestamp < 60000) {
+                    walk[0]++;
+                    if (timestamp > 10000)
+                        cadence[0] = Math.max(cadence[0], Math.abs(c - 108));
+                } else if (timestamp < 80000) {
+                    stand[0]++;
+                } else {
+                    run[0]++;
+                    if (timestamp > 90000)
+                        cadence[1] = Math.max(cadence[1], Math.abs(c - 162));
+                }
+            }
+        };
+
+        long maxLatency = 0;
+        for (int i = 0; i < frames.length; i++) {
+            long timestamp = i * 1000L / samplingRate;
+            if (detector.next(frames[i], timestamp))
+                maxLatency = Math.max(maxLatency, detector.latency);
+            if (timestamp == 79000)
+                assertEquals(0, detector.cadence, 0);
+        }
+
+        // 108 steps walking, 108 running, the first steps of each bout may be missed
+        assertTrue(walk[0] + " walking steps", walk[0] >= 100 && walk[0] <= 109);
+        assertTrue(stand[0] + " standing steps", stand[0] <= 1);
+        assertTrue(run[0] + " running steps", run[0] >= 100 && run[0] <= 109);
+        assertTrue(cadence[0] + " walking cadence error", cadence[0] < 5);
+        assertTrue(cadence[1] + " running cadence error", cadence[1] < 5);
+        // within a bout reported at most two samples after the filtered maximum
+        assertTrue(maxLatency <= 2000 / samplingRate);
+    }
+
+    @Test
+    public void simblee10Hz() {
+        countSteps(10, 488);
+    }
+
+    @Test
+    public void empatica32Hz() {
+        countSteps(32, 64);
+    }
+
+    @Test
+    public void internal100Hz() {
+        countSteps(100, 9.81);
+    }
+}
@@ -0,0 +1,82 @@
+package de.medsenshack.data;
+
+import java.util.Random;
+
+/**
+ * Generates a reproducible, realistic looking single-lead ECG by summing gaussian P, Q, R, S and T
+ * waves for every beat, plus heart rate variability, baseline wander and sensor noise. The signal is
+ * scaled like the raw ADC values delivered by the Simblee chest strap. Shared by the unit tests and
+ * the benchmarks.
+ */
+public class SyntheticEcg {
+
+    /**
+     * wave amplitudes (relative to R), offsets to R (s) and widths (s) for P, Q, R, S, T
+     */
+    private static final double[] WAVE_AMP = {0.15, -0.12, 1.0, -0.25, 0.3};
+    private static final double[] WAVE_OFFSET = {-0.2, -0.03, 0.0, 0.03, 0.25};
+    private static final double[] WAVE_WIDTH = {0.025, 0.008, 0.01, 0.01, 0.05};
+
+    public final int samplingRate;
+    /**
+     * ECG samples
+     */
+    public final double[] values;
+    /**
+     * sample indices of all R peaks
+     */
+    public final int[] rPeaks;
+
+    /**
+     * @param samplingRate sampling rate in Hz
+     * @param seconds      length of the signal
+     * @param meanRr       mean RR interval in seconds
+     * @param variability  scale of the heart rate variability, 0 for a steady rhythm
+     * @param seed         random seed, equal seeds produce equal signals
+     */
+    public SyntheticEcg(int samplingRate, int seconds, double meanRr, double variability, long seed) {
+        this.samplingRate = samplingRate;
+        Random rnd = new Random(seed);
+        int n = samplingRate * seconds;
+        values = new double[n];
+
+        int[] peaks = new int[(int) (seconds / (meanRr * 0.8)) + 2];
+        int numPeaks = 0;
+
+        // beat waveforms
+        double t = 0.5;
+        while (t < seconds - 0.5) {
+            int r = (int) Math.round(t * samplingRate);
+            peaks[numPeaks++] = r;
+            double amp = 1000 * (1 + 0.05 * rnd.nextGaussian());
+            int from = Math.max(0, r - samplingRate / 2);
+            int to = Math.min(n, r + samplingRate / 2);
+            for (int i = from; i < to; i++) {
+                double dt = (double) (i - r) / samplingRate;
+                for (int w = 0; w < WAVE_AMP.length; w++) {
+                    double d = (dt - WAVE_OFFSET[w]) / WAVE_WIDTH[w];
+                    values[i] += amp * WAVE_AMP[w] * Math.exp(-0.5 * d * d);
+                }
+            }
+            // respiratory sinus arrhythmia plus random variability
+            t += meanRr * (1 + variability * (0.05 * Math.sin(2 * Math.PI * 0.25 * t) + 0.03 * rnd.nextGaussian()));
+        }
+
+        // baseline, wander and noise
+        for (int i = 0; i < n; i++) {
+            double ti = (double) i / samplingRate;
+            values[i] += 2048 + 150 * Math.sin(2 * Math.PI * 0.3 * ti) + 8 * rnd.nextGaussian();
+        }
+
+        rPeaks = new int[numPeaks];
+        System.arraycopy(peaks, 0, rPeaks, 0, numPeaks);
+    }
+
+    public SyntheticEcg(int samplingRate, int seconds, double meanRr, long seed) {
+        this(samplingRate, seconds, meanRr, 1, seed);
+    }
+
+    public SyntheticEcg(int samplingRate, int seconds) {
+        this(samplingRate, seconds, 0.8, 42);
+    }
+}
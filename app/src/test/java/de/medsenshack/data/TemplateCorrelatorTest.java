@@ -0,0 +1,143 @@
+package de.medsenshack.data;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the direct and the FFT lag search of the correlator with a direct computation from the
+ * raw values, for beats shorter, as long as and longer than the template.
+ */
+public class TemplateCorrelatorTest {
+
+    /**
+     * a noisy QRS-like bump of num samples with its peak at the given position
+     */
+    private static float[] qrs(int num, int peak, long seed) {
+        Random rnd = new Random(seed);
+        float[] v = new float[num];
+        for (int i = 0; i < num; i++) {
+            double d = (i - peak) / 3.0;
+            v[i] = (float) (1000 * Math.exp(-d * d) - 200 * Math.exp(-(d - 2) * (d - 2)) + 20 * rnd.nextGaussian());
+        }
+        return v;
+    }
+
+    private static double mean(float[] v) {
+        double sum = 0;
+        for (float x : v) {
+            sum += x;
+        }
+        return sum / v.length;
+    }
+
+    private static TemplateCorrelator.Template template(float[] raw) {
+        TemplateCorrelator.Template t = new TemplateCorrelator.Template(raw.length);
+        t.set(raw, raw.length, mean(raw));
+        return t;
+    }
+
+    /**
+     * @return the maximal correlation of the raw beat and the circularly shifted raw template over
+     * [minLag, maxLag[, computed directly, 0 for a flat beat or template
+     */
+    private static double direct(float[] beat, float[] template, int minLag, int maxLag) {
+        int nb = beat.length;
+        int nt = template.length;
+        double mb = mean(beat), mt = mean(template);
+        double eb = 0, et = 0;
+        for (float x : beat) {
+            eb += (x - mb) * (x - mb);
+        }
+        for (float x : template) {
+            et += (x - mt) * (x - mt);
+        }
+        if (eb == 0 || et == 0)
+            return 0;
+
+        double max = 0;
+        for (int n = minLag; n < maxLag; n++) {
+            double dot = 0, w = 0;
+            for (int i = 0; i < nb; i++) {
+                int k = ((n + i) % nt + nt) % nt;
+                double b = (beat[i] - mb) / Math.sqrt(eb);
+                double t = (template[k] - mt) / Math.sqrt(et);
+                dot += b * t;
+                w += t * t;
+            }
+            max = Math.max(max, dot / Math.sqrt(w));
+        }
+        return max;
+    }
+
+    /**
+     * @return the maximum over the lag range in steps of 8 lags, which all take the direct path
+     */
+    private static double directPath(TemplateCorrelator correlator, TemplateCorrelator.Template beat,
+                                     TemplateCorrelator.Template template, int minLag, int maxLag) {
+        double max = 0;
+        for (int n = minLag; n < maxLag; n += 8) {
+            max = Math.max(max, correlator.maxCorr(beat, template, n, Math.min(n + 8, maxLag)));
+        }
+        return max;
+    }
+
+    @Test
+    public void bothPathsEqualTheDirectComputation() {
+        TemplateCorrelator correlator = new TemplateCorrelator();
+        int[][] sizes = {{40, 40}, {32, 40}, {40, 33}, {25, 60}, {17, 17}};
+        for (int s = 0; s < sizes.length; s++) {
+            int nb = sizes[s][0];
+            int nt = sizes[s][1];
+            float[] rawBeat = qrs(nb, nb / 2 + 2, s);
+            float[] rawTemplate = qrs(nt, nt / 2, 100 + s);
+            TemplateCorrelator.Template beat = template(rawBeat);
+            TemplateCorrelator.Template t = template(rawTemplate);
+
+            // the default range takes the direct path
+            assertEquals(direct(rawBeat, rawTemplate, TemplateCorrelator.MIN_LAG, TemplateCorrelator.MAX_LAG),
+                    correlator.maxCorr(beat, t), 1e-5);
+
+            // all circular lags take the FFT path
+            int minLag = -nt / 2;
+            int maxLag = minLag + nt;
+            double expected = direct(rawBeat, rawTemplate, minLag, maxLag);
+            assertTrue(expected > 0.5);
+            assertEquals(expected, correlator.maxCorr(beat, t, minLag, maxLag), 1e-5);
+            assertEquals(expected, directPath(correlator, beat, t, minLag, maxLag), 1e-5);
+        }
+    }
+
+    @Test
+    public void longerBeatsWrapAroundTheTemplate() {
+        TemplateCorrelator correlator = new TemplateCorrelator();
+        float[] rawBeat = qrs(50, 27, 1);
+        float[] rawTemplate = qrs(30, 15, 2);
+        assertEquals(direct(rawBeat, rawTemplate, -20, 20),
+                correlator.maxCorr(template(rawBeat), template(rawTemplate), -20, 20), 1e-5);
+    }
+
+    @Test
+    public void scoreFindsTheBestTemplate() {
+        TemplateCorrelator correlator = new TemplateCorrelator();
+        float[] rawBeat = qrs(40, 22, 1);
+        float[][] raw = {qrs(40, 20, 2), new float[40], qrs(40, 21, 3)};
+        // an inverted beat and a flat line
+        for (int i = 0; i < 40; i++) {
+            raw[0][i] = -raw[0][i];
+        }
+        TemplateCorrelator.Template[] templates = new TemplateCorrelator.Template[raw.length];
+        for (int k = 0; k < raw.length; k++) {
+            templates[k] = template(raw[k]);
+        }
+        double[] scores = new double[raw.length];
+        assertEquals(2, correlator.score(template(rawBeat), templates, raw.length, scores));
+        for (int k = 0; k < raw.length; k++) {
+            assertEquals(direct(rawBeat, raw[k], TemplateCorrelator.MIN_LAG, TemplateCorrelator.MAX_LAG), scores[k], 1e-5);
+        }
+        assertEquals(0, scores[1], 0);
+        assertEquals(-1, correlator.score(template(rawBeat), templates, 0, scores));
+    }
+}
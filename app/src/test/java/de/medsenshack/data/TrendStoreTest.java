@@ -0,0 +1,93 @@
+package de.medsenshack.data;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the buckets of a 48 h trend with a direct computation from all values.
+ */
+public class TrendStoreTest {
+
+    private static final long HOUR = 60 * 60 * 1000;
+
+    @Test
+    public void rollupsEqualDirect() {
+        TrendStore store = new TrendStore();
+        int n = 48 * 3600;
+        long start = 1000 * HOUR;
+        float[] values = new float[n];
+        Random rnd = new Random(6);
+        for (int i = 0; i < n; i++) {
+            // one heart rate per second, with a gap of 10 min
+            values[i] = (float) (70 + 20 * Math.sin(i / 5000.0) + 5 * rnd.nextGaussian());
+            if (i < 30 * 3600 || i > 30 * 3600 + 600)
+                store.add(start + i * 1000L, values[i]);
+        }
+        long end = start + (n - 1) * 1000L;
+        assertEquals(end, store.latest());
+
+        TrendStore.Series series = new TrendStore.Series(1000);
+
+        // last 10 min from the 1 s tier
+        assertEquals(600, store.query(end - 599 * 1000, end, series));
+        assertEquals(1000, series.resolution);
+        check(values, start, series);
+
+        // last 12 h from the 1 min tier
+        assertEquals(720, store.query(end - 12 * HOUR + 1000, end, series));
+        assertEquals(60 * 1000, series.resolution);
+        check(values, start, series);
+
+        // 40 h ago is beyond the 1 min tier
+        long from = end - 40 * HOUR;
+        store.query(from, from + 2 * HOUR, series);
+        assertEquals(15 * 60 * 1000, series.resolution);
+        check(values, start, series);
+
+        // the gap leaves no buckets
+        from = start + 30 * HOUR + 1000;
+        assertEquals(0, store.query(0, from, from + 599 * 1000, series));
+        assertEquals(0, store.query(1, from + 60 * 1000, from + 9 * 60 * 1000 - 1, series));
+
+        // the 1 s tier holds only the last hour, values that old are ignored
+        assertEquals(0, store.query(0, start, start + HOUR, series));
+        store.add(start, 1000);
+        store.query(2, start, start + 14 * 60 * 1000, series);
+        assertEquals(1000, series.max[0], 0);
+        assertEquals(0, store.query(0, start, start + HOUR, series));
+
+        // a small result holds the newest buckets
+        TrendStore.Series small = new TrendStore.Series(10);
+        assertEquals(10, store.query(0, end - HOUR, end, small));
+        assertEquals(end - 9000, small.timestamps[0]);
+    }
+
+    private static void check(float[] values, long start, TrendStore.Series series) {
+        assertTrue(series.num > 0);
+        for (int b = 0; b < series.num; b++) {
+            if (b > 0)
+                assertTrue(series.timestamps[b] > series.timestamps[b - 1]);
+            float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+            double sum = 0;
+            int count = 0;
+            for (long t = Math.max(series.timestamps[b], start); t < series.timestamps[b] + series.resolution; t += 1000) {
+                int i = (int) ((t - start) / 1000);
+                if (i >= values.length)
+                    break;
+                if (i >= 30 * 3600 && i <= 30 * 3600 + 600)
+                    continue;
+                min = Math.min(min, values[i]);
+                max = Math.max(max, values[i]);
+                sum += values[i];
+                count++;
+            }
+            assertEquals(count, series.count[b]);
+            assertEquals(min, series.min[b], 0);
+            assertEquals(max, series.max[b], 0);
+            assertEquals(sum / count, series.mean[b], 1e-3);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package de.medsenshack.data.analysis;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.util.List;
+
+import de.medsenshack.data.PanTompkins;
+import de.medsenshack.data.SyntheticEcg;
+
+import static org.junit.Assert.*;
+
+/**
+ * Analyzes a synthetic recording and compares the written beat annotations with the known R peaks.
+ */
+public class BatchQrsAnalyzerTest {
+
+    private static final long START = 1461402395000L;
+
+    private static File tempDir(String prefix) throws Exception {
+        File dir = File.createTempFile(prefix, "");
+        assertTrue(dir.delete() && dir.mkdir());
+        dir.deleteOnExit();
+        return dir;
+    }
+
+    @Test
+    public void beatsAreAnnotatedAtTheRPeaks() throws Exception {
+        SyntheticEcg ecg = new SyntheticEcg(250, 120);
+        File input = tempDir("ecg");
+        File output = tempDir("beats");
+        File file = new File(input, "ecg_23.04.16_11.06_.csv");
+        file.deleteOnExit();
+        BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+        writer.write("samplingrate250\n");
+        for (int i = 0; i < ecg.values.length; i++) {
+            writer.write((START + 4 * i) + "," + i / 6 + "," + ecg.values[i] + "\n");
+        }
+        writer.close();
+
+        BatchQrsAnalyzer analyzer = new BatchQrsAnalyzer(output, 1);
+        List<BatchQrsAnalyzer.Result> results = analyzer.analyze(BatchQrsAnalyzer.findRecordings(input));
+        analyzer.shutdown();
+        assertEquals(1, results.size());
+        assertNull(results.get(0).error);
+        assertEquals(ecg.values.length, results.get(0).numSamples);
+
+        File beats = new File(output, "ecg_23.04.16_11.06__beats.csv");
+        new File(output, "ecg_23.04.16_11.06__summary.csv").deleteOnExit();
+        beats.deleteOnExit();
+        BufferedReader reader = new BufferedReader(new FileReader(beats));
+        assertEquals("sample,timestamp,rr,width,class,arrhythmia", reader.readLine());
+        String line;
+        int matched = 0, peak = 0;
+        while ((line = reader.readLine()) != null) {
+            String[] parts = line.split(",");
+            if (parts[4].equals(PanTompkins.QRS.QrsClass.VIRTUAL.name()))
+                continue;
+            int sample = Integer.parseInt(parts[0]);
+            while (peak < ecg.rPeaks.length - 1 && ecg.rPeaks[peak + 1] <= sample) {
+                peak++;
+            }
+            int nearest = peak < ecg.rPeaks.length - 1 && ecg.rPeaks[peak + 1] - sample < sample - ecg.rPeaks[peak] ?
+                    ecg.rPeaks[peak + 1] : ecg.rPeaks[peak];
+            // the annotation is the raw R sample and its recorded timestamp
+            assertEquals(nearest, sample, 2);
+            assertEquals(START + 4 * sample, Long.parseLong(parts[1]));
+            matched++;
+        }
+        reader.close();
+        // the detector needs a few beats to learn
+        assertTrue(matched >= ecg.rPeaks.length - 5);
+    }
+}
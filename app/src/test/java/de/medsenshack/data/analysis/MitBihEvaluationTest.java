@@ -0,0 +1,71 @@
+package de.medsenshack.data.analysis;
+
+import org.junit.Test;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+
+import de.medsenshack.data.SyntheticEcg;
+
+import static org.junit.Assert.*;
+
+/**
+ * Evaluates the detector on a synthetic record whose annotations are the known R peaks, with a
+ * matching window of 2 samples.
+ */
+public class MitBihEvaluationTest {
+
+    private static File record(SyntheticEcg ecg) throws Exception {
+        File dir = File.createTempFile("mit", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        dir.deleteOnExit();
+
+        File signal = new File(dir, "100sig.csv");
+        signal.deleteOnExit();
+        BufferedWriter writer = new BufferedWriter(new FileWriter(signal));
+        writer.write("'sample #','MLII','V5'\n");
+        writer.write("'0.004 sec','mV','mV'\n");
+        for (int i = 0; i < ecg.values.length; i++) {
+            writer.write(i + "," + ecg.values[i] + "," + ecg.values[i] + "\n");
+        }
+        writer.close();
+
+        File annotations = MitBihRecord.annotationFile(signal);
+        annotations.deleteOnExit();
+        writer = new BufferedWriter(new FileWriter(annotations));
+        writer.write("      Time   Sample #  Type  Sub Chan  Num\n");
+        for (int r : ecg.rPeaks) {
+            writer.write("    0:00.000 " + r + "    N    0    0    0\n");
+        }
+        writer.close();
+        return signal;
+    }
+
+    @Test
+    public void detectedBeatsMatchTheAnnotations() throws Exception {
+        SyntheticEcg ecg = new SyntheticEcg(250, 120);
+        File signal = record(ecg);
+        assertEquals(1, MitBihEvaluation.findRecords(signal.getParentFile()).length);
+
+        for (boolean lowLatency : new boolean[]{false, true}) {
+            MitBihEvaluation evaluation = new MitBihEvaluation(8, MitBihEvaluation.DEFAULT_SKIP_SECONDS);
+            evaluation.lowLatency = lowLatency;
+            MitBihEvaluation.Result result = evaluation.evaluate(signal);
+            assertNull(result.error);
+            assertEquals(250, result.samplingRate, 0);
+
+            int scored = 0;
+            for (int r : ecg.rPeaks) {
+                if (r >= MitBihEvaluation.DEFAULT_SKIP_SECONDS * 250)
+                    scored++;
+            }
+            assertEquals(scored, result.truePositives);
+            assertEquals(0, result.falseNegatives);
+            assertEquals(0, result.falsePositives);
+            // a beat can't be emitted before its R peak
+            assertEquals(scored, result.latencies.length);
+            assertTrue(result.latencies[0] >= 0);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package de.medsenshack.data.storage;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import static org.junit.Assert.*;
+
+/**
+ * Records interleaved channels through small blocks and decodes the file again.
+ */
+public class BinaryRecorderTest {
+
+    @Test
+    public void recordsAreWrittenInOrder() throws Exception {
+        File file = File.createTempFile("recording", ".bin");
+        file.deleteOnExit();
+        BinaryRecorder recorder = new BinaryRecorder(new FileOutputStream(file).getChannel(), 256);
+        int ecg = recorder.addChannel("ecg", 250, 1);
+        int acc = recorder.addChannel("acc", 10, 3);
+        recorder.start(1234);
+
+        int n = 25000;
+        for (int i = 0; i < n; i++) {
+            recorder.record(ecg, 1000 + 4 * i, i / 6, 2048 + i % 1000);
+            if (i % 25 == 0)
+                recorder.record(acc, 1000 + 4 * i, i / 75, i, -i, 488);
+        }
+        recorder.close();
+
+        int records = n + n / 25;
+        assertEquals(records, recorder.records);
+        assertEquals(0, recorder.droppedRecords);
+        assertEquals(file.length(), recorder.bytesWritten);
+        assertEquals((file.length() + 255) / 256, recorder.blocksWritten);
+        assertEquals(recorder.blocksWritten, recorder.flushLatency.count());
+
+        FileChannel in = new RandomAccessFile(file, "r").getChannel();
+        ByteBuffer b = ByteBuffer.allocate((int) in.size()).order(BinaryRecorder.ORDER);
+        while (b.hasRemaining() && in.read(b) >= 0) {
+        }
+        in.close();
+        b.flip();
+
+        assertEquals(BinaryRecorder.MAGIC, b.getInt());
+        assertEquals(BinaryRecorder.VERSION, b.getShort());
+        assertEquals(2, b.getShort());
+        assertEquals(1234, b.getLong());
+        String[] names = {"ecg", "acc"};
+        int[] numValues = {1, 3};
+        double[] rates = {250, 10};
+        for (int c = 0; c < 2; c++) {
+            assertEquals(numValues[c], b.get());
+            assertEquals(rates[c], b.getDouble(), 0);
+            byte[] name = new byte[b.get()];
+            b.get(name);
+            assertEquals(names[c], new String(name, "UTF-8"));
+        }
+
+        for (int i = 0; i < n; i++) {
+            assertEquals(ecg, b.get());
+            assertEquals(1000 + 4 * i, b.getLong());
+            assertEquals(i / 6, b.getInt());
+            assertEquals(2048 + i % 1000, b.getFloat(), 0);
+            if (i % 25 == 0) {
+                assertEquals(acc, b.get());
+                assertEquals(1000 + 4 * i, b.getLong());
+                assertEquals(i / 75, b.getInt());
+                assertEquals(i, b.getFloat(), 0);
+                assertEquals(-i, b.getFloat(), 0);
+                assertEquals(488, b.getFloat(), 0);
+            }
+        }
+        assertFalse(b.hasRemaining());
+    }
+
+    /**
+     * An interrupted acquisition thread that has to wait for the writer still gets its block and
+     * keeps its interrupt.
+     */
+    @Test
+    public void interruptedStallFinishes() throws Exception {
+        final WritableByteChannel slow = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                int n = src.remaining();
+                src.position(src.limit());
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        final BinaryRecorder recorder = new BinaryRecorder(slow, 256);
+        final int ecg = recorder.addChannel("ecg", 250, 1);
+        recorder.start(1234);
+        final boolean[] interrupted = new boolean[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Thread.currentThread().interrupt();
+                for (int i = 0; i < 200; i++) {
+                    recorder.record(ecg, 1000 + 4 * i, i / 6, i);
+                }
+                interrupted[0] = Thread.interrupted();
+            }
+        });
+        thread.start();
+        thread.join(3000);
+        assertFalse(thread.isAlive());
+        assertTrue(interrupted[0]);
+        assertTrue(recorder.stalls > 0);
+        recorder.close();
+        assertEquals(200, recorder.records);
+    }
+}
@@ -0,0 +1,69 @@
+package de.medsenshack.data.storage;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.RandomAccessFile;
+
+import de.medsenshack.data.SyntheticEcg;
+import de.medsenshack.data.analysis.EcgRecording;
+
+import static org.junit.Assert.*;
+
+/**
+ * Exports a recording of ECG and accelerometer to CSV and reads the files back as the offline tools do.
+ */
+public class CsvExporterTest {
+
+    private static final long START = 1461402395000L;
+
+    @Test
+    public void exportedChannelsMatchTheRecording() throws Exception {
+        SyntheticEcg ecg = new SyntheticEcg(250, 60);
+        File file = File.createTempFile("recording", ".bin");
+        file.deleteOnExit();
+        BinaryRecorder recorder = new BinaryRecorder(new RandomAccessFile(file, "rw").getChannel(), 4096, 16 * 1024, 0);
+        int ecgChannel = recorder.addChannel("ecg", 250, 1);
+        int accChannel = recorder.addChannel("acc", 10, 3);
+        recorder.start(START);
+        for (int i = 0; i < ecg.values.length; i++) {
+            recorder.record(ecgChannel, START + 4 * i, i / 6, ecg.values[i]);
+            if (i % 25 == 24)
+                recorder.record(accChannel, START + 4 * i, i / 6, i, -i, 488);
+        }
+        recorder.close();
+
+        File dir = File.createTempFile("csv", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        File[] files = CsvExporter.export(file, dir);
+        assertEquals(2, files.length);
+        for (File f : files) {
+            f.deleteOnExit();
+        }
+        dir.deleteOnExit();
+        assertTrue(files[ecgChannel].getName().startsWith("ecg_"));
+        assertTrue(files[ecgChannel].getName().endsWith(".csv"));
+
+        EcgRecording rec = EcgRecording.load(files[ecgChannel]);
+        assertEquals(250, rec.samplingRate, 0);
+        assertEquals(ecg.values.length, rec.num);
+        for (int i = 0; i < rec.num; i++) {
+            assertEquals(START + 4 * i, rec.timestamps[i]);
+            assertEquals((float) ecg.values[i], (float) rec.values[i], 0);
+        }
+
+        BufferedReader reader = new BufferedReader(new FileReader(files[accChannel]));
+        assertEquals("samplingrate10.0", reader.readLine());
+        String line;
+        int n = 0;
+        while ((line = reader.readLine()) != null) {
+            int i = 25 * n + 24;
+            assertEquals((START + 4 * i) + "," + (i / 6) + "," + (float) i + "," + (float) -i + ",488.0", line);
+            n++;
+        }
+        reader.close();
+        assertEquals(ecg.values.length / 25, n);
+    }
+}
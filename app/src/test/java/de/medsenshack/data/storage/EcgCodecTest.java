@@ -0,0 +1,108 @@
+package de.medsenshack.data.storage;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Encodes ECG-like signals and extreme values and decodes them by random access.
+ */
+public class EcgCodecTest {
+
+    private static final long START = 1461402395000L;
+
+    /**
+     * 16 bit ECG: baseline wander, a sharp R wave every 200 samples and noise
+     */
+    private static int[] ecg(int n, long seed) {
+        Random rnd = new Random(seed);
+        int[] values = new int[n];
+        for (int i = 0; i < n; i++) {
+            int r = i % 200 - 100;
+            double qrs = Math.abs(r) < 6 ? 1000 * (1 - Math.abs(r) / 6.0) : 0;
+            values[i] = (int) Math.round(2048 + 150 * Math.sin(i / 250.0) + qrs + 8 * rnd.nextGaussian());
+        }
+        return values;
+    }
+
+    private static ByteBuffer encode(int[] values, int blockSamples) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        EcgCodec.Writer writer = new EcgCodec.Writer(out, 250, START, blockSamples);
+        for (int i = 0; i < values.length; i++) {
+            writer.add(START + 4 * i, values[i]);
+        }
+        writer.close();
+        assertEquals(values.length, writer.samples);
+        assertEquals(out.size(), writer.bytes);
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    @Test
+    public void ecgIsLossless() throws Exception {
+        int[] values = ecg(250 * 600 + 77, 1);
+        ByteBuffer encoded = encode(values, 1024);
+        // less than 2 of the 2 ADC bytes per sample
+        assertTrue(encoded.limit() + " bytes", encoded.limit() < 2 * values.length);
+
+        EcgCodec.Reader reader = new EcgCodec.Reader(encoded);
+        assertEquals(values.length, reader.numSamples);
+        assertFalse(reader.truncated);
+        assertEquals(values.length / 1024 + 1, reader.numBlocks());
+        assertEquals(250, reader.samplingRate, 0);
+        assertEquals(START, reader.startTime);
+
+        int[] decoded = new int[values.length];
+        assertEquals(values.length, reader.read(0, decoded, 0, values.length + 10));
+        assertArrayEquals(values, decoded);
+
+        // random access across block boundaries
+        Random rnd = new Random(2);
+        int[] part = new int[3000];
+        for (int k = 0; k < 100; k++) {
+            int from = rnd.nextInt(values.length);
+            int n = reader.read(from, part, 0, part.length);
+            assertEquals(Math.min(part.length, values.length - from), n);
+            for (int i = 0; i < n; i++) {
+                assertEquals(values[from + i], part[i]);
+            }
+        }
+
+        assertEquals(START + 4 * 5000, reader.timestamp(5000));
+        assertEquals(5000, reader.sampleAt(START + 4 * 5000));
+        assertEquals(5001, reader.sampleAt(START + 4 * 5000 + 1));
+        assertEquals(0, reader.sampleAt(0));
+        assertEquals(values.length, reader.sampleAt(START + 4L * values.length));
+    }
+
+    @Test
+    public void extremesAreLossless() throws Exception {
+        int[] values = new int[1000];
+        Random rnd = new Random(3);
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i % 3 == 0 ? Integer.MIN_VALUE : i % 3 == 1 ? Integer.MAX_VALUE : rnd.nextInt();
+        }
+        values[999] = 0;
+        EcgCodec.Reader reader = new EcgCodec.Reader(encode(values, 7));
+        int[] decoded = new int[values.length];
+        assertEquals(values.length, reader.read(0, decoded, 0, values.length));
+        assertArrayEquals(values, decoded);
+    }
+
+    @Test
+    public void truncatedBlockIsIgnored() throws Exception {
+        int[] values = ecg(5000, 4);
+        ByteBuffer encoded = encode(values, 1000);
+        encoded.limit(encoded.limit() - 10);
+        EcgCodec.Reader reader = new EcgCodec.Reader(encoded);
+        assertTrue(reader.truncated);
+        assertEquals(4000, reader.numSamples);
+        int[] decoded = new int[5000];
+        assertEquals(4000, reader.read(0, decoded, 0, 5000));
+        assertEquals(values[3999], decoded[3999]);
+        assertEquals(-1, reader.block(4000));
+    }
+}
@@ -0,0 +1,85 @@
+package de.medsenshack.data.storage;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+/**
+ * Converts a recorded minute with beat and activity annotations and parses the EDF+ file.
+ */
+public class EdfExporterTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final long START = 1461402395000L;
+
+    private static String field(byte[] file, int offset, int length) {
+        return new String(file, offset, length, ASCII).trim();
+    }
+
+    @Test
+    public void recordingIsConverted() throws Exception {
+        File recording = File.createTempFile("recording", ".bin");
+        recording.deleteOnExit();
+        RecordingReader.summaryFile(recording).deleteOnExit();
+        BinaryRecorder recorder = new BinaryRecorder(new RandomAccessFile(recording, "rw").getChannel(), 4096, 16 * 1024, 0);
+        int ecg = recorder.addChannel("ecg", 250, 1);
+        int acc = recorder.addChannel("acc", 10, 3);
+        recorder.start(START);
+        EdfExporter.Annotations beats = new EdfExporter.Annotations(128);
+        EdfExporter.Annotations activities = new EdfExporter.Annotations(32);
+        // 1 min of ECG, the accelerometer lags behind, a beat every 0.8 s
+        for (int i = 0; i < 250 * 60; i++) {
+            recorder.record(ecg, START + 4 * i, i / 6, i % 4096);
+            if (i % 25 == 24)
+                recorder.record(acc, START + 4 * i - 900, i / 75, i % 25, -1, 1);
+            if (i % 200 == 100)
+                beats.add(START + 4 * i, "NORMAL");
+        }
+        recorder.close();
+        activities.add(START + 1500, "WALKING");
+        activities.add(START + 30000, "RESTING");
+
+        File edf = File.createTempFile("recording", ".edf");
+        edf.deleteOnExit();
+        EdfWriter writer = EdfExporter.export(recording, edf, 1, new String[]{"ECG", "Acc"}, -32768, 32767, beats, activities);
+        assertEquals(60, writer.records);
+        for (EdfWriter.Signal signal : writer.signals()) {
+            assertEquals(0, signal.droppedAnnotations);
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(edf, "r");
+        byte[] b = new byte[(int) raf.length()];
+        raf.readFully(b);
+        raf.close();
+        int ns = 6;
+        assertEquals(ns, Integer.parseInt(field(b, 252, 4)));
+        String[] labels = {"ECG", "AccX", "AccY", "AccZ", EdfWriter.ANNOTATIONS_LABEL, EdfWriter.ANNOTATIONS_LABEL};
+        for (int s = 0; s < ns; s++) {
+            assertEquals(labels[s], field(b, 256 + 16 * s, 16));
+        }
+        int recordSize = 2 * (250 + 3 * 10 + 64 + 16);
+        assertEquals(256 * (ns + 1) + 60 * recordSize, b.length);
+
+        ByteBuffer data = ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN);
+        StringBuilder annotations = new StringBuilder();
+        for (int r = 0; r < 60; r++) {
+            int pos = 256 * (ns + 1) + r * recordSize;
+            for (int i = 0; i < 250; i++) {
+                assertEquals((r * 250 + i) % 4096, data.getShort(pos + 2 * i));
+            }
+            annotations.append(new String(b, pos + 2 * (250 + 30), 2 * (64 + 16), ASCII));
+        }
+        String all = annotations.toString();
+        assertEquals(75, all.split("NORMAL").length - 1);
+        assertTrue(all.contains("+0.4\u0014NORMAL\u0014\u0000"));
+        assertTrue(all.contains("+59.6\u0014NORMAL\u0014\u0000"));
+        assertTrue(all.contains("+1.5\u0014WALKING\u0014\u0000"));
+        assertTrue(all.contains("+30\u0014RESTING\u0014\u0000"));
+    }
+}
@@ -0,0 +1,108 @@
+package de.medsenshack.data.storage;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writes signals of different rates with annotations and parses the EDF+ file again.
+ */
+public class EdfWriterTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final long START = 1461402395000L;
+
+    private static String field(byte[] file, int offset, int length) {
+        return new String(file, offset, length, ASCII).trim();
+    }
+
+    @Test
+    public void signalsAndAnnotationsAreWritten() throws Exception {
+        File file = File.createTempFile("recording", ".edf");
+        file.deleteOnExit();
+        EdfWriter writer = new EdfWriter(file, START, 1);
+        int ecg = writer.addSignal("ECG", "", 250, 0, 65535);
+        int acc = writer.addSignal("AccX", "g", 10, -4, 4);
+        int gyro = writer.addSignal("GyroX", "", 10, 0, 65535);
+        int beats = writer.addAnnotations(64);
+        writer.start();
+
+        // 20.5 s of ECG, the accelerometer arrives in packets of 1 s, the gyroscope never
+        for (int i = 0; i < 5125; i++) {
+            writer.put(ecg, i % 4096);
+            if (i % 250 == 249) {
+                for (int k = 0; k < 10; k++) {
+                    writer.put(acc, (k - 5) * 0.5);
+                }
+            }
+            if (i % 200 == 100)
+                writer.annotate(beats, START + i * 4, "NORMAL");
+        }
+        writer.annotate(beats, START + 1500, 2500, "WALKING");
+        writer.close();
+        assertEquals(21, writer.records);
+        assertEquals(210, writer.signals().get(gyro).filledSamples);
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        byte[] b = new byte[(int) raf.length()];
+        raf.readFully(b);
+        raf.close();
+
+        assertEquals("0", field(b, 0, 8));
+        assertTrue(field(b, 88, 80).startsWith("Startdate "));
+        int ns = 4;
+        assertEquals(256 * (ns + 1), Integer.parseInt(field(b, 184, 8)));
+        assertEquals("EDF+C", field(b, 192, 44));
+        assertEquals(21, Integer.parseInt(field(b, 236, 8)));
+        assertEquals("1", field(b, 244, 8));
+        assertEquals(ns, Integer.parseInt(field(b, 252, 4)));
+        assertEquals("ECG", field(b, 256, 16));
+        assertEquals(EdfWriter.ANNOTATIONS_LABEL, field(b, 256 + 3 * 16, 16));
+        int samplesOffset = 256 + ns * (16 + 80 + 8 + 8 + 8 + 8 + 8 + 80);
+        int[] samples = {250, 10, 10, 32};
+        for (int s = 0; s < ns; s++) {
+            assertEquals(samples[s], Integer.parseInt(field(b, samplesOffset + 8 * s, 8)));
+        }
+        int recordSize = 2 * (250 + 10 + 10 + 32);
+        assertEquals(256 * (ns + 1) + 21 * recordSize, b.length);
+
+        ByteBuffer data = ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN);
+        StringBuilder annotations = new StringBuilder();
+        for (int r = 0; r < 21; r++) {
+            int pos = 256 * (ns + 1) + r * recordSize;
+            // ECG values shifted into the signed range
+            for (int i = 0; i < 250; i++) {
+                int sample = r * 250 + i;
+                int expected = sample < 5125 ? sample % 4096 : 5124 % 4096;
+                assertEquals(expected - 32768, data.getShort(pos + 2 * i));
+            }
+            // -2.5..2 g of -4..4 g
+            for (int i = 0; i < 10; i++) {
+                double physical = r < 20 ? (i - 5) * 0.5 : 2;
+                assertEquals(Math.round((physical + 4) / 8 * 65535 - 32768), data.getShort(pos + 500 + 2 * i));
+            }
+            String tal = new String(b, pos + 540, 64, ASCII);
+            assertTrue(tal, tal.startsWith("+" + r + "\u0014\u0014\u0000"));
+            annotations.append(tal);
+        }
+        String all = annotations.toString();
+        assertTrue(all.contains("+0.4\u0014NORMAL\u0014\u0000"));
+        assertTrue(all.contains("+20.4\u0014NORMAL\u0014\u0000"));
+        assertTrue(all.contains("+1.5\u00152.5\u0014WALKING\u0014\u0000"));
+        assertEquals(26, all.split("NORMAL").length - 1);
+    }
+
+    @Test
+    public void numbersFitTheHeader() {
+        assertEquals("-32768", EdfWriter.number(-32768));
+        assertEquals("0.5", EdfWriter.number(0.5));
+        assertEquals("-1.23456", EdfWriter.number(-1.234567));
+        assertEquals("1234.567", EdfWriter.number(1234.5671));
+    }
+}
@@ -0,0 +1,144 @@
+package de.medsenshack.data.storage;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * Records segmented files, cuts them as if the app was killed and recovers them from the footers.
+ */
+public class RecordingIndexTest {
+
+    private static final long START = 1461402395000L;
+
+    /**
+     * 10 s of ECG at 250 Hz and accelerometer at 10 Hz, the accelerometer timestamps lag behind
+     */
+    private static BinaryRecorder record(File file, long syncInterval) throws Exception {
+        BinaryRecorder recorder = new BinaryRecorder(new RandomAccessFile(file, "rw").getChannel(), 256, 1024, syncInterval);
+        int ecg = recorder.addChannel("ecg", 250, 1);
+        int acc = recorder.addChannel("acc", 10, 3);
+        recorder.start(START);
+        for (int i = 0; i < 2500; i++) {
+            recorder.record(ecg, START + 4 * i, i / 6, i);
+            if (i % 25 == 24)
+                recorder.record(acc, START + 4 * i - 900, i / 75, i, -i, 488);
+        }
+        return recorder;
+    }
+
+    @Test
+    public void footersIndexSegments() throws Exception {
+        File file = File.createTempFile("recording", ".bin");
+        file.deleteOnExit();
+        BinaryRecorder recorder = record(file, 0);
+        recorder.close();
+
+        assertTrue(RecordingIndex.isSealed(file));
+        RecordingIndex index = RecordingIndex.read(file);
+        assertTrue(index.complete);
+        assertEquals(START, index.startTime);
+        assertEquals(1024, index.segmentSize);
+        assertEquals(2, index.channels.size());
+        assertEquals("acc", index.channels.get(1).name);
+        assertEquals(recorder.segments, index.numSegments);
+        assertEquals(recorder.records, index.numRecords());
+        assertEquals(index.segmentStart(index.numSegments), file.length());
+
+        // the first segment holds 51 records and their channel index, the first accelerometer time is
+        // the smallest
+        assertEquals(START + 4 * 24 - 900, index.minTimestamp[0]);
+        assertEquals(51, index.records[0]);
+        assertTrue(index.used[0] <= index.channelIndexStart(0));
+        assertEquals(START + 4 * 2499, index.maxTimestamp[index.numSegments - 1]);
+        for (int s = 1; s < index.numSegments; s++) {
+            assertTrue(index.minTimestamp[s] >= index.minTimestamp[s - 1] - 900);
+            assertTrue(index.maxTimestamp[s] > index.maxTimestamp[s - 1]);
+        }
+    }
+
+    @Test
+    public void interruptedRecordingIsRecovered() throws Exception {
+        File file = File.createTempFile("recording", ".bin");
+        file.deleteOnExit();
+        BinaryRecorder recorder = record(file, 0);
+        recorder.close();
+        RecordingIndex full = RecordingIndex.read(file);
+
+        // killed in the middle of segment 20, within the 3rd record
+        int segment = 20;
+        long cut = full.segmentStart(segment) + 2 * 17 + 5;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(cut);
+        raf.close();
+
+        assertFalse(RecordingIndex.isSealed(file));
+        RecordingIndex index = RecordingIndex.read(file);
+        assertFalse(index.complete);
+        assertEquals(segment + 1, index.numSegments);
+        assertEquals(2, index.recoveredRecords);
+
+        RecordingIndex recovered = RecordingIndex.recover(file);
+        assertTrue(recovered.complete);
+        assertEquals(full.segmentStart(segment + 1), file.length());
+        assertTrue(RecordingIndex.isSealed(file));
+
+        index = RecordingIndex.read(file);
+        assertTrue(index.complete);
+        assertEquals(segment + 1, index.numSegments);
+        assertEquals(2, index.records[segment]);
+        assertEquals(index.minTimestamp[segment] + 4, index.maxTimestamp[segment]);
+        assertTrue(index.maxTimestamp[segment] <= full.maxTimestamp[segment]);
+        // the recovered channel index finds the two records
+        RecordingReader reader = new RecordingReader(file);
+        long[] timestamps = new long[10];
+        assertEquals(2, reader.read(0, index.minTimestamp[segment], Long.MAX_VALUE, timestamps, new float[10], 10));
+        assertEquals(index.maxTimestamp[segment], timestamps[1]);
+        reader.close();
+        for (int s = 0; s < segment; s++) {
+            assertEquals(full.records[s], index.records[s]);
+            assertEquals(full.maxTimestamp[s], index.maxTimestamp[s]);
+        }
+
+        // killed right after a segment was finished, nothing to recover
+        raf = new RandomAccessFile(file, "rw");
+        raf.setLength(full.segmentStart(10) + 7);
+        raf.close();
+        assertFalse(RecordingIndex.isSealed(file));
+        recovered = RecordingIndex.recover(file);
+        assertEquals(10, recovered.numSegments);
+        assertEquals(full.segmentStart(10), file.length());
+        assertTrue(RecordingIndex.read(file).complete);
+
+        // ends at a segment boundary, but the footer of the last segment was never written
+        raf = new RandomAccessFile(file, "rw");
+        raf.setLength(full.segmentStart(5));
+        raf.seek(full.segmentStart(5) - BinaryRecorder.FOOTER_SIZE);
+        raf.writeInt(0);
+        raf.close();
+        assertFalse(RecordingIndex.isSealed(file));
+    }
+
+    @Test
+    public void syncIntervalBoundsLoss() throws Exception {
+        File file = File.createTempFile("recording", ".bin");
+        file.deleteOnExit();
+        BinaryRecorder recorder = record(file, 100);
+
+        // without close, everything but the last 100 ms reaches the file
+        long deadline = System.currentTimeMillis() + 5000;
+        RecordingIndex index = RecordingIndex.read(file);
+        while (index.numRecords() < recorder.records - 30 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            index = RecordingIndex.read(file);
+        }
+        assertTrue(index.numRecords() + " of " + recorder.records, index.numRecords() >= recorder.records - 30);
+
+        recorder.close();
+        assertTrue(recorder.syncs > 0);
+        assertEquals(recorder.records, RecordingIndex.read(file).numRecords());
+    }
+}
@@ -0,0 +1,190 @@
+package de.medsenshack.data.storage;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import de.medsenshack.data.TrendStore;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reads time spans and summaries of a recorded hour and compares them with the recorded samples.
+ */
+public class RecordingReaderTest {
+
+    private static final long START = 1461402395000L;
+    private static final int SAMPLES = 250 * 3600;
+
+    /**
+     * 1 h of ECG at 250 Hz and accelerometer at 10 Hz, the accelerometer timestamps lag behind
+     */
+    private static File record() throws Exception {
+        File file = File.createTempFile("recording", ".bin");
+        file.deleteOnExit();
+        RecordingReader.summaryFile(file).deleteOnExit();
+        BinaryRecorder recorder = new BinaryRecorder(new RandomAccessFile(file, "rw").getChannel(), 4096, 16 * 1024, 0);
+        int ecg = recorder.addChannel("ecg", 250, 1);
+        int acc = recorder.addChannel("acc", 10, 3);
+        recorder.start(START);
+        for (int i = 0; i < SAMPLES; i++) {
+            recorder.record(ecg, START + 4 * i, i / 6, i % 1000);
+            if (i % 25 == 24)
+                recorder.record(acc, START + 4 * i - 900, i / 75, i, -i, 488);
+        }
+        recorder.close();
+        return file;
+    }
+
+    @Test
+    public void readReturnsTheSpan() throws Exception {
+        RecordingReader reader = new RecordingReader(record());
+        assertEquals(START - 900 + 4 * 24, reader.firstTimestamp());
+        assertEquals(START + 4 * (SAMPLES - 1), reader.lastTimestamp());
+
+        long[] timestamps = new long[1000];
+        float[] values = new float[3000];
+        long from = START + 1800 * 1000 + 2;
+        int n = reader.read(0, from, from + 1000, timestamps, values, 1000);
+        assertEquals(250, n);
+        for (int k = 0; k < n; k++) {
+            int i = 450000 + 1 + k;
+            assertEquals(START + 4 * i, timestamps[k]);
+            assertEquals(i % 1000, values[k], 0);
+        }
+        // only the segments of the span were decoded
+        assertTrue(reader.recordsScanned < 3 * 16 * 1024 / 17);
+
+        long scanned = reader.recordsScanned;
+        n = reader.read(1, from, from + 1000, timestamps, values, 1000);
+        assertEquals(10, n);
+        // the ECG records in between are skipped
+        assertTrue(reader.recordsScanned - scanned < 3 * 10);
+        for (int k = 0; k < n; k++) {
+            int i = (int) ((timestamps[k] - START + 900) / 4);
+            assertEquals(24, i % 25);
+            assertEquals(i, values[3 * k], 0);
+            assertEquals(-i, values[3 * k + 1], 0);
+            assertEquals(488, values[3 * k + 2], 0);
+        }
+
+        assertEquals(5, reader.read(0, START, START + 3600 * 1000, timestamps, values, 5));
+        assertEquals(0, reader.read(0, START - 1000, START - 1, timestamps, values, 1000));
+        assertEquals(0, reader.read(0, START + 3600 * 1000, START + 7200 * 1000, timestamps, values, 1000));
+        reader.close();
+    }
+
+    @Test
+    public void sparseChannelTouchesOnlyItsRecords() throws Exception {
+        // 10 min of ECG at 250 Hz and skin conductance at 1 Hz
+        File file = File.createTempFile("recording", ".bin");
+        file.deleteOnExit();
+        BinaryRecorder recorder = new BinaryRecorder(new RandomAccessFile(file, "rw").getChannel(), 4096, 16 * 1024, 0);
+        int ecg = recorder.addChannel("ecg", 250, 1);
+        int galv = recorder.addChannel("galv", 1, 1);
+        recorder.start(START);
+        for (int i = 0; i < 250 * 600; i++) {
+            recorder.record(ecg, START + 4 * i, i / 6, i % 1000);
+            if (i % 250 == 100)
+                recorder.record(galv, START + 4 * i, i / 6, i / 250);
+        }
+        recorder.close();
+
+        RecordingReader reader = new RecordingReader(file);
+        assertTrue(reader.index.channelIndex);
+        long[] timestamps = new long[1000];
+        float[] values = new float[1000];
+        long from = START + 60 * 1000, to = START + 300 * 1000;
+        int n = reader.read(galv, from, to, timestamps, values, 1000);
+        assertEquals(240, n);
+        for (int k = 0; k < n; k++) {
+            assertEquals(START + 60 * 1000 + 400 + 1000 * k, timestamps[k]);
+            assertEquals(60 + k, values[k], 0);
+        }
+
+        // the returned samples plus at most two binary search steps per segment of the span
+        int segments = 0;
+        for (int s = 0; s < reader.index.numSegments; s++) {
+            if (reader.index.maxTimestamp[s] >= from && reader.index.minTimestamp[s] <= to)
+                segments++;
+        }
+        assertTrue(segments + " segments", segments > 50);
+        assertTrue(reader.recordsScanned + " records", reader.recordsScanned <= n + 3 * (segments + 1));
+
+        // the dense channel is read as before
+        long scanned = reader.recordsScanned;
+        assertEquals(250, reader.read(ecg, from, from + 999, timestamps, values, 1000));
+        assertEquals(from, timestamps[0]);
+        assertEquals(60 * 250 % 1000, values[0], 0);
+        assertTrue(reader.recordsScanned - scanned < 250 + 3 * 10);
+        reader.close();
+    }
+
+    @Test
+    public void summaryIsPersisted() throws Exception {
+        File file = record();
+        RecordingReader reader = new RecordingReader(file);
+        TrendStore.Series series = new TrendStore.Series(100);
+
+        // the hour in 1 min buckets, the first and last partially filled
+        int n = reader.summary(0, 0, START, START + 3600 * 1000 - 1, series);
+        assertTrue(reader.summaryBuilt);
+        assertEquals(60 * 1000, series.resolution);
+        assertEquals(61, n);
+        int total = 0;
+        for (int k = 0; k < n; k++) {
+            total += series.count[k];
+            assertEquals(0, series.min[k], 0);
+            assertEquals(999, series.max[k], 0);
+            assertTrue(series.timestamps[k] <= START + 3600 * 1000);
+        }
+        assertEquals(SAMPLES, total);
+        assertEquals(START / 60000 * 60000, series.timestamps[0]);
+        assertEquals(START / 60000 * 60000 + 60000, series.timestamps[1]);
+        assertEquals(15000, series.count[1]);
+        assertEquals(499.5, series.mean[1], 0.01);
+        reader.close();
+
+        // opened again, the summary file is used and the overview needs little I/O
+        reader = new RecordingReader(file);
+        n = reader.summary(1, 1, START, START + 3600 * 1000 - 1, series);
+        assertFalse(reader.summaryBuilt);
+        assertTrue(reader.summaryBytesRead < 4096);
+        total = 0;
+        for (int k = 0; k < n; k++) {
+            total += series.count[k];
+            assertTrue(series.max[k] <= 0);
+        }
+        assertEquals(SAMPLES / 25, total);
+
+        // 10 s around a minute come from the 1 s level
+        n = reader.summary(0, 0, START + 60000, START + 70000 - 1, series);
+        assertEquals(1000, series.resolution);
+        assertEquals(10, n);
+        assertEquals(START + 60000, series.timestamps[0]);
+        assertEquals(250, series.count[0]);
+        reader.close();
+    }
+
+    @Test
+    public void changedRecordingRebuildsSummary() throws Exception {
+        File file = record();
+        RecordingReader reader = new RecordingReader(file);
+        reader.summary(0, 0, START, START + 1000, new TrendStore.Series(10));
+        assertTrue(reader.summaryBuilt);
+        reader.close();
+
+        // the tail got cut as if the app was killed
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 1000);
+        raf.close();
+        reader = new RecordingReader(file);
+        TrendStore.Series series = new TrendStore.Series(10);
+        reader.summary(0, 0, START, START + 3600 * 1000, series);
+        assertTrue(reader.summaryBuilt);
+        assertEquals(10 * 60 * 1000, series.resolution);
+        assertTrue(series.count[series.num - 1] < 250 * 600);
+        reader.close();
+    }
+}
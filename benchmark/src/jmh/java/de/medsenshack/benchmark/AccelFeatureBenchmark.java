@@ -0,0 +1,84 @@
+package de.medsenshack.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.LinkedList;
+import java.util.Random;
+
+import de.medsenshack.data.AccelFeatureExtractor;
+
+/**
+ * Per-sample cost of the accelerometer features ({@link AccelFeatureExtractor#add}) at 10 Hz and
+ * 100 Hz over 10 s windows with 50 % overlap, compared to the former energy computation that
+ * buffered the samples in a LinkedList and indexed it with get(i).
+ */
+@State(Scope.Thread)
+public class AccelFeatureBenchmark {
+
+    public static final int BLOCK = 1000;
+    public static final long WINDOW = 10 * 1000;
+
+    @Param({"10", "100"})
+    public int samplingRate;
+
+    private AccelFeatureExtractor extractor;
+    private double[] x, y, z;
+    private long timestamp;
+    private LinkedList<double[]> legacy;
+    private long legacyStart;
+
+    @Setup
+    public void createExtractor() {
+        extractor = new AccelFeatureExtractor(samplingRate, WINDOW, WINDOW / 2, 100);
+        x = new double[BLOCK];
+        y = new double[BLOCK];
+        z = new double[BLOCK];
+        Random rnd = new Random(42);
+        for (int i = 0; i < BLOCK; i++) {
+            x[i] = Math.round(30 * rnd.nextGaussian());
+            y[i] = Math.round(30 * rnd.nextGaussian());
+            z[i] = Math.round(488 + 100 * Math.sin(2 * Math.PI * 2 * i / samplingRate) + 30 * rnd.nextGaussian());
+        }
+        timestamp = 0;
+        legacy = new LinkedList<>();
+        legacyStart = 0;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public float features() {
+        for (int i = 0; i < BLOCK; i++) {
+            timestamp += 1000 / samplingRate;
+            extractor.add(timestamp, x[i], y[i], z[i]);
+        }
+        return extractor.features[AccelFeatureExtractor.ENERGY];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public double legacyLinkedList() {
+        double energy = 0;
+        for (int i = 0; i < BLOCK; i++) {
+            timestamp += 1000 / samplingRate;
+            legacy.add(new double[]{x[i], y[i], z[i]});
+            if (timestamp - legacyStart >= WINDOW) {
+                legacyStart = timestamp;
+                double mx = 0, my = 0, mz = 0;
+                for (int j = 0; j < legacy.size(); j++) {
+                    mx += legacy.get(j)[0] * legacy.get(j)[0];
+                    my += legacy.get(j)[1] * legacy.get(j)[1];
+                    mz += legacy.get(j)[2] * legacy.get(j)[2];
+                }
+                int n = legacy.size();
+                energy = Math.abs(Math.sqrt((mx / n + my / n + mz / n) / 3) - 488.0);
+                legacy.clear();
+            }
+        }
+        return energy;
+    }
+}
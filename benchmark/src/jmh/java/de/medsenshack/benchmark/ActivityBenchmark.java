@@ -0,0 +1,79 @@
+package de.medsenshack.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import de.medsenshack.data.AccelFeatureExtractor;
+import de.medsenshack.data.ActivityClass;
+import de.medsenshack.data.ActivityClassifier;
+import de.medsenshack.data.analysis.ActivityTrainer;
+
+/**
+ * Predictions per second of the flat-array forest ({@link ActivityClassifier#next}) for different
+ * numbers of trees. The forest is trained on overlapping classes with label noise, so the trees grow
+ * to their maximal depth as they would on real recordings.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ActivityBenchmark {
+
+    public static final int BLOCK = 1024;
+
+    @Param({"1", "25", "100"})
+    public int trees;
+
+    private ActivityClassifier classifier;
+    private float[][] features;
+
+    @Setup
+    public void createClassifier() {
+        Random rnd = new Random(42);
+        ActivityClass[] classes = ActivityClass.values();
+        ActivityTrainer.Annotations annotations = new ActivityTrainer.Annotations();
+        int n = 60 * 60 * 10;
+        long[] t = new long[n];
+        double[] x = new double[n], y = new double[n], z = new double[n];
+        for (int i = 0; i < n; i++) {
+            t[i] = i * 100L;
+            // a new activity every 30 s
+            int c = (i / 300) % classes.length;
+            if (i % 300 == 0)
+                annotations.add(t[i], classes[c]);
+            x[i] = 50 * c + 100 * rnd.nextGaussian();
+            y[i] = 488 - 30 * c + 100 * rnd.nextGaussian();
+            z[i] = 40 * c * Math.sin(2 * Math.PI * (1 + 0.3 * c) * t[i] / 1000.0) + 100 * rnd.nextGaussian();
+        }
+        ActivityTrainer trainer = new ActivityTrainer(10 * 1000, 1000);
+        trainer.numTrees = trees;
+        trainer.addRecording(annotations, 10, t, x, y, z, n);
+        classifier = trainer.train(3);
+
+        features = new float[BLOCK][AccelFeatureExtractor.NUM_FEATURES];
+        for (int i = 0; i < BLOCK; i++) {
+            for (int f = 0; f < AccelFeatureExtractor.NUM_FEATURES; f++) {
+                features[i][f] = (float) (300 * rnd.nextGaussian());
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public ActivityClass predict() {
+        ActivityClass activity = null;
+        for (int i = 0; i < BLOCK; i++) {
+            activity = classifier.next(i, features[i]);
+        }
+        return activity;
+    }
+}
@@ -0,0 +1,51 @@
+package de.medsenshack.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+import de.medsenshack.data.AfDetector;
+
+/**
+ * Per-beat cost of the AF detector ({@link AfDetector#add(long, int)}) on alternating regular and
+ * fibrillating RR stretches. Multiplied by the beats per hour (about 4000 to 9000) this is the CPU
+ * cost per hour of data, which the detector also reports itself in {@link AfDetector#nanosPerHour()}.
+ */
+@State(Scope.Thread)
+public class AfBenchmark {
+
+    public static final int BLOCK = 1024;
+
+    @Param({"16", "64", "128"})
+    public int window;
+
+    private AfDetector af;
+    private int[] rr;
+    private long timestamp;
+
+    @Setup
+    public void createDetector() {
+        af = new AfDetector(window);
+        rr = new int[BLOCK];
+        Random rnd = new Random(42);
+        for (int i = 0; i < BLOCK; i++) {
+            rr[i] = i < BLOCK / 2 ? (int) (800 + 30 * rnd.nextGaussian()) : 350 + rnd.nextInt(700);
+        }
+        timestamp = 0;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public boolean add() {
+        for (int i = 0; i < BLOCK; i++) {
+            timestamp += rr[i];
+            af.add(timestamp, rr[i]);
+        }
+        return af.inAf;
+    }
+}
@@ -0,0 +1,64 @@
+package de.medsenshack.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+import de.medsenshack.data.MorphologyClusterer;
+import de.medsenshack.data.PanTompkins.QRS;
+import de.medsenshack.data.PanTompkins;
+import de.medsenshack.data.SyntheticEcg;
+
+/**
+ * Per-beat cost of {@link MorphologyClusterer#assign(QRS)} with a full library of random
+ * morphologies of growing size. The width/area pre-filter keeps the number of correlations per beat
+ * constant, so the cost should grow only slightly with the library.
+ */
+@State(Scope.Thread)
+public class ClusterBenchmark {
+
+    @Param({"4", "64", "256"})
+    public int capacity;
+
+    private MorphologyClusterer clusterer;
+    private QRS beat;
+
+    @Setup
+    public void fillLibrary() {
+        SyntheticEcg ecg = new SyntheticEcg(250, 60);
+        PanTompkins pants = new PanTompkins(250);
+        for (int i = 0; i < ecg.values.length; i++) {
+            pants.next(ecg.values[i], i);
+        }
+        beat = new QRS(pants, pants.maxQrsSize);
+        beat.copy(pants.qrsPrevious);
+
+        clusterer = new MorphologyClusterer(capacity, pants.maxQrsSize, pants.correlator);
+        Random rnd = new Random(42);
+        QRS random = new QRS(pants, pants.maxQrsSize);
+        random.copy(beat);
+        for (int k = 0; k < capacity; k++) {
+            random.values.clear();
+            float v = 0;
+            for (int i = 0; i < beat.values.num; i++) {
+                v += (float) rnd.nextGaussian();
+                random.values.add(v);
+            }
+            random.mean = random.values.getMean();
+            random.feat_width = (long) (beat.feat_width * (0.6 + 0.8 * rnd.nextDouble()));
+            random.feat_qrsta = beat.feat_qrsta * (0.6 + 0.8 * rnd.nextDouble());
+            random.normalize();
+            clusterer.assign(random);
+        }
+        beat.normalize();
+    }
+
+    @Benchmark
+    public int assign() {
+        return clusterer.assign(beat);
+    }
+}
@@ -0,0 +1,74 @@
+package de.medsenshack.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import de.medsenshack.data.SyntheticEcg;
+import de.medsenshack.data.storage.EcgCodec;
+
+/**
+ * Encode and decode cost per sample of the {@link EcgCodec} for a minute of the synthetic ECG in
+ * 1024 sample blocks. Decoding reads the whole minute from an encoded heap buffer.
+ */
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+    public static final int SAMPLES = 250 * 60;
+
+    private int[] values;
+    private int[] decoded;
+    private EcgCodec.Writer writer;
+    private EcgCodec.Reader reader;
+
+    @Setup
+    public void encode() throws IOException {
+        SyntheticEcg ecg = new SyntheticEcg(250, 60);
+        values = new int[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            values[i] = (int) Math.round(ecg.values[i]);
+        }
+        decoded = new int[SAMPLES];
+
+        writer = new EcgCodec.Writer(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }, 250, 0, EcgCodec.DEFAULT_BLOCK_SAMPLES);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        EcgCodec.Writer w = new EcgCodec.Writer(out, 250, 0, EcgCodec.DEFAULT_BLOCK_SAMPLES);
+        for (int i = 0; i < SAMPLES; i++) {
+            w.add(4 * i, values[i]);
+        }
+        w.close();
+        reader = new EcgCodec.Reader(ByteBuffer.wrap(out.toByteArray()));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public long encodeMinute() throws IOException {
+        for (int i = 0; i < SAMPLES; i++) {
+            writer.add(4 * i, values[i]);
+        }
+        writer.flush();
+        return writer.bytes;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public int decodeMinute() {
+        return reader.read(0, decoded, 0, SAMPLES);
+    }
+}
@@ -0,0 +1,68 @@
+package de.medsenshack.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+
+import de.medsenshack.data.storage.BinaryRecorder;
+
+/**
+ * Cost per ECG sample of a segmented {@link BinaryRecorder} writing to a real file, for different
+ * sync intervals. The sample timestamps advance by 4 ms as at 250 Hz, so a sync interval of 10 ms
+ * hands over a block every 2.5 samples; the inverse of the cost is the sample rate the recorder
+ * sustains at that durability. Each iteration writes a new temporary file.
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DurabilityBenchmark {
+
+    public static final int BLOCK = 1000;
+
+    /**
+     * longest time of ECG in ms that may be lost, 0 for no sync at all
+     */
+    @Param({"0", "1000", "100", "10"})
+    public long syncInterval;
+
+    private File file;
+    private BinaryRecorder recorder;
+    private int ecg;
+    private long timestamp;
+
+    @Setup(Level.Iteration)
+    public void open() throws IOException {
+        file = File.createTempFile("durability", ".bin");
+        recorder = new BinaryRecorder(file, 64 * 1024, syncInterval);
+        ecg = recorder.addChannel("ecg", 250, 1);
+        timestamp = 1461402395000L;
+        recorder.start(timestamp);
+    }
+
+    @TearDown(Level.Iteration)
+    public void close() throws IOException {
+        recorder.close();
+        if (!file.delete())
+            file.deleteOnExit();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public long record() {
+        for (int i = 0; i < BLOCK; i++) {
+            timestamp += 4;
+            recorder.record(ecg, timestamp, timestamp / 24, 2048 + (i & 255));
+        }
+        return recorder.records;
+    }
+}
@@ -0,0 +1,67 @@
+package de.medsenshack.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+
+import de.medsenshack.data.storage.EdfWriter;
+
+/**
+ * Cost per ECG sample of streaming the channels of the Simblee into an {@link EdfWriter}: ECG at
+ * 250 Hz and three accelerometer axes at 10 Hz in 1 s records, with a beat annotation per 200
+ * samples. The records are written to a temporary file, a new one in each iteration.
+ */
+@State(Scope.Thread)
+public class EdfBenchmark {
+
+    public static final int BLOCK = 1000;
+
+    private File file;
+    private EdfWriter writer;
+    private int ecg, accX, accY, accZ, beats;
+    private long sample;
+
+    @Setup(Level.Iteration)
+    public void open() throws IOException {
+        file = File.createTempFile("benchmark", ".edf");
+        writer = new EdfWriter(file, 1461402395000L, 1);
+        ecg = writer.addSignal("ECG", "", 250, 0, 65535);
+        accX = writer.addSignal("AccX", "", 10, 0, 65535);
+        accY = writer.addSignal("AccY", "", 10, 0, 65535);
+        accZ = writer.addSignal("AccZ", "", 10, 0, 65535);
+        beats = writer.addAnnotations(128);
+        writer.start();
+        sample = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void close() throws IOException {
+        writer.close();
+        if (!file.delete())
+            file.deleteOnExit();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public long write() throws IOException {
+        for (int i = 0; i < BLOCK; i++) {
+            sample++;
+            writer.put(ecg, 2048 + (sample & 255));
+            if (sample % 25 == 0) {
+                writer.put(accX, 300);
+                writer.put(accY, 400);
+                writer.put(accZ, 500);
+            }
+            if (sample % 200 == 0)
+                writer.annotate(beats, 1461402395000L + sample * 4, "NORMAL");
+        }
+        return writer.records;
+    }
+}
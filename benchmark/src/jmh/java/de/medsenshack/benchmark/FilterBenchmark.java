@@ -0,0 +1,188 @@
+package de.medsenshack.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import de.medsenshack.data.LmeFilter;
+import de.medsenshack.data.PanTompkins;
+import de.medsenshack.data.SyntheticEcg;
+
+/**
+ * Per-sample cost of {@link LmeFilter} and all of its nested filters. Every invocation filters a
+ * block of {@link #BLOCK} ECG samples, so the reported time is ns per sample.
+ * <p/>
+ * {@link LmeFilter.ButterworthFilter} has no coefficients and is therefore not benchmarked.
+ */
+@State(Scope.Thread)
+public class FilterBenchmark {
+
+    public static final int BLOCK = 4096;
+
+    private double[] input;
+    private double[] output = new double[BLOCK];
+
+    private LmeFilter lowpass;
+    private LmeFilter highpass;
+    private LmeFilter.MeanFilter meanFilter;
+    private LmeFilter.StatFilter statFilter;
+    private LmeFilter.StdFilter stdFilter;
+    private LmeFilter.HannFilter hannFilter;
+    private LmeFilter.PeakDetectionFilter peakFilter;
+    private LmeFilter.MinDetectionFilter minFilter;
+    private LmeFilter.SavGolayFilter savGolay5;
+    private LmeFilter.SavGolayFilter savGolay7;
+    private LmeFilter.GenSavGolayFilter genSavGolay;
+    private LmeFilter.GenSavGolayFilter genSavGolayBlock;
+    private LmeFilter.WndIntFilter wndIntFilter;
+    private LmeFilter.AccuFilter accuFilter;
+    private LmeFilter.FirstDerivativeFilter firstDerivative;
+    private LmeFilter.SecondDerivativeFilter secondDerivative;
+    private LmeFilter.TpcdFilter tpcdFilter;
+    private LmeFilter.ImpDerivativeFilter impDerivative;
+
+    @Setup
+    public void setup() {
+        SyntheticEcg ecg = new SyntheticEcg(250, 20);
+        input = new double[BLOCK];
+        System.arraycopy(ecg.values, 0, input, 0, BLOCK);
+
+        lowpass = new LmeFilter(PanTompkins.lp_b, PanTompkins.lp_a);
+        highpass = new LmeFilter(PanTompkins.hp_b, PanTompkins.hp_a);
+        meanFilter = new LmeFilter.MeanFilter(88);
+        statFilter = new LmeFilter.StatFilter(8);
+        stdFilter = new LmeFilter.StdFilter(16);
+        hannFilter = new LmeFilter.HannFilter();
+        peakFilter = new LmeFilter.PeakDetectionFilter(3, 0);
+        minFilter = new LmeFilter.MinDetectionFilter(3, 0);
+        savGolay5 = new LmeFilter.SavGolayFilter(1);
+        savGolay7 = new LmeFilter.SavGolayFilter(2);
+        genSavGolay = new LmeFilter.GenSavGolayFilter(11, 3, 1, 0.004);
+        genSavGolayBlock = new LmeFilter.GenSavGolayFilter(11, 3, 1, 0.004);
+        wndIntFilter = new LmeFilter.WndIntFilter(37);
+        accuFilter = new LmeFilter.AccuFilter(37);
+        firstDerivative = new LmeFilter.FirstDerivativeFilter(0.004);
+        secondDerivative = new LmeFilter.SecondDerivativeFilter(0.004);
+        tpcdFilter = new LmeFilter.TpcdFilter(0.004);
+        impDerivative = new LmeFilter.ImpDerivativeFilter(0.004, null);
+    }
+
+    private double run(LmeFilter filter) {
+        double sum = 0;
+        for (int i = 0; i < BLOCK; i++) {
+            sum += filter.next(input[i]);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public double lowpass() {
+        return run(lowpass);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public double highpass() {
+        return run(highpass);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public double mean() {
+        return run(meanFilter);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public double stat() {
+        return run(statFilter);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public double std() {
+        return run(stdFilter);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public double hann() {
+        return run(hannFilter);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public double peakDetection() {
+        return run(peakFilter);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public double minDetection() {
+        return run(minFilter);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public double savGolay5() {
+        return run(savGolay5);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public double savGolay7() {
+        return run(savGolay7);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public double genSavGolay() {
+        return run(genSavGolay);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public double[] genSavGolayBlock() {
+        genSavGolayBlock.process(input, 0, BLOCK, output, 0);
+        return output;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public double wndInt() {
+        return run(wndIntFilter);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public double accu() {
+        return run(accuFilter);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public double firstDerivative() {
+        return run(firstDerivative);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public double secondDerivative() {
+        return run(secondDerivative);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public double tpcd() {
+        return run(tpcdFilter);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public double impDerivative() {
+        return run(impDerivative);
+    }
+}
@@ -0,0 +1,54 @@
+package de.medsenshack.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+import de.medsenshack.data.FrequencyHrv;
+import de.medsenshack.data.LombScargle;
+
+/**
+ * Cost of one spectral HRV update ({@link LombScargle#compute(double[], double[], int, int, double)}
+ * plus the band powers) for a 5 minute and a 24 hour RR window. The periodogram buffers are reused
+ * across invocations, as they are by {@link FrequencyHrv}.
+ */
+@State(Scope.Thread)
+public class FrequencyHrvBenchmark {
+
+    @Param({"5", "1440"})
+    public int minutes;
+
+    private LombScargle lomb;
+    private double[] times, rrs;
+    private int num;
+
+    @Setup
+    public void createTachogram() {
+        Random rnd = new Random(42);
+        int capacity = minutes * 60 * 1000 / 500;
+        times = new double[capacity];
+        rrs = new double[capacity];
+
+        // RR with LF (0.1 Hz) and HF (0.25 Hz) modulation
+        double t = 0;
+        for (num = 0; num < capacity && t < minutes * 60; num++) {
+            double rr = 0.8 + 0.05 * Math.sin(2 * Math.PI * 0.1 * t) +
+                    0.03 * Math.sin(2 * Math.PI * 0.25 * t) + 0.01 * rnd.nextGaussian();
+            t += rr;
+            times[num] = t;
+            rrs[num] = rr * 1000;
+        }
+        lomb = new LombScargle(4);
+    }
+
+    @Benchmark
+    public double update() {
+        lomb.compute(times, rrs, 0, num, FrequencyHrv.HF_HIGH);
+        return lomb.bandPower(FrequencyHrv.LF_LOW, FrequencyHrv.HF_LOW) /
+                lomb.bandPower(FrequencyHrv.HF_LOW, FrequencyHrv.HF_HIGH);
+    }
+}
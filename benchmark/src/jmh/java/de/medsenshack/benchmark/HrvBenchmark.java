@@ -0,0 +1,51 @@
+package de.medsenshack.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+import de.medsenshack.data.HrvEngine;
+
+/**
+ * Per-beat cost of the streaming HRV engine ({@link HrvEngine#add(long, int)}) for short and
+ * 5 minute windows. Every invocation feeds a block of beats, the engine keeps running (and keeps
+ * its memory bounded) across invocations.
+ */
+@State(Scope.Thread)
+public class HrvBenchmark {
+
+    public static final int BLOCK = 1024;
+
+    @Param({"10000", "300000"})
+    public long window;
+
+    private HrvEngine hrv;
+    private int[] rr;
+    private long timestamp;
+
+    @Setup
+    public void createEngine() {
+        hrv = new HrvEngine(window, 10000, 8640);
+        rr = new int[BLOCK];
+        Random rnd = new Random(42);
+        for (int i = 0; i < BLOCK; i++) {
+            rr[i] = (int) (800 + 60 * rnd.nextGaussian());
+        }
+        timestamp = 0;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public double add() {
+        for (int i = 0; i < BLOCK; i++) {
+            timestamp += rr[i];
+            hrv.add(timestamp, rr[i]);
+        }
+        return hrv.rmssd();
+    }
+}
@@ -0,0 +1,86 @@
+package de.medsenshack.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import de.medsenshack.data.MultiLeadPanTompkins;
+import de.medsenshack.data.PanTompkins;
+import de.medsenshack.data.SyntheticEcg;
+
+/**
+ * Per-sample cost of detecting beats on N leads: one fused {@link MultiLeadPanTompkins} against N
+ * independent {@link PanTompkins} instances. Every invocation feeds one second of all leads.
+ */
+@State(Scope.Thread)
+public class MultiLeadBenchmark {
+
+    public static final int SAMPLING_RATE = 250;
+    public static final int BLOCK = SAMPLING_RATE;
+
+    @Param({"1", "2", "4", "8"})
+    public int leads;
+
+    private double[][] ecg;
+    private double[] sample;
+    private MultiLeadPanTompkins fused;
+    private PanTompkins[] independent;
+    private int pos;
+    private long timestamp;
+
+    @Setup(Level.Trial)
+    public void loadEcg() {
+        ecg = new double[leads][];
+        for (int l = 0; l < leads; l++) {
+            ecg[l] = new SyntheticEcg(SAMPLING_RATE, 300, 0.8, l).values;
+        }
+        sample = new double[leads];
+    }
+
+    @Setup(Level.Iteration)
+    public void createDetectors() {
+        fused = new MultiLeadPanTompkins(SAMPLING_RATE, leads);
+        independent = new PanTompkins[leads];
+        for (int l = 0; l < leads; l++) {
+            independent[l] = new PanTompkins(SAMPLING_RATE);
+        }
+        pos = 0;
+        timestamp = 0;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public double fused() {
+        double sum = 0;
+        for (int i = 0; i < BLOCK; i++) {
+            for (int l = 0; l < leads; l++) {
+                sample[l] = ecg[l][pos];
+            }
+            sum += fused.next(sample, timestamp++);
+            if (++pos == ecg[0].length) {
+                pos = 0;
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public double independent() {
+        double sum = 0;
+        for (int i = 0; i < BLOCK; i++) {
+            for (int l = 0; l < leads; l++) {
+                sum += independent[l].next(ecg[l][pos], timestamp);
+            }
+            timestamp++;
+            if (++pos == ecg[0].length) {
+                pos = 0;
+            }
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,71 @@
+package de.medsenshack.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import de.medsenshack.data.BeatEvent;
+import de.medsenshack.data.PanTompkins;
+import de.medsenshack.data.SyntheticEcg;
+
+/**
+ * Per-sample cost of the entire QRS detection pipeline ({@link PanTompkins#next(double, long)}) on a
+ * synthetic 250 Hz ECG. Every invocation feeds one second of data. An iteration fails unless the
+ * detector publishes about one event per beat of the ECG, so a stalled detector can't pass for a
+ * fast one.
+ */
+@State(Scope.Thread)
+public class PanTompkinsBenchmark {
+
+    public static final int SAMPLING_RATE = 250;
+    public static final int BLOCK = SAMPLING_RATE;
+
+    private SyntheticEcg ecg;
+    private PanTompkins pants;
+    private int pos;
+    private long timestamp;
+    private long beats;
+
+    @Setup(Level.Trial)
+    public void loadEcg() {
+        ecg = new SyntheticEcg(SAMPLING_RATE, 300);
+    }
+
+    @Setup(Level.Iteration)
+    public void createDetector() {
+        pants = new PanTompkins(SAMPLING_RATE);
+        pants.addBeatListener(new PanTompkins.BeatListener() {
+            @Override
+            public void onBeat(BeatEvent beat) {
+                beats++;
+            }
+        });
+        pos = 0;
+        timestamp = 0;
+        beats = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void checkBeats() {
+        long expected = timestamp * ecg.rPeaks.length / ecg.values.length;
+        if (Math.abs(beats - expected) > expected / 10 + 2)
+            throw new IllegalStateException(beats + " beats detected instead of " + expected);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public double next() {
+        double sum = 0;
+        for (int i = 0; i < BLOCK; i++) {
+            sum += pants.next(ecg.values[pos], timestamp++);
+            if (++pos == ecg.values.length) {
+                pos = 0;
+            }
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,104 @@
+package de.medsenshack.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import de.medsenshack.data.BeatEvent;
+import de.medsenshack.data.PanTompkins.QRS;
+import de.medsenshack.data.PanTompkins;
+import de.medsenshack.data.SyntheticEcg;
+import de.medsenshack.data.TemplateCorrelator;
+
+/**
+ * Cost of the template matching of a single beat: {@link QRS#maxCorr(QRS)} against one template,
+ * the full {@link QRS#classify()} against both templates, and scoring a pre-normalized beat against
+ * a library of templates with the {@link TemplateCorrelator}. legacyMaxCorr is the former
+ * per-lag implementation for comparison.
+ */
+@State(Scope.Thread)
+public class QrsBenchmark {
+
+    @Param({"2", "16"})
+    public int templates;
+
+    private PanTompkins pants;
+    private QRS beat;
+    private TemplateCorrelator.Template[] library;
+    private double[] scores;
+
+    @Setup
+    public void learnTemplates() {
+        SyntheticEcg ecg = new SyntheticEcg(250, 60);
+        pants = new PanTompkins(250);
+        final int[] beats = new int[1];
+        pants.addBeatListener(new PanTompkins.BeatListener() {
+            @Override
+            public void onBeat(BeatEvent beat) {
+                beats[0]++;
+            }
+        });
+        for (int i = 0; i < ecg.values.length; i++) {
+            pants.next(ecg.values[i], i);
+        }
+        if (pants.learning) {
+            throw new IllegalStateException("no templates learned");
+        }
+        // the templates and the history have to come from a detector that kept segmenting
+        if (Math.abs(beats[0] - ecg.rPeaks.length) > ecg.rPeaks.length / 10) {
+            throw new IllegalStateException(beats[0] + " beats detected instead of " + ecg.rPeaks.length);
+        }
+
+        beat = new QRS(pants, pants.maxQrsSize);
+        beat.copy(pants.qrsPrevious);
+
+        // library of the last beats, normalized once like the detector templates
+        library = new TemplateCorrelator.Template[templates];
+        for (int k = 0; k < templates; k++) {
+            QRS qrs = (QRS) pants.qrsHistory.getPastValue(k % pants.qrsHistory.num);
+            library[k] = new TemplateCorrelator.Template(pants.maxQrsSize);
+            library[k].set(qrs.values.values, qrs.values.num, qrs.values.getMean());
+        }
+        scores = new double[templates];
+        beat.normalize();
+    }
+
+    @Benchmark
+    public double maxCorr() {
+        return beat.maxCorr(pants.template1);
+    }
+
+    @Benchmark
+    public double legacyMaxCorr() {
+        QRS qrs = pants.template1;
+        double x, y, cc, sumx, sumy, maxcc = 0;
+        for (int n = -8; n < 8; n++) {
+            cc = sumx = sumy = 0;
+            for (int i = 0; i < beat.values.num; i++) {
+                x = beat.values.values[i] - beat.mean;
+                y = qrs.values.getIndirect(n + i) - qrs.mean;
+                cc += x * y;
+                sumx += x * x;
+                sumy += y * y;
+            }
+            if (cc != 0) {
+                cc = cc / Math.sqrt(sumx * sumy);
+                if (cc > maxcc)
+                    maxcc = cc;
+            }
+        }
+        return maxcc;
+    }
+
+    @Benchmark
+    public QRS.QrsClass classify() {
+        return beat.classify();
+    }
+
+    @Benchmark
+    public int scoreLibrary() {
+        return pants.correlator.score(beat.normalized, library, templates, scores);
+    }
+}
@@ -0,0 +1,112 @@
+package de.medsenshack.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import de.medsenshack.data.TrendStore;
+import de.medsenshack.data.storage.BinaryRecorder;
+import de.medsenshack.data.storage.RecordingReader;
+
+/**
+ * Time range queries on a segmented recording of ECG at 250 Hz and accelerometer at 10 Hz:
+ * reading the ECG of a random second, the accelerometer of a random minute, which skips the ECG
+ * records in between by the channel index, an overview of the whole recording from the summary file
+ * and the same overview computed from all samples, as without a summary. The recording and its
+ * summary are written once per trial.
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ReaderBenchmark {
+
+    public static final long START = 1461402395000L;
+    public static final int POINTS = 500;
+
+    /**
+     * length of the recording in hours
+     */
+    @Param({"1", "24"})
+    public int hours;
+
+    private File file;
+    private RecordingReader reader;
+    private final Random random = new Random(42);
+    private final long[] timestamps = new long[1 << 16];
+    private final float[] values = new float[1 << 16];
+    private final TrendStore.Series series = new TrendStore.Series(POINTS);
+
+    @Setup(Level.Trial)
+    public void record() throws IOException {
+        file = File.createTempFile("reader", ".bin");
+        BinaryRecorder recorder = new BinaryRecorder(file, 64 * 1024, 0);
+        int ecg = recorder.addChannel("ecg", 250, 1);
+        int acc = recorder.addChannel("acc", 10, 3);
+        recorder.start(START);
+        int samples = hours * 3600 * 250;
+        for (int i = 0; i < samples; i++) {
+            recorder.record(ecg, START + 4 * i, i / 6, 2048 + (i * 7 & 255));
+            if (i % 25 == 24)
+                recorder.record(acc, START + 4 * i - 900, i / 75, i & 63, 488, -(i & 31));
+        }
+        recorder.close();
+        reader = new RecordingReader(file);
+        reader.summary(0, 0, START, end(), series);
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        reader.close();
+        File summary = RecordingReader.summaryFile(file);
+        if (!summary.delete())
+            summary.deleteOnExit();
+        if (!file.delete())
+            file.deleteOnExit();
+    }
+
+    private long end() {
+        return START + hours * 3600 * 1000L - 1;
+    }
+
+    @Benchmark
+    public int readSecond() throws IOException {
+        long from = START + (long) (random.nextDouble() * (hours * 3600 - 1)) * 1000;
+        return reader.read(0, from, from + 999, timestamps, values, timestamps.length);
+    }
+
+    @Benchmark
+    public int readAccelerometerMinute() throws IOException {
+        long from = START + (long) (random.nextDouble() * (hours * 60 - 1)) * 60 * 1000;
+        return reader.read(1, from, from + 59999, timestamps, values, timestamps.length / 3);
+    }
+
+    @Benchmark
+    public int overview() throws IOException {
+        return reader.summary(0, 0, START, end(), series);
+    }
+
+    @Benchmark
+    public float overviewFromSamples() throws IOException {
+        float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+        long from = START, end = end();
+        int n;
+        while ((n = reader.read(0, from, end, timestamps, values, timestamps.length)) > 0) {
+            for (int i = 0; i < n; i++) {
+                min = Math.min(min, values[i]);
+                max = Math.max(max, values[i]);
+            }
+            from = timestamps[n - 1] + 1;
+        }
+        return max - min;
+    }
+}
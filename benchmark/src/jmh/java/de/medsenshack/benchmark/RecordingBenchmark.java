@@ -0,0 +1,105 @@
+package de.medsenshack.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import de.medsenshack.data.SyntheticEcg;
+import de.medsenshack.data.storage.BinaryRecorder;
+
+/**
+ * Cost per ECG sample on the acquisition thread of the CSV path of the app (string concatenation of
+ * the formatted timestamps and value into a BufferedWriter, as the former EcgDataWriter did) and of the
+ * {@link BinaryRecorder}. Both write into sinks that discard the data, so the encoding and the hand
+ * over to the writer are measured, not the storage.
+ */
+@State(Scope.Thread)
+public class RecordingBenchmark {
+
+    public static final int BLOCK = 1000;
+
+    private BufferedWriter csv;
+    private BinaryRecorder binary;
+    private int ecg;
+    private double[] values;
+    private long timestamp;
+
+    @Setup
+    public void createWriters() {
+        csv = new BufferedWriter(new Writer() {
+            @Override
+            public void write(char[] cbuf, int off, int len) {
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        binary = new BinaryRecorder(new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) {
+                int n = src.remaining();
+                src.position(src.limit());
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        }, BinaryRecorder.DEFAULT_BLOCK_SIZE);
+        ecg = binary.addChannel("ecg", 250, 1);
+        binary.start(0);
+
+        SyntheticEcg synthetic = new SyntheticEcg(250, BLOCK / 250 + 1, 0.8, 42);
+        values = new double[BLOCK];
+        for (int i = 0; i < BLOCK; i++) {
+            values[i] = Math.round(synthetic.values[i]);
+        }
+        timestamp = 1461402395000L;
+    }
+
+    @TearDown
+    public void close() throws IOException {
+        binary.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public void csv() throws IOException {
+        for (int i = 0; i < BLOCK; i++) {
+            timestamp += 4;
+            double t = timestamp;
+            double packet = timestamp / 24;
+            csv.write(String.valueOf(t) + ',' + String.valueOf(packet) + ',' + String.valueOf(values[i]));
+            csv.write('\n');
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public long binary() {
+        for (int i = 0; i < BLOCK; i++) {
+            timestamp += 4;
+            binary.record(ecg, timestamp, timestamp / 24, values[i]);
+        }
+        return binary.records;
+    }
+}
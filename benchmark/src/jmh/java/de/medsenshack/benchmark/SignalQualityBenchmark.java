@@ -0,0 +1,51 @@
+package de.medsenshack.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import de.medsenshack.data.SignalQuality;
+import de.medsenshack.data.SyntheticEcg;
+
+/**
+ * Per-sample cost of the {@link SignalQuality} index alone, to be compared with the per-sample cost
+ * of the detector in {@link PanTompkinsBenchmark}. Every invocation feeds one second of data.
+ */
+@State(Scope.Thread)
+public class SignalQualityBenchmark {
+
+    public static final int SAMPLING_RATE = 250;
+    public static final int BLOCK = SAMPLING_RATE;
+
+    private SyntheticEcg ecg;
+    private double[] band;
+    private SignalQuality quality;
+    private int pos;
+
+    @Setup
+    public void loadEcg() {
+        ecg = new SyntheticEcg(SAMPLING_RATE, 60);
+        // any zero-mean signal of the right scale serves as band pass output
+        band = new double[ecg.values.length];
+        for (int i = 1; i < band.length; i++) {
+            band[i] = ecg.values[i] - ecg.values[i - 1];
+        }
+        quality = new SignalQuality(SAMPLING_RATE);
+        pos = 0;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public int next() {
+        for (int i = 0; i < BLOCK; i++) {
+            quality.next(ecg.values[pos], band[pos]);
+            if (++pos == band.length) {
+                pos = 0;
+            }
+        }
+        quality.nextAccel(0, 0, 488);
+        return quality.flags;
+    }
+}
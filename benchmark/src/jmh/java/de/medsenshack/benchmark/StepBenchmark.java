@@ -0,0 +1,55 @@
+package de.medsenshack.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+import de.medsenshack.data.StepDetector;
+
+/**
+ * Per-sample cost of the step detector ({@link StepDetector#next}) on walking at the accelerometer
+ * rates of the Simblee, the Empatica and the internal sensor. The cost does not depend on the rate.
+ */
+@State(Scope.Thread)
+public class StepBenchmark {
+
+    public static final int BLOCK = 1000;
+
+    @Param({"10", "32", "100"})
+    public int samplingRate;
+
+    private StepDetector detector;
+    private double[] x, y, z;
+    private long timestamp;
+
+    @Setup
+    public void createDetector() {
+        detector = new StepDetector(samplingRate, 488);
+        x = new double[BLOCK];
+        y = new double[BLOCK];
+        z = new double[BLOCK];
+        Random rnd = new Random(42);
+        for (int i = 0; i < BLOCK; i++) {
+            double step = 0.3 * Math.sin(2 * Math.PI * 1.8 * i / samplingRate);
+            x[i] = Math.round(488 * (0.3 + 0.3 * step + 0.02 * rnd.nextGaussian()));
+            y[i] = Math.round(488 * (0.95 + step + 0.02 * rnd.nextGaussian()));
+            z[i] = Math.round(488 * 0.02 * rnd.nextGaussian());
+        }
+        timestamp = 0;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public int next() {
+        for (int i = 0; i < BLOCK; i++) {
+            timestamp += 1000 / samplingRate;
+            detector.next(timestamp, x[i], y[i], z[i]);
+        }
+        return detector.steps;
+    }
+}
@@ -0,0 +1,57 @@
+package de.medsenshack.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import de.medsenshack.data.TrendStore;
+
+/**
+ * Cost of adding a value to the three tiers of a {@link TrendStore} and of querying trends of
+ * different lengths from a store filled with 48 h of values. The query cost grows with the points
+ * returned, not with the stored duration.
+ */
+@State(Scope.Thread)
+public class TrendBenchmark {
+
+    public static final int BLOCK = 1000;
+    public static final long HOUR = 60 * 60 * 1000;
+
+    /**
+     * length of the queried span in minutes
+     */
+    @Param({"10", "720", "2880"})
+    public int span;
+
+    private TrendStore store;
+    private TrendStore.Series series;
+    private long timestamp;
+
+    @Setup
+    public void createStore() {
+        store = new TrendStore();
+        for (timestamp = 0; timestamp < 48 * HOUR; timestamp += 1000) {
+            store.add(timestamp, 70 + 10 * Math.sin(timestamp / 1e6));
+        }
+        series = new TrendStore.Series(1000);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public long add() {
+        for (int i = 0; i < BLOCK; i++) {
+            timestamp += 1000;
+            store.add(timestamp, 70 + (i & 15));
+        }
+        return store.latest();
+    }
+
+    @Benchmark
+    public int query() {
+        long end = store.latest();
+        return store.query(end - span * 60 * 1000L, end, series);
+    }
+}
@@ -0,0 +1,85 @@
+package de.medsenshack.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import de.fau.lme.plotview.CircularValueList;
+import de.fau.lme.plotview.FloatValueList;
+import de.medsenshack.data.SyntheticEcg;
+
+/**
+ * Cost of {@link FloatValueList#add(float)} with and without min/max and sum maintenance, and of the
+ * statistics provided by the {@link CircularValueList} ring buffers.
+ */
+@State(Scope.Thread)
+public class ValueListBenchmark {
+
+    public static final int BLOCK = 4096;
+
+    @Param({"64", "1024"})
+    public int size;
+
+    @Param({"false", "true"})
+    public boolean maintainMinMax;
+
+    @Param({"false", "true"})
+    public boolean maintainSum;
+
+    private float[] input;
+    private FloatValueList list;
+    private CircularValueList.Statistics stats = new CircularValueList.Statistics();
+
+    @Setup
+    public void setup() {
+        SyntheticEcg ecg = new SyntheticEcg(250, 20);
+        input = new float[BLOCK];
+        for (int i = 0; i < BLOCK; i++) {
+            input[i] = (float) ecg.values[i];
+        }
+        list = new FloatValueList(size, maintainMinMax, maintainSum);
+        for (int i = 0; i < size; i++) {
+            list.add(input[i % BLOCK]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public int add() {
+        int head = 0;
+        for (int i = 0; i < BLOCK; i++) {
+            head = list.add(input[i]);
+        }
+        return head;
+    }
+
+    @Benchmark
+    public float mean() {
+        return list.getMean();
+    }
+
+    @Benchmark
+    public CircularValueList.Statistics calculateStats() {
+        list.calculateStats(0, list.num - 1, stats);
+        return stats;
+    }
+
+    @Benchmark
+    public float findMinMax() {
+        list.findMinMax();
+        return list.rangeMinMax;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public float pastValue() {
+        float sum = 0;
+        for (int i = 0; i < BLOCK; i++) {
+            sum += list.getPastValue(i % list.num);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,14 @@
+package android.util;
+
+/**
+ * Minimal JVM replacement for the deprecated Android FloatMath class.
+ */
+public final class FloatMath {
+
+    private FloatMath() {
+    }
+
+    public static float sqrt(float value) {
+        return (float) Math.sqrt(value);
+    }
+}
@@ -0,0 +1,322 @@
+package de.fau.lme.sensorlib.sensors;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import de.fau.lme.sensorlib.dataframe.SensorDataFrame;
+import de.fau.lme.sensorlib.dataframe.SimbleeMedhackAccDataFrame;
+import de.fau.lme.sensorlib.dataframe.SimbleeMedhackEcgDataFrame;
+import de.fau.lme.sensorlib.dataframe.SimbleeMedhackGalvDataFrame;
+import de.fau.lme.sensorlib.dataframe.SimbleeMedhackGyroDataFrame;
+
+/**
+ * Sequential reader of a segmented session recording for the {@link SessionReplaySensor}, see there
+ * for the format.
+ * <p/>
+ * The segment footers are read when the recording is opened; an unfinished last segment without a
+ * footer is scanned up to the first incomplete or empty record. The records are read one segment at
+ * a time, {@link #position(long)} finds the segment of a timestamp by binary search over the running
+ * maximum of the footer timestamps.
+ */
+class SessionRecording {
+
+    static final int MAGIC = 0x5248534d;
+    static final int SEGMENTED_VERSION = 2;
+    static final int INDEXED_VERSION = 3;
+    static final int FOOTER_MAGIC = 0x4753534d;
+    static final int FOOTER_SIZE = 32;
+    static final int RECORD_HEADER = 1 + 8 + 4;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int OTHER = 0;
+    private static final int ECG = 1;
+    private static final int ACC = 2;
+    private static final int GALV = 3;
+    private static final int GYRO = 4;
+
+    private final RandomAccessFile mFile;
+
+    /**
+     * start time from the header and the channel table
+     */
+    private long mStartTime;
+    private long mFirstTimestamp;
+    private double mSamplingRate;
+    private int[] mKinds;
+    private int[] mRecordSizes;
+
+    /**
+     * segments: bytes used by the records and the running maximum of the largest timestamps
+     */
+    private int mSegmentSize;
+    private long mDataOffset;
+    private int mNumSegments;
+    private int[] mUsed;
+    private long[] mMaxBefore;
+
+    /**
+     * read position
+     */
+    private final ByteBuffer mSegment;
+    private int mSegmentIndex = -1;
+
+    /**
+     * Opens a recording and reads its index, the read position is at the first record.
+     *
+     * @throws IOException if the file can't be read or is no segmented recording
+     */
+    SessionRecording(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "r");
+        try {
+            readIndex(mFile.getChannel());
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+        mSegment = ByteBuffer.allocate(mSegmentSize).order(ByteOrder.LITTLE_ENDIAN);
+        mSegment.limit(0);
+    }
+
+    void close() throws IOException {
+        mFile.close();
+    }
+
+    long getStartTime() {
+        return mStartTime;
+    }
+
+    /**
+     * @return the smallest timestamp, the start time if there are no records
+     */
+    long getFirstTimestamp() {
+        return mFirstTimestamp;
+    }
+
+    /**
+     * @return the largest timestamp, the start time if there are no records
+     */
+    long getLastTimestamp() {
+        return mNumSegments == 0 || mMaxBefore[mNumSegments - 1] == Long.MIN_VALUE
+                ? mStartTime : mMaxBefore[mNumSegments - 1];
+    }
+
+    /**
+     * @return the highest sampling rate of the channels
+     */
+    double getSamplingRate() {
+        return mSamplingRate;
+    }
+
+    int getNumSegments() {
+        return mNumSegments;
+    }
+
+    /**
+     * @return the segment of the read position, -1 before the first one
+     */
+    int getSegment() {
+        return mSegmentIndex;
+    }
+
+    /**
+     * @return true if there is a record at the read position, reads the next segment if needed
+     */
+    boolean hasRecord() throws IOException {
+        while (!mSegment.hasRemaining()) {
+            if (mSegmentIndex + 1 >= mNumSegments) {
+                return false;
+            }
+            load(mSegmentIndex + 1);
+        }
+        return true;
+    }
+
+    /**
+     * @return the timestamp of the record at the read position
+     */
+    long timestamp() {
+        return mSegment.getLong(mSegment.position() + 1);
+    }
+
+    /**
+     * @param timeOffset added to the timestamp
+     * @return the data frame of the record at the read position, null for a channel the Simblee
+     * sensor doesn't have
+     */
+    SensorDataFrame frame(long timeOffset) {
+        int pos = mSegment.position();
+        int channel = mSegment.get(pos) & 0xff;
+        long time = mSegment.getLong(pos + 1) + timeOffset;
+        long packet = mSegment.getInt(pos + 9);
+        int values = pos + RECORD_HEADER;
+        switch (mKinds[channel]) {
+            case ECG:
+                return new SimbleeMedhackEcgDataFrame(mSegment.getFloat(values), time, packet);
+            case ACC:
+                return new SimbleeMedhackAccDataFrame(mSegment.getFloat(values), mSegment.getFloat(values + 4),
+                        mSegment.getFloat(values + 8), time, packet);
+            case GALV:
+                return new SimbleeMedhackGalvDataFrame(mSegment.getFloat(values), time, packet);
+            case GYRO:
+                return new SimbleeMedhackGyroDataFrame(mSegment.getFloat(values), mSegment.getFloat(values + 4),
+                        mSegment.getFloat(values + 8), time, packet);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Moves the read position to the next record.
+     */
+    void next() {
+        int pos = mSegment.position();
+        mSegment.position(pos + mRecordSizes[mSegment.get(pos) & 0xff]);
+    }
+
+    private void load(int segment) throws IOException {
+        mSegment.clear();
+        mSegment.limit(mUsed[segment]);
+        FileChannel channel = mFile.getChannel();
+        long start = mDataOffset + (long) segment * mSegmentSize;
+        while (mSegment.hasRemaining()) {
+            if (channel.read(mSegment, start + mSegment.position()) < 0) {
+                throw new IOException("truncated segment " + segment);
+            }
+        }
+        mSegment.flip();
+        mSegmentIndex = segment;
+    }
+
+    /**
+     * Moves the read position to the first record of the first segment that reaches the timestamp
+     * whose timestamp isn't before it.
+     */
+    void position(long timestamp) throws IOException {
+        int lo = 0, hi = mNumSegments;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mMaxBefore[mid] < timestamp) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        if (lo == mNumSegments) {
+            // after the end
+            mSegmentIndex = mNumSegments - 1;
+            mSegment.clear();
+            mSegment.limit(0);
+            return;
+        }
+        load(lo);
+        while (mSegment.hasRemaining() && timestamp() < timestamp) {
+            next();
+        }
+    }
+
+    private void readIndex(FileChannel channel) throws IOException {
+        long size = channel.size();
+        ByteBuffer header = read(channel, 0, 20);
+        if (header.limit() < 20 || header.getInt(0) != MAGIC) {
+            throw new IOException("not a recording");
+        }
+        int version = header.getShort(4);
+        if (version != SEGMENTED_VERSION && version != INDEXED_VERSION) {
+            throw new IOException("not a segmented recording");
+        }
+        int numChannels = header.getShort(6);
+        mStartTime = header.getLong(8);
+        mSegmentSize = header.getInt(16);
+        if (mSegmentSize < 1024) {
+            throw new IOException("invalid segment size " + mSegmentSize);
+        }
+
+        mKinds = new int[numChannels];
+        mRecordSizes = new int[numChannels];
+        long pos = 20;
+        for (int c = 0; c < numChannels; c++) {
+            ByteBuffer entry = read(channel, pos, 10);
+            if (entry.limit() < 10) {
+                throw new IOException("truncated channel table");
+            }
+            int length = entry.get(9) & 0xff;
+            ByteBuffer name = read(channel, pos + 10, length);
+            if (name.limit() < length) {
+                throw new IOException("truncated channel table");
+            }
+            int numValues = entry.get(0) & 0xff;
+            mRecordSizes[c] = RECORD_HEADER + 4 * numValues;
+            mKinds[c] = kind(new String(name.array(), 0, length, UTF8), numValues);
+            mSamplingRate = Math.max(mSamplingRate, entry.getDouble(1));
+            pos += 10 + length;
+        }
+        mDataOffset = pos;
+
+        int capacity = (int) Math.max(1, (size - mDataOffset + mSegmentSize - 1) / mSegmentSize);
+        mUsed = new int[capacity];
+        mMaxBefore = new long[capacity];
+        mNumSegments = 0;
+        long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+        for (long start = mDataOffset; start < size; start += mSegmentSize) {
+            ByteBuffer footer = start + mSegmentSize <= size
+                    ? read(channel, start + mSegmentSize - FOOTER_SIZE, FOOTER_SIZE) : null;
+            boolean sealed = footer != null && footer.getInt(0) == FOOTER_MAGIC && footer.getInt(4) == mNumSegments;
+            if (sealed) {
+                mUsed[mNumSegments] = footer.getInt(12);
+                if (footer.getInt(8) > 0) {
+                    min = Math.min(min, footer.getLong(16));
+                    max = Math.max(max, footer.getLong(24));
+                }
+            } else {
+                // unfinished last segment, up to the first incomplete or empty record
+                ByteBuffer b = read(channel, start, (int) Math.min(size - start, mSegmentSize - FOOTER_SIZE));
+                int used = 0;
+                while (used < b.limit()) {
+                    int c = b.get(used) & 0xff;
+                    if (c >= numChannels || used + mRecordSizes[c] > b.limit() || b.getLong(used + 1) == 0) {
+                        break;
+                    }
+                    min = Math.min(min, b.getLong(used + 1));
+                    max = Math.max(max, b.getLong(used + 1));
+                    used += mRecordSizes[c];
+                }
+                mUsed[mNumSegments] = used;
+            }
+            mMaxBefore[mNumSegments] = max;
+            mNumSegments++;
+            if (!sealed) {
+                break;
+            }
+        }
+        mFirstTimestamp = min == Long.MAX_VALUE ? mStartTime : min;
+    }
+
+    private static int kind(String name, int numValues) {
+        if ("ecg".equals(name) && numValues >= 1) {
+            return ECG;
+        } else if ("acc".equals(name) && numValues >= 3) {
+            return ACC;
+        } else if ("galv".equals(name) && numValues >= 1) {
+            return GALV;
+        } else if ("gyro".equals(name) && numValues >= 3) {
+            return GYRO;
+        }
+        return OTHER;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long pos, int length) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (b.hasRemaining()) {
+            if (channel.read(b, pos + b.position()) < 0) {
+                break;
+            }
+        }
+        b.flip();
+        return b;
+    }
+}
@@ -0,0 +1,362 @@
+package de.fau.lme.sensorlib.sensors;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import de.fau.lme.sensorlib.SensorDataProcessor;
+import de.fau.lme.sensorlib.dataframe.SensorDataFrame;
+
+/**
+ * Replays a recorded session with all its channels as if the Simblee sensor was streaming it.
+ * <p/>
+ * The session is a segmented binary recording as written by the app during streaming
+ * (<code>session_&lt;start&gt;.bin</code>): a header with the channel table, then segments of
+ * fixed size with little endian records (<code>channel u8, timestamp i64 ms, packet timestamp i32,
+ * values f32[]</code>) and a footer with the number of bytes used and the smallest and largest
+ * timestamp. The channel index in front of the footer of newer recordings is not needed here. The channels <code>ecg</code>, <code>acc</code>, <code>galv</code> and
+ * <code>gyro</code> are sent as the {@link de.fau.lme.sensorlib.dataframe.SimbleeMedhackDataFrame}s
+ * of the live sensor, in the order they were recorded. Timestamps are moved by a constant offset
+ * ({@link #getTimeOffset()}), so the session appears to start when streaming starts first.
+ * <p/>
+ * A record is due when as much time has passed since the start of the replay as its timestamp is
+ * after the first replayed one, divided by the speed. The replay thread parks until the next record
+ * is due and then sends all records due within {@link #BATCH_NANOS} as one batch, just like the
+ * sensor sends several samples per packet. With {@link #MAX_SPEED} nothing is awaited. Batches are
+ * taken from a pool of {@link #BATCHES}, so the replay waits whenever the data processors fall that
+ * far behind instead of filling the message queue.
+ * <p/>
+ * {@link #seek(long)} continues the replay at a timestamp of the session. The segment is found by
+ * binary search over the timestamps of the footers, which are read on {@link #connect()} by the
+ * {@link SessionRecording}.
+ * <p/>
+ * The replay stops itself at the end of the session. That and an external {@link #stopStreaming()}
+ * or {@link #disconnect()} may happen at the same time, only the one that clears the streaming flag
+ * stops the sensor, the other waits for it.
+ */
+public class SessionReplaySensor extends DsSensor {
+
+    private static final String TAG = SessionReplaySensor.class.getSimpleName();
+
+    /**
+     * speed for replaying as fast as the data is processed
+     */
+    public static final double MAX_SPEED = 0;
+    /**
+     * records that are due within this time are sent together
+     */
+    public static final long BATCH_NANOS = 20 * 1000 * 1000;
+    public static final int MAX_BATCH = 256;
+    public static final int BATCHES = 4;
+
+    private static final long NO_SEEK = Long.MIN_VALUE;
+
+    private final String mFileName;
+    private SessionRecording mRecording;
+    private volatile Thread mThread;
+    private final AtomicBoolean mStreaming = new AtomicBoolean(false);
+    private volatile double mSpeed;
+    private final AtomicLong mSeekTo = new AtomicLong(NO_SEEK);
+    private long mTimeOffset = Long.MIN_VALUE;
+    /**
+     * timestamp of the last record sent
+     */
+    private volatile long mPosition;
+
+    private final BlockingQueue<Batch> mFree = new ArrayBlockingQueue<>(BATCHES);
+    private volatile long mFrames = 0;
+
+    /**
+     * Data frames that are dispatched together on the handler thread.
+     */
+    private class Batch implements Runnable {
+        final SensorDataFrame[] frames = new SensorDataFrame[MAX_BATCH];
+        int num = 0;
+
+        @Override
+        public void run() {
+            for (int i = 0; i < num; i++) {
+                dispatchNewData(frames[i]);
+                frames[i] = null;
+            }
+            num = 0;
+            mFree.offer(this);
+        }
+    }
+
+    /**
+     * @param fileName the recorded session
+     * @param speed    1 for real time, N for N times faster or {@link #MAX_SPEED}
+     */
+    public SessionReplaySensor(String deviceName, SensorDataProcessor dataHandler, String fileName, double speed) {
+        super(deviceName, "SensorLib::SessionReplaySensor", dataHandler);
+        mFileName = fileName;
+        mSpeed = speed;
+        for (int i = 0; i < BATCHES; i++) {
+            mFree.add(new Batch());
+        }
+        setState(SensorState.DISCONNECTED);
+        sendSensorCreated();
+    }
+
+    @Override
+    protected EnumSet<HardwareSensor> providedSensors() {
+        return EnumSet.of(HardwareSensor.ECG, HardwareSensor.ACCELEROMETER, HardwareSensor.GALVANIC_SKIN_RESPONSE,
+                HardwareSensor.GYROSCOPE);
+    }
+
+    /**
+     * Reads the channel table and the segment footers of the session.
+     */
+    @Override
+    public boolean connect() {
+        if (getState() != SensorState.DISCONNECTED) {
+            return false;
+        }
+        try {
+            mRecording = new SessionRecording(new File(mFileName));
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot read session " + mFileName, e);
+            sendNotification("Record empty or invalid: " + mFileName);
+            return false;
+        }
+        setSamplingRate(mRecording.getSamplingRate());
+        setState(SensorState.CONNECTED);
+        sendConnected();
+        return true;
+    }
+
+    @Override
+    public void disconnect() {
+        stopStreaming();
+        if (getState() != SensorState.CONNECTED) {
+            return;
+        }
+        try {
+            mRecording.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot close session", e);
+        }
+        setState(SensorState.DISCONNECTED);
+        sendDisconnected();
+    }
+
+    @Override
+    public void startStreaming() {
+        if (getState() != SensorState.CONNECTED) {
+            return;
+        }
+        if (mTimeOffset == Long.MIN_VALUE) {
+            mTimeOffset = System.currentTimeMillis() - mRecording.getStartTime();
+        }
+        setState(SensorState.STREAMING);
+        sendStartStreaming();
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                replay();
+            }
+        }, TAG);
+        mStreaming.set(true);
+        mThread.start();
+    }
+
+    @Override
+    public void stopStreaming() {
+        Thread thread = mThread;
+        boolean replayThread = Thread.currentThread() == thread;
+        if (!mStreaming.compareAndSet(true, false)) {
+            // another thread is stopping the replay, return when it is done
+            if (thread != null && !replayThread) {
+                join(thread);
+            }
+            return;
+        }
+        if (!replayThread) {
+            thread.interrupt();
+            join(thread);
+        }
+        setState(SensorState.CONNECTED);
+        sendStopStreaming();
+    }
+
+    private static void join(Thread thread) {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Changes the speed, also while streaming.
+     *
+     * @param speed 1 for real time, N for N times faster or {@link #MAX_SPEED}
+     */
+    public void setSpeed(double speed) {
+        mSpeed = speed;
+        wakeUp();
+    }
+
+    public double getSpeed() {
+        return mSpeed;
+    }
+
+    /**
+     * Continues the replay with the first record at or after a timestamp.
+     *
+     * @param timestamp timestamp of the session in ms, without the offset
+     */
+    public void seek(long timestamp) {
+        mSeekTo.set(timestamp);
+        wakeUp();
+    }
+
+    private void wakeUp() {
+        Thread thread = mThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * @return the offset added to the timestamps of the session
+     */
+    public long getTimeOffset() {
+        return mTimeOffset;
+    }
+
+    /**
+     * @return the timestamp of the session of the last record sent, without the offset
+     */
+    public long getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * @return the start time of the session, valid after {@link #connect()}
+     */
+    public long getStartTime() {
+        return mRecording.getStartTime();
+    }
+
+    /**
+     * @return the smallest timestamp of the session, valid after {@link #connect()}
+     */
+    public long getFirstTimestamp() {
+        return mRecording.getFirstTimestamp();
+    }
+
+    /**
+     * @return the largest timestamp of the session, valid after {@link #connect()}
+     */
+    public long getLastTimestamp() {
+        return mRecording.getLastTimestamp();
+    }
+
+    /**
+     * @return the number of data frames sent
+     */
+    public long getFrames() {
+        return mFrames;
+    }
+
+    /**
+     * @param anchorNanos     {@link System#nanoTime()} when the anchor record was due
+     * @param anchorTimestamp timestamp of the anchor record in ms
+     * @param timestamp       timestamp of a record in ms
+     * @param speed           replay speed, not {@link #MAX_SPEED}
+     * @return the {@link System#nanoTime()} when the record is due
+     */
+    static long due(long anchorNanos, long anchorTimestamp, long timestamp, double speed) {
+        return anchorNanos + (long) ((timestamp - anchorTimestamp) * 1e6 / speed);
+    }
+
+    private void replay() {
+        SessionRecording recording = mRecording;
+        Batch batch = null;
+        try {
+            batch = mFree.take();
+            double speed = -1;
+            long anchorTimestamp = 0, anchorNanos = 0;
+            while (true) {
+                if (Thread.interrupted()) {
+                    return;
+                }
+                long seek = mSeekTo.getAndSet(NO_SEEK);
+                if (seek != NO_SEEK) {
+                    batch = send(batch);
+                    recording.position(seek);
+                    speed = -1;
+                }
+                if (!recording.hasRecord()) {
+                    break;
+                }
+                long timestamp = recording.timestamp();
+                if (speed != mSpeed) {
+                    // restart the timing at this record
+                    speed = mSpeed;
+                    anchorTimestamp = timestamp;
+                    anchorNanos = System.nanoTime();
+                }
+                if (speed != MAX_SPEED) {
+                    long wait = due(anchorNanos, anchorTimestamp, timestamp, speed) - System.nanoTime();
+                    if (wait > BATCH_NANOS) {
+                        batch = send(batch);
+                        LockSupport.parkNanos(this, wait);
+                        // due, or woken up by a seek or a change of the speed
+                        continue;
+                    }
+                }
+
+                SensorDataFrame frame = recording.frame(mTimeOffset);
+                recording.next();
+                mPosition = timestamp;
+                if (frame != null) {
+                    batch.frames[batch.num++] = frame;
+                    mFrames++;
+                    if (batch.num == MAX_BATCH) {
+                        batch = send(batch);
+                    }
+                }
+            }
+            batch = send(batch);
+            sendNotification("Record ended.");
+            stopStreaming();
+        } catch (InterruptedException e) {
+            Log.d(TAG, "Replay interrupted.");
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading session", e);
+            stopStreaming();
+        } finally {
+            // frames not sent yet are dropped
+            if (batch != null) {
+                for (int i = 0; i < batch.num; i++) {
+                    batch.frames[i] = null;
+                }
+                batch.num = 0;
+                mFree.offer(batch);
+            }
+        }
+    }
+
+    /**
+     * Hands a batch to the handler thread.
+     *
+     * @return an empty batch
+     */
+    private Batch send(Batch batch) throws InterruptedException {
+        if (batch.num == 0) {
+            return batch;
+        }
+        mInternalHandler.post(batch);
+        return mFree.take();
+    }
+}
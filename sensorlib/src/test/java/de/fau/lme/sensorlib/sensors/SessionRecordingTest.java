@@ -0,0 +1,194 @@
+package de.fau.lme.sensorlib.sensors;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import de.fau.lme.sensorlib.dataframe.SensorDataFrame;
+import de.fau.lme.sensorlib.dataframe.SimbleeMedhackAccDataFrame;
+import de.fau.lme.sensorlib.dataframe.SimbleeMedhackEcgDataFrame;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reads sessions written like the app records them, in order, after seeks and with an unfinished
+ * last segment, and checks the timing of the replay.
+ */
+public class SessionRecordingTest {
+
+    private static final long START = 1461402395000L;
+    private static final int SEGMENT_SIZE = 1024;
+    private static final int ECG_RECORD = SessionRecording.RECORD_HEADER + 4;
+    private static final int ACC_RECORD = SessionRecording.RECORD_HEADER + 12;
+    /**
+     * ECG samples of the session, every 25th followed by an accelerometer sample
+     */
+    private static final int SAMPLES = 2500;
+
+    /**
+     * Writes 10 s of ECG at 250 Hz and accelerometer at 10 Hz in segments of 1 kB.
+     *
+     * @return the segment of each ECG sample
+     */
+    private static int[] record(File file) throws Exception {
+        ByteBuffer b = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+        b.putInt(SessionRecording.MAGIC);
+        b.putShort((short) SessionRecording.SEGMENTED_VERSION);
+        b.putShort((short) 2);
+        b.putLong(START);
+        b.putInt(SEGMENT_SIZE);
+        channel(b, "ecg", 250, 1);
+        channel(b, "acc", 10, 3);
+
+        int[] segments = new int[SAMPLES];
+        int segment = 0, start = b.position(), records = 0;
+        long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+        for (int i = 0; i < SAMPLES; i++) {
+            boolean acc = i % 25 == 24;
+            if (b.position() - start + ECG_RECORD + (acc ? ACC_RECORD : 0) > SEGMENT_SIZE - SessionRecording.FOOTER_SIZE) {
+                footer(b, start, segment++, records, min, max);
+                start = b.position();
+                records = 0;
+                min = Long.MAX_VALUE;
+                max = Long.MIN_VALUE;
+            }
+            long timestamp = START + 4 * i;
+            b.put((byte) 0).putLong(timestamp).putInt(i / 6).putFloat(i);
+            segments[i] = segment;
+            records++;
+            if (acc) {
+                b.put((byte) 1).putLong(timestamp - 900).putInt(i / 75).putFloat(i).putFloat(-i).putFloat(488);
+                records++;
+            }
+            min = Math.min(min, acc ? timestamp - 900 : timestamp);
+            max = Math.max(max, timestamp);
+        }
+        footer(b, start, segment, records, min, max);
+
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(b.array(), 0, b.position());
+        out.close();
+        return segments;
+    }
+
+    private static void channel(ByteBuffer b, String name, double rate, int numValues) {
+        b.put((byte) numValues).putDouble(rate).put((byte) name.length()).put(name.getBytes());
+    }
+
+    private static void footer(ByteBuffer b, int start, int segment, int records, long min, long max) {
+        int used = b.position() - start;
+        b.position(start + SEGMENT_SIZE - SessionRecording.FOOTER_SIZE);
+        b.putInt(SessionRecording.FOOTER_MAGIC).putInt(segment).putInt(records).putInt(used).putLong(min).putLong(max);
+    }
+
+    private static File tempFile() throws Exception {
+        File file = File.createTempFile("session", ".bin");
+        file.deleteOnExit();
+        return file;
+    }
+
+    @Test
+    public void recordsAreReadInOrderUntilTheEnd() throws Exception {
+        File file = tempFile();
+        int[] segments = record(file);
+        SessionRecording recording = new SessionRecording(file);
+        assertEquals(START, recording.getStartTime());
+        assertEquals(START + 4 * 24 - 900, recording.getFirstTimestamp());
+        assertEquals(START + 4 * (SAMPLES - 1), recording.getLastTimestamp());
+        assertEquals(250, recording.getSamplingRate(), 0);
+        assertEquals(segments[SAMPLES - 1] + 1, recording.getNumSegments());
+
+        int ecg = 0, acc = 0;
+        while (recording.hasRecord()) {
+            SensorDataFrame frame = recording.frame(1000);
+            if (frame instanceof SimbleeMedhackEcgDataFrame) {
+                SimbleeMedhackEcgDataFrame e = (SimbleeMedhackEcgDataFrame) frame;
+                assertEquals(START + 4 * ecg + 1000, e.timeStamp);
+                assertEquals(ecg, e.ecgRaw, 0);
+                assertEquals(segments[ecg], recording.getSegment());
+                ecg++;
+            } else {
+                SimbleeMedhackAccDataFrame a = (SimbleeMedhackAccDataFrame) frame;
+                assertEquals(-a.accX, a.accY, 0);
+                acc++;
+            }
+            recording.next();
+        }
+        assertEquals(SAMPLES, ecg);
+        assertEquals(SAMPLES / 25, acc);
+        // the end stays the end
+        assertFalse(recording.hasRecord());
+        recording.close();
+    }
+
+    @Test
+    public void seekLandsInTheSegmentOfTheTimestamp() throws Exception {
+        File file = tempFile();
+        int[] segments = record(file);
+        SessionRecording recording = new SessionRecording(file);
+        for (int i : new int[]{0, 1, 57, 58, 1000, 1249, 2000, SAMPLES - 1}) {
+            recording.position(START + 4 * i);
+            assertTrue(recording.hasRecord());
+            assertEquals(START + 4 * i, recording.timestamp());
+            assertEquals(segments[i], recording.getSegment());
+        }
+        // between two samples the next one follows
+        recording.position(START + 4 * 1000 + 1);
+        assertEquals(START + 4 * 1001, recording.timestamp());
+        // backwards
+        recording.position(START);
+        assertEquals(0, recording.getSegment());
+        // after the end
+        recording.position(START + 4 * SAMPLES);
+        assertFalse(recording.hasRecord());
+        recording.close();
+    }
+
+    @Test
+    public void unfinishedLastSegmentIsScanned() throws Exception {
+        File file = tempFile();
+        int[] segments = record(file);
+        SessionRecording full = new SessionRecording(file);
+        int last = full.getNumSegments() - 1;
+        full.close();
+
+        // killed within the 5th record of the last segment, which has no footer yet
+        int first = 0;
+        while (segments[first] != last)
+            first++;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - SEGMENT_SIZE + 4 * ECG_RECORD + 5);
+        raf.close();
+
+        SessionRecording recording = new SessionRecording(file);
+        assertEquals(last + 1, recording.getNumSegments());
+        assertEquals(START + 4 * (first + 3), recording.getLastTimestamp());
+        recording.position(START + 4 * first);
+        int n = 0;
+        while (recording.hasRecord()) {
+            assertEquals(START + 4 * (first + n), recording.timestamp());
+            recording.next();
+            n++;
+        }
+        assertEquals(4, n);
+        recording.close();
+    }
+
+    @Test
+    public void recordsAreDueBySpeed() {
+        long anchor = 5000000000L;
+        assertEquals(anchor, SessionReplaySensor.due(anchor, START, START, 1));
+        assertEquals(anchor + 1000000000L, SessionReplaySensor.due(anchor, START, START + 1000, 1));
+        assertEquals(anchor + 100000000L, SessionReplaySensor.due(anchor, START, START + 1000, 10));
+        assertEquals(anchor + 4000000L, SessionReplaySensor.due(anchor, START, START + 4, 1));
+        assertEquals(anchor + 2000000000L, SessionReplaySensor.due(anchor, START, START + 1000, 0.5));
+        // an hour at 600x takes 6 s
+        assertEquals(anchor + 6000000000L, SessionReplaySensor.due(anchor, START, START + 3600 * 1000, 600));
+        // records within a batch are sent together
+        assertTrue(SessionReplaySensor.due(anchor, START, START + 4 * 5, 1) - anchor <= SessionReplaySensor.BATCH_NANOS);
+    }
+}